@@ -10,6 +10,9 @@ import android.view.LayoutInflater ;
 import android.view.View ;
 import android.view.WindowManager.LayoutParams ;
 import android.widget.EditText ;
+import android.widget.Toast ;
+
+import com.sandy.android.expensetracker.util.Amounts ;
 
 /**
  * This class represents a dialog fragment to add an amount to an existing
@@ -32,7 +35,7 @@ public class AddAmtDialogFragment extends DialogFragment
      * dialog is not cancelled by the user. 
      */
     public static interface AddAmtDialogFragmentListener {
-        public void amountAdded( int amt ) ;
+        public void amountAdded( long amt ) ;
     }
     
     private EditText amtTextBox = null ;
@@ -94,9 +97,15 @@ public class AddAmtDialogFragment extends DialogFragment
             String text = amtTextBox.getText().toString() ;
             text = ( text == null || text.trim().equals( "" ) ) ? "0" : text.trim() ;
             
-            int amt = Integer.parseInt( text ) ;
-            if( amt != 0 ) {
-                listener.amountAdded( amt ) ;
+            try {
+                long amt = Amounts.parse( text ) ;
+                if( amt != 0 ) {
+                    listener.amountAdded( amt ) ;
+                }
+            }
+            catch( NumberFormatException e ) {
+                Toast.makeText( parentActivity, "Invalid amount " + text, 
+                                Toast.LENGTH_SHORT ).show() ;
             }
         }
         
@@ -1,7 +1,5 @@
 package com.sandy.android.expensetracker ;
 
-import java.util.List ;
-
 import android.app.Activity ;
 import android.view.LayoutInflater ;
 import android.view.View ;
@@ -9,35 +7,29 @@ import android.view.ViewGroup ;
 import android.widget.ArrayAdapter ;
 import android.widget.TextView ;
 
-import com.sandy.android.expensetracker.db.CategoryDAO ;
-import com.sandy.android.expensetracker.db.DAOManager ;
+import com.sandy.android.expensetracker.util.CategoryDisplayCache.DisplayList ;
 
 /**
- * This is the list adapter for category and sub category items. This fetches
- * the category and sub category description at the time of rendering while
- * internally operating on a list of identifiers. 
+ * This is the list adapter for category and sub category items. This operates
+ * on a list of identifiers, whose display names are taken from a cached 
+ * {@link DisplayList}, so that the names need not be resolved while 
+ * rendering.
  * 
  * @author Sandeep Deb
  */
 public class CatSubCatItemListAdapter extends ArrayAdapter<Integer> {
 
-    public static final int CAT_LIST_ADAPTER    = 0 ;
-    public static final int SUBCAT_LIST_ADAPTER = 1 ;
-    
-    private CategoryDAO    catDAO     = null ;
-    private int            adapterType= -1 ;
+    private DisplayList    model      = null ;
     private Activity       context    = null ;
 
-    public CatSubCatItemListAdapter( Activity context, List<Integer> idList,
-                                     int adapterType ) {
+    public CatSubCatItemListAdapter( Activity context, DisplayList model ) {
 
         super( context, R.layout.spinner_item ) ;
         
-        this.context     = context ;
-        this.adapterType = adapterType ;
-        this.catDAO      = DAOManager.getInstance().getCategoryDAO() ;
+        this.context = context ;
+        this.model   = model ;
         
-        super.addAll( idList ) ;
+        super.addAll( model.getIds() ) ;
     }
 
     /**
@@ -48,26 +40,14 @@ public class CatSubCatItemListAdapter extends ArrayAdapter<Integer> {
     @Override
     public View getView( int position, View convertView, ViewGroup parent ) {
 
-        TextView    rv   = ( TextView )convertView ;
-        Integer     id   = super.getItem( position ) ;
-        
-        String itemName = null ;
+        TextView rv = ( TextView )convertView ;
         
         if( rv == null ) {
             LayoutInflater inflater = context.getLayoutInflater() ;
             rv = ( TextView )inflater.inflate( R.layout.spinner_item, null ) ;
         }
 
-        if( adapterType == CAT_LIST_ADAPTER ) {
-            itemName = catDAO.getCategoryName( id ) ;
-            if( itemName == null ) itemName = "<Unknown Category>" ;
-        }
-        else {
-            itemName = catDAO.getSubCategoryName( id ) ;
-            if( itemName == null ) itemName = "<Unknown Sub-Category>" ;
-        }
-        
-        rv.setText( itemName ) ;
+        rv.setText( model.getName( position ) ) ;
         
         return rv ;
     }
@@ -76,4 +56,10 @@ public class CatSubCatItemListAdapter extends ArrayAdapter<Integer> {
     public View getDropDownView( int position, View convertView, ViewGroup parent ) {
         return getView( position, convertView, parent ) ;
     }
+    
+    /** Returns the position of the given identifier using the model's index. */
+    @Override
+    public int getPosition( Integer id ) {
+        return model.getPosition( id ) ;
+    }
 }
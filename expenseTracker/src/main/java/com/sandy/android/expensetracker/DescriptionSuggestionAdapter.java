@@ -0,0 +1,78 @@
+package com.sandy.android.expensetracker ;
+
+import java.util.List ;
+
+import android.content.Context ;
+import android.widget.ArrayAdapter ;
+import android.widget.Filter ;
+
+import com.sandy.android.expensetracker.db.DescriptionIndex ;
+
+/**
+ * The adapter for the description autocomplete view of the expense entry
+ * screen. The suggestions are looked up from the {@link DescriptionIndex},
+ * scoped to the currently selected sub category.
+ *
+ * @author Sandeep Deb
+ */
+public class DescriptionSuggestionAdapter extends ArrayAdapter<String> {
+
+    private DescriptionIndex index    = null ;
+    private Filter           filter   = null ;
+
+    // Set from the UI thread and read from the filtering thread
+    private volatile int     subCatId = -1 ;
+
+    public DescriptionSuggestionAdapter( Context context, DescriptionIndex index ) {
+
+        super( context, R.layout.spinner_item ) ;
+        this.index  = index ;
+        this.filter = new SuggestionFilter() ;
+    }
+
+    /** Sets the sub category to which the suggestions are scoped. */
+    public void setSubCategory( int subCatId ) {
+        this.subCatId = subCatId ;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return filter ;
+    }
+
+    /** A filter which looks up the completions of the typed prefix. */
+    private class SuggestionFilter extends Filter {
+
+        @Override
+        protected FilterResults performFiltering( CharSequence constraint ) {
+
+            FilterResults results = new FilterResults() ;
+            if( constraint != null ) {
+                List<String> completions = index.getCompletions( subCatId,
+                                                       constraint.toString() ) ;
+                results.values = completions ;
+                results.count  = completions.size() ;
+            }
+            return results ;
+        }
+
+        @Override
+        @SuppressWarnings( "unchecked" )
+        protected void publishResults( CharSequence constraint,
+                                       FilterResults results ) {
+
+            setNotifyOnChange( false ) ;
+            clear() ;
+            if( results.values != null ) {
+                addAll( ( List<String> )results.values ) ;
+            }
+
+            if( results.count > 0 ) {
+                notifyDataSetChanged() ;
+            }
+            else {
+                notifyDataSetInvalidated() ;
+            }
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.sandy.android.expensetracker ;
 
 import java.text.SimpleDateFormat ;
 import java.util.ArrayList ;
-import java.util.Arrays ;
 import java.util.Calendar ;
 import java.util.HashMap ;
 import java.util.List ;
@@ -24,31 +23,51 @@ import android.view.View.OnClickListener ;
 import android.widget.AdapterView ;
 import android.widget.AdapterView.OnItemSelectedListener ;
 import android.widget.ArrayAdapter ;
+import android.widget.AutoCompleteTextView ;
 import android.widget.Button ;
 import android.widget.DatePicker ;
 import android.widget.EditText ;
 import android.widget.Spinner ;
+import android.widget.TextView ;
+import android.widget.Toast ;
 
+import com.sandy.android.expensetracker.SplitDialogFragment.SplitDialogFragmentListener ;
 import com.sandy.android.expensetracker.db.CategoryDAO ;
 import com.sandy.android.expensetracker.db.DAOManager ;
+import com.sandy.android.expensetracker.db.ExpenseStatistics ;
+import com.sandy.android.expensetracker.db.ExpenseStatistics.Combination ;
+import com.sandy.android.expensetracker.db.HomeCurrency ;
+import com.sandy.android.expensetracker.util.Amounts ;
+import com.sandy.android.expensetracker.util.CategoryDisplayCache ;
+import com.sandy.android.expensetracker.util.Tags ;
 import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
 
 /**
  * This activity is used to edit an expense item, either new or existing. This
  * activity is launched by the MainActivity with hints on whether to edit an 
  * existing expense item or edit a new expense item, embedded in the intent. 
  * 
+ * The amount can be split across categories. The amount entered is the
+ * total, the splits added through the split button take parts of it to 
+ * other sub categories and the rest stays with the selected sub category,
+ * which becomes the first split of the item.
+ * 
+ * The tags of the item are edited as comma separated text.
+ * 
  * @author Sandeep Deb
  */
 public class ExpenseEntryActivity extends Activity 
-    implements OnItemSelectedListener, OnClickListener, DatePickerDialog.OnDateSetListener {
+    implements OnItemSelectedListener, OnClickListener, DatePickerDialog.OnDateSetListener,
+               SplitDialogFragmentListener {
     
     /** A date format to parse and format dates in this class. */
     private static SimpleDateFormat SDF = new SimpleDateFormat( "dd-MMM-yyyy", Locale.US ) ;
     
     /** A reference to the expense item that is being edited by this activity. */
     private ExpenseItem expenseItem = null ;
-    private CategoryDAO catDAO = null ;
+    private CategoryDisplayCache displayCache = CategoryDisplayCache.getInstance() ;
+    private ExpenseStatistics stats = null ;
     
     // References to all the views contained in this activity.
     private Button   dateSelectionBtn = null ;
@@ -56,9 +75,21 @@ public class ExpenseEntryActivity extends Activity
     private Spinner  subCatSpinner    = null ;
     private Spinner  paidBySpinner    = null ;
     private EditText amtEditor        = null ;
-    private EditText descEditor       = null ;
+    private EditText currencyEditor   = null ;
+    private AutoCompleteTextView descEditor = null ;
+    private EditText tagsEditor       = null ;
     private Button   okBtn            = null ;
     private Button   cancelBtn        = null ;
+    private Button   splitBtn         = null ;
+    private TextView splitsTextView   = null ;
+    
+    // The splits other than the first one, which takes the rest of the amount
+    private List<ExpenseSplit> extraSplits = new ArrayList<ExpenseSplit>() ;
+    
+    // The keys of the extra splits in the saved instance state
+    private static final String KEY_SPLIT_CAT_IDS    = "splitCatIds" ;
+    private static final String KEY_SPLIT_SUBCAT_IDS = "splitSubCatIds" ;
+    private static final String KEY_SPLIT_AMOUNTS    = "splitAmounts" ;
     
     // References to all the spinner adapters used in this activity. Note that 
     // the sub category spinner data model is dynamic and is decided based on 
@@ -66,6 +97,7 @@ public class ExpenseEntryActivity extends Activity
     // names versus the adapters, so that we can swap them pretty fast.
     private CatSubCatItemListAdapter catSpinnerAdapter    = null ;
     private ArrayAdapter<String>     paidBySpinnerAdapter = null ;
+    private DescriptionSuggestionAdapter descSuggestionAdapter = null ;
     private HashMap<Integer, CatSubCatItemListAdapter> subCatAdapterMap = 
                               new HashMap<Integer, CatSubCatItemListAdapter>() ;
     
@@ -83,8 +115,8 @@ public class ExpenseEntryActivity extends Activity
         super.onCreate( savedInstanceState ) ;
         setContentView( R.layout.activity_expense_entry ) ;
         
-        catDAO = DAOManager.getInstance().getCategoryDAO() ;
-
+        stats = DAOManager.getInstance().getExpenseStatistics() ;
+        
         // Get the references of views that belong to this activity
         getViewReferences() ;
         prepareViews() ;
@@ -92,10 +124,55 @@ public class ExpenseEntryActivity extends Activity
         // Create the expense item based on whether we are editing an existing
         // expense item or creating a new expense item.
         createExpenseItem() ;
+        applyPredictedDefaults() ;
 
         // Pre-populate the view elements of this activity based on the expense
         // item we are editing
         prePopulateViews() ;
+        
+        // The views restore their own state, the splits added so far are 
+        // restored from the saved state
+        if( savedInstanceState != null ) {
+            restoreSplits( savedInstanceState ) ;
+        }
+    }
+    
+    /** Saves the extra splits, which are not held by any view. */
+    @Override
+    protected void onSaveInstanceState( Bundle outState ) {
+        super.onSaveInstanceState( outState ) ;
+        
+        int[]  catIds    = new int[extraSplits.size()] ;
+        int[]  subCatIds = new int[extraSplits.size()] ;
+        long[] amounts   = new long[extraSplits.size()] ;
+        
+        for( int i=0; i<extraSplits.size(); i++ ) {
+            catIds[i]    = extraSplits.get( i ).getCatId() ;
+            subCatIds[i] = extraSplits.get( i ).getSubCatId() ;
+            amounts[i]   = extraSplits.get( i ).getAmount() ;
+        }
+        
+        outState.putIntArray ( KEY_SPLIT_CAT_IDS,    catIds    ) ;
+        outState.putIntArray ( KEY_SPLIT_SUBCAT_IDS, subCatIds ) ;
+        outState.putLongArray( KEY_SPLIT_AMOUNTS,    amounts   ) ;
+    }
+    
+    /** Replaces the extra splits with those in the given saved state. */
+    private void restoreSplits( Bundle savedInstanceState ) {
+        
+        int[]  catIds    = savedInstanceState.getIntArray ( KEY_SPLIT_CAT_IDS    ) ;
+        int[]  subCatIds = savedInstanceState.getIntArray ( KEY_SPLIT_SUBCAT_IDS ) ;
+        long[] amounts   = savedInstanceState.getLongArray( KEY_SPLIT_AMOUNTS    ) ;
+        
+        if( catIds == null || subCatIds == null || amounts == null ) {
+            return ;
+        }
+        
+        extraSplits.clear() ;
+        for( int i=0; i<catIds.length; i++ ) {
+            extraSplits.add( new ExpenseSplit( catIds[i], subCatIds[i], amounts[i] ) ) ;
+        }
+        updateSplitsView() ;
     }
     
     private void getViewReferences() {
@@ -105,33 +182,45 @@ public class ExpenseEntryActivity extends Activity
         subCatSpinner    = ( Spinner  ) findViewById( R.id.subCategorySpinner ) ;
         paidBySpinner    = ( Spinner  ) findViewById( R.id.paidBySpinner      ) ;
         amtEditor        = ( EditText ) findViewById( R.id.amtEditText        ) ;
-        descEditor       = ( EditText ) findViewById( R.id.descEditText       ) ;
+        currencyEditor   = ( EditText ) findViewById( R.id.currencyEditText   ) ;
+        descEditor       = ( AutoCompleteTextView ) findViewById( R.id.descEditText ) ;
+        tagsEditor       = ( EditText ) findViewById( R.id.tagsEditText       ) ;
         okBtn            = ( Button   ) findViewById( R.id.okBtn              ) ;
         cancelBtn        = ( Button   ) findViewById( R.id.cancelBtn          ) ;
+        splitBtn         = ( Button   ) findViewById( R.id.splitBtn           ) ;
+        splitsTextView   = ( TextView ) findViewById( R.id.splitsTextView     ) ;
     }
     
     private void prepareViews() {
         
         // Prepare the category spinner by creating and setting the adapter
         // and setting the selection listener
-        List<Integer> catIds = catDAO.getCategoryIds() ;
-        
-        catSpinnerAdapter = new CatSubCatItemListAdapter( this, catIds, 
-                                   CatSubCatItemListAdapter.CAT_LIST_ADAPTER ) ;
+        // The display models are cached across launches of this activity
+        catSpinnerAdapter = new CatSubCatItemListAdapter( this, 
+                                   displayCache.getCategories() ) ;
         catSpinner.setAdapter( catSpinnerAdapter ) ;
         catSpinner.setOnItemSelectedListener( this ) ;
+        subCatSpinner.setOnItemSelectedListener( this ) ;
         
-        // Prepare the paid by spinner by creating and setting the adapter
-        String[] options = getResources().getStringArray( R.array.paid_by_options ) ;
-        ArrayList<String> optionsList = new ArrayList<String>( Arrays.asList( options ) ) ;
+        // Prepare the paid by spinner by creating and setting the adapter.
+        // The options are the accounts.
+        ArrayList<String> optionsList = new ArrayList<String>( 
+                       DAOManager.getInstance().getAccountDAO().getAccountNames() ) ;
         
         paidBySpinnerAdapter = new ArrayAdapter( this, R.layout.spinner_item, 
                                                  optionsList ) ;
         paidBySpinner.setAdapter( paidBySpinnerAdapter ) ;
         
+        // Prepare the description auto completion
+        descSuggestionAdapter = new DescriptionSuggestionAdapter( this, 
+                           DAOManager.getInstance().getDescriptionIndex() ) ;
+        descEditor.setAdapter( descSuggestionAdapter ) ;
+        
         // Add ok and cancel button's click listener to this activity
         okBtn.setOnClickListener( this ) ;
         cancelBtn.setOnClickListener( this ) ;
+        splitBtn.setOnClickListener( this ) ;
+        splitsTextView.setOnClickListener( this ) ;
         dateSelectionBtn.setOnClickListener( this ) ;
     }
     
@@ -139,7 +228,29 @@ public class ExpenseEntryActivity extends Activity
         
         Bundle bdl = getIntent().getExtras() ; 
         if( bdl != null ) {
-            expenseItem = ( ExpenseItem )bdl.getSerializable( MainActivity.EXPENSE_ITEM_TAG_KEY ) ;
+            expenseItem = bdl.getParcelable( MainActivity.EXPENSE_ITEM_TAG_KEY ) ;
+        }
+    }
+    
+    /**
+     * If a blank new expense item is being created, its category, sub 
+     * category and paid by are pre-filled with the most likely values as
+     * per the expense statistics. The amount is left empty so that the user
+     * can start typing straight away.
+     */
+    private void applyPredictedDefaults() {
+        
+        if( expenseItem.getId() != -1 || expenseItem.getCatId() != -1 ) {
+            return ;
+        }
+        
+        Combination likely = stats.getMostLikely() ;
+        if( likely != null ) {
+            expenseItem.setCatId   ( likely.getCatId()    ) ;
+            expenseItem.setSubCatId( likely.getSubCatId() ) ;
+            if( expenseItem.getPaidBy() == null ) {
+                expenseItem.setPaidBy( likely.getPaidBy() ) ;
+            }
         }
     }
     
@@ -157,20 +268,87 @@ public class ExpenseEntryActivity extends Activity
             paidBySpinner.setSelection( position ) ;
         }
         
-        amtEditor.setText( Integer.toString( expenseItem.getAmount() ) ) ;
+        // A blank new item shows an empty amount, with the typical amount 
+        // of the sub category as a hint.
+        if( expenseItem.getId() == -1 && expenseItem.getAmount() == 0 ) {
+            amtEditor.setText( "" ) ;
+        }
+        else {
+            amtEditor.setText( Amounts.format( expenseItem.getAmount() ) ) ;
+        }
+        
+        // The currency is left empty for the home currency, which is shown
+        // as the hint
+        String homeCurrency = HomeCurrency.get( this ) ;
+        currencyEditor.setHint( homeCurrency ) ;
+        if( expenseItem.getCurrency() != null && 
+            !expenseItem.getCurrency().equals( homeCurrency ) ) {
+            currencyEditor.setText( expenseItem.getCurrency() ) ;
+        }
         
         if( expenseItem.getDescription() != null ) {
-            descEditor.setText( expenseItem.getDescription() ) ;
+            // The existing description should not pop up the suggestions
+            descEditor.setText( expenseItem.getDescription(), false ) ;
         }
+        tagsEditor.setText( Tags.format( expenseItem.getTags() ) ) ;
+        
+        // The first split is the selected sub category, the rest are shown
+        // below the notes
+        if( expenseItem.isSplit() ) {
+            List<ExpenseSplit> splits = expenseItem.getSplits() ;
+            for( int i=1; i<splits.size(); i++ ) {
+                extraSplits.add( new ExpenseSplit( splits.get( i ) ) ) ;
+            }
+        }
+        updateSplitsView() ;
         
         // Set the cursor to the end in amount edit text box
         amtEditor.setSelection( amtEditor.length() ) ;
     }
+    
+    /** Lists the extra splits, if any. Tapping the list clears the splits. */
+    private void updateSplitsView() {
+        
+        if( extraSplits.isEmpty() ) {
+            splitsTextView.setVisibility( View.GONE ) ;
+            return ;
+        }
+        
+        CategoryDAO   catDAO = DAOManager.getInstance().getCategoryDAO() ;
+        StringBuilder buffer = new StringBuilder( "Split off - " ) ;
+        
+        for( int i=0; i<extraSplits.size(); i++ ) {
+            ExpenseSplit split = extraSplits.get( i ) ;
+            if( i > 0 ) {
+                buffer.append( ", " ) ;
+            }
+            buffer.append( catDAO.getSubCategoryName( split.getSubCatId() ) )
+                  .append( " " )
+                  .append( Amounts.format( split.getAmount() ) ) ;
+        }
+        buffer.append( " (tap to clear)" ) ;
+        
+        splitsTextView.setText( buffer.toString() ) ;
+        splitsTextView.setVisibility( View.VISIBLE ) ;
+    }
+    
+    @Override
+    public void splitAdded( ExpenseSplit split ) {
+        extraSplits.add( split ) ;
+        updateSplitsView() ;
+    }
 
     @Override
     public void onItemSelected( AdapterView<?> parent, View view, int position,
                                 long id ) {
         
+        if( parent == subCatSpinner ) {
+            Integer subCatId = ( Integer )subCatSpinner.getSelectedItem() ;
+            updateAmountHint( subCatId ) ;
+            descSuggestionAdapter.setSubCategory( subCatId == null ? -1 : subCatId ) ;
+            return ;
+        }
+        
         // Call comes here if an expense category item is selected
         int selCatId = -1 ;
         CatSubCatItemListAdapter subCatAdapter = null ;
@@ -179,12 +357,30 @@ public class ExpenseEntryActivity extends Activity
         subCatAdapter = getSubCatAdapter( selCatId ) ;
         
         subCatSpinner.setAdapter( subCatAdapter ) ;
-        if( expenseItem.getSubCatId() != -1 ) {
-            int pos = subCatAdapter.getPosition( expenseItem.getSubCatId() ) ;
+        
+        // If the sub category of the item does not belong to the selected
+        // category, the most likely sub category of the category is selected
+        int pos = subCatAdapter.getPosition( expenseItem.getSubCatId() ) ;
+        if( pos == -1 ) {
+            Combination likely = stats.getMostLikely( selCatId ) ;
+            if( likely != null ) {
+                pos = subCatAdapter.getPosition( likely.getSubCatId() ) ;
+            }
+        }
+        if( pos != -1 ) {
             subCatSpinner.setSelection( pos ) ;
         }
         subCatAdapter.notifyDataSetChanged() ;
     }
+    
+    /** Shows the typical amount of the given sub category as the amount hint. */
+    private void updateAmountHint( Integer subCatId ) {
+        
+        long typicalAmt = ( subCatId == null ) ? ExpenseStatistics.NO_AMOUNT : 
+                          stats.getTypicalAmount( subCatId ) ;
+        amtEditor.setHint( typicalAmt == ExpenseStatistics.NO_AMOUNT ? "" : 
+                           Amounts.format( typicalAmt ) ) ;
+    }
 
     @Override
     public void onNothingSelected( AdapterView<?> parent ) {}
@@ -195,9 +391,8 @@ public class ExpenseEntryActivity extends Activity
         
         if( adapter == null ) {
             
-            List<Integer> subCatIdList = catDAO.getSubCategoryIds( catId ) ;
-            adapter = new CatSubCatItemListAdapter( this, subCatIdList, 
-                                CatSubCatItemListAdapter.SUBCAT_LIST_ADAPTER ) ;
+            adapter = new CatSubCatItemListAdapter( this, 
+                                displayCache.getSubCategories( catId ) ) ;
             
             subCatAdapterMap.put( catId, adapter ) ;
         }
@@ -209,9 +404,33 @@ public class ExpenseEntryActivity extends Activity
         
         int viewId = v.getId() ;
         if( viewId == R.id.okBtn ) {
+            if( !splitsFitAmount() ) {
+                Toast.makeText( this, "The splits must add up to less than the amount", 
+                                Toast.LENGTH_SHORT ).show() ;
+                return ;
+            }
+            if( getEnteredCurrency() == null ) {
+                Toast.makeText( this, "The currency is not a valid currency code", 
+                                Toast.LENGTH_SHORT ).show() ;
+                return ;
+            }
             discardChanges = false ;
             finish() ;
         }
+        else if( viewId == R.id.splitBtn ) {
+            
+            // The dialog accepts only the splits of the sign of the amount
+            Bundle bundle = new Bundle() ;
+            bundle.putBoolean( "negative", getEnteredAmount() < 0 ) ;
+            
+            DialogFragment splitFragment = new SplitDialogFragment() ;
+            splitFragment.setArguments( bundle ) ;
+            splitFragment.show( getFragmentManager(), "SplitDialog" ) ;
+        }
+        else if( viewId == R.id.splitsTextView ) {
+            extraSplits.clear() ;
+            updateSplitsView() ;
+        }
         else if( viewId == R.id.cancelBtn ) {
             discardChanges = true ;
             finish() ;
@@ -255,12 +474,15 @@ public class ExpenseEntryActivity extends Activity
                     amt = "0" ;
                 }
                 
-                expenseItem.setAmount     ( Integer.parseInt( amt ) ) ;
+                expenseItem.setAmount     ( Amounts.parse( amt ) ) ;
                 expenseItem.setDate       ( SDF.parse( dateSelectionBtn.getText().toString() ) ) ;
                 expenseItem.setCatId      ( ( Integer )catSpinner.getSelectedItem() ) ;
                 expenseItem.setSubCatId   ( ( Integer )subCatSpinner.getSelectedItem() ) ;
                 expenseItem.setPaidBy     ( paidBySpinner.getSelectedItem().toString() ) ;
                 expenseItem.setDescription( descEditor.getText().toString() ) ;
+                expenseItem.setCurrency   ( getEnteredCurrency() ) ;
+                expenseItem.setSplits     ( buildSplits() ) ;
+                expenseItem.setTags       ( Tags.parse( tagsEditor.getText().toString() ) ) ;
             }
             catch( Exception e ) {
                 Log.e( "ExpenseEntryActivity", "Could not populate expense item", e ) ;
@@ -274,6 +496,85 @@ public class ExpenseEntryActivity extends Activity
         super.finish() ;
     }
 
+    /**
+     * Returns true if the extra splits leave a part of the entered amount,
+     * not zero and of the same sign, for the selected sub category.
+     */
+    private boolean splitsFitAmount() {
+        
+        if( extraSplits.isEmpty() ) {
+            return true ;
+        }
+        try {
+            String amt   = amtEditor.getText().toString() ;
+            long   total = Amounts.parse( amt.trim().equals( "" ) ? "0" : amt ) ;
+            long   rest  = getRestOfAmount( total ) ;
+            
+            return ( total >= 0 ) ? rest > 0 : rest < 0 ;
+        }
+        catch( NumberFormatException e ) {
+            // An invalid amount is dealt with while populating the item
+            return true ;
+        }
+        catch( ArithmeticException e ) {
+            return false ;
+        }
+    }
+    
+    /** Returns the entered amount, zero if it is empty or not valid. */
+    private long getEnteredAmount() {
+        
+        String amt = amtEditor.getText().toString().trim() ;
+        try {
+            return amt.equals( "" ) ? 0 : Amounts.parse( amt ) ;
+        }
+        catch( NumberFormatException e ) {
+            return 0 ;
+        }
+    }
+    
+    /**
+     * Returns the splits of the item being edited, with the rest of its 
+     * amount in the first split, or null if the amount is not split. Called
+     * after the amount and the sub category of the item have been populated.
+     */
+    private List<ExpenseSplit> buildSplits() {
+        
+        if( extraSplits.isEmpty() ) {
+            return null ;
+        }
+        
+        List<ExpenseSplit> splits = new ArrayList<ExpenseSplit>( extraSplits.size() + 1 ) ;
+        splits.add( new ExpenseSplit( expenseItem.getCatId(), expenseItem.getSubCatId(),
+                                      getRestOfAmount( expenseItem.getAmount() ) ) ) ;
+        splits.addAll( extraSplits ) ;
+        return splits ;
+    }
+    
+    /** Returns what is left of the given total after the extra splits. */
+    private long getRestOfAmount( long total ) throws ArithmeticException {
+        
+        long rest = total ;
+        for( int i=0; i<extraSplits.size(); i++ ) {
+            rest = Amounts.add( rest, -extraSplits.get( i ).getAmount() ) ;
+        }
+        return rest ;
+    }
+
+    /**
+     * Returns the currency code entered by the user, the home currency if 
+     * nothing has been entered, or null if the entry is not a valid currency
+     * code.
+     */
+    private String getEnteredCurrency() {
+        
+        String code = currencyEditor.getText().toString().trim().toUpperCase( Locale.US ) ;
+        if( code.length() == 0 ) {
+            return HomeCurrency.get( this ) ;
+        }
+        return HomeCurrency.isValidCode( code ) ? code : null ;
+    }
+
     /**
      * This is called when the user presses the back button. We trap this to
      * show the user a confirmation dialog, lest all his changes be lost.
@@ -1,18 +1,24 @@
 package com.sandy.android.expensetracker ;
 
-import java.text.SimpleDateFormat ;
-import java.util.Locale ;
+import java.util.Date ;
 
 import android.app.Activity ;
+import android.util.SparseArray ;
 import android.view.LayoutInflater ;
 import android.view.View ;
 import android.view.ViewGroup ;
-import android.widget.ArrayAdapter ;
+import android.widget.BaseAdapter ;
+import android.widget.ListView ;
 import android.widget.TextView ;
 
 import com.sandy.android.expensetracker.db.CategoryDAO ;
 import com.sandy.android.expensetracker.db.DAOManager ;
+import com.sandy.android.expensetracker.db.ExpenseItemChangeListener ;
 import com.sandy.android.expensetracker.db.ExpenseItemDAO ;
+import com.sandy.android.expensetracker.db.ExpenseItemStore ;
+import com.sandy.android.expensetracker.db.HomeCurrency ;
+import com.sandy.android.expensetracker.util.Amounts ;
+import com.sandy.android.expensetracker.util.DayLabelCache ;
 import com.sandy.android.expensetracker.vo.ExpenseItem ;
 
 /**
@@ -20,15 +26,34 @@ import com.sandy.android.expensetracker.vo.ExpenseItem ;
  * main activity. We need a specialized adapter since the list items layout is 
  * customized.
  * 
+ * The adapter reads the expense items from the sorted {@link ExpenseItemStore}
+ * and never sorts them itself. The item identifiers are used as the stable
+ * row identifiers, so that callers can refer to the items by their 
+ * identifiers instead of their positions, which change as items get added.
+ * 
+ * The adapter listens to the changes made through the expense item DAO. By
+ * the time a change is notified, the store has already been updated and 
+ * the adapter only needs to refresh the views - an item updated in place 
+ * rebinds only its own row, if visible.
+ * 
  * @author Sandeep Deb
  */
-public class ExpenseItemListAdapter extends ArrayAdapter<ExpenseItem> {
+public class ExpenseItemListAdapter extends BaseAdapter 
+    implements ExpenseItemChangeListener {
 
-    private static SimpleDateFormat SDF = new SimpleDateFormat( "dd MMM", Locale.US ) ;
+    private ExpenseItemDAO   expItemDAO = null ;
+    private ExpenseItemStore store      = null ;
+    private CategoryDAO      catDAO     = null ;
+    private Activity         activity   = null ;
+    private String           homeCurrency = null ;
+    private ListView         listView   = null ;
+    private int              resource   = 0 ;
     
-    private ExpenseItemDAO expItemDAO = null ;
-    private CategoryDAO    catDAO     = null ;
-    private Activity       activity   = null ;
+    // Cache of the display ready strings of the rows, keyed by the expense
+    // item identifier. A row model is built on the first bind of an item and
+    // reused till the item is invalidated.
+    private SparseArray<RowModel> rowModelCache = new SparseArray<RowModel>() ;
+    private DayLabelCache         dayLabels     = new DayLabelCache( "dd MMM" ) ;
 
     public class ViewHolder {
         TextView dateTV   = null ;
@@ -37,15 +62,76 @@ public class ExpenseItemListAdapter extends ArrayAdapter<ExpenseItem> {
         TextView subCatTV = null ;
         TextView descTV   = null ;
     }
+    
+    /**
+     * The pre formatted display strings of an expense item row. Binding a 
+     * row from a cached model does not need any formatting or name lookups 
+     * and hence does not allocate.
+     */
+    private static class RowModel {
+        String date       = null ;
+        String amt        = null ;
+        String catName    = null ;
+        String subCatName = null ;
+        String desc       = null ;
+    }
 
     public ExpenseItemListAdapter( Activity context, int resource )
             throws Exception {
 
-        super( context, resource ) ;
         this.activity = context ;
+        this.resource = resource ;
         this.expItemDAO = DAOManager.getInstance().getExpenseItemDAO() ;
         this.catDAO = DAOManager.getInstance().getCategoryDAO() ;
-        super.addAll( this.expItemDAO.getAllExpenseItems() ) ;
+        this.store = this.expItemDAO.getExpenseItemStore() ;
+        this.homeCurrency = HomeCurrency.get( context ) ;
+        this.expItemDAO.addChangeListener( this ) ;
+    }
+    
+    @Override
+    public int getCount() {
+        return store.size() ;
+    }
+
+    @Override
+    public ExpenseItem getItem( int position ) {
+        return store.get( position ) ;
+    }
+    
+    /** Returns the expense item with the given identifier, or null. */
+    public ExpenseItem getItemById( int id ) {
+        return store.getById( id ) ;
+    }
+
+    /** The row identifiers are the expense item identifiers. */
+    @Override
+    public long getItemId( int position ) {
+        return store.get( position ).getId() ;
+    }
+    
+    @Override
+    public boolean hasStableIds() {
+        return true ;
+    }
+    
+    /**
+     * Sets this adapter as the adapter of the given list view. The list view
+     * reference is used to rebind individual rows when an item is updated
+     * in place.
+     */
+    public void bindTo( ListView listView ) {
+        this.listView = listView ;
+        listView.setAdapter( this ) ;
+    }
+    
+    /**
+     * Stops listening to the expense item changes. This should be called 
+     * when the owning activity is destroyed, else the DAO keeps this adapter
+     * (and its activity) alive.
+     */
+    public void release() {
+        this.expItemDAO.removeChangeListener( this ) ;
+        this.listView = null ;
     }
 
     /**
@@ -58,7 +144,7 @@ public class ExpenseItemListAdapter extends ArrayAdapter<ExpenseItem> {
 
         View        rv   = convertView ;
         ViewHolder  vh   = null ;
-        ExpenseItem item = super.getItem( position ) ;
+        ExpenseItem item = getItem( position ) ;
         
         // Inflate a row view if and only if we can't reuse an existing one.
         // Remember, inflating a row view and finding views in the layout is
@@ -66,7 +152,7 @@ public class ExpenseItemListAdapter extends ArrayAdapter<ExpenseItem> {
         // big.
         if (rv == null) {
             LayoutInflater inflater = activity.getLayoutInflater() ;
-            rv = inflater.inflate( R.layout.expense_list_item, null ) ;
+            rv = inflater.inflate( resource, null ) ;
             
             vh = new ViewHolder() ;
             
@@ -87,20 +173,13 @@ public class ExpenseItemListAdapter extends ArrayAdapter<ExpenseItem> {
         // directly.
         vh = ( ViewHolder )rv.getTag() ;
         
-        String catName = null ;
-        String subCatName = null ;
-        
-        catName = catDAO.getCategoryName( item.getCatId() ) ;
-        if( catName == null ) catName = "<Unknown Category>" ;
-        
-        subCatName = catDAO.getSubCategoryName( item.getSubCatId() ) ;
-        if( subCatName == null ) subCatName = "<Unknown Sub-Category>" ;
+        RowModel model = getRowModel( item ) ;
         
-        vh.dateTV.setText( SDF.format( item.getDate() ) ) ;
-        vh.amtTV.setText( Integer.toString( item.getAmount() ) ) ;
-        vh.catTV.setText( catName ) ;
-        vh.subCatTV.setText( subCatName ) ;
-        vh.descTV.setText( item.getDescription() ) ;
+        vh.dateTV.setText( model.date ) ;
+        vh.amtTV.setText( model.amt ) ;
+        vh.catTV.setText( model.catName ) ;
+        vh.subCatTV.setText( model.subCatName ) ;
+        vh.descTV.setText( model.desc ) ;
         
         // We also keep a reference to the expense item that this row view is
         // displaying as a tag element. This saves us the trouble of maintaining
@@ -111,4 +190,114 @@ public class ExpenseItemListAdapter extends ArrayAdapter<ExpenseItem> {
 
         return rv ;
     }
+    
+    /* ====================================================================== */
+    // Expense item change listener methods
+    /* ====================================================================== */
+    @Override
+    public void expenseItemInserted( ExpenseItem item ) {
+        notifyDataSetChanged() ;
+    }
+
+    @Override
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) {
+        
+        invalidateRow( item ) ;
+        
+        if( oldDate.getTime() == item.getDate().getTime() ) {
+            // The sort key is unchanged and hence the item stays in place
+            rebindRow( store.indexOf( item.getId() ) ) ;
+        }
+        else {
+            notifyDataSetChanged() ;
+        }
+    }
+
+    @Override
+    public void expenseItemDeleted( ExpenseItem item ) {
+        
+        invalidateRow( item ) ;
+        notifyDataSetChanged() ;
+    }
+
+    @Override
+    public void allExpenseItemsDeleted() {
+        
+        invalidateAllRows() ;
+        notifyDataSetChanged() ;
+    }
+    
+    /**
+     * Discards the cached display strings of the given expense item. This 
+     * should be called whenever the item is modified, so that the next bind
+     * picks up the modified values.
+     */
+    public void invalidateRow( ExpenseItem item ) {
+        rowModelCache.delete( item.getId() ) ;
+    }
+    
+    /**
+     * Discards the cached display strings of all the rows. This should be 
+     * called if the category or sub category names could have changed.
+     */
+    public void invalidateAllRows() {
+        rowModelCache.clear() ;
+    }
+    
+    /**
+     * Rebinds the row at the given position, if it is currently visible. The
+     * other rows are not touched.
+     */
+    private void rebindRow( int position ) {
+        
+        if( position == -1 ) {
+            return ;
+        }
+        else if( listView == null ) {
+            notifyDataSetChanged() ;
+            return ;
+        }
+        
+        int first = listView.getFirstVisiblePosition() ;
+        int last  = listView.getLastVisiblePosition() ;
+        
+        if( position >= first && position <= last ) {
+            View row = listView.getChildAt( position - first ) ;
+            if( row != null ) {
+                getView( position, row, listView ) ;
+            }
+        }
+    }
+    
+    /**
+     * Returns the row model for the given expense item, building and caching
+     * it if it is not already cached.
+     */
+    private RowModel getRowModel( ExpenseItem item ) {
+        
+        RowModel model = rowModelCache.get( item.getId() ) ;
+        if( model == null ) {
+            
+            model = new RowModel() ;
+            
+            model.catName = catDAO.getCategoryName( item.getCatId() ) ;
+            if( model.catName == null ) model.catName = "<Unknown Category>" ;
+            
+            model.subCatName = catDAO.getSubCategoryName( item.getSubCatId() ) ;
+            if( model.subCatName == null ) model.subCatName = "<Unknown Sub-Category>" ;
+            if( item.isSplit() && item.getSplits().size() > 1 ) {
+                model.subCatName += " (+" + ( item.getSplits().size() - 1 ) + ")" ;
+            }
+            
+            model.date = dayLabels.getLabel( item.getDate() ) ;
+            model.amt  = Amounts.format( item.getAmount() ) ;
+            if( item.getCurrency() != null && !item.getCurrency().equals( homeCurrency ) ) {
+                model.amt = item.getCurrency() + " " + model.amt ;
+            }
+            model.desc = item.getDescription() ;
+            
+            rowModelCache.put( item.getId(), model ) ;
+        }
+        return model ;
+    }
 }
@@ -0,0 +1,46 @@
+package com.sandy.android.expensetracker ;
+
+import android.app.Application ;
+import android.util.Log ;
+
+import com.sandy.android.expensetracker.db.DAOManager ;
+import com.sandy.android.expensetracker.util.LogTag ;
+
+/**
+ * The application class of the Expense Tracker application. The data access
+ * layer is owned by the application and not by any of the activities. The
+ * database connection and the in-memory caches are hence created once per
+ * process and survive the recreation of activities, for example on back
+ * navigation.
+ *
+ * The database connection is never closed explicitly - it lives as long as
+ * the process. The derived state which is persisted outside the database is
+ * saved when the user interface goes to the background, since the process
+ * can be killed any time after that without further notice. The user is not
+ * waiting on the database at that time, hence the database maintenance is
+ * also requested then.
+ *
+ * @author Sandeep Deb
+ */
+public class ExpenseTrackerApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate() ;
+
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.MAIN_ACTIVITY, "Initializing the application" ) ;
+        }
+        DAOManager.initialize( this ) ;
+    }
+
+    @Override
+    public void onTrimMemory( int level ) {
+        super.onTrimMemory( level ) ;
+
+        if( level >= TRIM_MEMORY_UI_HIDDEN ) {
+            DAOManager.getInstance().saveState() ;
+            DAOManager.getInstance().runMaintenanceIfDue( true ) ;
+        }
+    }
+}
@@ -27,10 +27,14 @@ import android.widget.Toast ;
 import com.sandy.android.expensetracker.AddAmtDialogFragment.AddAmtDialogFragmentListener ;
 import com.sandy.android.expensetracker.db.DAOManager ;
 import com.sandy.android.expensetracker.db.ExpenseItemDAO ;
+import com.sandy.android.expensetracker.db.RecurringExpenseDAO ;
+import com.sandy.android.expensetracker.util.Amounts ;
 import com.sandy.android.expensetracker.util.ExpenseCSVExporter ;
 import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.util.StartupTrace ;
 import com.sandy.android.expensetracker.vo.ExpenseItem ;
-import com.sandy.android.expensetracker.vo.ExpenseItem.ExpenseItemComparator ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
+import com.sandy.android.expensetracker.vo.RecurringExpense ;
 
 /**
  * This class is the main activity of the Expense Tracker application. This
@@ -64,7 +68,17 @@ import com.sandy.android.expensetracker.vo.ExpenseItem.ExpenseItemComparator ;
  *         amount to be added to the selected expense item
  *    b.2) Clone - Clones the selected expense item and opens up the edit 
  *         expense dialog
- *    b.3) Delete - Deletes the currently selected expense item.
+ *    b.3) Delete - Deletes the currently selected expense item. The delete
+ *         can be undone for a few minutes from the overflow menu.
+ *    b.4) Repeat - Creates a recurring expense which repeats the selected
+ *         expense item every week, month, quarter or year
+ *    b.5) Stop repeating - Deletes the recurring expense of the selected
+ *         expense item
+ * 
+ * Recurring Expenses
+ * -----------------------------------------------------------------------------
+ * The due occurrences of the recurring expenses are created as expense items
+ * when the activity is created and every time it comes back to foreground.
  *  
  * AddExpense Button 
  * -----------------------------------------------------------------------------
@@ -103,16 +117,25 @@ public class MainActivity extends Activity
 	// adapter which creates a specialized view for the list items
 	private ExpenseItemListAdapter listAdapter = null ;
     
-	// A reference to keep track of the item being edited. We need this reference
-	// to update the item when the editing sub activity returns. If the value
-	// of this reference is -1, it implies a new expense is being edited.
-    private int positionOfItemBeingEdited = -1 ;
+	// The identifier of the item being edited. We need this reference to 
+	// update the item when the add amount dialog returns. Identifiers are used
+	// instead of list positions since the positions shift as items get added.
+	// If the value of this reference is -1, no existing item is being edited.
+    private int idOfItemBeingEdited = -1 ;
     
-    // The SQLite database helper and data access objects
-    private ExpenseItemDAO expenseItemDAO = null ;
+    // The identifier of the item for which the context menu is showing. The
+    // framework does not pass the menu info to the items of a sub menu, 
+    // hence it is captured when the context menu is created.
+    private int idOfItemInContextMenu = -1 ;
     
-    // A custom comparator to sort the expense items
-    private ExpenseItemComparator comparator = new ExpenseItemComparator() ;
+    // Set when the activity is destroyed. The data load callback can come
+    // after a configuration change has destroyed this instance, in which 
+    // case it must not register anything which refers to the instance.
+    private boolean destroyed = false ;
+    
+    // The SQLite database helper and data access objects
+    private ExpenseItemDAO      expenseItemDAO      = null ;
+    private RecurringExpenseDAO recurringExpenseDAO = null ;
     
     /* ====================================================================== */
     // Creating call back methods
@@ -122,6 +145,12 @@ public class MainActivity extends Activity
      * This function is called during the creation of this activity. We 
      * capture references of views, link listeners to views and enhance views
      * with special adapters
+     * 
+     * No disk I/O is done here. The database is opened and the expense items
+     * loaded on a background thread and the expense list is populated in 
+     * {@link #onDataLoaded()}. Till then, the add expense button is disabled.
+     * The data access layer is owned by {@link ExpenseTrackerApplication}, 
+     * hence if this activity is recreated the data is already loaded.
      */
     @Override
 	protected void onCreate( Bundle savedInstanceState ) {
@@ -130,16 +159,16 @@ public class MainActivity extends Activity
             Log.d( LogTag.MAIN_ACTIVITY, "Entering onCreate" ) ;
         }
         
+        StartupTrace.markStart() ;
+        StartupTrace.beginSection( "MainActivity.onCreate" ) ;
+        
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 		
-		// Initialize the database and data access objects
-		DAOManager.initialize( this ) ;
-		expenseItemDAO = DAOManager.getInstance().getExpenseItemDAO() ;
-		        
 		// Initialize the user interface		
 		addExpenseBtn = ( Button )findViewById( R.id.addExpenseBtn ) ;
 		addExpenseBtn.setOnClickListener( this ) ;
+		addExpenseBtn.setEnabled( false ) ;
         
         // Create the add amount dialog
         addAmtDialog = new AddAmtDialogFragment() ;
@@ -149,19 +178,49 @@ public class MainActivity extends Activity
 		expenseList.setLongClickable( true ) ;
 		registerForContextMenu( expenseList ) ;
 		
-		try {
-	        if( BuildConfig.DEBUG ) {
-	            Log.d( LogTag.MAIN_ACTIVITY, "Creating expense list adapter" ) ;
-	        }
-	        
-		    listAdapter = new ExpenseItemListAdapter( 
-                		                    this, R.layout.expense_list_item ) ;
-            expenseList.setAdapter( listAdapter ) ;
+		StartupTrace.markFirstFrame( expenseList ) ;
+		
+		DAOManager.getInstance().loadInBackground( new Runnable() {
+		    public void run() {
+		        onDataLoaded() ;
+		    }
+		} ) ;
+		
+		StartupTrace.endSection() ;
+	}
+    
+    /**
+     * This method is called on the UI thread once the database has been 
+     * opened and the expense items have been loaded. We create the list 
+     * adapter and create the due recurring expenses.
+     */
+    private void onDataLoaded() {
+        
+        StartupTrace.mark( "Data loaded" ) ;
+        
+        if( destroyed || isFinishing() ) {
+            return ;
+        }
+        
+        expenseItemDAO = DAOManager.getInstance().getExpenseItemDAO() ;
+        recurringExpenseDAO = DAOManager.getInstance().getRecurringExpenseDAO() ;
+        
+        try {
+            if( BuildConfig.DEBUG ) {
+                Log.d( LogTag.MAIN_ACTIVITY, "Creating expense list adapter" ) ;
+            }
+            
+            listAdapter = new ExpenseItemListAdapter( 
+                                            this, R.layout.expense_list_item ) ;
+            listAdapter.bindTo( expenseList ) ;
         } 
-		catch ( Exception e ) {
-		    Log.e( LogTag.MAIN_ACTIVITY, "Exception loading expense items", e ) ;
+        catch ( Exception e ) {
+            Log.e( LogTag.MAIN_ACTIVITY, "Exception loading expense items", e ) ;
         }
-	}
+        
+        materializeRecurringExpenses() ;
+        addExpenseBtn.setEnabled( true ) ;
+    }
     
     /**
      * This lifecycle event is called when the activity comes to the foreground
@@ -171,7 +230,19 @@ public class MainActivity extends Activity
     @Override
     protected void onRestart() {
         super.onRestart() ;
+        
+        // The data might still be loading, in which case there is nothing
+        // to refresh yet.
+        if( listAdapter == null ) {
+            return ;
+        }
+        
+        // The category and sub category names might have been changed by 
+        // the child activities, hence the cached row strings are discarded.
+        listAdapter.invalidateAllRows() ;
         listAdapter.notifyDataSetChanged() ;
+        
+        materializeRecurringExpenses() ;
     }
     
     /**
@@ -193,29 +264,57 @@ public class MainActivity extends Activity
 		return true;
 	}
 	
+	/**
+	 * The undo delete option is shown only while the last delete is within
+	 * the undo window. The menu is invalidated after every delete and undo.
+	 */
+	@Override
+	public boolean onPrepareOptionsMenu( Menu menu ) {
+	    
+	    MenuItem undoItem = menu.findItem( R.id.action_undo_delete ) ;
+	    if( undoItem != null ) {
+	        undoItem.setVisible( expenseItemDAO != null && 
+	                             expenseItemDAO.canUndoDelete() ) ;
+	    }
+	    return super.onPrepareOptionsMenu( menu ) ;
+	}
+	
 	/**
 	 * This method is called to set up the context menu for the list view.
+	 * Either the repeat or the stop repeating option is shown depending upon
+	 * whether the selected expense item is a recurring expense. A split item
+	 * can not be repeated, since the recurring expenses do not carry splits.
 	 */
     @Override
     public void onCreateContextMenu( ContextMenu menu, View v,
                                      ContextMenuInfo menuInfo ) {
         super.onCreateContextMenu( menu, v, menuInfo ) ;
         getMenuInflater().inflate( R.menu.expense_item_context_menu, menu ) ;
+        
+        idOfItemInContextMenu = ( int )( ( AdapterContextMenuInfo )menuInfo ).id ;
+        
+        ExpenseItem expenseItem = listAdapter.getItemById( idOfItemInContextMenu ) ;
+        boolean recurring = expenseItem != null && expenseItem.getRecurringId() != -1 ;
+        
+        boolean split     = expenseItem != null && expenseItem.isSplit() ;
+        
+        menu.findItem( R.id.expense_item_ctx_menuitem_repeat ).setVisible( !recurring && !split ) ;
+        menu.findItem( R.id.expense_item_ctx_menuitem_stop_repeat ).setVisible( recurring ) ;
     }
     
     /**
-     * This method is called when this activity finishes. We close the database
-     * here.
+     * This method is called when this activity is destroyed. The list adapter
+     * is asked to stop listening to the expense item changes.
      */
     @Override
-    public void finish() {
-        if( BuildConfig.DEBUG ) {
-            Log.d( LogTag.MAIN_ACTIVITY, "Activity finishing. Closing DB" ) ;
+    protected void onDestroy() {
+        destroyed = true ;
+        if( listAdapter != null ) {
+            listAdapter.release() ;
         }
-        DAOManager.getInstance().closeDB() ;
-        super.finish() ;
+        super.onDestroy() ;
     }
-
+    
     /* ====================================================================== */
     // Action call back methods
     /* ====================================================================== */
@@ -230,7 +329,7 @@ public class MainActivity extends Activity
 	        if( BuildConfig.DEBUG ) {
 	            Log.d( LogTag.MAIN_ACTIVITY, "Add Expense clicked" ) ;
 	        }
-	        positionOfItemBeingEdited = -1 ;
+	        idOfItemBeingEdited = -1 ;
 		    launchExpenseEdit( NEW_EXPENSE_EDIT_REQ_CD, null ) ;
 		}
 	}
@@ -249,7 +348,7 @@ public class MainActivity extends Activity
         }
         
         ExpenseItem item = ( ExpenseItem )view.getTag( R.string.expense_item_tag ) ;
-        positionOfItemBeingEdited = position ;
+        idOfItemBeingEdited = item.getId() ;
         launchExpenseEdit( UPD_EXPENSE_EDIT_REQ_CD, item ) ;
     }
     
@@ -264,13 +363,14 @@ public class MainActivity extends Activity
         
         // Get a reference to the expense item for which the context item was
         // clicked.
-        int position = -1 ; 
-        AdapterContextMenuInfo info = null ;
-        ExpenseItem expenseItem = null ;
+        // Note that the row identifiers of the list adapter are the expense 
+        // item identifiers.
+        int itemId = idOfItemInContextMenu ; 
+        ExpenseItem expenseItem = listAdapter.getItemById( itemId ) ;
         
-        info = ( AdapterContextMenuInfo )item.getMenuInfo() ;
-        position = ( int )info.id ;
-        expenseItem = listAdapter.getItem( position ) ;
+        if( expenseItem == null ) {
+            return super.onContextItemSelected( item ) ;
+        }
         
         switch( item.getItemId() ) {
             
@@ -278,8 +378,7 @@ public class MainActivity extends Activity
                 
                 Log.d( LogTag.MAIN_ACTIVITY, "Delete context menu item clicked" ) ;
                 expenseItemDAO.delete( expenseItem ) ;
-                listAdapter.remove( expenseItem ) ;
-                listAdapter.notifyDataSetChanged() ;
+                invalidateOptionsMenu() ;
                 Toast.makeText( this, "Expense deleted", Toast.LENGTH_SHORT ).show() ;
                 
                 break ;
@@ -297,8 +396,9 @@ public class MainActivity extends Activity
                 clone.copyDataFrom( expenseItem ) ;
                 clone.setDate( new Date() ) ;
                 clone.setId( -1 ) ;
+                clone.setRecurringId( -1 ) ;
                 
-                positionOfItemBeingEdited = -1 ;
+                idOfItemBeingEdited = -1 ;
                 launchExpenseEdit( NEW_EXPENSE_EDIT_REQ_CD, clone ) ;
                 break ;
             }
@@ -314,20 +414,46 @@ public class MainActivity extends Activity
                 clone.copyDataFrom( expenseItem ) ;
                 clone.setDescription( "" ) ;
                 clone.setAmount( 0 ) ;
+                clone.setSplits( null ) ;
                 clone.setId( -1 ) ;
+                clone.setRecurringId( -1 ) ;
                 
-                positionOfItemBeingEdited = -1 ;
+                idOfItemBeingEdited = -1 ;
                 launchExpenseEdit( NEW_EXPENSE_EDIT_REQ_CD, clone ) ;
                 break ;
             }
             case R.id.expense_item_ctx_menuitem_addamt : {
                 
                 Log.d( LogTag.MAIN_ACTIVITY, "Add amount menu item clicked" ) ;
-                positionOfItemBeingEdited = position ;
+                idOfItemBeingEdited = itemId ;
                 addAmtDialog.show( getFragmentManager(), "AddAmtDialog" ) ;
                 break ;
             }
+            case R.id.expense_item_ctx_menuitem_repeat_weekly : {
+                repeatExpenseItem( expenseItem, RecurringExpense.PERIOD_WEEK, 1 ) ;
+                break ;
+            }
+            case R.id.expense_item_ctx_menuitem_repeat_monthly : {
+                repeatExpenseItem( expenseItem, RecurringExpense.PERIOD_MONTH, 1 ) ;
+                break ;
+            }
+            case R.id.expense_item_ctx_menuitem_repeat_quarterly : {
+                repeatExpenseItem( expenseItem, RecurringExpense.PERIOD_MONTH, 3 ) ;
+                break ;
+            }
+            case R.id.expense_item_ctx_menuitem_repeat_yearly : {
+                repeatExpenseItem( expenseItem, RecurringExpense.PERIOD_MONTH, 12 ) ;
+                break ;
+            }
+            case R.id.expense_item_ctx_menuitem_stop_repeat : {
                 
+                Log.d( LogTag.MAIN_ACTIVITY, "Stop repeating menu item clicked" ) ;
+                if( recurringExpenseDAO.delete( expenseItem.getRecurringId() ) ) {
+                    Toast.makeText( this, "Expense will not repeat", 
+                                    Toast.LENGTH_SHORT ).show() ;
+                }
+                break ;
+            }
         }
         
         return super.onContextItemSelected( item ) ;
@@ -336,19 +462,42 @@ public class MainActivity extends Activity
     /**
      * This method is called when the user tried to add a non zero amount to
      * an existing expense item. The expense item that the user wants to add
-     * the amount to is referred to by the selected item position in list view
+     * the amount to is referred to by the identifier of the selected item.
      */
     @Override
-    public void amountAdded( int amt ) {
+    public void amountAdded( long amt ) {
 
-        // We fetch the selected expense item, add the amount to both the instance
-        // and update the database and refresh the list adapter so that the view 
-        // gets refreshed.
-        ExpenseItem item = listAdapter.getItem( positionOfItemBeingEdited ) ;
-        item.setAmount( item.getAmount() + amt ) ;
+        // We fetch the selected expense item, add the amount to the instance
+        // and update the database. The list adapter is notified of the 
+        // update by the DAO and refreshes the row.
+        ExpenseItem item = listAdapter.getItemById( idOfItemBeingEdited ) ;
+        if( item == null ) {
+            return ;
+        }
+        // The amount of a split item is added to its first split, which
+        // keeps the splits adding up to the amount. The first split must be
+        // left with a part of the amount, of the same sign.
+        try {
+            long newAmt = Amounts.add( item.getAmount(), amt ) ;
+            if( item.isSplit() ) {
+                ExpenseSplit split    = item.getSplits().get( 0 ) ;
+                long         splitAmt = Amounts.add( split.getAmount(), amt ) ;
+                
+                if( ( newAmt >= 0 ) ? splitAmt <= 0 : splitAmt >= 0 ) {
+                    Toast.makeText( this, "The amount would not cover the splits", 
+                                    Toast.LENGTH_SHORT ).show() ;
+                    return ;
+                }
+                split.setAmount( splitAmt ) ;
+            }
+            item.setAmount( newAmt ) ;
+        }
+        catch( ArithmeticException e ) {
+            Toast.makeText( this, "Amount too large", Toast.LENGTH_SHORT ).show() ;
+            return ;
+        }
         
         expenseItemDAO.update( item ) ;
-        listAdapter.notifyDataSetChanged() ;
     }
     
     /**
@@ -359,6 +508,14 @@ public class MainActivity extends Activity
     @Override
     public boolean onOptionsItemSelected( MenuItem item ) {
         
+        // The actions on the expense items are ignored till they are loaded
+        if( expenseItemDAO == null && 
+            ( item.getItemId() == R.id.action_export || 
+              item.getItemId() == R.id.action_delete_all ||
+              item.getItemId() == R.id.action_undo_delete ) ) {
+            return true ;
+        }
+        
         if( item.getItemId() == R.id.action_export ) {
             
             exportDataIntoCSV() ;
@@ -372,6 +529,10 @@ public class MainActivity extends Activity
             
             deleteAllExpenseItems() ;
         }
+        else if( item.getItemId() == R.id.action_undo_delete ) {
+            
+            undoDelete() ;
+        }
         else if( item.getItemId() == R.id.action_report ) {
             
             Intent intent = new Intent( this, ReportActivity.class ) ;
@@ -459,47 +620,101 @@ public class MainActivity extends Activity
         // or aborted.
         if( resultCode == RESULT_OK ) {
             
-            ExpenseItem expenseItem = ( ExpenseItem )data.getExtras().
-                                       getSerializable( EXPENSE_ITEM_TAG_KEY ) ;
+            ExpenseItem expenseItem = data.getParcelableExtra( EXPENSE_ITEM_TAG_KEY ) ;
 
             if( requestCode == NEW_EXPENSE_EDIT_REQ_CD ) {
                 
-                expenseItem = expenseItemDAO.create( expenseItem ) ;
-                listAdapter.insert( expenseItem, 0 ) ;
+                // The DAO adds the new item to the expense item store at its 
+                // sorted position and notifies the list adapter.
+                expenseItemDAO.create( expenseItem ) ;
                 
                 Toast.makeText( this, "Expense added", Toast.LENGTH_SHORT ).show() ;
             }
             else if( requestCode == UPD_EXPENSE_EDIT_REQ_CD ) {
-                // Note that the object to which expenseItemBeingEdited reference
-                // points, is already in the adapter and hence need not be added
-                // to the list again. Just refreshing the list will ensure that
-                // the changed data is visible.
+                // Note that the item returned by the sub activity is a copy 
+                // unparcelled from the intent and not the instance that was
+                // sent for editing. The expense item store copies the edited
+                // data into its own instance of the item, moves it if the date
+                // has changed and the list adapter is notified by the DAO.
                 expenseItemDAO.update( expenseItem ) ;
-
-                // Update the item being edited with the edited data. Note that
-                // When the sub activity returns the tag data being serializable
-                // does not guarantee that the reference will remain the same
-                // hence we do a value copy.
-                ExpenseItem item = listAdapter.getItem( positionOfItemBeingEdited ) ;
-                item.copyDataFrom( expenseItem ) ;
                 
                 Toast.makeText( this, "Expense updated", Toast.LENGTH_SHORT ).show() ;
             }
-
-            // Sort the list adapter so that all the expense items are arranged
-            // in their right order.
-            listAdapter.sort( comparator ) ;
-            listAdapter.notifyDataSetChanged() ;
         }
         
         return ;
     }
     
+    /**
+     * Creates a recurring expense which repeats the given expense item and 
+     * immediately creates any of its occurrences which are already due, for
+     * example if the item is back dated.
+     * 
+     * A recurring expense carries a single category, sub category and amount
+     * and no tags. Hence a split item is not repeated, lest every occurrence
+     * book the whole amount under its first split, and the user is told that
+     * the tags of an item are not repeated.
+     */
+    private void repeatExpenseItem( ExpenseItem expenseItem, int periodUnit,
+                                    int periodCount ) {
+        
+        Log.d( LogTag.MAIN_ACTIVITY, "Repeat context menu item clicked" ) ;
+        
+        if( expenseItem.isSplit() ) {
+            Toast.makeText( this, "A split expense can not be repeated", 
+                            Toast.LENGTH_SHORT ).show() ;
+            return ;
+        }
+        
+        if( recurringExpenseDAO.create( expenseItem, periodUnit, periodCount ) != null ) {
+            String msg = "Expense will repeat" ;
+            if( expenseItem.getTags() != null && !expenseItem.getTags().isEmpty() ) {
+                msg += ", without its tags" ;
+            }
+            Toast.makeText( this, msg, Toast.LENGTH_SHORT ).show() ;
+            materializeRecurringExpenses() ;
+        }
+    }
+    
+    /**
+     * Creates the expense items for the due occurrences of all the recurring
+     * expenses. The items are inserted on the background executor and then
+     * posted back to the UI thread, where the recurring expense DAO adds them
+     * to the expense item store and the list adapter is notified. The store
+     * is updated even if this activity has been destroyed in the meanwhile.
+     */
+    private void materializeRecurringExpenses() {
+        
+        final Date now = new Date() ;
+        DAOManager.getInstance().runInBackground( new Runnable() {
+            @Override
+            public void run() {
+                final List<ExpenseItem> newItems = 
+                            recurringExpenseDAO.materializeDueExpenses( now ) ;
+                if( newItems.isEmpty() ) {
+                    return ;
+                }
+                
+                runOnUiThread( new Runnable() {
+                    @Override
+                    public void run() {
+                        recurringExpenseDAO.addMaterializedExpenses( newItems ) ;
+                        if( !destroyed ) {
+                            Toast.makeText( MainActivity.this, newItems.size() + 
+                                            " recurring expense(s) added", 
+                                            Toast.LENGTH_SHORT ).show() ;
+                        }
+                    }
+                } ) ;
+            }
+        } ) ;
+    }
+    
     /** Exports all the data in the database into a CSV file. */
     private void exportDataIntoCSV() {
         
         ExpenseCSVExporter exporter = new ExpenseCSVExporter() ;
-        List<ExpenseItem> expenseItems = expenseItemDAO.getAllExpenseItems() ;
+        List<ExpenseItem> expenseItems = expenseItemDAO.getExpenseItemStore().getItems() ;
         
         if( !expenseItems.isEmpty() ) {
             String fileName = exporter.exportExpenseItems( expenseItems ) ;
@@ -516,11 +731,26 @@ public class MainActivity extends Activity
         }
     }
     
+    /** Brings back the expense items removed by the last delete */
+    private void undoDelete() {
+        
+        int numRestored = expenseItemDAO.undoDelete() ;
+        invalidateOptionsMenu() ;
+        
+        if( numRestored > 0 ) {
+            Toast.makeText( this, numRestored + " expense(s) restored", 
+                            Toast.LENGTH_SHORT ).show() ;
+        }
+        else {
+            Toast.makeText( this, "Nothing to undo", Toast.LENGTH_SHORT ).show() ;
+        }
+    }
+    
     /** Deletes all expense items after user confirmation */
     private void deleteAllExpenseItems() {
         
         Builder builder = new AlertDialog.Builder( this, AlertDialog.THEME_HOLO_DARK ) ;
-        builder.setMessage( "This will permanently delete all expense items" ) ;
+        builder.setMessage( "This will delete all expense items" ) ;
         builder.setCancelable( false ) ;
         builder.setTitle( "Confirm" ) ;
         
@@ -528,8 +758,7 @@ public class MainActivity extends Activity
             public void onClick( DialogInterface dialog, int which ) {
                 dialog.dismiss() ;
                 expenseItemDAO.deleteAll() ;
-                listAdapter.clear() ;
-                listAdapter.notifyDataSetChanged() ;
+                invalidateOptionsMenu() ;
                 Toast.makeText( MainActivity.this, "All data deleted", 
                                 Toast.LENGTH_SHORT ).show() ;
             }
@@ -191,14 +191,24 @@ public class ManageCategoryListAdapter extends ArrayAdapter<Integer> {
     
     /**
      * Modify the name of the category to the new name and update any internal
-     * caches appropriately.
+     * caches appropriately. The category may be renamed to a different case
+     * or spacing of its own name, but not to the name of another category.
+     * 
+     * @return A string indicating the reason why the category was not 
+     *         renamed. A null return value implies that the rename was 
+     *         successful.
      */
-    public void changeCatName( int catId, String newName ) {
+    public String changeCatName( int catId, String newName ) {
+        
+        if( catDAO.doesCategoryNameExist( newName, catId ) ) {
+            return "Category '" + newName + "' already exists." ;
+        }
         
         catDAO.updateCatName( catId, newName ) ;
         
         // Notify the list view listeners for change in data. So that they can
         // render the changed category name.
         notifyDataSetChanged() ;
+        return null ;
     }
 }
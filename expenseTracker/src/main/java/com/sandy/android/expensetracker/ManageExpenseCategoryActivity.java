@@ -77,6 +77,12 @@ public class ManageExpenseCategoryActivity extends Activity
             b.setOnClickListener( this ) ;
             
             addCatTextView = ( TextView )findViewById( R.id.addCatTextArea ) ;
+            
+            // The remove handles of the rows depend upon the maintained usage
+            // counts. Debug builds check them against the database.
+            if( BuildConfig.DEBUG ) {
+                DAOManager.getInstance().getExpenseItemDAO().verifyUsageCounts() ;
+            }
         } 
         catch (Exception e) {
             Log.e( "ManageExpenseCategoryActivity", "Could not create activity", e ) ;
@@ -161,6 +167,10 @@ public class ManageExpenseCategoryActivity extends Activity
      * the row at 'from' index to 'to' index. For us this translates to
      * changing the sequence number of the categories. We delegate the 
      * sequence change processing to the adapter.
+     * 
+     * Every drop is saved as it happens. A drop moves a single row and, with
+     * the gaps between the sequence numbers, its move updates only that row,
+     * which is cheaper than applying the complete order of the list.
      */
     public void drop( int from, int to ) {
         
@@ -214,6 +224,11 @@ public class ManageExpenseCategoryActivity extends Activity
      */
     @Override
     public void stringModified( int id, String modifiedText ) {
-        adapter.changeCatName( id, modifiedText ) ;
+        
+        String msg = adapter.changeCatName( id, modifiedText ) ;
+        if( msg != null ) {
+            String preamble = "Category not renamed : " ;
+            Toast.makeText( this, preamble + msg, Toast.LENGTH_SHORT ).show() ;
+        }
     }
 }
@@ -1,7 +1,5 @@
 package com.sandy.android.expensetracker ;
 
-import java.util.List ;
-
 import android.app.Activity ;
 import android.app.DialogFragment ;
 import android.content.Context ;
@@ -25,6 +23,7 @@ import com.sandy.android.expensetracker.ModifyStringDialogFragment.ModifyStringD
 import com.sandy.android.expensetracker.db.CategoryDAO ;
 import com.sandy.android.expensetracker.db.DAOManager ;
 import com.sandy.android.expensetracker.db.ExpenseItemDAO ;
+import com.sandy.android.expensetracker.util.CategoryDisplayCache ;
 import com.sandy.android.expensetracker.util.DialogUtils ;
 
 /**
@@ -70,18 +69,14 @@ public class ManageExpenseSubCategoryActivity extends Activity
     protected void onCreate( Bundle savedInstanceState ) {
         super.onCreate( savedInstanceState ) ;
     
-        CategoryDAO catDAO = DAOManager.getInstance().getCategoryDAO() ;
-        
         try {
             setContentView( R.layout.activity_manage_expense_subcategory ) ;
             
             // Prepare the category spinner by creating and setting the adapter
             // and setting the selection listener
             catSpinner = ( Spinner  ) findViewById( R.id.categorySpinner    ) ;
-            List<Integer> catIds = catDAO.getCategoryIds() ;
-            
-            catSpinnerAdapter = new CatSubCatItemListAdapter( this, catIds, 
-                                       CatSubCatItemListAdapter.CAT_LIST_ADAPTER ) ;
+            catSpinnerAdapter = new CatSubCatItemListAdapter( this, 
+                               CategoryDisplayCache.getInstance().getCategories() ) ;
             catSpinner.setAdapter( catSpinnerAdapter ) ;
             catSpinner.setOnItemSelectedListener( this ) ;
             
@@ -195,6 +190,10 @@ public class ManageExpenseSubCategoryActivity extends Activity
      * the row at 'from' index to 'to' index. For us this translates to
      * changing the sequence number of the sub categories. We delegate the 
      * sequence change processing to the adapter.
+     * 
+     * Every drop is saved as it happens. A drop moves a single row and, with
+     * the gaps between the sequence numbers, its move updates only that row,
+     * which is cheaper than applying the complete order of the list.
      */
     public void drop( int from, int to ) {
         
@@ -225,7 +224,8 @@ public class ManageExpenseSubCategoryActivity extends Activity
         CategoryDAO    catDAO     = DAOManager.getInstance().getCategoryDAO() ;
         
         boolean canRemove = !expItemDAO.isSubCategoryUsed( subCatId ) && 
-                            ( catDAO.getNumSubCategories( catId ) > 1 ) ; 
+                            ( catDAO.getNumSubCategories( catId ) > 1 ) &&
+                            catDAO.getChildSubCategoryIds( subCatId ).isEmpty() ; 
         
         if( !canRemove ) {
             DialogUtils.showMsgDialog( this, R.string.msg_cant_remove_subcat ) ;
@@ -254,7 +254,12 @@ public class ManageExpenseSubCategoryActivity extends Activity
      */
     @Override
     public void stringModified( int id, String modifiedText ) {
-        adapter.changeSubCatName( id, modifiedText ) ;
+        
+        String msg = adapter.changeSubCatName( id, modifiedText ) ;
+        if( msg != null ) {
+            String preamble = "Sub-Category not renamed : " ;
+            Toast.makeText( this, preamble + msg, Toast.LENGTH_SHORT ).show() ;
+        }
     }
 
     /**
@@ -11,6 +11,7 @@ import android.widget.TextView ;
 import com.sandy.android.expensetracker.db.CategoryDAO ;
 import com.sandy.android.expensetracker.db.DAOManager ;
 import com.sandy.android.expensetracker.db.ExpenseItemDAO ;
+import com.sandy.android.expensetracker.util.CategoryDisplayCache ;
 
 /**
  * Specialized list adapter for displaying the sub categories in the manage
@@ -71,6 +72,7 @@ public class ManageSubCategoryListAdapter extends ArrayAdapter<Integer> {
         // Translate the category identifier into its display name
         String itemName = catDAO.getSubCategoryName( id ) ;
         if( itemName == null ) itemName = "<Unknown Sub-Category>" ;
+        itemName = CategoryDisplayCache.indent( itemName, catDAO.getSubCategoryDepth( id ) ) ;
         
         // Set the display name into the row view
         TextView tv = ( TextView )rv.findViewById( R.id.dslv_item_text ) ;
@@ -82,10 +84,11 @@ public class ManageSubCategoryListAdapter extends ArrayAdapter<Integer> {
         ExpenseItemDAO dao = DAOManager.getInstance().getExpenseItemDAO() ;
         
         // Set appropriate remove icon for each row. If the sub category 
-        // has associated expense items or if it is the only sub category, 
-        // we lighten the remove icon, indicating that these items are not 
-        // for removal.
-        if( dao.isSubCategoryUsed( id ) || catDAO.getNumSubCategories( catId ) <= 1 ) {
+        // has associated expense items, has children or if it is the only
+        // sub category, we lighten the remove icon, indicating that these 
+        // items are not for removal.
+        if( dao.isSubCategoryUsed( id ) || catDAO.getNumSubCategories( catId ) <= 1 ||
+            !catDAO.getChildSubCategoryIds( id ).isEmpty() ) {
             iv.setBackgroundResource( R.drawable.ic_action_discard_negative ) ;
         }
         else {
@@ -101,8 +104,12 @@ public class ManageSubCategoryListAdapter extends ArrayAdapter<Integer> {
      *  
      * First we check if a sub category of the given name already exists for
      * the category we are serving, if not, we ask the category DAO to add the 
-     * new sub category, get its database id and add it to the base adapter. 
-     * This will trigger a notification and in turn will be visible in the view.
+     * new sub category and refresh the base adapter from the DAO. This will 
+     * trigger a notification and in turn will be visible in the view.
+     * 
+     * A name of the form "Parent > Child" adds the child under the named
+     * parent sub category. If there is no such parent, the whole text is 
+     * taken as the name.
      * 
      * @param newSubCategoryName The name of the new sub category to be added. 
      *        It is assumed that the new sub category name is not empty or null.
@@ -113,17 +120,36 @@ public class ManageSubCategoryListAdapter extends ArrayAdapter<Integer> {
      */
     public String add( String newSubCategoryName ) {
         
-        String msg = null ;
+        String msg      = null ;
+        int    parentId = -1 ;
+        
+        // The default sub category is named "<catName>", hence the parent is
+        // taken to be the text before the last '>' and only if it exists.
+        int sepIndex = newSubCategoryName.lastIndexOf( '>' ) ;
+        if( sepIndex > 0 && sepIndex < newSubCategoryName.length()-1 ) {
+            String parentName = newSubCategoryName.substring( 0, sepIndex ).trim() ;
+            String childName  = newSubCategoryName.substring( sepIndex+1 ).trim() ;
+            parentId = catDAO.getSubCategoryId( catId, parentName ) ;
+            if( parentId != -1 && childName.length() > 0 ) {
+                newSubCategoryName = childName ;
+            }
+            else {
+                parentId = -1 ;
+            }
+        }
 
         if( !catDAO.doesSubCategoryNameExist( catId, newSubCategoryName ) ) {
             
             // Ask the DAO to add a new category by the given name and return
             // the identifier
-            int id = catDAO.addSubCategory( catId, newSubCategoryName ) ;
+            int id = ( parentId == -1 ) ? 
+                     catDAO.addSubCategory( catId, newSubCategoryName ) :
+                     catDAO.addChildSubCategory( parentId, newSubCategoryName ) ;
             
-            // Add the identifier to the base adapter.
+            // A child lands in the middle of the list, hence the rows are 
+            // read afresh from the DAO.
             if( id != -1 ) {
-                super.add( id ) ;
+                refreshSubCategories( catId ) ;
             }
             else {
                 msg = "Exception while adding sub category to database" ;
@@ -152,9 +178,10 @@ public class ManageSubCategoryListAdapter extends ArrayAdapter<Integer> {
      * index.
      * 
      * It converts the indexes to their sub category id and asks the adapter to 
-     * change the sequence in the database. Following which, it updates the 
-     * internal cache sequence which is just a remove, insert operation of 
-     * the sub category list associated with the category we are serving.
+     * change the sequence in the database. Following which, it reloads the
+     * sub category list associated with the category we are serving. Only a
+     * move among siblings is honoured by the DAO - any other drop is undone
+     * by the reload.
      */
     public void changeSequence( int fromIndex, int toIndex ) {
         
@@ -167,56 +194,33 @@ public class ManageSubCategoryListAdapter extends ArrayAdapter<Integer> {
         // Change the sequence in the database
         catDAO.changeSubCategorySequence( catId, fromSubCatId, toSubCatId, fwd ) ;
         
-        // Change the sequence in the cache
-        /*
-         * ---------------------------------------------------------------------
-         * Case a)
-         * changeSequence( 1, 4)
-         * 
-         * 0   1   2    3   4   5   6   7   <- Index value
-         * i0  i1  i2  i3  i4  i5  i6  i7   <- category id
-         *      |          ^
-         *      +----------+
-         *      
-         * remove( fromCatId )      
-         * 0   1    2   3   4   5   6       <- Index value
-         * i0  i2  i3  i4  i5  i6  i7       <- category id
-         *      
-         * insert( fromCatId, toIndex )
-         * 0   1   2    3   4   5   6   7   <- Index value
-         * i0  i2  i3  i4  i1  i5  i6  i7   <- category id
-         *      
-         * ---------------------------------------------------------------------
-         * Case b)
-         * changeSequence( 4, 1)
-         * 0   1   2    3   4   5   6   7   <- Index value
-         * i0  i1  i2  i3  i4  i5  i6  i7   <- category id
-         *      ^          |
-         *      +----------+
-         *      
-         * remove( fromCatId )      
-         * 0   1   2    3   4   5   6       <- Index value
-         * i0  i1  i2  i3  i5  i6  i7       <- category id
-         *      
-         * insert( fromCatId, toIndex )
-         * 0   1   2    3   4   5   6   7   <- Index value
-         * i0  i4  i1  i2  i3  i5  i6  i7   <- category id
-         *      
-         */
-        super.remove( fromSubCatId ) ;
-        super.insert( fromSubCatId, toIndex ) ;
+        // A sub category moves along with its sub tree, which can shift the
+        // rows in between in more than one place. Hence the rows are read
+        // afresh from the DAO instead of a local remove and insert.
+        refreshSubCategories( catId ) ;
     }
     
     /**
      * Modify the name of the sub category to the new name and update any internal
-     * caches appropriately.
+     * caches appropriately. The sub category may be renamed to a different 
+     * case or spacing of its own name, but not to the name of another sub 
+     * category of the category.
+     * 
+     * @return A string indicating the reason why the sub category was not 
+     *         renamed. A null return value implies that the rename was 
+     *         successful.
      */
-    public void changeSubCatName( int subCatId, String newName ) {
+    public String changeSubCatName( int subCatId, String newName ) {
+        
+        if( catDAO.doesSubCategoryNameExist( catId, newName, subCatId ) ) {
+            return "Sub-Category '" + newName + "' already exists." ;
+        }
         
         catDAO.updateSubCatName( subCatId, newName ) ;
         
         // Notify the list view listeners for change in data. So that they can
         // render the changed category name.
         notifyDataSetChanged() ;
+        return null ;
     }
 }
@@ -1,12 +1,29 @@
 package com.sandy.android.expensetracker ;
 
+import java.util.ArrayList ;
+import java.util.Calendar ;
+import java.util.List ;
+import java.util.regex.Matcher ;
+import java.util.regex.Pattern ;
+
 import android.app.Activity ;
 import android.os.Bundle ;
 import android.util.Log ;
+import android.view.View ;
+import android.view.View.OnClickListener ;
+import android.widget.EditText ;
 import android.widget.ExpandableListView ;
 import android.widget.TextView ;
+import android.widget.Toast ;
 
+import com.sandy.android.expensetracker.db.AccountBalances ;
+import com.sandy.android.expensetracker.db.AccountDAO ;
+import com.sandy.android.expensetracker.db.DAOManager ;
+import com.sandy.android.expensetracker.db.HomeCurrency ;
+import com.sandy.android.expensetracker.util.Amounts ;
+import com.sandy.android.expensetracker.util.IdBitmap ;
 import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.util.Tags ;
 
 /**
  * This activity displays the expense data as a drill down report based on
@@ -14,12 +31,23 @@ import com.sandy.android.expensetracker.util.LogTag ;
  * is launched from the {@link MainActivity} by clicking on the export action
  * bar menu item.
  * 
+ * Below the report, the amount paid from each account is shown from the 
+ * running account balances.
+ * 
+ * The report can be filtered by tags and by month. The filter is comma 
+ * separated text, for example "goa trip, -office, 2014-03", which reports 
+ * on the expenses of March 2014 tagged "goa trip" and not tagged "office".
+ * The filter is answered by the in-memory tag index.
+ * 
  * @author Sandeep Deb
  */
-public class ReportActivity extends Activity {
+public class ReportActivity extends Activity implements OnClickListener {
+    
+    private static final Pattern MONTH_PATTERN = Pattern.compile( "(\\d{4})-(\\d{1,2})" ) ;
     
     private ExpandableListView elv = null ;
     private TextView amt = null ;
+    private EditText filterEditor = null ;
     
     private ReportListAdapter listAdapter = null ;
 
@@ -33,12 +61,135 @@ public class ReportActivity extends Activity {
         super.onCreate( savedInstanceState ) ;
         setContentView( R.layout.activity_report ) ;
         
-        listAdapter = new ReportListAdapter( this ) ;
-        
         this.elv = ( ExpandableListView )findViewById( R.id.reportListView ) ;
+        this.amt = ( TextView )findViewById( R.id.actReportTotAmtLabel ) ;
+        this.filterEditor = ( EditText )findViewById( R.id.reportFilterEditText ) ;
+        findViewById( R.id.reportFilterBtn ).setOnClickListener( this ) ;
+        
+        TextView balances = ( TextView )findViewById( R.id.actReportBalancesLabel ) ;
+        balances.setText( getBalancesText() ) ;
+        
+        showReport( null ) ;
+    }
+    
+    /** Applies the filter entered by the user. */
+    @Override
+    public void onClick( View v ) {
+        
+        try {
+            showReport( getFilteredItemIds( filterEditor.getText().toString() ) ) ;
+        }
+        catch( IllegalArgumentException e ) {
+            Toast.makeText( this, e.getMessage(), Toast.LENGTH_SHORT ).show() ;
+        }
+    }
+    
+    /**
+     * Shows the report on the expense items with the given ids, or on all 
+     * the items if the ids are null.
+     */
+    private void showReport( IdBitmap itemIds ) {
+        
+        listAdapter = new ReportListAdapter( this, itemIds ) ;
         this.elv.setAdapter( listAdapter ) ;
+        this.amt.setText( Amounts.format( listAdapter.getTotalAmt() ) ) ;
         
-        this.amt = ( TextView )findViewById( R.id.actReportTotAmtLabel ) ;
-        this.amt.setText( "" + listAdapter.getTotalAmt() ) ;
+        if( listAdapter.isOverflow() ) {
+            Toast.makeText( this, "The amounts are too large to be totalled", 
+                            Toast.LENGTH_LONG ).show() ;
+        }
+        else if( listAdapter.getNumUnconvertedItems() > 0 ) {
+            Toast.makeText( this, listAdapter.getNumUnconvertedItems() + 
+                            " expense(s) left out for want of exchange rates", 
+                            Toast.LENGTH_LONG ).show() ;
+        }
+    }
+    
+    /**
+     * Returns the ids of the expense items matching the given filter text, or
+     * null if the filter is empty. 
+     * 
+     * @throws IllegalArgumentException If a month in the filter is invalid.
+     */
+    private IdBitmap getFilteredItemIds( String filter ) 
+        throws IllegalArgumentException {
+        
+        List<String> allOf  = new ArrayList<String>() ;
+        List<String> noneOf = new ArrayList<String>() ;
+        Calendar     month  = null ;
+        String[]     parts  = filter.split( "," ) ;
+        
+        for( int i=0; i<parts.length; i++ ) {
+            
+            String  part    = parts[i].trim() ;
+            Matcher matcher = MONTH_PATTERN.matcher( part ) ;
+            
+            if( matcher.matches() ) {
+                int monthNo = Integer.parseInt( matcher.group( 2 ) ) ;
+                if( monthNo < 1 || monthNo > 12 ) {
+                    throw new IllegalArgumentException( "Invalid month " + part ) ;
+                }
+                month = Calendar.getInstance() ;
+                month.clear() ;
+                month.set( Integer.parseInt( matcher.group( 1 ) ), monthNo - 1, 1 ) ;
+            }
+            else if( part.startsWith( "-" ) ) {
+                String name = Tags.normalize( part.substring( 1 ) ) ;
+                if( name.length() > 0 ) {
+                    noneOf.add( name ) ;
+                }
+            }
+            else if( part.length() > 0 ) {
+                allOf.add( Tags.normalize( part ) ) ;
+            }
+        }
+        
+        if( allOf.isEmpty() && noneOf.isEmpty() && month == null ) {
+            return null ;
+        }
+        return DAOManager.getInstance().getTagIndex().getItemIds( allOf, noneOf, 
+                                    month == null ? null : month.getTime() ) ;
+    }
+    
+    /**
+     * Returns a line per account with a balance, listing its balance in each
+     * currency.
+     */
+    private String getBalancesText() {
+        
+        AccountDAO      accountDAO = DAOManager.getInstance().getAccountDAO() ;
+        AccountBalances balances   = DAOManager.getInstance().getAccountBalances() ;
+        List<String>    names      = accountDAO.getAccountNames() ;
+        StringBuilder   buffer     = new StringBuilder() ;
+        String          homeCurrency = HomeCurrency.get( this ) ;
+        
+        if( balances.isOverflow() ) {
+            return "The balances are too large to be shown" ;
+        }
+        
+        for( int i=0; i<names.size(); i++ ) {
+            
+            int          accountId  = accountDAO.getAccountId( names.get( i ) ) ;
+            List<String> currencies = balances.getCurrencies( accountId ) ;
+            StringBuilder line      = new StringBuilder() ;
+            
+            for( int j=0; j<currencies.size(); j++ ) {
+                long balance = balances.getBalance( accountId, currencies.get( j ) ) ;
+                if( balance == 0 ) {
+                    continue ;
+                }
+                line.append( line.length() == 0 ? "" : ", " ) ;
+                if( !currencies.get( j ).equals( homeCurrency ) ) {
+                    line.append( currencies.get( j ) ).append( ' ' ) ;
+                }
+                line.append( Amounts.format( balance ) ) ;
+            }
+            
+            if( line.length() > 0 ) {
+                buffer.append( buffer.length() == 0 ? "" : "\n" ) ;
+                buffer.append( names.get( i ) ).append( " - " ).append( line ) ;
+            }
+        }
+        return buffer.toString() ;
     }
 }
@@ -8,19 +8,37 @@ import java.util.List ;
 import android.content.Context ;
 import android.view.LayoutInflater ;
 import android.view.View ;
+import android.util.Log ;
+import android.util.SparseArray ;
 import android.view.ViewGroup ;
 import android.widget.BaseExpandableListAdapter ;
 import android.widget.TextView ;
 
 import com.sandy.android.expensetracker.db.CategoryDAO ;
 import com.sandy.android.expensetracker.db.DAOManager ;
+import com.sandy.android.expensetracker.db.ExchangeRates ;
+import com.sandy.android.expensetracker.util.Amounts ;
+import com.sandy.android.expensetracker.util.CategoryDisplayCache ;
+import com.sandy.android.expensetracker.util.IdBitmap ;
+import com.sandy.android.expensetracker.util.LogTag ;
 import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
 
 /**
  * This is the adapter for the report list view. The report list view is an
  * Expandable list where each group is the expense category and the 
  * group items are the sub categories. Each shows the aggregated amount 
- * against itself. 
+ * against itself, in the home currency. The splits of a split expense item
+ * are attributed to their own categories and sub categories. 
+ * 
+ * The sub categories of a category form a tree. The group items list the 
+ * tree depth first, indented by depth, and the amount of a sub category 
+ * rolls up the amounts of all its descendants. The roll up is done in the
+ * same single pass over the expense items - each amount is added to every
+ * sub category on the materialised path of its sub category.
+ * 
+ * The report can be restricted to a set of expense items, such as those
+ * matching a tag filter.
  * 
  * @author Sandeep Deb
  */
@@ -31,16 +49,17 @@ public class ReportListAdapter extends BaseExpandableListAdapter {
     // -------------------------------------------------------------------------
     private class ExpenseReportRow implements Comparable<ExpenseReportRow> {
         
-        int id ;
-        int amt ;
+        int  id ;
+        long amt ;
         
-        public ExpenseReportRow( int id, int amt ) {
+        public ExpenseReportRow( int id, long amt ) {
             this.id = id ;
             this.amt = amt ;
         }
         
         public int compareTo( ExpenseReportRow another ) {
-            return amt - another.amt ;
+            // Not a subtraction, which could overflow for large amounts
+            return ( amt < another.amt ) ? -1 : ( ( amt == another.amt ) ? 0 : 1 ) ;
         }
 
         public boolean equals( Object o ) {
@@ -55,10 +74,17 @@ public class ReportListAdapter extends BaseExpandableListAdapter {
     // The context under which this adapter operates
     private Context context = null ;
     
+    private CategoryDAO catDAO = DAOManager.getInstance().getCategoryDAO() ;
+    
     // Data structure to hold the report data
     private List<ExpenseReportRow> expenseGroups = new ArrayList<ReportListAdapter.ExpenseReportRow>() ;
     private HashMap<Integer, List<ExpenseReportRow>> expenseGroupItems = new HashMap<Integer, List<ExpenseReportRow>>() ;
-    int     totalAmt = 0 ;
+    long    totalAmt = 0 ;
+    int     numUnconverted = 0 ;
+    boolean overflow = false ;
+    
+    // The ids of the expense items to report on, or null to report on all
+    private IdBitmap itemIds = null ;
     
     /**
      * While constructing the adapter, we access the expense item DAO and 
@@ -66,59 +92,198 @@ public class ReportListAdapter extends BaseExpandableListAdapter {
      * various method call backs.
      */
     public ReportListAdapter( Context context ) {
+        this( context, null ) ;
+    }
+    
+    /**
+     * Creates an adapter reporting on only the expense items with the given
+     * ids, as returned by the tag index. A null bitmap reports on all items.
+     */
+    public ReportListAdapter( Context context, IdBitmap itemIds ) {
+        this.itemIds = itemIds ;
         initialize() ;
         this.context = context ;
     }
     
-    /** A private utility method to initialize the internal data structures. */
+    /**
+     * A private utility method to initialize the internal data structures.
+     * 
+     * The amounts in other currencies are converted to the home currency on 
+     * the fly through the in-memory exchange rate cache. The rows are looked
+     * up through sparse arrays keyed by the category and sub category ids, 
+     * hence aggregating an item neither searches a list nor allocates.
+     * 
+     * The amounts are summed with overflow checks. If a sum overflows, the
+     * report is left empty and flagged instead of showing wrapped totals.
+     */
     private void initialize() {
+        try {
+            aggregate() ;
+        }
+        catch( ArithmeticException e ) {
+            Log.e( LogTag.REPORT_ACTIVITY, "Report amounts overflow", e ) ;
+            expenseGroups.clear() ;
+            expenseGroupItems.clear() ;
+            totalAmt       = 0 ;
+            numUnconverted = 0 ;
+            overflow       = true ;
+        }
+    }
+    
+    private void aggregate() throws ArithmeticException {
         
         List<ExpenseItem> expenseItems = DAOManager.getInstance().
-                                         getExpenseItemDAO().getAllExpenseItems() ;
-
-        List<ExpenseReportRow> groupItems = null ;
-        ExpenseReportRow       groupRow   = null ;
-        ExpenseReportRow       expenseRow = null ;
+                                         getExpenseItemDAO().getExpenseItemStore().getItems() ;
+        ExchangeRates rates = DAOManager.getInstance().
+                              getExchangeRateDAO().getExchangeRates() ;
         
-        for( ExpenseItem item : expenseItems ) {
-
-            totalAmt += item.getAmount() ;
+        SparseArray<ExpenseReportRow> groupRows = new SparseArray<ExpenseReportRow>() ;
+        SparseArray<SparseArray<ExpenseReportRow>> childRows = 
+                                   new SparseArray<SparseArray<ExpenseReportRow>>() ;
+        
+        for( int i=0; i<expenseItems.size(); i++ ) {
             
-            expenseRow = new ExpenseReportRow( item.getSubCatId(), item.getAmount() ) ;
-            groupRow   = new ExpenseReportRow( item.getCatId(),    item.getAmount() ) ;
+            ExpenseItem item = expenseItems.get( i ) ;
+            
+            if( itemIds != null && !itemIds.contains( item.getId() ) ) {
+                continue ;
+            }
             
-            // See if expenses of the category that this expense item belongs
-            // to have already been encountered. If so, we dig deep and add 
-            // the amount to the cumulative amount.
-            groupItems = expenseGroupItems.get( item.getCatId() ) ;
-            if( groupItems == null ) {
-                
-                groupItems = new ArrayList() ;
-                
-                groupItems.add( expenseRow ) ;
-                expenseGroupItems.put( item.getCatId(), groupItems ) ;
-                expenseGroups.add( groupRow ) ;
+            double rate = rates.getRate( item.getCurrency(), item.getDate().getTime() ) ;
+            if( Double.isNaN( rate ) ) {
+                numUnconverted++ ;
+                continue ;
+            }
+            
+            // A split item is attributed split by split, in the same pass.
+            // Each split is converted on its own so that the category totals
+            // add up to the grand total.
+            List<ExpenseSplit> splits = item.getSplits() ;
+            if( splits == null ) {
+                attribute( item.getCatId(), item.getSubCatId(), 
+                           convert( item.getAmount(), rate ), groupRows, childRows ) ;
             }
             else {
-                int index = groupItems.indexOf( expenseRow ) ;
-                if( index != -1 ) {
-                    groupItems.get( index ).amt += expenseRow.amt ;
-                }
-                else {
-                    groupItems.add( expenseRow ) ;
+                for( int j=0; j<splits.size(); j++ ) {
+                    ExpenseSplit split = splits.get( j ) ;
+                    attribute( split.getCatId(), split.getSubCatId(), 
+                               convert( split.getAmount(), rate ), groupRows, childRows ) ;
                 }
-                
-                expenseGroups.get( expenseGroups.indexOf( groupRow ) ).amt += expenseRow.amt ;
             }
         }
         
         Collections.sort( expenseGroups ) ;
-        for( List<ExpenseReportRow> rowList : expenseGroupItems.values() ) {
-            Collections.sort( rowList ) ;
+        for( Integer catId : expenseGroupItems.keySet() ) {
+            expenseGroupItems.put( catId, toTreeOrder( expenseGroupItems.get( catId ) ) ) ;
         }
     }
     
-    public int getTotalAmt() {
+    /**
+     * Returns the given sub category rows of a category laid out depth first,
+     * each row followed by the rows of its sub tree, with the siblings in 
+     * the order of their amounts. The roll up guarantees that the ancestors
+     * of a row are also present.
+     */
+    private List<ExpenseReportRow> toTreeOrder( List<ExpenseReportRow> rows ) {
+        
+        SparseArray<List<ExpenseReportRow>> rowsByParent = 
+                                    new SparseArray<List<ExpenseReportRow>>() ;
+        for( int i=0; i<rows.size(); i++ ) {
+            ExpenseReportRow row = rows.get( i ) ;
+            int[] path     = catDAO.getSubCategoryPath( row.id ) ;
+            int   parentId = ( path.length > 1 ) ? path[path.length-2] : -1 ;
+            
+            List<ExpenseReportRow> siblings = rowsByParent.get( parentId ) ;
+            if( siblings == null ) {
+                siblings = new ArrayList<ExpenseReportRow>() ;
+                rowsByParent.put( parentId, siblings ) ;
+            }
+            siblings.add( row ) ;
+        }
+        
+        List<ExpenseReportRow> ordered = new ArrayList<ExpenseReportRow>( rows.size() ) ;
+        appendSubTree( rowsByParent.get( -1 ), rowsByParent, ordered ) ;
+        return ordered ;
+    }
+    
+    private static void appendSubTree( List<ExpenseReportRow> siblings,
+                                       SparseArray<List<ExpenseReportRow>> rowsByParent,
+                                       List<ExpenseReportRow> out ) {
+        if( siblings == null ) {
+            return ;
+        }
+        Collections.sort( siblings ) ;
+        for( int i=0; i<siblings.size(); i++ ) {
+            ExpenseReportRow row = siblings.get( i ) ;
+            out.add( row ) ;
+            appendSubTree( rowsByParent.get( row.id ), rowsByParent, out ) ;
+        }
+    }
+    
+    /** 
+     * Adds the given amount to the total, the category, the sub category and
+     * all the ancestors of the sub category. 
+     */
+    private void attribute( int catId, int subCatId, long amt, 
+                            SparseArray<ExpenseReportRow> groupRows,
+                            SparseArray<SparseArray<ExpenseReportRow>> childRows ) {
+        
+        totalAmt = Amounts.add( totalAmt, amt ) ;
+        
+        // See if expenses of the category that this expense item belongs
+        // to have already been encountered. If so, we dig deep and add 
+        // the amount to the cumulative amount.
+        ExpenseReportRow groupRow = groupRows.get( catId ) ;
+        SparseArray<ExpenseReportRow> groupChildRows = null ;
+        
+        if( groupRow == null ) {
+            groupRow       = new ExpenseReportRow( catId, 0 ) ;
+            groupChildRows = new SparseArray<ExpenseReportRow>() ;
+            
+            groupRows.put( catId, groupRow ) ;
+            childRows.put( catId, groupChildRows ) ;
+            expenseGroups.add( groupRow ) ;
+            expenseGroupItems.put( catId, new ArrayList<ExpenseReportRow>() ) ;
+        }
+        else {
+            groupChildRows = childRows.get( catId ) ;
+        }
+        
+        groupRow.amt = Amounts.add( groupRow.amt, amt ) ;
+        
+        // Roll the amount up into the sub category and each of its 
+        // ancestors, as listed by its path.
+        int[] path = catDAO.getSubCategoryPath( subCatId ) ;
+        for( int i=0; i<path.length; i++ ) {
+            ExpenseReportRow expenseRow = groupChildRows.get( path[i] ) ;
+            if( expenseRow == null ) {
+                expenseRow = new ExpenseReportRow( path[i], 0 ) ;
+                groupChildRows.put( path[i], expenseRow ) ;
+                expenseGroupItems.get( catId ).add( expenseRow ) ;
+            }
+            expenseRow.amt = Amounts.add( expenseRow.amt, amt ) ;
+        }
+    }
+    
+    private static long convert( long amt, double rate ) {
+        return ( rate == 1 ) ? amt : Amounts.convert( amt, rate ) ;
+    }
+    
+    /**
+     * Returns the number of expense items left out of the report since there
+     * is no exchange rate known for their currency on their date.
+     */
+    public int getNumUnconvertedItems() {
+        return numUnconverted ;
+    }
+    
+    /** Returns true if the report could not be prepared since a sum overflowed. */
+    public boolean isOverflow() {
+        return overflow ;
+    }
+    
+    /** Returns the total amount in minor units of the home currency. */
+    public long getTotalAmt() {
         return this.totalAmt ;
     }
     
@@ -212,15 +377,16 @@ public class ReportListAdapter extends BaseExpandableListAdapter {
         // Now we set the data in the views. If it is a group, we fetch the 
         // category name, else we fetch the sub category name and set it to 
         // the text view
-        CategoryDAO catDAO = DAOManager.getInstance().getCategoryDAO() ;
         if( isGroup ) {
             head.setText( catDAO.getCategoryName( reportRow.id ) ) ;
         }
         else {
-            head.setText( catDAO.getSubCategoryName( reportRow.id ) ) ;
+            head.setText( CategoryDisplayCache.indent( 
+                              catDAO.getSubCategoryName( reportRow.id ), 
+                              catDAO.getSubCategoryDepth( reportRow.id ) ) ) ;
         }
         
-        amt.setText( "" + reportRow.amt ) ;
+        amt.setText( Amounts.format( reportRow.amt ) ) ;
         
         return convertView ;
     }
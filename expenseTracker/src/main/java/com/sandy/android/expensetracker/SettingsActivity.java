@@ -1,14 +1,24 @@
 package com.sandy.android.expensetracker ;
 
+import java.io.File ;
+import java.io.FileReader ;
+import java.io.IOException ;
+import java.io.Reader ;
+
 import android.app.Activity ;
+import android.content.Context ;
 import android.content.Intent ;
 import android.os.Bundle ;
+import android.os.Environment ;
+import android.util.Log ;
 import android.view.View ;
 import android.view.View.OnClickListener ;
 import android.widget.ImageButton ;
 import android.widget.Toast ;
 
+import com.sandy.android.expensetracker.db.DAOManager ;
 import com.sandy.android.expensetracker.db.DBHelper ;
+import com.sandy.android.expensetracker.util.LogTag ;
 import com.sandy.android.expensetracker.util.SQLiteDBExporter ;
 
 /**
@@ -58,6 +68,9 @@ public class SettingsActivity extends Activity
         
         b = ( ImageButton )findViewById( R.id.manageExpenseSubCategoriesBtn ) ;
         b.setOnClickListener( this ) ;
+        
+        b = ( ImageButton )findViewById( R.id.importExchangeRatesBtn ) ;
+        b.setOnClickListener( this ) ;
     }
 
     /**
@@ -79,6 +92,9 @@ public class SettingsActivity extends Activity
             Intent intent = new Intent( this, ManageExpenseSubCategoryActivity.class ) ;
             startActivity( intent ) ;
         }
+        else if( id == R.id.importExchangeRatesBtn ) {
+            importExchangeRates() ;
+        }
     }
     
     /* ====================================================================== */
@@ -103,4 +119,56 @@ public class SettingsActivity extends Activity
         
         Toast.makeText( this, msg, Toast.LENGTH_SHORT ).show() ;
     }
+    
+    /** 
+     * Imports the exchange rates from the file in the ExpenseTracker folder.
+     * The file is read and the rates saved on the background executor, the
+     * result being shown on the UI thread once done.
+     */
+    private void importExchangeRates() {
+        
+        final Context appContext = getApplicationContext() ;
+        
+        DAOManager.getInstance().runInBackground( new Runnable() {
+            public void run() {
+                final String msg = doImportExchangeRates() ;
+                runOnUiThread( new Runnable() {
+                    public void run() {
+                        Toast.makeText( appContext, msg, Toast.LENGTH_SHORT ).show() ;
+                    }
+                } ) ;
+            }
+        } ) ;
+    }
+    
+    /** Imports the exchange rates and returns the message for the user. */
+    private static String doImportExchangeRates() {
+        
+        File dir  = new File( Environment.getExternalStorageDirectory(), "ExpenseTracker" ) ;
+        File file = new File( dir, "exchange_rates.csv" ) ;
+        
+        String msg    = null ;
+        Reader reader = null ;
+        try {
+            reader = new FileReader( file ) ;
+            int numRates = DAOManager.getInstance().getExchangeRateDAO()
+                                                   .importRates( reader ) ;
+            msg = numRates + " exchange rates imported" ;
+        }
+        catch( IOException e ) {
+            Log.e( LogTag.EXCHANGE_RATE_DAO, "Could not import exchange rates", e ) ;
+            msg = "Import failed - " + e.getMessage() ;
+        }
+        finally {
+            if( reader != null ) {
+                try {
+                    reader.close() ;
+                }
+                catch( IOException e ) {
+                    Log.e( LogTag.EXCHANGE_RATE_DAO, "Error closing rates file", e ) ;
+                }
+            }
+        }
+        return msg ;
+    }
 }
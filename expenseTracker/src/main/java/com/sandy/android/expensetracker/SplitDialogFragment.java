@@ -0,0 +1,150 @@
+package com.sandy.android.expensetracker ;
+
+import android.app.Activity ;
+import android.app.AlertDialog ;
+import android.app.Dialog ;
+import android.app.DialogFragment ;
+import android.content.DialogInterface ;
+import android.os.Bundle ;
+import android.view.LayoutInflater ;
+import android.view.View ;
+import android.view.WindowManager.LayoutParams ;
+import android.widget.AdapterView ;
+import android.widget.AdapterView.OnItemSelectedListener ;
+import android.widget.EditText ;
+import android.widget.Spinner ;
+import android.widget.Toast ;
+
+import com.sandy.android.expensetracker.util.Amounts ;
+import com.sandy.android.expensetracker.util.CategoryDisplayCache ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
+
+/**
+ * This class represents a dialog fragment to split off a part of the amount
+ * of an expense item to another category and sub category. This dialog is
+ * shown when the user presses the split button on the expense entry screen.
+ *
+ * Once the user picks the sub category and enters an amount which is not
+ * zero, a call back method splitAdded is called on the
+ * SplitDialogFragmentListener attached to this class instance. The amount
+ * must have the sign of the amount of the expense item, which is passed in
+ * the "negative" argument, since a split can not be a refund on a payment
+ * or the other way round.
+ *
+ * @author Sandeep Deb
+ */
+public class SplitDialogFragment extends DialogFragment
+    implements DialogInterface.OnClickListener, OnItemSelectedListener {
+
+    /**
+     * The interface which needs to be implemented by a class which wants to
+     * get notified when a split is added.
+     */
+    public static interface SplitDialogFragmentListener {
+        public void splitAdded( ExpenseSplit split ) ;
+    }
+
+    private Spinner  catSpinner     = null ;
+    private Spinner  subCatSpinner  = null ;
+    private EditText amtTextBox     = null ;
+    private Activity parentActivity = null ;
+    private boolean  negative       = false ;
+    private SplitDialogFragmentListener listener = null ;
+
+    private CategoryDisplayCache     displayCache      = CategoryDisplayCache.getInstance() ;
+    private CatSubCatItemListAdapter catSpinnerAdapter = null ;
+
+    @Override
+    public void onAttach( Activity activity ) {
+        super.onAttach( activity ) ;
+        this.listener = ( SplitDialogFragmentListener )activity ;
+        this.parentActivity = activity ;
+    }
+
+    @Override
+    public Dialog onCreateDialog( Bundle savedInstanceState ) {
+
+        if( getArguments() != null ) {
+            negative = getArguments().getBoolean( "negative" ) ;
+        }
+
+        AlertDialog dialog = null ;
+        AlertDialog.Builder builder = new AlertDialog.Builder( parentActivity,
+                                                 AlertDialog.THEME_HOLO_DARK ) ;
+        LayoutInflater inflater = parentActivity.getLayoutInflater() ;
+
+        View view = inflater.inflate( R.layout.popup_add_split, null ) ;
+        builder.setView( view ) ;
+        builder.setPositiveButton( "OK", this ) ;
+        builder.setNegativeButton( "Cancel", this ) ;
+        builder.setTitle( "Split off an amount" ) ;
+
+        dialog = builder.create() ;
+        dialog.getWindow().setSoftInputMode( LayoutParams.SOFT_INPUT_STATE_VISIBLE ) ;
+        dialog.setCancelable( false ) ;
+        dialog.setCanceledOnTouchOutside( false ) ;
+
+        // Extract the view references
+        this.catSpinner    = ( Spinner )view.findViewById( R.id.popupSplitCatSpinner ) ;
+        this.subCatSpinner = ( Spinner )view.findViewById( R.id.popupSplitSubCatSpinner ) ;
+        this.amtTextBox    = ( EditText )view.findViewById( R.id.popupSplitAmtEditText ) ;
+        this.amtTextBox.setTextColor( 0xFFFFFFFF ) ;
+
+        catSpinnerAdapter = new CatSubCatItemListAdapter( parentActivity,
+                                               displayCache.getCategories() ) ;
+        catSpinner.setAdapter( catSpinnerAdapter ) ;
+        catSpinner.setOnItemSelectedListener( this ) ;
+
+        this.amtTextBox.requestFocus() ;
+
+        return dialog ;
+    }
+
+    /** Shows the sub categories of the selected category. */
+    @Override
+    public void onItemSelected( AdapterView<?> parent, View view, int position,
+                                long id ) {
+
+        int catId = catSpinnerAdapter.getItem( position ) ;
+        subCatSpinner.setAdapter( new CatSubCatItemListAdapter( parentActivity,
+                                      displayCache.getSubCategories( catId ) ) ) ;
+    }
+
+    @Override
+    public void onNothingSelected( AdapterView<?> parent ) {}
+
+    /**
+     * This is called when either of the Ok or Cancel buttons on the dialog is
+     * pressed. If the OK button is pressed and a sub category has been chosen
+     * with an amount which is not zero and has the sign of the amount of the
+     * expense item, the listener is called.
+     */
+    @Override
+    public void onClick( DialogInterface dialog, int which ) {
+
+        if( which == DialogInterface.BUTTON_POSITIVE ) {
+            String text = amtTextBox.getText().toString() ;
+            text = ( text == null || text.trim().equals( "" ) ) ? "0" : text.trim() ;
+
+            Integer catId    = ( Integer )catSpinner.getSelectedItem() ;
+            Integer subCatId = ( Integer )subCatSpinner.getSelectedItem() ;
+
+            try {
+                long amt = Amounts.parse( text ) ;
+                if( amt != 0 && ( amt < 0 ) != negative ) {
+                    Toast.makeText( parentActivity, "The split must have the " +
+                                    "sign of the amount", Toast.LENGTH_SHORT ).show() ;
+                }
+                else if( amt != 0 && catId != null && subCatId != null ) {
+                    listener.splitAdded( new ExpenseSplit( catId, subCatId, amt ) ) ;
+                }
+            }
+            catch( NumberFormatException e ) {
+                Toast.makeText( parentActivity, "Invalid amount " + text,
+                                Toast.LENGTH_SHORT ).show() ;
+            }
+        }
+
+        dismiss() ;
+    }
+}
@@ -0,0 +1,203 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.ArrayList ;
+import java.util.Date ;
+import java.util.HashMap ;
+import java.util.List ;
+import java.util.Map ;
+
+import android.util.Log ;
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.util.Amounts ;
+import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * The running balance of each account, which is the sum of the amounts of
+ * the live expense items paid from the account. The balances are built once
+ * from all the expense items and there after adjusted on every insert,
+ * update and delete of an expense item, hence reading a balance is a
+ * constant time lookup.
+ *
+ * The amounts of an account are not converted between currencies, since the
+ * rates known at the time of an update would not agree with those known
+ * later. Each account has a balance per currency instead, keyed by the code
+ * of the currency.
+ *
+ * An update can move an item to another account or currency and the updated
+ * item does not carry its old values. Hence the balances also remember the
+ * account, currency and amount with which each item is counted.
+ *
+ * The balances are summed with overflow checks. If a balance overflows, all
+ * the balances are dropped and flagged instead of showing a wrapped balance.
+ * The balances then ignore the changes till all the items are deleted, and
+ * {@link DAOManager#getAccountBalances()} builds them afresh.
+ *
+ * The balances are accessed only from the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+public class AccountBalances implements ExpenseItemChangeListener {
+
+    /** The values with which an item has been counted. */
+    private static class Entry {
+        int    accountId ;
+        String currency ;
+        long   amount ;
+    }
+
+    private AccountDAO accountDAO = null ;
+
+    // The balances of each account keyed by currency. The balance is held in
+    // a single element array so that it can be adjusted in place.
+    private SparseArray<Map<String, long[]>> balances =
+                                       new SparseArray<Map<String, long[]>>() ;
+
+    private SparseArray<Entry> entries = new SparseArray<Entry>() ;
+
+    // Set if a balance overflowed, in which case the balances are empty
+    private boolean overflow = false ;
+
+    AccountBalances( AccountDAO accountDAO, List<ExpenseItem> items ) {
+
+        this.accountDAO = accountDAO ;
+        try {
+            for( int i=0; i<items.size(); i++ ) {
+                add( items.get( i ) ) ;
+            }
+        }
+        catch( ArithmeticException e ) {
+            setOverflow( e ) ;
+        }
+    }
+
+    /** Returns true if the balances are not available since one overflowed. */
+    public boolean isOverflow() {
+        return overflow ;
+    }
+
+    /**
+     * Returns the balance of the given account in the given currency. The
+     * balance is in minor units.
+     */
+    public long getBalance( int accountId, String currency ) {
+
+        Map<String, long[]> accountBalances = balances.get( accountId ) ;
+        long[] balance = ( accountBalances == null ) ? null :
+                                                accountBalances.get( currency ) ;
+        return ( balance == null ) ? 0 : balance[0] ;
+    }
+
+    /**
+     * Returns the codes of the currencies in which the given account has
+     * expense items.
+     */
+    public List<String> getCurrencies( int accountId ) {
+
+        Map<String, long[]> accountBalances = balances.get( accountId ) ;
+        if( accountBalances == null ) {
+            return new ArrayList<String>( 0 ) ;
+        }
+        return new ArrayList<String>( accountBalances.keySet() ) ;
+    }
+
+    private void add( ExpenseItem item ) throws ArithmeticException {
+
+        Entry entry = new Entry() ;
+        entry.accountId = accountDAO.getAccountId( item.getPaidBy() ) ;
+        entry.currency  = item.getCurrency() ;
+        entry.amount    = item.getAmount() ;
+
+        adjust( entry.accountId, entry.currency, entry.amount ) ;
+        entries.put( item.getId(), entry ) ;
+    }
+
+    private void remove( int itemId ) throws ArithmeticException {
+
+        int index = entries.indexOfKey( itemId ) ;
+        if( index < 0 ) {
+            return ;
+        }
+
+        Entry entry = entries.valueAt( index ) ;
+        adjust( entry.accountId, entry.currency, -entry.amount ) ;
+        entries.removeAt( index ) ;
+    }
+
+    private void adjust( int accountId, String currency, long delta ) 
+        throws ArithmeticException {
+
+        Map<String, long[]> accountBalances = balances.get( accountId ) ;
+        if( accountBalances == null ) {
+            accountBalances = new HashMap<String, long[]>( 4 ) ;
+            balances.put( accountId, accountBalances ) ;
+        }
+
+        long[] balance = accountBalances.get( currency ) ;
+        if( balance == null ) {
+            balance = new long[1] ;
+            accountBalances.put( currency, balance ) ;
+        }
+        balance[0] = Amounts.add( balance[0], delta ) ;
+    }
+
+    /** Drops all the balances after one of them has overflowed. */
+    private void setOverflow( ArithmeticException e ) {
+
+        Log.e( LogTag.ACCOUNT_DAO, "Account balance overflow", e ) ;
+        balances.clear() ;
+        entries.clear() ;
+        overflow = true ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Expense item change listener methods
+    // -------------------------------------------------------------------------
+    @Override
+    public void expenseItemInserted( ExpenseItem item ) {
+        if( overflow ) {
+            return ;
+        }
+        try {
+            add( item ) ;
+        }
+        catch( ArithmeticException e ) {
+            setOverflow( e ) ;
+        }
+    }
+
+    @Override
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) {
+        if( overflow ) {
+            return ;
+        }
+        try {
+            remove( item.getId() ) ;
+            add( item ) ;
+        }
+        catch( ArithmeticException e ) {
+            setOverflow( e ) ;
+        }
+    }
+
+    @Override
+    public void expenseItemDeleted( ExpenseItem item ) {
+        if( overflow ) {
+            return ;
+        }
+        try {
+            remove( item.getId() ) ;
+        }
+        catch( ArithmeticException e ) {
+            setOverflow( e ) ;
+        }
+    }
+
+    @Override
+    public void allExpenseItemsDeleted() {
+        balances.clear() ;
+        entries.clear() ;
+        overflow = false ;
+    }
+}
@@ -0,0 +1,23 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.List ;
+
+/**
+ * This interface defines the contract for the account data access object.
+ * An account is what an expense is paid from - cash, a credit card and so
+ * on. To facilitate unit testing and mocking, this has been designed as an
+ * interface.
+ *
+ * @author Sandeep Deb
+ */
+public interface AccountDAO {
+
+    /** Returns the names of all the accounts, in the order of creation. */
+    public List<String> getAccountNames() ;
+
+    /** Returns the identifier of the named account, or -1 if there is none. */
+    public int getAccountId( String name ) ;
+
+    /** Returns the name of the account, or null if there is no such account. */
+    public String getAccountName( int accountId ) ;
+}
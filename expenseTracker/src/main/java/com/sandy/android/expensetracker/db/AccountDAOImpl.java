@@ -0,0 +1,96 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.List ;
+
+import android.content.Context ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+import android.database.sqlite.SQLiteStatement ;
+import android.util.Log ;
+
+import com.sandy.android.expensetracker.R ;
+import com.sandy.android.expensetracker.util.LogTag ;
+
+/**
+ * A concrete implementation of AccountDAO backed up the SQLite database.
+ *
+ *           CREATE TABLE account (
+ *               _id         INTEGER PRIMARY KEY AUTOINCREMENT,
+ *               name        TEXT    NOT NULL UNIQUE
+ *           )
+ *
+ * The account table is the dictionary of the paid by values. The expense
+ * items and the recurring expenses store the integer account id, and the
+ * expense item DAO translates between the ids and the names through this
+ * DAO. The dictionary is kept in memory by a {@link NameDictionary}.
+ *
+ * The accounts are loaded when the DAO is created. The paid by options in
+ * the resources are created as accounts if they do not exist, and an
+ * account is created on the fly for a name which is not yet known.
+ *
+ * @author Sandeep Deb
+ */
+class AccountDAOImpl implements AccountDAO {
+
+    private SQLiteDatabase db      = null ;
+    private Context        context = null ;
+
+    private NameDictionary dictionary = null ;
+
+    public AccountDAOImpl( Context context, SQLiteDatabase db ) {
+        this.db      = db ;
+        this.context = context ;
+
+        createDefaultAccounts() ;
+        dictionary = new NameDictionary( db,
+                         context.getString( R.string.query_select_all_accounts ),
+                         context.getString( R.string.query_insert_account ),
+                         "account", LogTag.ACCOUNT_DAO ) ;
+    }
+
+    @Override
+    public List<String> getAccountNames() {
+        return dictionary.getNames() ;
+    }
+
+    @Override
+    public int getAccountId( String name ) {
+        return dictionary.getId( name ) ;
+    }
+
+    @Override
+    public String getAccountName( int accountId ) {
+        return dictionary.getName( accountId ) ;
+    }
+
+    /**
+     * Returns the identifier of the named account, creating the account if
+     * it does not exist. See {@link NameDictionary#getOrCreateId}.
+     *
+     * @throws SQLException If the account could not be created.
+     */
+    int getOrCreateAccountId( String name ) throws SQLException {
+        return dictionary.getOrCreateId( name ) ;
+    }
+
+    /** Creates the paid by options in the resources as accounts, if missing. */
+    private void createDefaultAccounts() {
+
+        String[] options = context.getResources().getStringArray( R.array.paid_by_options ) ;
+        SQLiteStatement stmt = db.compileStatement(
+                               context.getString( R.string.query_insert_account ) ) ;
+        try {
+            for( int i=0; i<options.length; i++ ) {
+                stmt.bindString( 1, options[i] ) ;
+                stmt.executeInsert() ;
+            }
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.ACCOUNT_DAO, "Exception while creating the default " +
+                                       "accounts", e ) ;
+        }
+        finally {
+            stmt.close() ;
+        }
+    }
+}
@@ -14,11 +14,28 @@ import java.util.List ;
  * 
  * The implementors of this class are encouraged to build in-memory optimization
  * algorithms to ensure that all calls don't result in database access.
+ * 
+ * The sub categories of a category form a tree of any depth - a sub category
+ * may have child sub categories of its own. The two level methods, such as 
+ * {@link #getSubCategoryIds(int)}, see the tree flattened depth first, each 
+ * sub category followed by its descendants, so that callers which know only
+ * of categories and sub categories keep working. The tree is navigated with
+ * {@link #getParentSubCategoryId(int)} and {@link #getChildSubCategoryIds(int)}.
+ * Sub category names are unique within the whole tree of a category.
  *  
  * @author Sandeep Deb
  */
 public interface CategoryDAO {
     
+    /**
+     * A batch of category edits, applied through {@link CategoryDAO#applyBatch(Batch)}.
+     */
+    public interface Batch {
+        
+        /** Makes the edits of this batch through the given DAO. */
+        public void apply( CategoryDAO dao ) ;
+    }
+    
     /** 
      * Returns a list of identifiers of the categories in ascending order
      * of their sequence number. 
@@ -26,23 +43,88 @@ public interface CategoryDAO {
     public List<Integer> getCategoryIds() ;
     
     /** 
-     * Returns a list of identifiers of the sub categories in ascending order
-     * of their sequence number. 
+     * Returns a list of identifiers of all the sub categories of the given
+     * category, at all depths. The tree is flattened depth first, with the 
+     * siblings in ascending order of their sequence number. 
      */
     public List<Integer> getSubCategoryIds( int catId ) ;
     
+    /** 
+     * Returns the identifier of the parent of the given sub category, or -1 
+     * if the sub category is directly under its category. 
+     */
+    public int getParentSubCategoryId( int subCatId ) ;
+    
+    /** 
+     * Returns a list of identifiers of the immediate children of the given
+     * sub category in ascending order of their sequence number. The list is
+     * empty if the sub category has no children.
+     */
+    public List<Integer> getChildSubCategoryIds( int subCatId ) ;
+    
+    /** 
+     * Returns the depth of the given sub category in the tree, 0 for a sub 
+     * category directly under its category. 
+     */
+    public int getSubCategoryDepth( int subCatId ) ;
+    
+    /** 
+     * Returns the identifiers of the ancestors of the given sub category and
+     * of the sub category itself, from the top level down. The array is 
+     * shared and must not be modified. 
+     */
+    public int[] getSubCategoryPath( int subCatId ) ;
+    
+    /** 
+     * Returns the identifier of the named sub category of the given category,
+     * at any depth, or -1 if there is none. The names are compared ignoring 
+     * case and redundant white spaces.
+     */
+    public int getSubCategoryId( int catId, String subCatName ) ;
+    
+    /**
+     * Returns the version of the category and sub category data. The version
+     * changes whenever any category or sub category is added, removed, 
+     * renamed or reordered. Callers which derive data from this DAO (for 
+     * example display models) can hold on to the derived data for as long 
+     * as the version remains unchanged.
+     */
+    public int getVersion() ;
+    
     /** Returns the name of the category given the category identifier. */
     public String getCategoryName( int catId ) ;
     
     /** Returns the name of the sub category given the sub category identifier. */
     public String getSubCategoryName( int subCatId ) ;
     
-    /** Returns true if the given category name already exists. */
+    /** 
+     * Returns true if the given category name already exists. The names are
+     * compared ignoring case and redundant white spaces.
+     */
     public boolean doesCategoryNameExist( String catName ) ;
     
-    /** Returns true if the given sub category name already exists for the given category. */
+    /** 
+     * Returns true if the given category name is used by a category other
+     * than the given one. Used to validate a rename, where a change of case
+     * or spacing of the category's own name is allowed.
+     */
+    public boolean doesCategoryNameExist( String catName, int exceptCatId ) ;
+    
+    /** 
+     * Returns true if the given sub category name already exists for the 
+     * given category. The names are compared ignoring case and redundant 
+     * white spaces.
+     */
     public boolean doesSubCategoryNameExist( int catId, String subCatName ) ;
     
+    /** 
+     * Returns true if the given sub category name is used by a sub category
+     * of the given category other than the given one. Used to validate a 
+     * rename, like {@link #doesCategoryNameExist(String, int)}.
+     */
+    public boolean doesSubCategoryNameExist( int catId, String subCatName, 
+                                             int exceptSubCatId ) ;
+    
     /** Returns the number of sub categories for the given category. */
     public int getNumSubCategories( int catId ) ;
     
@@ -57,6 +139,9 @@ public interface CategoryDAO {
      * c) Any database exception while adding
      * d) Any internal logic exceptions
      * 
+     * The category is created along with a default sub category, named 
+     * "<catName>", in a single transaction.
+     * 
      * @param catName The name of the category to add. 
      * 
      * @return A non negative integer denoting the database identifier of the 
@@ -88,9 +173,21 @@ public interface CategoryDAO {
      */
     public int addSubCategory( int catId, String subCatName ) ;
 
+    /**
+     * Adds the given sub category name as the last child of the given sub 
+     * category, in the same category as the parent. The return value and 
+     * the failure conditions are the same as for 
+     * {@link #addSubCategory(int, String)}.
+     * 
+     * @param parentSubCatId The identifier of the parent sub category.
+     * @param subCatName The name of the sub category to add. 
+     */
+    public int addChildSubCategory( int parentSubCatId, String subCatName ) ;
+
     /**
      * Removes the provided category and associated sub categories from the
-     * database and updates the internal cache accordingly.
+     * database, in a single transaction, and updates the internal cache 
+     * accordingly.
      * 
      * It is assumed that no expense items are using the category provided - it
      * is important for the caller to verify this before invoking this method.
@@ -109,6 +206,7 @@ public interface CategoryDAO {
      * it is important for the caller to verify this before invoking this
      * method. Depending upon database constraints, it might happen that any
      * expense items referring to this sub category might get cascade deleted.
+     * A sub category which has children is not removed.
      * 
      * @param subCatId The category to remove from the database.
      */
@@ -122,28 +220,24 @@ public interface CategoryDAO {
      * Case a)
      * changeSequence( 1, 4)
      * 
-     * 0   2   6    8   9  10  11  12   <- sequence_no
      * i0  i1  i2  i3  i4  i5  i6  i7   <- category id
      *      |          ^
      *      +----------+
      *      
-     * 0   2   6    8   9  10  11  12   <- sequence_no
      * i0  i2  i3  i4  i1  i5  i6  i7   <- category id
      *      
      *      
      * Case b)
      * changeSequence( 4, 1)
-     * 0   2   6    8   9  10  11  12   <- sequence_no
      * i0  i1  i2  i3  i4  i5  i6  i7   <- category id
      *      ^          |
      *      +----------+
      *      
-     * 0   2   6    8   9  10  11  12   <- sequence_no
      * i0  i4  i1  i2  i3  i5  i6  i7   <- category id
      *      
      * Important points to note:
-     * a) Only the sequence numbers of items between the from and to index 
-     *    get affected
+     * a) Implementations are expected to keep gaps between sequence numbers 
+     *    so that a move usually updates only the moved item
      *    
      * b) from can be either greater than or less than to - either an item
      *    can be pulled up or pushed down
@@ -171,7 +265,9 @@ public interface CategoryDAO {
      * index.
      * 
      * Please see the documentation of {@link #changeCategorySequence(Integer, Integer, boolean)}
-     * for more details.
+     * for more details. Both the sub categories must have the same parent - 
+     * a sub category is moved along with its descendants and only among its
+     * siblings. The direction is derived from the sibling order.
      * 
      * @param fromSubCatId The sub category id which has to be moved
      * @param toSubCatId   The sub category whose place will be taken by the fromSubCatId
@@ -179,10 +275,67 @@ public interface CategoryDAO {
      *                     sequence of fromSubCatId, false otherwise.
      */
     public void changeSubCategorySequence( Integer catId, Integer fromSubCatId, Integer toSubCatId, boolean fwd ) ;
+    
+    /**
+     * Applies a complete ordering to the categories. The categories are 
+     * sequenced in the order in which they appear in the given list. All the
+     * changes are applied atomically - either all of them get applied or 
+     * none of them.
+     * 
+     * This is more efficient than a series of {@link #changeCategorySequence(Integer, Integer, boolean)}
+     * calls when the complete new order is known, for example after a 
+     * series of drag and drop operations on a long list. The manage 
+     * activities save every drop as it happens, with a single row update, 
+     * and hence do not use this.
+     * 
+     * @param orderedCatIds All the category ids in their new order.
+     * 
+     * @throws IllegalArgumentException If the list does not contain exactly
+     *         the existing category ids.
+     */
+    public void applyCategoryOrder( List<Integer> orderedCatIds ) ;
+    
+    /**
+     * Applies a complete ordering to the sub categories of the given category.
+     * Please see the documentation of {@link #applyCategoryOrder(List)} for
+     * more details. The order of the list is applied among the siblings of 
+     * each parent, the tree structure itself is not changed.
+     * 
+     * @param catId The category whose sub categories are being ordered.
+     * @param orderedSubCatIds All the sub category ids of the category in 
+     *        their new order.
+     * 
+     * @throws IllegalArgumentException If the list does not contain exactly
+     *         the existing sub category ids of the category.
+     */
+    public void applySubCategoryOrder( int catId, List<Integer> orderedSubCatIds ) ;
 
-    /** Updates the name of the category to the new name.. */
+    /** 
+     * Updates the name of the category to the new name. The rename is not 
+     * done if another category has the name. 
+     */
     public void updateCatName( int catId, String newName ) ;
     
-    /** Updates the name of the sub category to the new name.. */
+    /** 
+     * Updates the name of the sub category to the new name. The rename is 
+     * not done if another sub category of the category has the name.
+     */
     public void updateSubCatName( int subCatId, String newName ) ;
+    
+    /**
+     * Applies all the edits made by the given batch atomically, in a single 
+     * database transaction - either all of them get applied or none of them.
+     * This is much cheaper than making the edits individually, since the 
+     * database commits (and syncs to the disk) only once. The edits made 
+     * within the batch see the effects of the earlier edits of the batch.
+     * 
+     * Note that the individual methods report their own failures as usual
+     * (for example by returning -1), but any failure causes the complete 
+     * batch to be rolled back.
+     * 
+     * The user interface makes one edit at a time and does not use batches.
+     * 
+     * @return true if the batch was committed, false if it was rolled back.
+     */
+    public boolean applyBatch( Batch batch ) ;
 }
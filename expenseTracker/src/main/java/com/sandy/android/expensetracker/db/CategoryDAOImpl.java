@@ -1,9 +1,13 @@
 package com.sandy.android.expensetracker.db;
 
 import java.util.ArrayList ;
+import java.util.Collections ;
 import java.util.HashMap ;
+import java.util.HashSet ;
 import java.util.List ;
+import java.util.Locale ;
 import java.util.Map ;
+import java.util.Set ;
 
 import android.content.Context ;
 import android.database.Cursor ;
@@ -11,6 +15,8 @@ import android.database.SQLException ;
 import android.database.sqlite.SQLiteDatabase ;
 import android.database.sqlite.SQLiteStatement ;
 import android.util.Log ;
+import android.util.SparseArray ;
+import android.util.SparseIntArray ;
 
 import com.sandy.android.expensetracker.BuildConfig ;
 import com.sandy.android.expensetracker.R ;
@@ -20,6 +26,24 @@ import com.sandy.android.expensetracker.util.LogTag ;
  * A concrete implementation of CategoryDAO interface backed up the SQLite 
  * database.
  * 
+ * Every mutation is done in a write transaction (see beginWrite and endWrite)
+ * and the write transactions nest - a compound operation like adding a 
+ * category with its default sub category, or a batch of edits, is a single
+ * database transaction. The in-memory cache is updated as the steps of a
+ * write execute, so that the later steps see the effect of the earlier ones.
+ * If the outermost transaction rolls back, the cache is reloaded from the 
+ * database, which then has the state before the write began. Hence, once a 
+ * write returns, the cache never reflects a change which is not committed.
+ * 
+ * The sub categories form a tree through the parent_id column. Each row also
+ * stores its materialised path - the ids from the top level sub category 
+ * down to the row, as in '/12/31/'. The cache parses each path into the 
+ * chain of ancestor ids of the sub category, which the report uses to roll
+ * an amount up the tree, and which gives the depth, without walking the 
+ * tree. The sequence numbers order the siblings of a parent. The cache holds the sibling lists
+ * and, per category, the tree flattened depth first, which is what the two
+ * level methods of the interface return.
+ * 
  * @author Sandeep Deb
  */
 class CategoryDAOImpl implements CategoryDAO {
@@ -31,13 +55,59 @@ class CategoryDAOImpl implements CategoryDAO {
     public static final String COL_NAME_NAME          = "name" ;
     public static final String COL_CATID_NAME         = "cat_id" ;
     
+    /**
+     * The gap between the sequence numbers of consecutive items when they 
+     * are appended or renumbered. The gaps allow an item to be moved by 
+     * assigning it a sequence number between its new neighbours, without
+     * touching any other row.
+     */
+    static final int SEQ_NO_GAP = 1024 ;
+    
+    // A marker signifying that there is no free sequence number at a position
+    private static final long NO_SEQ_NO = Long.MIN_VALUE ;
+    
     private SQLiteDatabase db = null ;
     private Context context = null ;
     
-    private List<Integer>               categoryIdList       = new ArrayList<Integer>() ;
-    private Map<Integer, String>        categoryIdNameMap    = new HashMap<Integer, String>() ;
-    private Map<Integer, List<Integer>> catSubCatIdListMap   = new HashMap<Integer, List<Integer>>() ;
-    private Map<Integer, String>        subCategoryIdNameMap = new HashMap<Integer, String>() ;
+    // The in-memory cache. The name lookups are on the rendering path of every
+    // list row, spinner item, report row and CSV row and hence the maps are
+    // keyed by primitive ints to avoid boxing the identifiers on each lookup.
+    // The category id list is retained as a List<Integer> since it is handed
+    // out as is to the adapters via the CategoryDAO interface.
+    private List<Integer>              categoryIdList       = new ArrayList<Integer>() ;
+    private SparseArray<String>        categoryIdNameMap    = new SparseArray<String>() ;
+    private SparseArray<List<Integer>> catSubCatIdListMap   = new SparseArray<List<Integer>>() ;
+    private SparseArray<String>        subCategoryIdNameMap = new SparseArray<String>() ;
+    private SparseIntArray             subCatCatIdMap       = new SparseIntArray() ;
+    private SparseIntArray             catSeqNoMap          = new SparseIntArray() ;
+    private SparseIntArray             subCatSeqNoMap       = new SparseIntArray() ;
+    
+    // The sub category tree. The sibling lists are in ascending order of the
+    // sequence numbers - the top level sub categories of each category, keyed
+    // by the category id, and the children of each sub category which has 
+    // any, keyed by the sub category id. The parent of a top level sub 
+    // category is -1. The flattened tree of each category is held in the
+    // catSubCatIdListMap above and is rebuilt by rebuildSubCatList whenever
+    // the tree or the order of the siblings changes.
+    private SparseArray<List<Integer>> catTopSubCatIdListMap  = new SparseArray<List<Integer>>() ;
+    private SparseArray<List<Integer>> childSubCatIdListMap   = new SparseArray<List<Integer>>() ;
+    private SparseIntArray             subCatParentMap        = new SparseIntArray() ;
+    private SparseArray<int[]>         subCatPathMap          = new SparseArray<int[]>() ;
+    
+    // Reverse indexes from the normalized names to the identifiers. These 
+    // help answer the name existence checks in constant time. The sub category
+    // names are unique only within a category and hence are indexed per 
+    // category. See normalizeName for the normalization rules.
+    private Map<String, Integer>              catNameIndex    = new HashMap<String, Integer>() ;
+    private SparseArray<Map<String, Integer>> subCatNameIndex = new SparseArray<Map<String, Integer>>() ;
+    
+    // Incremented on every mutation. See getVersion()
+    private int version = 0 ;
+    
+    // The nesting depth of the write transactions and whether any of the
+    // nested writes has failed. See beginWrite and endWrite.
+    private int     writeDepth  = 0 ;
+    private boolean writeFailed = false ;
     
     /** Constructor. */
     public CategoryDAOImpl( Context context, SQLiteDatabase db ) {
@@ -63,6 +133,15 @@ class CategoryDAOImpl implements CategoryDAO {
         categoryIdNameMap.clear() ;
         catSubCatIdListMap.clear() ;
         subCategoryIdNameMap.clear() ;
+        subCatCatIdMap.clear() ;
+        catSeqNoMap.clear() ;
+        subCatSeqNoMap.clear() ;
+        catTopSubCatIdListMap.clear() ;
+        childSubCatIdListMap.clear() ;
+        subCatParentMap.clear() ;
+        subCatPathMap.clear() ;
+        catNameIndex.clear() ;
+        subCatNameIndex.clear() ;
         
         String sql = context.getString( R.string.query_select_all_categories ) ;
         
@@ -73,9 +152,12 @@ class CategoryDAOImpl implements CategoryDAO {
             
             int    catId = c.getInt( 0 ) ;
             String name  = c.getString( 1 ) ;
+            int    seqNo = c.getInt( 2 ) ;
             
             categoryIdList.add( catId ) ;
             categoryIdNameMap.put( catId, name ) ;
+            catSeqNoMap.put( catId, seqNo ) ;
+            indexName( catNameIndex, name, catId ) ;
             
             refreshSubCatCache( catId ) ;
             
@@ -96,7 +178,8 @@ class CategoryDAOImpl implements CategoryDAO {
                    " category " + categoryIdNameMap.get( catId ) ) ;
         }
         
-        ArrayList<Integer> subCatIdList = new ArrayList<Integer>() ;
+        ArrayList<Integer>   topIdList = new ArrayList<Integer>() ;
+        Map<String, Integer> nameIndex = new HashMap<String, Integer>() ;
         
         String sql = context.getString( R.string.query_select_all_sub_categories ) ;
         sql = sql.replace( "?", Integer.toString( catId ) ) ;
@@ -109,17 +192,95 @@ class CategoryDAOImpl implements CategoryDAO {
             
             int    subCatId = c.getInt( 0 ) ;
             String name     = c.getString( 1 ) ;
+            int    seqNo    = c.getInt( 2 ) ;
+            int    parentId = c.isNull( 3 ) ? -1 : c.getInt( 3 ) ;
+            String path     = c.getString( 4 ) ;
             
             subCategoryIdNameMap.put( subCatId, name ) ;
-            subCatIdList.add( subCatId ) ;
+            subCatSeqNoMap.put( subCatId, seqNo ) ;
+            subCatCatIdMap.put( subCatId, catId ) ;
+            subCatParentMap.put( subCatId, parentId ) ;
+            subCatPathMap.put( subCatId, parsePath( subCatId, path ) ) ;
+            indexName( nameIndex, name, subCatId ) ;
+            
+            // The rows are in the order of the sequence numbers and hence
+            // each sibling list gets built in its order.
+            if( parentId == -1 ) {
+                topIdList.add( subCatId ) ;
+            }
+            else {
+                getChildList( parentId ).add( subCatId ) ;
+            }
             
             c.moveToNext() ;
         }
         
-        catSubCatIdListMap.put( catId, subCatIdList ) ;
+        catTopSubCatIdListMap.put( catId, topIdList ) ;
+        catSubCatIdListMap.put( catId, new ArrayList<Integer>() ) ;
+        subCatNameIndex.put( catId, nameIndex ) ;
+        rebuildSubCatList( catId ) ;
         
         c.close() ;
     }
+    
+    /** Returns the list of children of the given sub category, creating it if required. */
+    private List<Integer> getChildList( int subCatId ) {
+        
+        List<Integer> children = childSubCatIdListMap.get( subCatId ) ;
+        if( children == null ) {
+            children = new ArrayList<Integer>() ;
+            childSubCatIdListMap.put( subCatId, children ) ;
+        }
+        return children ;
+    }
+    
+    /** Returns the list of siblings of the given sub category, including itself. */
+    private List<Integer> getSiblingList( int subCatId ) {
+        
+        int parentId = subCatParentMap.get( subCatId, -1 ) ;
+        if( parentId == -1 ) {
+            return catTopSubCatIdListMap.get( subCatCatIdMap.get( subCatId, -1 ) ) ;
+        }
+        return childSubCatIdListMap.get( parentId ) ;
+    }
+    
+    /**
+     * Rebuilds the flattened sub category tree of the given category from 
+     * the sibling lists. The list is rebuilt in place, since it is the one
+     * handed out by getSubCategoryIds.
+     */
+    private void rebuildSubCatList( int catId ) {
+        
+        List<Integer> subCatIdList = catSubCatIdListMap.get( catId ) ;
+        if( subCatIdList != null ) {
+            subCatIdList.clear() ;
+            appendSubTree( catTopSubCatIdListMap.get( catId ), 
+                           childSubCatIdListMap, subCatIdList ) ;
+        }
+    }
+    
+    /**
+     * Appends the given siblings to the output list depth first - each 
+     * sibling followed by its sub tree.
+     * 
+     * @param siblings   The sibling ids in their sequence order, may be null.
+     * @param childLists The children of each sub category which has any, 
+     *        keyed by the sub category id.
+     * @param out        The list to which the ids are appended.
+     */
+    static void appendSubTree( List<Integer> siblings, 
+                               SparseArray<List<Integer>> childLists,
+                               List<Integer> out ) {
+        
+        if( siblings == null ) {
+            return ;
+        }
+        for( int i=0; i<siblings.size(); i++ ) {
+            Integer id = siblings.get( i ) ;
+            out.add( id ) ;
+            appendSubTree( childLists.get( id ), childLists, out ) ;
+        }
+    }
 
     /** 
      * Returns a list of identifiers of the categories in ascending order
@@ -130,6 +291,12 @@ class CategoryDAOImpl implements CategoryDAO {
         return categoryIdList ;
     }
 
+    /** Returns the current version of the category data. */
+    @Override
+    public int getVersion() {
+        return version ;
+    }
+
     /** Returns the name of the category given the category identifier. */
     @Override
     public String getCategoryName( int catId ) {
@@ -137,13 +304,90 @@ class CategoryDAOImpl implements CategoryDAO {
     }
 
     /** 
-     * Returns a list of identifiers of the sub categories in ascending order
-     * of their sequence number. 
+     * Returns a list of identifiers of all the sub categories of the category,
+     * the tree flattened depth first.
      */
     @Override
     public List<Integer> getSubCategoryIds( int catId ) {
         return catSubCatIdListMap.get( catId ) ;
     }
+    
+    /** Returns the parent of the given sub category, -1 if it is top level. */
+    @Override
+    public int getParentSubCategoryId( int subCatId ) {
+        return subCatParentMap.get( subCatId, -1 ) ;
+    }
+    
+    /** Returns the children of the given sub category in sequence order. */
+    @Override
+    public List<Integer> getChildSubCategoryIds( int subCatId ) {
+        
+        List<Integer> children = childSubCatIdListMap.get( subCatId ) ;
+        if( children == null ) {
+            return Collections.emptyList() ;
+        }
+        return children ;
+    }
+    
+    /** Returns the depth of the given sub category, 0 if it is top level. */
+    @Override
+    public int getSubCategoryDepth( int subCatId ) {
+        
+        int[] path = subCatPathMap.get( subCatId ) ;
+        return ( path == null ) ? 0 : path.length - 1 ;
+    }
+    
+    /** Returns the ids from the top level down to the given sub category. */
+    @Override
+    public int[] getSubCategoryPath( int subCatId ) {
+        
+        int[] path = subCatPathMap.get( subCatId ) ;
+        return ( path == null ) ? new int[]{ subCatId } : path ;
+    }
+    
+    /**
+     * Parses the materialised path of the given sub category into the ids 
+     * from the top level sub category down to it. A path which is malformed
+     * or does not end with the sub category is logged and taken as the sub
+     * category alone. The integrity check reports such rows.
+     */
+    static int[] parsePath( int subCatId, String path ) {
+        
+        String[] parts = ( path == null ) ? new String[0] : path.split( "/" ) ;
+        int[]    ids   = new int[parts.length] ;
+        int      count = 0 ;
+        
+        try {
+            for( int i=0; i<parts.length; i++ ) {
+                if( parts[i].length() > 0 ) {
+                    ids[count++] = Integer.parseInt( parts[i] ) ;
+                }
+            }
+        }
+        catch( NumberFormatException e ) {
+            count = 0 ;
+        }
+        
+        if( count == 0 || ids[count-1] != subCatId ) {
+            Log.e( LogTag.CATEGORY_DAO, "Invalid path '" + path + 
+                                        "' of sub category " + subCatId ) ;
+            return new int[]{ subCatId } ;
+        }
+        
+        int[] result = new int[count] ;
+        System.arraycopy( ids, 0, result, 0, count ) ;
+        return result ;
+    }
+    
+    /** Returns the named sub category of the given category, -1 if none. */
+    @Override
+    public int getSubCategoryId( int catId, String subCatName ) {
+        
+        Map<String, Integer> nameIndex = subCatNameIndex.get( catId ) ;
+        Integer id = ( nameIndex == null ) ? null : 
+                                  nameIndex.get( normalizeName( subCatName ) ) ;
+        return ( id == null ) ? -1 : id ;
+    }
 
     /** Returns the name of the sub category given the sub category identifier. */
     @Override
@@ -151,10 +395,24 @@ class CategoryDAOImpl implements CategoryDAO {
         return subCategoryIdNameMap.get( subCatId ) ;
     }
     
-    /** Returns true if the given category name already exists. */
+    /** 
+     * Returns true if the given category name already exists. The names are
+     * compared ignoring case and redundant white spaces.
+     */
     @Override
     public boolean doesCategoryNameExist( String catName ) {
-        return categoryIdNameMap.values().contains( catName ) ;
+        return doesCategoryNameExist( catName, -1 ) ;
+    }
+    
+    /** 
+     * Returns true if the given category name is used by a category other 
+     * than the given one. 
+     */
+    @Override
+    public boolean doesCategoryNameExist( String catName, int exceptCatId ) {
+        
+        Integer id = catNameIndex.get( normalizeName( catName ) ) ;
+        return id != null && id.intValue() != exceptCatId ;
     }
     
     /** Returns the number of sub categories for the given category. */
@@ -168,25 +426,30 @@ class CategoryDAOImpl implements CategoryDAO {
         return retVal ;
     }
     
-    /** Returns true if the given category name already exists. */
+    /** 
+     * Returns true if the given sub category name already exists for the 
+     * given category. The names are compared ignoring case and redundant
+     * white spaces.
+     */
     @Override
     public boolean doesSubCategoryNameExist( int catId, String subCatName ) {
+        return doesSubCategoryNameExist( catId, subCatName, -1 ) ;
+    }
+    
+    /** 
+     * Returns true if the given sub category name is used by a sub category
+     * of the given category other than the given one. 
+     */
+    @Override
+    public boolean doesSubCategoryNameExist( int catId, String subCatName, 
+                                             int exceptSubCatId ) {
         
-        boolean retVal = false ;
-        List<Integer> subCatIds = catSubCatIdListMap.get( catId ) ;
-        
-        if( subCatIds != null && subCatIds.size() != 0 ) {
-            
-            for( Integer id : subCatIds ) {
-                String existingSubCatName = subCategoryIdNameMap.get( id ) ;
-                if( existingSubCatName.equals( subCatName ) ) {
-                    retVal = true ;
-                    break ;
-                }
-            }
+        Map<String, Integer> nameIndex = subCatNameIndex.get( catId ) ;
+        if( nameIndex == null ) {
+            return false ;
         }
-        
-        return retVal ;
+        Integer id = nameIndex.get( normalizeName( subCatName ) ) ;
+        return id != null && id.intValue() != exceptSubCatId ;
     }
     
     /**
@@ -219,45 +482,74 @@ class CategoryDAOImpl implements CategoryDAO {
     @Override
     public int addCategory( String catName ) {
         
-        int id = -1 ;
+        if( doesCategoryNameExist( catName ) ) {
+            Log.e( LogTag.CATEGORY_DAO, "Could not add category. The name already exists" ) ;
+            rejectWrite() ;
+            return -1 ;
+        }
         
-        if( !doesCategoryNameExist( catName ) ) {
-            
-            try {
-                String sql = context.getString( R.string.query_add_category ) ;
-                
-                SQLiteStatement stmt = db.compileStatement( sql ) ;
-                stmt.bindString( 1, catName ) ;
-                
-                id = ( int )stmt.executeInsert() ;
-                
-                stmt.close() ;
-            } 
-            catch ( SQLException e ) {
-                Log.e( LogTag.CATEGORY_DAO, "Exception while inserting category", e ) ;
-            }
+        version++ ;
+        
+        int     id      = -1 ;
+        boolean success = false ;
+        
+        // The category and its default sub category are created in the
+        // same transaction.
+        beginWrite() ;
+        try {
+            id = insertCategory( catName ) ;
+            insertSubCategory( id, -1, "<" + catName + ">" ) ;
+            success = true ;
         }
-        else {
-            Log.e( LogTag.CATEGORY_DAO, "Could not add category. The name already exists" ) ;
+        catch ( SQLException e ) {
+            Log.e( LogTag.CATEGORY_DAO, "Exception while inserting category", e ) ;
+        }
+        finally {
+            success = endWrite( success ) ;
         }
         
-        // If we have successfully inserted the new category, refresh the 
-        // internal cache.
-        if( id != -1 ) {
-            
-            // Note that we are adding the category id to the end of the 
-            // category id list. The category id list is sorted based on 
-            // ascending order of the category sequence numbers. Since the 
-            // insertion creates the category with 1 more than the max sequence
-            // number, this logic is valid.
-            categoryIdList.add( id ) ;
-            categoryIdNameMap.put( id, catName ) ;
-            catSubCatIdListMap.put( id, new ArrayList<Integer>() ) ;
+        return success ? id : -1 ;
+    }
+    
+    /**
+     * Inserts a new category, appended at the end of the category list, and
+     * adds it to the internal cache. Must be called within a write. 
+     */
+    private int insertCategory( String catName ) throws SQLException {
+        
+        String sql = context.getString( R.string.query_add_category ) ;
+        int seqNo = getAppendSeqNo( categoryIdList, catSeqNoMap, 
+                                    R.string.query_update_cat_sequence_no ) ;
+        
+        SQLiteStatement stmt = db.compileStatement( sql ) ;
+        int id = -1 ;
+        try {
+            stmt.bindLong  ( 1, seqNo   ) ;
+            stmt.bindString( 2, catName ) ;
             
-            // Create the default sub category for the newly created category.
-            addSubCategory( id, "<" + catName + ">" ) ;
+            id = ( int )stmt.executeInsert() ;
+        }
+        finally {
+            stmt.close() ;
         }
         
+        if( id == -1 ) {
+            throw new SQLException( "Could not insert category " + catName ) ;
+        }
+        
+        // Note that we are adding the category id to the end of the 
+        // category id list. The category id list is sorted based on 
+        // ascending order of the category sequence numbers. Since the 
+        // insertion creates the category with a sequence number greater
+        // than the max sequence number, this logic is valid.
+        categoryIdList.add( id ) ;
+        categoryIdNameMap.put( id, catName ) ;
+        catSeqNoMap.put( id, seqNo ) ;
+        indexName( catNameIndex, catName, id ) ;
+        catSubCatIdListMap.put( id, new ArrayList<Integer>() ) ;
+        catTopSubCatIdListMap.put( id, new ArrayList<Integer>() ) ;
+        subCatNameIndex.put( id, new HashMap<String, Integer>() ) ;
+        
         return id ;
     }
     
@@ -285,47 +577,133 @@ class CategoryDAOImpl implements CategoryDAO {
      */
     @Override
     public int addSubCategory( int catId, String subCatName ) {
+        return addSubCategory( catId, -1, subCatName ) ;
+    }
+    
+    /**
+     * Adds the given sub category name as the last child of the given sub 
+     * category. Please see {@link #addSubCategory(int, String)} for details.
+     */
+    @Override
+    public int addChildSubCategory( int parentSubCatId, String subCatName ) {
         
-        int id = -1 ;
-        
-        if( !doesSubCategoryNameExist( catId, subCatName ) ) {
-            
-            try {
-                String sql = context.getString( R.string.query_add_sub_category ) ;
-                
-                SQLiteStatement stmt = db.compileStatement( sql ) ;
-                
-                stmt.bindLong  ( 1, catId      ) ;
-                stmt.bindString( 2, subCatName ) ;
-                stmt.bindLong  ( 3, catId      ) ;
-                stmt.bindLong  ( 4, catId      ) ;
-                
-                id = ( int )stmt.executeInsert() ;
-                
-                stmt.close() ;
-            } 
-            catch ( SQLException e ) {
-                Log.e( LogTag.CATEGORY_DAO, "Exception while inserting sub category", e ) ;
-            }
+        int catId = subCatCatIdMap.get( parentSubCatId, -1 ) ;
+        if( catId == -1 ) {
+            Log.e( LogTag.CATEGORY_DAO, "Could not add sub category. Parent " + 
+                                        parentSubCatId + " does not exist" ) ;
+            rejectWrite() ;
+            return -1 ;
         }
-        else {
+        return addSubCategory( catId, parentSubCatId, subCatName ) ;
+    }
+    
+    /**
+     * Adds the sub category under the given parent, -1 for the top level of
+     * the category, in a write of its own.
+     */
+    private int addSubCategory( int catId, int parentId, String subCatName ) {
+        
+        if( doesSubCategoryNameExist( catId, subCatName ) ) {
             Log.e( LogTag.CATEGORY_DAO, "Could not add sub category. The name already exists" ) ;
+            rejectWrite() ;
+            return -1 ;
         }
         
-        // If we have successfully inserted the new category, refresh the 
-        // internal cache.
-        if( id != -1 ) {
+        version++ ;
+        
+        int     id      = -1 ;
+        boolean success = false ;
+        
+        beginWrite() ;
+        try {
+            id = insertSubCategory( catId, parentId, subCatName ) ;
+            success = true ;
+        }
+        catch ( SQLException e ) {
+            Log.e( LogTag.CATEGORY_DAO, "Exception while inserting sub category", e ) ;
+        }
+        finally {
+            success = endWrite( success ) ;
+        }
+        
+        return success ? id : -1 ;
+    }
+    
+    /**
+     * Inserts a new sub category, appended at the end of the children of the
+     * given parent (-1 for the top level sub categories of the category), 
+     * and adds it to the internal cache. Must be called within a write. 
+     */
+    private int insertSubCategory( int catId, int parentId, String subCatName ) 
+        throws SQLException {
+        
+        List<Integer> siblings = ( parentId == -1 ) ? 
+                                 catTopSubCatIdListMap.get( catId ) : 
+                                 getChildList( parentId ) ;
+        
+        String sql = context.getString( R.string.query_add_sub_category ) ;
+        int seqNo = getAppendSeqNo( siblings, subCatSeqNoMap,
+                                    R.string.query_update_subcat_sequence_no ) ;
+        
+        SQLiteStatement stmt = db.compileStatement( sql ) ;
+        int id = -1 ;
+        try {
+            stmt.bindLong  ( 1, catId      ) ;
+            stmt.bindString( 2, subCatName ) ;
+            stmt.bindLong  ( 3, seqNo      ) ;
+            if( parentId == -1 ) {
+                stmt.bindNull( 4 ) ;
+            }
+            else {
+                stmt.bindLong( 4, parentId ) ;
+            }
             
-            // Note that we are adding the sub category id to the end of the 
-            // sub category id list. The sub category id list is sorted based on 
-            // ascending order of the sub category sequence numbers. Since the 
-            // insertion creates the sub category with 1 more than the max sequence
-            // number, this logic is valid.
-            List<Integer> subCatIdList = catSubCatIdListMap.get( catId ) ; 
-            subCatIdList.add( id ) ;
-            subCategoryIdNameMap.put( id, subCatName ) ;
+            id = ( int )stmt.executeInsert() ;
+        }
+        finally {
+            stmt.close() ;
+        }
+        
+        if( id == -1 ) {
+            throw new SQLException( "Could not insert sub category " + subCatName ) ;
         }
         
+        // The path contains the id of the new row and hence can only be 
+        // written once the row is inserted.
+        int[] parentIds = ( parentId == -1 ) ? new int[0] : getSubCategoryPath( parentId ) ;
+        int[] pathIds   = new int[parentIds.length + 1] ;
+        System.arraycopy( parentIds, 0, pathIds, 0, parentIds.length ) ;
+        pathIds[parentIds.length] = id ;
+        
+        StringBuilder path = new StringBuilder( "/" ) ;
+        for( int i=0; i<pathIds.length; i++ ) {
+            path.append( pathIds[i] ).append( '/' ) ;
+        }
+        
+        stmt = db.compileStatement( context.getString( R.string.query_update_subcat_path ) ) ;
+        try {
+            stmt.bindString( 1, path.toString() ) ;
+            stmt.bindLong  ( 2, id   ) ;
+            stmt.executeUpdateDelete() ;
+        }
+        finally {
+            stmt.close() ;
+        }
+        
+        // Note that we are adding the sub category id to the end of the 
+        // sibling list. The sibling list is sorted based on ascending order
+        // of the sub category sequence numbers. Since the insertion creates
+        // the sub category with a sequence number greater than the max 
+        // sequence number among its siblings, this logic is valid.
+        siblings.add( id ) ;
+        subCategoryIdNameMap.put( id, subCatName ) ;
+        subCatSeqNoMap.put( id, seqNo ) ;
+        subCatCatIdMap.put( id, catId ) ;
+        subCatParentMap.put( id, parentId ) ;
+        subCatPathMap.put( id, pathIds ) ;
+        indexName( subCatNameIndex.get( catId ), subCatName, id ) ;
+        rebuildSubCatList( catId ) ;
+        
         return id ;
     }
 
@@ -343,6 +721,13 @@ class CategoryDAOImpl implements CategoryDAO {
     @Override
     public void removeCategory( int catId ) {
         
+        version++ ;
+        
+        boolean success = false ;
+        
+        // The sub categories and the category are deleted in the same 
+        // transaction.
+        beginWrite() ;
         try {
             // First remove all sub categories for the given category
             removeSubCategoriesForCategory( catId ) ;
@@ -351,17 +736,29 @@ class CategoryDAOImpl implements CategoryDAO {
             String sql = context.getString( R.string.query_delete_cat ) ;
             
             SQLiteStatement stmt = db.compileStatement( sql ) ;
-            stmt.bindLong  ( 1, catId      ) ;
-            stmt.executeUpdateDelete() ;
-            stmt.close() ;
+            try {
+                stmt.bindLong  ( 1, catId      ) ;
+                stmt.executeUpdateDelete() ;
+            }
+            finally {
+                stmt.close() ;
+            }
             
             // Update the category cache
+            unindexName( catNameIndex, categoryIdNameMap.get( catId ), catId,
+                         categoryIdList, categoryIdNameMap ) ;
             categoryIdList.remove( Integer.valueOf( catId ) ) ;
-            categoryIdNameMap.remove( catId ) ;
+            categoryIdNameMap.delete( catId ) ;
+            catSeqNoMap.delete( catId ) ;
+            
+            success = true ;
         } 
         catch ( SQLException e ) {
             Log.e( LogTag.CATEGORY_DAO, "Exception while deleting category " + catId, e ) ;
         }
+        finally {
+            endWrite( success ) ;
+        }
     }
     
     /**
@@ -382,55 +779,91 @@ class CategoryDAOImpl implements CategoryDAO {
     @Override
     public void removeSubCategory( int catId, int subCatId ) {
         
+        if( !getChildSubCategoryIds( subCatId ).isEmpty() ) {
+            Log.e( LogTag.CATEGORY_DAO, "Could not remove sub category " + 
+                                        subCatId + ". It has children" ) ;
+            rejectWrite() ;
+            return ;
+        }
+        
+        version++ ;
+        
+        boolean success = false ;
+        
+        beginWrite() ;
         try {
             // Now delete the category
             String sql = context.getString( R.string.query_delete_subcat ) ;
             
             SQLiteStatement stmt = db.compileStatement( sql ) ;
-            stmt.bindLong  ( 1, subCatId ) ;
-            stmt.executeUpdateDelete() ;
-            stmt.close() ;
+            try {
+                stmt.bindLong  ( 1, subCatId ) ;
+                stmt.executeUpdateDelete() ;
+            }
+            finally {
+                stmt.close() ;
+            }
             
             // Update the category cache
-            subCategoryIdNameMap.remove( subCatId ) ;
+            Map<String, Integer> nameIndex = subCatNameIndex.get( catId ) ;
+            if( nameIndex != null ) {
+                unindexName( nameIndex, subCategoryIdNameMap.get( subCatId ), subCatId,
+                             catSubCatIdListMap.get( catId ), subCategoryIdNameMap ) ;
+            }
+            getSiblingList( subCatId ).remove( Integer.valueOf( subCatId ) ) ;
+            subCategoryIdNameMap.delete( subCatId ) ;
+            subCatCatIdMap.delete( subCatId ) ;
+            subCatSeqNoMap.delete( subCatId ) ;
+            subCatParentMap.delete( subCatId ) ;
+            subCatPathMap.delete( subCatId ) ;
+            childSubCatIdListMap.delete( subCatId ) ;
+            rebuildSubCatList( catId ) ;
             
-            List<Integer> subCatList = catSubCatIdListMap.get( catId ) ;
-            subCatList.remove( Integer.valueOf( subCatId ) ) ;
+            success = true ;
         } 
         catch ( SQLException e ) {
-            Log.e( LogTag.CATEGORY_DAO, "Exception while deleting category " + subCatId, e ) ;
+            Log.e( LogTag.CATEGORY_DAO, "Exception while deleting sub category " + subCatId, e ) ;
+        }
+        finally {
+            endWrite( success ) ;
         }
     }
 
     /**
-     * Deletes all the sub categories associated with a category.
+     * Deletes all the sub categories associated with a category. Must be 
+     * called within a write.
      * 
      * @param catId The category id for which all sub categories need to be 
      *        removed.
      */
-    private void removeSubCategoriesForCategory( int catId ) {
+    private void removeSubCategoriesForCategory( int catId ) throws SQLException {
+        
+        String sql = context.getString( R.string.query_delete_all_subcats_for_cat ) ;
         
+        SQLiteStatement stmt = db.compileStatement( sql ) ;
         try {
-            String sql = context.getString( R.string.query_delete_all_subcats_for_cat ) ;
-            
-            SQLiteStatement stmt = db.compileStatement( sql ) ;
             stmt.bindLong  ( 1, catId      ) ;
             stmt.executeUpdateDelete() ;
+        }
+        finally {
             stmt.close() ;
-            
-            // Update the sub category cache
-            List<Integer> subCatIdList = catSubCatIdListMap.get( catId ) ;
-            catSubCatIdListMap.remove( catId ) ;
-            
-            if( subCatIdList != null ) {
-                for( Integer subCatId : subCatIdList ) {
-                    subCategoryIdNameMap.remove( subCatId ) ;
-                }
+        }
+        
+        // Update the sub category cache
+        List<Integer> subCatIdList = catSubCatIdListMap.get( catId ) ;
+        catSubCatIdListMap.delete( catId ) ;
+        catTopSubCatIdListMap.delete( catId ) ;
+        subCatNameIndex.delete( catId ) ;
+        
+        if( subCatIdList != null ) {
+            for( Integer subCatId : subCatIdList ) {
+                subCategoryIdNameMap.delete( subCatId ) ;
+                subCatCatIdMap.delete( subCatId ) ;
+                subCatSeqNoMap.delete( subCatId ) ;
+                subCatParentMap.delete( subCatId ) ;
+                subCatPathMap.delete( subCatId ) ;
+                childSubCatIdListMap.delete( subCatId ) ;
             }
-        } 
-        catch ( SQLException e ) {
-            Log.e( LogTag.CATEGORY_DAO, "Exception while deleting sub " +
-            		                   "categories for category " + catId, e ) ;
         }
     }
     
@@ -441,20 +874,98 @@ class CategoryDAOImpl implements CategoryDAO {
                                         Integer toCatId, boolean fwd ) {
         
         changeItemSequence( fromCatId, toCatId, fwd, 
-                            R.string.query_get_cat_seq_change_tupules, 
                             R.string.query_update_cat_sequence_no,
-                            this.categoryIdList ) ;
+                            this.categoryIdList, this.catSeqNoMap ) ;
     }
 
-    /** Change sub category sequence numbers. */
+    /** 
+     * Change sub category sequence numbers. The sub category is moved among
+     * its siblings, along with its sub tree, and hence the direction is 
+     * derived from the positions of the two among the siblings.
+     */
     @Override
     public void changeSubCategorySequence( Integer catId, Integer fromSubCatId,
                                            Integer toSubCatId, boolean fwd ) {
         
-        changeItemSequence( fromSubCatId, toSubCatId, fwd, 
-                R.string.query_get_subcat_seq_change_tupules, 
+        if( getParentSubCategoryId( fromSubCatId ) != getParentSubCategoryId( toSubCatId ) ) {
+            Log.e( LogTag.CATEGORY_DAO, "Invalid sequence change from " + 
+                   fromSubCatId + " to " + toSubCatId + ". Not siblings" ) ;
+            rejectWrite() ;
+            return ;
+        }
+        
+        List<Integer> siblings = getSiblingList( fromSubCatId ) ;
+        if( siblings == null ) {
+            Log.e( LogTag.CATEGORY_DAO, "Invalid sequence change from " + 
+                                        fromSubCatId + " to " + toSubCatId ) ;
+            rejectWrite() ;
+            return ;
+        }
+        
+        boolean siblingFwd = siblings.indexOf( toSubCatId ) > 
+                             siblings.indexOf( fromSubCatId ) ;
+        
+        changeItemSequence( fromSubCatId, toSubCatId, siblingFwd, 
                 R.string.query_update_subcat_sequence_no,
-                this.catSubCatIdListMap.get( catId ) ) ;
+                siblings, this.subCatSeqNoMap ) ;
+        rebuildSubCatList( catId ) ;
+    }
+    
+    /** 
+     * Applies the given order to all the categories. Please see the 
+     * documentation of {@link #applyItemOrder(List, int, List, SparseIntArray)} 
+     * for details.
+     */
+    @Override
+    public void applyCategoryOrder( List<Integer> orderedCatIds ) {
+        
+        applyItemOrder( orderedCatIds, R.string.query_update_cat_sequence_no, 
+                        this.categoryIdList, this.catSeqNoMap ) ;
+    }
+    
+    /** 
+     * Applies the given order to all the sub categories of the given category. 
+     * Please see the documentation of {@link #applyItemOrder(List, int, List, SparseIntArray)} 
+     * for details.
+     */
+    @Override
+    public void applySubCategoryOrder( int catId, List<Integer> orderedSubCatIds ) {
+        
+        List<Integer> subCatIdList = catSubCatIdListMap.get( catId ) ;
+        if( !isPermutation( orderedSubCatIds, subCatIdList ) ) {
+            throw new IllegalArgumentException( "Ordered ids are not a " + 
+                                        "permutation of the existing ids" ) ;
+        }
+        
+        // Each sibling list takes the relative order of its members in the
+        // ordered list. All the sibling lists are ordered in one write.
+        List<List<Integer>> siblingLists = new ArrayList<List<Integer>>() ;
+        siblingLists.add( catTopSubCatIdListMap.get( catId ) ) ;
+        for( int i=0; i<subCatIdList.size(); i++ ) {
+            List<Integer> children = childSubCatIdListMap.get( subCatIdList.get( i ) ) ;
+            if( children != null && !children.isEmpty() ) {
+                siblingLists.add( children ) ;
+            }
+        }
+        
+        boolean success = false ;
+        
+        beginWrite() ;
+        try {
+            for( int i=0; i<siblingLists.size(); i++ ) {
+                List<Integer> siblings = siblingLists.get( i ) ;
+                List<Integer> newOrder = new ArrayList<Integer>( orderedSubCatIds ) ;
+                newOrder.retainAll( siblings ) ;
+                
+                applyItemOrder( newOrder, R.string.query_update_subcat_sequence_no,
+                                siblings, this.subCatSeqNoMap ) ;
+            }
+            success = true ;
+        }
+        finally {
+            endWrite( success ) ;
+        }
+        rebuildSubCatList( catId ) ;
     }
 
     /**
@@ -462,187 +973,509 @@ class CategoryDAOImpl implements CategoryDAO {
      * sub category). Specifically the item at 'from' index is moved in place of 
      * the item at 'to' index.
      * 
+     * The sequence numbers are maintained with gaps between them (see 
+     * SEQ_NO_GAP). The moved item is assigned a sequence number mid way 
+     * between the sequence numbers of its new neighbours and hence a move 
+     * updates only the row of the moved item.
+     * 
      * Case a)
      * changeSequence( 1, 4)
      * 
-     * 0   2   6    8   9  10  11  12   <- sequence_no
-     * i0  i1  i2  i3  i4  i5  i6  i7   <- _id
-     *      |          ^
-     *      +----------+
-     *      
-     * 0   2   6    8   9  10  11  12   <- sequence_no
-     * i0  i2  i3  i4  i1  i5  i6  i7   <- _id
+     * 0   1024  2048  3072  4096  5120   <- sequence_no
+     * i0  i1    i2    i3    i4    i5     <- _id
+     *     |                 ^
+     *     +-----------------+
      *      
+     * 0   2048  3072  4096  4608  5120   <- sequence_no
+     * i0  i2    i3    i4    i1    i5     <- _id
      *      
      * Case b)
      * changeSequence( 4, 1)
-     * 0   2   6    8   9  10  11  12   <- sequence_no
-     * i0  i1  i2  i3  i4  i5  i6  i7   <- _id
-     *      ^          |
-     *      +----------+
+     * 
+     * 0   1024  2048  3072  4096  5120   <- sequence_no
+     * i0  i1    i2    i3    i4    i5     <- _id
+     *     ^                 |
+     *     +-----------------+
      *      
-     * 0   2   6    8   9  10  11  12   <- sequence_no
-     * i0  i4  i1  i2  i3  i5  i6  i7   <- _id
+     * 0   512   1024  2048  3072  5120   <- sequence_no
+     * i0  i4    i1    i2    i3    i5     <- _id
      *      
      * Important points to note:
-     * a) Only the sequence numbers of items between the from and to index 
-     *    get affected
-     *    
-     * b) from can be either greater than or less than to - either an item
-     *    can be pulled up or pushed down
+     * a) Only the sequence number of the moved item gets affected, unless
+     *    there is no gap left between the new neighbours. In that case all
+     *    the items in the list are renumbered with fresh gaps, in a single
+     *    transaction. Since the gaps halve with every move into the same
+     *    slot, this happens only once in about ten moves to the same place
+     *    and the cost is amortized over the moves.
      *    
-     * c) The sequence numbers need not be consecutive. Holes in sequence numbers
-     *    can arise from remove operations.
+     * b) Sequence numbers can be negative - moving an item to the top 
+     *    assigns it a sequence number less than that of the first item.
      *    
-     * d) _ids are random and unique and have no correlation with sequence number.
-     *    
-     * e) If direction is forward, it is guaranteed that the sequence number of
-     *    toId is greater than the sequence number of fromId and 
-     *    vice versa.
+     * c) Databases created by older versions of the application have 
+     *    consecutive sequence numbers. The first move in such a list 
+     *    renumbers it, after which the moves are single row updates.
      */
     private void changeItemSequence( Integer fromId, Integer toId, 
-                                     boolean fwd, int getSeqChgTupuleQueryId,
-                                     int seqChgQueryId, 
-                                     List<Integer> cacheList ) {
-
-        List<int[]> chgTupules = null ;
+                                     boolean fwd, int seqChgQueryId, 
+                                     List<Integer> cacheList,
+                                     SparseIntArray seqNoMap ) {
+        
+        int fromPos = cacheList.indexOf( fromId ) ;
+        int toPos   = cacheList.indexOf( toId ) ;
         
-        if( fwd ) {
-            chgTupules = getSeqChangeTupules( fromId, toId, getSeqChgTupuleQueryId ) ;
+        if( fromPos == -1 || toPos == -1 || fromPos == toPos ) {
+            Log.e( LogTag.CATEGORY_DAO, "Invalid sequence change from " + 
+                                        fromId + " to " + toId ) ;
+            rejectWrite() ;
+            return ;
         }
-        else {
-            chgTupules = getSeqChangeTupules( toId, fromId, getSeqChgTupuleQueryId ) ;
-        }
-        
-        //  id   seq_no  (Change tupules)
-        //  i1   2
-        //  i2   6
-        //  i3   8
-        //  i4   9
-        int firstSeqNo = chgTupules.get( 0 )[1] ;
-        int lastSeqNo  = chgTupules.get( chgTupules.size()-1 )[1] ;
-        
-        if( fwd ) {
-            //  id   seq_no  (Forward)
-            //  i1   9
-            //  i2   2
-            //  i3   6
-            //  i4   8
-            for( int i=0; i<chgTupules.size(); i++ ) {
-                if( i == 0 ) {
-                    updateItemSequenceNo( chgTupules.get(i)[0], lastSeqNo, seqChgQueryId  ) ;
-                }
-                else {
-                    updateItemSequenceNo( chgTupules.get(i)[0], chgTupules.get(i-1)[1], seqChgQueryId ) ;
-                }
+        
+        version++ ;
+        
+        // The positions (in the current list) of the items which will be 
+        // the neighbours of the moved item. If the item is being pushed 
+        // down, it lands after the 'to' item, else before it.
+        int prevPos = fwd ? toPos     : toPos - 1 ;
+        int nextPos = fwd ? toPos + 1 : toPos ;
+        
+        long newSeqNo = getSeqNoBetween( cacheList, seqNoMap, prevPos, nextPos ) ;
+        
+        if( newSeqNo == NO_SEQ_NO ) {
+            // The gap between the neighbours is exhausted. Renumber the 
+            // complete list in the new order.
+            List<Integer> newOrder = new ArrayList<Integer>( cacheList ) ;
+            newOrder.remove( fromPos ) ;
+            newOrder.add( toPos, fromId ) ;
+            
+            applyItemOrder( newOrder, seqChgQueryId, cacheList, seqNoMap ) ;
+            return ;
+        }
+        
+        boolean success = false ;
+        SQLiteStatement stmt = db.compileStatement( context.getString( seqChgQueryId ) ) ;
+        
+        beginWrite() ;
+        try {
+            updateItemSequenceNo( stmt, fromId, ( int )newSeqNo ) ;
+            
+            // Now we change the internal cache sequence
+            seqNoMap.put( fromId, ( int )newSeqNo ) ;
+            cacheList.remove( fromPos ) ;
+            cacheList.add( toPos, fromId ) ;
+            
+            success = true ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.CATEGORY_DAO, "Exception while changing sequence of " + fromId, e ) ;
+        }
+        finally {
+            endWrite( success ) ;
+            stmt.close() ;
+        }
+    }
+    
+    /**
+     * Returns a sequence number which lies between the sequence numbers of
+     * the items at the given positions of the list. Either of the positions
+     * can be out of the bounds of the list, implying that there is no 
+     * neighbour on that side. NO_SEQ_NO is returned if there is no free
+     * sequence number between the neighbours.
+     */
+    private long getSeqNoBetween( List<Integer> cacheList, SparseIntArray seqNoMap,
+                                  int prevPos, int nextPos ) {
+        
+        boolean hasPrev = prevPos >= 0 ;
+        boolean hasNext = nextPos < cacheList.size() ;
+        
+        long prevSeqNo = hasPrev ? seqNoMap.get( cacheList.get( prevPos ) ) : 0 ;
+        long nextSeqNo = hasNext ? seqNoMap.get( cacheList.get( nextPos ) ) : 0 ;
+        long seqNo     = NO_SEQ_NO ;
+        
+        if( hasPrev && hasNext ) {
+            if( nextSeqNo - prevSeqNo >= 2 ) {
+                seqNo = prevSeqNo + ( nextSeqNo - prevSeqNo ) / 2 ;
             }
         }
+        else if( hasPrev ) {
+            seqNo = prevSeqNo + SEQ_NO_GAP ;
+        }
+        else if( hasNext ) {
+            seqNo = nextSeqNo - SEQ_NO_GAP ;
+        }
         else {
-            //  id   seq_no  (Backward)
-            //  i1   6
-            //  i2   8
-            //  i3   9
-            //  i4   2
-            for( int i=0; i<chgTupules.size(); i++ ) {
-                if( i == (chgTupules.size()-1) ) {
-                    updateItemSequenceNo( chgTupules.get(i)[0], firstSeqNo, seqChgQueryId ) ;
-                }
-                else {
-                    updateItemSequenceNo( chgTupules.get(i)[0], chgTupules.get(i+1)[1], seqChgQueryId ) ;
-                }
-            }
+            seqNo = 0 ;
         }
         
-        // Now we change the internal cache sequence
-        int fromIdPos = cacheList.indexOf( fromId ) ;
-        int toIdPos   = cacheList.indexOf( toId ) ;
+        if( seqNo < Integer.MIN_VALUE || seqNo > Integer.MAX_VALUE ) {
+            seqNo = NO_SEQ_NO ;
+        }
+        return seqNo ;
+    }
+    
+    /**
+     * Returns the sequence number to be assigned to an item which is being
+     * appended to the given list. If the sequence numbers have run out, the
+     * list is renumbered before computing the sequence number.
+     */
+    private int getAppendSeqNo( List<Integer> cacheList, SparseIntArray seqNoMap,
+                                int seqChgQueryId ) {
         
-        cacheList.remove( fromIdPos ) ;
-        cacheList.add( toIdPos, fromId ) ;
+        int  size  = ( cacheList == null ) ? 0 : cacheList.size() ;
+        long seqNo = getSeqNoBetween( cacheList, seqNoMap, size-1, size ) ;
+        
+        if( seqNo == NO_SEQ_NO ) {
+            applyItemOrder( new ArrayList<Integer>( cacheList ), seqChgQueryId, 
+                            cacheList, seqNoMap ) ;
+            seqNo = ( long )size * SEQ_NO_GAP ;
+        }
+        return ( int )seqNo ;
     }
     
-    /** 
-     * Returns a list of tupules (id, sequence_no) of categories which will 
-     * be affected by the change sequence operation. It is guaranteed that the
-     * list will have two or more tupules and the sequence number of those 
-     * tupules will be in ascending order.
+    /**
+     * Applies a complete ordering to a list of items (either categories or
+     * the siblings of a sub category tree). This is useful when the new order 
+     * of a long list is known as a whole, for example after a series of drag
+     * and drop operations, and the changes need to be persisted in one go.
+     * This is also used to renumber a list once the gaps between the 
+     * sequence numbers have been exhausted.
      * 
-     * @param idA The category id whose sequence is smaller
-     * @param idB The category id whose sequence is greater
-     * @param queryId The resource id of the query which will return the tupule
-     *        as mentioned in the documentation. The query should take two 
-     *        parameters idA and idB and should return a result set of tupules
-     *        ( id, sequence_no )
+     * The items are assigned ascending sequence numbers, SEQ_NO_GAP apart, 
+     * in the order they appear in the ordered list. Only the rows whose 
+     * sequence numbers change are updated. All the updates are done in a 
+     * single transaction using a single compiled statement. The internal 
+     * cache is updated only if the transaction is committed.
      * 
+     * @param orderedIds The identifiers in their new order. This list should
+     *        contain exactly the same identifiers as the cache list.
+     *        
+     * @throws IllegalArgumentException If the ordered list is not a 
+     *         permutation of the cached list of identifiers.
      */
-    private List<int[]> getSeqChangeTupules( int idA, int idB, int queryId ) {
-
-        List<int[]> retVal = new ArrayList<int[]>() ;
+    private void applyItemOrder( List<Integer> orderedIds, int seqChgQueryId,
+                                 List<Integer> cacheList, SparseIntArray seqNoMap ) 
+        throws IllegalArgumentException {
         
-        String sql = context.getString( queryId ) ;
-        sql = sql.replace( "#param1#", Integer.toString( idA ) ) ;
-        sql = sql.replace( "#param2#", Integer.toString( idB ) ) ;
+        if( !isPermutation( orderedIds, cacheList ) ) {
+            throw new IllegalArgumentException( "Ordered ids are not a " + 
+                                        "permutation of the existing ids" ) ;
+        }
         
-        Cursor c = db.rawQuery( sql, null ) ;
+        version++ ;
         
-        c.moveToFirst() ;
-        while( !c.isAfterLast() ) {
-            
-            int[] tupule = new int[2] ;
-            tupule[0] = c.getInt( 0 ) ;
-            tupule[1] = c.getInt( 1 ) ;
-            
-            retVal.add( tupule ) ;
+        boolean committed = false ;
+        SQLiteStatement stmt = db.compileStatement( context.getString( seqChgQueryId ) ) ;
+        
+        beginWrite() ;
+        try {
+            for( int i=0; i<orderedIds.size(); i++ ) {
+                int id    = orderedIds.get( i ) ;
+                int seqNo = i * SEQ_NO_GAP ;
+                if( seqNoMap.get( id, -1 ) != seqNo ) {
+                    updateItemSequenceNo( stmt, id, seqNo ) ;
+                }
+            }
+            committed = true ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.CATEGORY_DAO, "Exception while applying item order", e ) ;
+        }
+        finally {
+            committed = endWrite( committed ) ;
+            stmt.close() ;
+        }
+        
+        if( committed ) {
+            List<Integer> newOrder = new ArrayList<Integer>( orderedIds ) ;
+            cacheList.clear() ;
+            cacheList.addAll( newOrder ) ;
             
-            c.moveToNext() ;
+            for( int i=0; i<newOrder.size(); i++ ) {
+                seqNoMap.put( newOrder.get( i ), i * SEQ_NO_GAP ) ;
+            }
         }
-        c.close() ;
+    }
+    
+    /**
+     * Returns true if the ordered list contains each of the given ids exactly
+     * once and nothing else. A list with duplicates is not a permutation, 
+     * even if it has the right size.
+     */
+    static boolean isPermutation( List<Integer> orderedIds, List<Integer> ids ) {
         
-        return retVal ;
+        if( ids == null || orderedIds.size() != ids.size() ) {
+            return false ;
+        }
+        
+        Set<Integer> remaining = new HashSet<Integer>( ids ) ;
+        for( int i=0; i<orderedIds.size(); i++ ) {
+            if( !remaining.remove( orderedIds.get( i ) ) ) {
+                return false ;
+            }
+        }
+        return remaining.isEmpty() ;
     }
     
     /**
-     * Updates the sequence number of the given category to the specified 
-     * sequence number.
+     * Updates the sequence number of the given item to the specified 
+     * sequence number, using the given compiled sequence change statement.
+     * The statement is not closed and can be reused for further updates.
      */
-    private void updateItemSequenceNo( int catId, int seqNo, int seqChgQueryId ) {
+    private void updateItemSequenceNo( SQLiteStatement stmt, int id, int seqNo ) {
         
-        String sql = context.getString( seqChgQueryId ) ;
-        SQLiteStatement stmt = db.compileStatement( sql ) ;
+        stmt.clearBindings() ;
         stmt.bindLong( 1, seqNo ) ;
-        stmt.bindLong( 2, catId ) ;
+        stmt.bindLong( 2, id ) ;
         stmt.executeUpdateDelete() ;
-        stmt.close() ;
     }
 
     /** Updates the name of the category to the new name.. */
     @Override
     public void updateCatName( int catId, String newName ) {
-        updateItemName( catId, newName, R.string.query_update_cat_name, categoryIdNameMap ) ;
+        updateItemName( catId, newName, R.string.query_update_cat_name, 
+                        categoryIdNameMap, catNameIndex, categoryIdList ) ;
     }
 
     /** Updates the name of the sub category to the new name.. */
     @Override
     public void updateSubCatName( int subCatId, String newName ) {
-        updateItemName( subCatId, newName, R.string.query_update_subcat_name, subCategoryIdNameMap ) ;
+        
+        int catId = subCatCatIdMap.get( subCatId, -1 ) ;
+        updateItemName( subCatId, newName, R.string.query_update_subcat_name, 
+                        subCategoryIdNameMap, subCatNameIndex.get( catId ),
+                        catSubCatIdListMap.get( catId ) ) ;
     }
     
     /**
      * Private refactored method to update the name of either category or 
      * sub category.
+     * 
+     * The rename is rejected if the new name is used by another item in the
+     * same index. A change of case or spacing of the item's own name is 
+     * allowed.
+     * 
+     * @param nameIndex The reverse name index in which the item is indexed.
+     *        Can be null if the item is not indexed.
+     * @param scopeIds  The items which share the name index.
      */
     private void updateItemName( int id, String newName, int updateNameQueryId, 
-                                 Map<Integer, String> nameMap ) {
+                                 SparseArray<String> nameMap,
+                                 Map<String, Integer> nameIndex,
+                                 List<Integer> scopeIds ) {
         
-        // Update the database
-        String sql = context.getString( updateNameQueryId ) ;
-        SQLiteStatement stmt = db.compileStatement( sql ) ;
-        stmt.bindString( 1, newName ) ;
-        stmt.bindLong( 2, id ) ;
-        stmt.executeUpdateDelete() ;
-        stmt.close() ;
+        if( nameIndex != null ) {
+            Integer holderId = nameIndex.get( normalizeName( newName ) ) ;
+            if( holderId != null && holderId.intValue() != id ) {
+                Log.e( LogTag.CATEGORY_DAO, "Could not rename " + id + 
+                                            ". The name already exists" ) ;
+                rejectWrite() ;
+                return ;
+            }
+        }
+        
+        version++ ;
+        
+        boolean success = false ;
+        
+        beginWrite() ;
+        try {
+            // Update the database
+            String sql = context.getString( updateNameQueryId ) ;
+            
+            SQLiteStatement stmt = db.compileStatement( sql ) ;
+            try {
+                stmt.bindString( 1, newName ) ;
+                stmt.bindLong( 2, id ) ;
+                stmt.executeUpdateDelete() ;
+            }
+            finally {
+                stmt.close() ;
+            }
+            
+            // Update the internal cache
+            if( nameIndex != null ) {
+                unindexName( nameIndex, nameMap.get( id ), id, scopeIds, nameMap ) ;
+                indexName( nameIndex, newName, id ) ;
+            }
+            nameMap.put( id, newName ) ;
+            
+            success = true ;
+        }
+        catch ( SQLException e ) {
+            Log.e( LogTag.CATEGORY_DAO, "Exception while renaming " + id, e ) ;
+        }
+        finally {
+            endWrite( success ) ;
+        }
+    }
+    
+    /**
+     * Applies all the edits made by the given batch in a single transaction.
+     * If any of the edits fails, none of them is applied.
+     */
+    @Override
+    public boolean applyBatch( Batch batch ) {
         
-        // Update the internal cache.
-        nameMap.put( id, newName ) ;
+        // The edits of the batch bump the version themselves, and a roll 
+        // back bumps it on reloading the cache.
+        boolean success = false ;
+        
+        beginWrite() ;
+        try {
+            batch.apply( this ) ;
+            success = true ;
+        }
+        catch ( SQLException e ) {
+            Log.e( LogTag.CATEGORY_DAO, "Exception while applying category batch", e ) ;
+        }
+        finally {
+            success = endWrite( success ) ;
+        }
+        
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.CATEGORY_DAO, "Category batch " + 
+                                        ( success ? "committed" : "rolled back" ) ) ;
+        }
+        return success ;
+    }
+    
+    /**
+     * Begins a write transaction. The write transactions nest and only the 
+     * outermost one commits to the database. Every call to this method must
+     * be matched by a call to {@link #endWrite(boolean)} in a finally block.
+     */
+    private void beginWrite() {
+        db.beginTransaction() ;
+        writeDepth++ ;
+    }
+    
+    /**
+     * Called when an edit is rejected by its validations before it begins 
+     * its own write. If the edit is a part of an enclosing write, such as a
+     * batch, the enclosing write is marked as failed so that it is rolled
+     * back as a whole.
+     */
+    private void rejectWrite() {
+        if( writeDepth > 0 ) {
+            writeFailed = true ;
+        }
+    }
+    
+    /**
+     * Ends the current write transaction. If the write was not successful, 
+     * the complete outermost transaction is rolled back and once it ends, 
+     * the internal cache is reloaded from the database to discard the 
+     * changes made to it within the transaction.
+     * 
+     * @param successful true if the current write completed successfully.
+     * 
+     * @return true if the write is (or, if nested, is still going to be) 
+     *         committed.
+     */
+    private boolean endWrite( boolean successful ) {
+        
+        if( successful && !writeFailed ) {
+            db.setTransactionSuccessful() ;
+        }
+        else {
+            writeFailed = true ;
+        }
+        
+        db.endTransaction() ;
+        writeDepth-- ;
+        
+        boolean committed = !writeFailed ;
+        if( writeDepth == 0 && writeFailed ) {
+            writeFailed = false ;
+            version++ ;
+            refreshDataCache() ;
+        }
+        return committed ;
+    }
+    
+    /**
+     * Discards the in-memory cache and loads it afresh from the database. 
+     * Used to repair the cache if it is found to have drifted from the 
+     * database.
+     */
+    void reloadCache() {
+        version++ ;
+        refreshDataCache() ;
+    }
+    
+    /**
+     * Adds the name of the given item to the name index. If another item 
+     * already holds the normalized name, which is possible with data saved
+     * before the names were checked, the first item keeps the slot.
+     */
+    private static void indexName( Map<String, Integer> nameIndex, String name, int id ) {
+        
+        String key = normalizeName( name ) ;
+        if( nameIndex.containsKey( key ) ) {
+            Log.e( LogTag.CATEGORY_DAO, "Name '" + name + "' of " + id + 
+                   " clashes with " + nameIndex.get( key ) ) ;
+            return ;
+        }
+        nameIndex.put( key, id ) ;
+    }
+    
+    /**
+     * Removes the name of the given item from the name index, if the item 
+     * holds the slot. The slot is then handed over to any other item among
+     * the given ones which has the same normalized name.
+     * 
+     * @param scopeIds The items which share the name index, may be null.
+     * @param nameMap  The names of the items.
+     */
+    private static void unindexName( Map<String, Integer> nameIndex, String name, 
+                                     int id, List<Integer> scopeIds,
+                                     SparseArray<String> nameMap ) {
+        
+        String  key       = normalizeName( name ) ;
+        Integer indexedId = nameIndex.get( key ) ;
+        if( indexedId == null || indexedId.intValue() != id ) {
+            return ;
+        }
+        
+        nameIndex.remove( key ) ;
+        if( scopeIds != null ) {
+            for( int i=0; i<scopeIds.size(); i++ ) {
+                int otherId = scopeIds.get( i ) ;
+                if( otherId != id && key.equals( normalizeName( nameMap.get( otherId ) ) ) ) {
+                    nameIndex.put( key, otherId ) ;
+                    break ;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the normalized form of the given name, which is used as the
+     * key in the reverse name indexes. Two names are considered the same if 
+     * their normalized forms are equal. The normalization trims the name, 
+     * collapses the white space runs to a single space and lower cases it.
+     */
+    static String normalizeName( String name ) {
+        
+        if( name == null ) {
+            return "" ;
+        }
+        
+        StringBuilder buffer = new StringBuilder( name.length() ) ;
+        boolean pendingSpace = false ;
+        
+        for( int i=0; i<name.length(); i++ ) {
+            char ch = name.charAt( i ) ;
+            if( Character.isWhitespace( ch ) ) {
+                pendingSpace = buffer.length() > 0 ;
+            }
+            else {
+                if( pendingSpace ) {
+                    buffer.append( ' ' ) ;
+                    pendingSpace = false ;
+                }
+                buffer.append( ch ) ;
+            }
+        }
+        return buffer.toString().toLowerCase( Locale.US ) ;
     }
 }
@@ -0,0 +1,176 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.Date ;
+import java.util.List ;
+
+import android.util.Log ;
+import android.util.SparseArray ;
+import android.util.SparseIntArray ;
+
+import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
+
+/**
+ * The number of expense items using each category and sub category. The
+ * counts are built once from all the expense items and there after adjusted
+ * on every insert, update and delete of an expense item. Hence checking
+ * whether a category or sub category is in use is a constant time lookup,
+ * which the category management screens do for every row they bind.
+ *
+ * An update can move an item to another category and the updated item does
+ * not carry its old category. Hence the counts also remember the category
+ * and sub category against which each item is counted.
+ *
+ * A split item is counted against the category and sub category of each of
+ * its splits.
+ *
+ * The counts are accessed only from the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+class CategoryUsageCounts implements ExpenseItemChangeListener {
+
+    private SparseIntArray catCounts     = new SparseIntArray() ;
+    private SparseIntArray subCatCounts  = new SparseIntArray() ;
+
+    // The categories and sub categories against which each item is counted,
+    // as pairs of category and sub category ids
+    private SparseArray<int[]> itemCatIds = new SparseArray<int[]>() ;
+
+    CategoryUsageCounts( List<ExpenseItem> items ) {
+        rebuild( items ) ;
+    }
+
+    /** Returns the number of expense items using the given category. */
+    int getCategoryCount( int catId ) {
+        return catCounts.get( catId, 0 ) ;
+    }
+
+    /** Returns the number of expense items using the given sub category. */
+    int getSubCategoryCount( int subCatId ) {
+        return subCatCounts.get( subCatId, 0 ) ;
+    }
+
+    /**
+     * Checks the invariant that the counts are the same as the counts built
+     * from scratch from the given expense items, which should be all the
+     * expense items in the database. The counts are rebuilt either way.
+     *
+     * @return true if the counts were found correct, false otherwise.
+     */
+    boolean verify( List<ExpenseItem> items ) {
+
+        SparseIntArray oldCatCounts    = catCounts ;
+        SparseIntArray oldSubCatCounts = subCatCounts ;
+
+        rebuild( items ) ;
+
+        boolean valid = equal( oldCatCounts, catCounts ) &&
+                        equal( oldSubCatCounts, subCatCounts ) ;
+        if( !valid ) {
+            Log.e( LogTag.EXPENSE_ITEM_DAO, "Category usage counts were out " +
+                                            "of sync and have been rebuilt" ) ;
+        }
+        return valid ;
+    }
+
+    private void rebuild( List<ExpenseItem> items ) {
+
+        catCounts     = new SparseIntArray() ;
+        subCatCounts  = new SparseIntArray() ;
+        itemCatIds    = new SparseArray<int[]>( items.size() ) ;
+
+        for( int i=0; i<items.size(); i++ ) {
+            add( items.get( i ) ) ;
+        }
+    }
+
+    private void add( ExpenseItem item ) {
+
+        int[] ids = null ;
+        List<ExpenseSplit> splits = item.getSplits() ;
+
+        if( splits == null ) {
+            ids = new int[]{ item.getCatId(), item.getSubCatId() } ;
+        }
+        else {
+            ids = new int[2 * splits.size()] ;
+            for( int i=0; i<splits.size(); i++ ) {
+                ids[2*i]     = splits.get( i ).getCatId() ;
+                ids[2*i + 1] = splits.get( i ).getSubCatId() ;
+            }
+        }
+
+        for( int i=0; i<ids.length; i+=2 ) {
+            adjust( catCounts, ids[i], 1 ) ;
+            adjust( subCatCounts, ids[i + 1], 1 ) ;
+        }
+        itemCatIds.put( item.getId(), ids ) ;
+    }
+
+    private void remove( int itemId ) {
+
+        int index = itemCatIds.indexOfKey( itemId ) ;
+        if( index < 0 ) {
+            return ;
+        }
+
+        int[] ids = itemCatIds.valueAt( index ) ;
+        for( int i=0; i<ids.length; i+=2 ) {
+            adjust( catCounts, ids[i], -1 ) ;
+            adjust( subCatCounts, ids[i + 1], -1 ) ;
+        }
+        itemCatIds.removeAt( index ) ;
+    }
+
+    private static void adjust( SparseIntArray counts, int id, int delta ) {
+
+        int count = counts.get( id, 0 ) + delta ;
+        if( count <= 0 ) {
+            counts.delete( id ) ;
+        }
+        else {
+            counts.put( id, count ) ;
+        }
+    }
+
+    private static boolean equal( SparseIntArray a, SparseIntArray b ) {
+
+        if( a.size() != b.size() ) {
+            return false ;
+        }
+        for( int i=0; i<a.size(); i++ ) {
+            if( a.keyAt( i ) != b.keyAt( i ) || a.valueAt( i ) != b.valueAt( i ) ) {
+                return false ;
+            }
+        }
+        return true ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Expense item change listener methods
+    // -------------------------------------------------------------------------
+    @Override
+    public void expenseItemInserted( ExpenseItem item ) {
+        add( item ) ;
+    }
+
+    @Override
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) {
+        remove( item.getId() ) ;
+        add( item ) ;
+    }
+
+    @Override
+    public void expenseItemDeleted( ExpenseItem item ) {
+        remove( item.getId() ) ;
+    }
+
+    @Override
+    public void allExpenseItemsDeleted() {
+        catCounts.clear() ;
+        subCatCounts.clear() ;
+        itemCatIds.clear() ;
+    }
+}
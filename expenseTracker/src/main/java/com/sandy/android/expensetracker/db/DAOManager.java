@@ -1,49 +1,357 @@
 package com.sandy.android.expensetracker.db;
 
-import android.app.Activity ;
+import java.io.File ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.ThreadFactory ;
+
+import android.content.Context ;
 import android.database.sqlite.SQLiteDatabase ;
+import android.os.AsyncTask ;
+import android.os.Process ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.util.PerfBenchmark ;
+import com.sandy.android.expensetracker.util.StartupTrace ;
 
 /**
- * This is a singleton class for managing all the DAO implementations. 
- * 
+ * This is a singleton class for managing all the DAO implementations. It is
+ * initialized by the application class and lives as long as the process.
+ * The database connection is opened once and is never closed, hence the
+ * activities can come and go without reopening it or reloading the caches.
+ *
+ * Initialization does not do any disk I/O. The database is opened and the
+ * DAOs are created lazily, on their first access. The {@link #loadInBackground}
+ * method can be used to get the database opened and the caches loaded on a
+ * background thread, so that the first frame of the user interface does not
+ * wait for them.
+ *
+ * The DAOs push their housekeeping writes, which the user does not wait for,
+ * to a single low priority background thread. The jobs run one at a time in
+ * the order of submission. The database maintenance is run on the same
+ * thread, after the purge of the deleted items.
+ *
+ * The account and tag dictionaries are loaded along with the expense item
+ * DAO, which needs them to translate the paid by and the tags of the items.
+ *
+ * Once the caches have been loaded, they are verified against the database
+ * in the background by the {@link IntegrityVerifier}.
+ *
  * @author Sandeep Deb
  */
 public class DAOManager {
 
     private static DAOManager instance = null ;
-    
+
+    private Context  context  = null ;
     private DBHelper dbHelper = null ;
     private SQLiteDatabase db = null ;
-    
-    private ExpenseItemDAO expenseItemDAO = null ;
-    private CategoryDAO    categoryDAO    = null ;
-    
+
+    private ExpenseItemDAOImpl expenseItemDAO = null ;
+    private CategoryDAOImpl    categoryDAO    = null ;
+    private AccountDAOImpl     accountDAO     = null ;
+    private TagDAOImpl         tagDAO         = null ;
+
+    private RecurringExpenseDAO recurringExpenseDAO = null ;
+    private ExchangeRateDAO     exchangeRateDAO     = null ;
+
+    private ExpenseStatistics expenseStatistics = null ;
+    private AccountBalances   accountBalances   = null ;
+    private DescriptionIndex  descriptionIndex  = null ;
+    private TagIndex          tagIndex          = null ;
+
+    private ExecutorService     backgroundExecutor = null ;
+    private DatabaseMaintenance maintenance        = null ;
+
     private DAOManager() {
     }
-    
-    public static void initialize( Activity activity ) {
-        
+
+    public static void initialize( Context context ) {
+
         instance = new DAOManager() ;
-        instance.dbHelper = new DBHelper( activity ) ;
-        instance.db = instance.dbHelper.getWritableDatabase() ;
-        
-        instance.expenseItemDAO = new ExpenseItemDAOImpl( activity, instance.db ) ;
-        instance.categoryDAO    = new CategoryDAOImpl( activity, instance.db ) ;
+        instance.context = context.getApplicationContext() ;
+
+        // The micro benchmarks are run only on debug builds and only if they
+        // have been explicitly enabled on the device.
+        if( BuildConfig.DEBUG && PerfBenchmark.isEnabled() ) {
+            PerfBenchmark.runInBackground() ;
+        }
     }
-    
+
     public static DAOManager getInstance() {
         return instance ;
     }
-    
-    public ExpenseItemDAO getExpenseItemDAO() {
+
+    /**
+     * Opens the database, creates the DAOs and loads the category cache and
+     * the expense item store on a background thread. The given callback is
+     * run on the UI thread once loading is complete.
+     *
+     * Note that the expense item store is not thread safe. The callers should
+     * not use the expense item DAO till the callback has been run.
+     *
+     * If the data has already been loaded, for example by an earlier instance
+     * of the calling activity, the callback is run immediately.
+     */
+    public void loadInBackground( final Runnable callback ) {
+
+        if( isLoaded() ) {
+            callback.run() ;
+            return ;
+        }
+
+        new AsyncTask<Void, Void, Void>() {
+
+            @Override
+            protected Void doInBackground( Void... params ) {
+
+                StartupTrace.beginSection( "DAOManager.load" ) ;
+                try {
+                    getCategoryDAO() ;
+                    getExpenseItemDAO().getExpenseItemStore() ;
+                    expenseItemDAO.purgeDeletedItems() ;
+                    runMaintenanceIfDue( false ) ;
+                }
+                finally {
+                    StartupTrace.endSection() ;
+                }
+                return null ;
+            }
+
+            @Override
+            protected void onPostExecute( Void result ) {
+                callback.run() ;
+                verifyIntegrity() ;
+            }
+        }.executeOnExecutor( AsyncTask.THREAD_POOL_EXECUTOR ) ;
+    }
+
+    public synchronized ExpenseItemDAO getExpenseItemDAO() {
+
+        if( expenseItemDAO == null ) {
+            getAccountDAO() ;
+            getTagDAO() ;
+            expenseItemDAO = new ExpenseItemDAOImpl( context, getDatabase(),
+                                                     getBackgroundExecutor(),
+                                                     accountDAO, tagDAO ) ;
+        }
         return expenseItemDAO ;
     }
-    
-    public CategoryDAO getCategoryDAO() {
+
+    public synchronized CategoryDAO getCategoryDAO() {
+
+        if( categoryDAO == null ) {
+            StartupTrace.beginSection( "DAOManager.loadCategories" ) ;
+            try {
+                categoryDAO = new CategoryDAOImpl( context, getDatabase() ) ;
+            }
+            finally {
+                StartupTrace.endSection() ;
+            }
+        }
         return categoryDAO ;
     }
-    
-    public void closeDB() {
-        instance.db.close() ;
+
+    public synchronized RecurringExpenseDAO getRecurringExpenseDAO() {
+
+        if( recurringExpenseDAO == null ) {
+            getExpenseItemDAO() ;
+            recurringExpenseDAO = new RecurringExpenseDAOImpl( context,
+                                     getDatabase(), expenseItemDAO, accountDAO ) ;
+        }
+        return recurringExpenseDAO ;
+    }
+
+    public synchronized AccountDAO getAccountDAO() {
+
+        if( accountDAO == null ) {
+            accountDAO = new AccountDAOImpl( context, getDatabase() ) ;
+        }
+        return accountDAO ;
+    }
+
+    public synchronized TagDAO getTagDAO() {
+
+        if( tagDAO == null ) {
+            tagDAO = new TagDAOImpl( context, getDatabase() ) ;
+        }
+        return tagDAO ;
+    }
+
+    public synchronized ExchangeRateDAO getExchangeRateDAO() {
+
+        if( exchangeRateDAO == null ) {
+            exchangeRateDAO = new ExchangeRateDAOImpl( context, getDatabase() ) ;
+        }
+        return exchangeRateDAO ;
+    }
+
+    /**
+     * Returns the expense statistics. The statistics are seeded from the
+     * expense item store on the first call and kept up to date there after
+     * by listening to the expense item DAO.
+     */
+    public synchronized ExpenseStatistics getExpenseStatistics() {
+
+        if( expenseStatistics == null ) {
+            ExpenseItemDAO dao = getExpenseItemDAO() ;
+            expenseStatistics = new ExpenseStatistics(
+                                       dao.getExpenseItemStore().getItems() ) ;
+            dao.addChangeListener( expenseStatistics ) ;
+        }
+        return expenseStatistics ;
+    }
+
+    /**
+     * Returns the running balances of the accounts. The balances are built
+     * from the expense item store on the first call and kept up to date 
+     * there after by listening to the expense item DAO. If a balance has
+     * overflowed, the balances are built afresh, since the items may have
+     * been changed since.
+     */
+    public synchronized AccountBalances getAccountBalances() {
+
+        ExpenseItemDAO dao = getExpenseItemDAO() ;
+        if( accountBalances != null && accountBalances.isOverflow() ) {
+            dao.removeChangeListener( accountBalances ) ;
+            accountBalances = null ;
+        }
+
+        if( accountBalances == null ) {
+            accountBalances = new AccountBalances( accountDAO,
+                                       dao.getExpenseItemStore().getItems() ) ;
+            dao.addChangeListener( accountBalances ) ;
+        }
+        return accountBalances ;
+    }
+
+    /**
+     * Returns the tag index. The index is built from the expense item store
+     * on the first call, not at startup since few sessions filter by tag, 
+     * and kept up to date there after by listening to the expense item DAO.
+     */
+    public synchronized TagIndex getTagIndex() {
+
+        if( tagIndex == null ) {
+            ExpenseItemDAO dao = getExpenseItemDAO() ;
+            tagIndex = new TagIndex( tagDAO, dao.getExpenseItemStore().getItems() ) ;
+            dao.addChangeListener( tagIndex ) ;
+        }
+        return tagIndex ;
+    }
+
+    /**
+     * Returns the description autocomplete index. The index is loaded from
+     * its file on the first call and kept up to date there after by listening
+     * to the expense item DAO. It saves its changes on the background
+     * executor and is saved once more by {@link #saveState()}.
+     */
+    public synchronized DescriptionIndex getDescriptionIndex() {
+
+        if( descriptionIndex == null ) {
+            ExpenseItemDAO dao = getExpenseItemDAO() ;
+            File file = new File( context.getFilesDir(), "description_index.dat" ) ;
+            descriptionIndex = new DescriptionIndex( file, getBackgroundExecutor(),
+                                       dao.getExpenseItemStore().getItems() ) ;
+            dao.addChangeListener( descriptionIndex ) ;
+        }
+        return descriptionIndex ;
+    }
+
+    /**
+     * Saves the state which is derived from the database but persisted
+     * outside of it. Called when the application goes to the background.
+     */
+    public synchronized void saveState() {
+        if( descriptionIndex != null ) {
+            descriptionIndex.save() ;
+        }
+    }
+
+    /**
+     * Queues the given job on the background executor. Used by the user
+     * interface for the file and database I/O which it must not wait for.
+     * The job should post its results back to the UI thread.
+     */
+    public void runInBackground( Runnable job ) {
+        getBackgroundExecutor().execute( job ) ;
+    }
+
+    /**
+     * Queues the database maintenance on the background executor. The
+     * maintenance runs only if it is due and either the device is charging
+     * or the caller says that the user interface is hidden. Nothing is done
+     * if the database has not been opened yet.
+     *
+     * @param idle true if the user interface is hidden.
+     */
+    public synchronized void runMaintenanceIfDue( final boolean idle ) {
+
+        if( db == null ) {
+            return ;
+        }
+        if( maintenance == null ) {
+            maintenance = new DatabaseMaintenance( context, db ) ;
+        }
+
+        final DatabaseMaintenance job = maintenance ;
+        getBackgroundExecutor().execute( new Runnable() {
+            public void run() {
+                job.runIfDue( idle ) ;
+            }
+        } ) ;
+    }
+
+    /**
+     * Verifies the database and the caches in the background. Must be called
+     * on the UI thread once the caches have been loaded.
+     */
+    private synchronized void verifyIntegrity() {
+        new IntegrityVerifier( context, db, categoryDAO, expenseItemDAO,
+                               getBackgroundExecutor() ).start() ;
+    }
+
+    /** Returns true if the database is open and the caches are loaded. */
+    private synchronized boolean isLoaded() {
+        return categoryDAO != null && expenseItemDAO != null &&
+               expenseItemDAO.isStoreLoaded() ;
+    }
+
+    /**
+     * Returns the executor for the background jobs. Created on the first
+     * call with a single thread running at background priority, so that the
+     * jobs do not compete with the UI thread for the CPU.
+     */
+    synchronized ExecutorService getBackgroundExecutor() {
+
+        if( backgroundExecutor == null ) {
+            backgroundExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                public Thread newThread( final Runnable job ) {
+                    return new Thread( new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND ) ;
+                            job.run() ;
+                        }
+                    }, "ExpenseTracker-Background" ) ;
+                }
+            } ) ;
+        }
+        return backgroundExecutor ;
+    }
+
+    /** Opens the database on the first call. */
+    private SQLiteDatabase getDatabase() {
+
+        if( db == null ) {
+            StartupTrace.beginSection( "DAOManager.openDatabase" ) ;
+            try {
+                dbHelper = new DBHelper( context ) ;
+                db = dbHelper.getWritableDatabase() ;
+            }
+            finally {
+                StartupTrace.endSection() ;
+            }
+        }
+        return db ;
     }
 }
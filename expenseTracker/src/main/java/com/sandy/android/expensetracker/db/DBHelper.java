@@ -7,6 +7,7 @@ import android.content.Context ;
 import android.database.sqlite.SQLiteDatabase ;
 import android.database.sqlite.SQLiteOpenHelper ;
 import android.util.Log ;
+import android.util.SparseIntArray ;
 
 import com.sandy.android.expensetracker.BuildConfig ;
 import com.sandy.android.expensetracker.R ;
@@ -21,7 +22,10 @@ import com.sandy.android.expensetracker.util.LogTag ;
 public class DBHelper extends SQLiteOpenHelper {
     
     public  final static String DB_NAME    = "ExpenseTrackerDB" ;
-    private final static int    DB_VERSION = 5 ;
+    private final static int    DB_VERSION = 14 ;
+    
+    // The version whose upgrade script takes the home currency as parameter
+    private final static int    CURRENCY_UPGRADE_VERSION = 14 ;
     
     private final static String CAT_TAB_NAME            = "category" ;
     private final static String SUBCAT_TAB_NAME         = "sub_category" ;
@@ -33,9 +37,15 @@ public class DBHelper extends SQLiteOpenHelper {
     private final static String SUBCAT_TAB_CATID_COL_NM = "cat_id" ;
     
     // A map which stores the initial reference data for categories and associated
-    // sub categories for initial database population
+    // sub categories for initial database population. Populated only when the
+    // database is being created.
     private HashMap<String, Integer> catSubCatIdMap = new HashMap<String, Integer>() ;
     
+    // A map of database versions against the script which upgrades the 
+    // previous version to it. Upgrades from versions older than the oldest
+    // script in this map recreate the database.
+    private SparseIntArray upgradeScripts = new SparseIntArray() ;
+    
     // A reference to the context under which this database is operating.
     private Context context = null ;
 
@@ -43,7 +53,19 @@ public class DBHelper extends SQLiteOpenHelper {
     public DBHelper( Context context ) {
         super( context, DB_NAME, null, DB_VERSION ) ;
         this.context = context ;
-        populateCatSubCatIDMap() ;
+        populateUpgradeScripts() ;
+    }
+    
+    private void populateUpgradeScripts() {
+        upgradeScripts.put( 6, R.array.upgrade_to_6 ) ;
+        upgradeScripts.put( 7, R.array.upgrade_to_7 ) ;
+        upgradeScripts.put( 8, R.array.upgrade_to_8 ) ;
+        upgradeScripts.put( 9, R.array.upgrade_to_9 ) ;
+        upgradeScripts.put( 10, R.array.upgrade_to_10 ) ;
+        upgradeScripts.put( 11, R.array.upgrade_to_11 ) ;
+        upgradeScripts.put( 12, R.array.upgrade_to_12 ) ;
+        upgradeScripts.put( 13, R.array.upgrade_to_13 ) ;
+        upgradeScripts.put( 14, R.array.upgrade_to_14 ) ;
     }
 
     private void populateCatSubCatIDMap() {
@@ -95,6 +117,12 @@ public class DBHelper extends SQLiteOpenHelper {
      * If the database version changes (upward), this method will be called to
      * give us an opportunity to gracefully upgrade the database with any
      * structural and/or data migration needs.
+     * 
+     * If there is an upgrade script for every version after the old version,
+     * the scripts are applied in order and the data is retained. Else the
+     * database is dropped and recreated. Note that this method is called by
+     * the framework within a transaction, hence a failed upgrade leaves the
+     * database at its old version.
      */
     @Override
     public void onUpgrade( SQLiteDatabase db, int oldVersion, int newVersion ) {
@@ -104,6 +132,27 @@ public class DBHelper extends SQLiteOpenHelper {
                                      oldVersion + " to " + newVersion ) ;
         }
         
+        if( canUpgradeIncrementally( oldVersion, newVersion ) ) {
+            for( int version=oldVersion+1; version<=newVersion; version++ ) {
+                
+                String[] upgradeStmts = context.getResources().getStringArray( 
+                                                upgradeScripts.get( version ) ) ;
+                for( String upgradeStmt : upgradeStmts ) {
+                    if( BuildConfig.DEBUG ) {
+                        Log.d( LogTag.DB_HELPER, "Upgrade query = " + upgradeStmt ) ;
+                    }
+                    if( version == CURRENCY_UPGRADE_VERSION ) {
+                        db.execSQL( upgradeStmt, new Object[]{ 
+                                        HomeCurrency.get( context ) } ) ;
+                    }
+                    else {
+                        db.execSQL( upgradeStmt ) ;
+                    }
+                }
+            }
+            return ;
+        }
+        
         if( BuildConfig.DEBUG ) {
             Log.d( LogTag.DB_HELPER, "Creating a new database" ) ;
         }
@@ -124,15 +173,32 @@ public class DBHelper extends SQLiteOpenHelper {
         }
     }
     
+    /**
+     * Returns true if there is an upgrade script for every version after the
+     * old version up to the new version.
+     */
+    private boolean canUpgradeIncrementally( int oldVersion, int newVersion ) {
+        
+        for( int version=oldVersion+1; version<=newVersion; version++ ) {
+            if( upgradeScripts.get( version, -1 ) == -1 ) {
+                return false ;
+            }
+        }
+        return true ;
+    }
+    
     /**
      * This function populates the reference data for the categories and associated
-     * sub categories during table creation.
+     * sub categories during table creation. The sequence numbers are created
+     * with gaps between them so that reordering needs only a single update.
      */
     private void populateReferenceData( SQLiteDatabase db ) {
 
         int catSeq = -1 ;
         ContentValues cv = new ContentValues() ;
         
+        populateCatSubCatIDMap() ;
+        
         // Get the categories in the preferential order as they are defined
         // in the configuration.  
         String[] categories = context.getResources().getStringArray( 
@@ -157,7 +223,7 @@ public class DBHelper extends SQLiteOpenHelper {
             
             cv.clear() ;
             cv.put( CAT_TAB_NAME_COL_NM, catName ) ;
-            cv.put( CAT_TAB_SEQNO_COL_NM, catSeq ) ;
+            cv.put( CAT_TAB_SEQNO_COL_NM, catSeq * CategoryDAOImpl.SEQ_NO_GAP ) ;
             
             if( BuildConfig.DEBUG ) {
                 Log.d( LogTag.DB_HELPER, "Inserting cateogry = " + catName ) ;
@@ -173,7 +239,7 @@ public class DBHelper extends SQLiteOpenHelper {
                 cv.clear() ;
                 cv.put( SUBCAT_TAB_CATID_COL_NM, catId ) ;
                 cv.put( SUBCAT_TAB_NAME_COL_NM,  subCat ) ;
-                cv.put( SUBCAT_TAB_SEQNO_COL_NM, subCatSeq ) ;
+                cv.put( SUBCAT_TAB_SEQNO_COL_NM, subCatSeq * CategoryDAOImpl.SEQ_NO_GAP ) ;
                 
                 if( BuildConfig.DEBUG ) {
                     Log.d( LogTag.DB_HELPER, 
@@ -182,5 +248,9 @@ public class DBHelper extends SQLiteOpenHelper {
                 db.insert( SUBCAT_TAB_NAME, null, cv ) ;
             }
         }
+        
+        // The reference sub categories are all top level, their paths are
+        // just their own ids.
+        db.execSQL( context.getString( R.string.query_init_sub_category_paths ) ) ;
     }
 }
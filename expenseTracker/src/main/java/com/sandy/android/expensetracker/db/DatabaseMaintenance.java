@@ -0,0 +1,176 @@
+package com.sandy.android.expensetracker.db;
+
+import android.content.Context ;
+import android.content.Intent ;
+import android.content.IntentFilter ;
+import android.content.SharedPreferences ;
+import android.database.DatabaseUtils ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+import android.os.BatteryManager ;
+import android.util.Log ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.util.LogTag ;
+
+/**
+ * Housekeeping of the database file. The statistics of the query planner are
+ * refreshed by ANALYZE once a week and the file is compacted by VACUUM when
+ * the free pages cross a threshold, for example after a delete all has been
+ * purged.
+ *
+ * Both take the database lock for as long as they run, hence the maintenance
+ * is run only when the device is charging or the user interface is hidden,
+ * and at most once a day. The time of the last run is kept in the shared
+ * preferences so that the schedule survives the process.
+ *
+ * The maintenance is meant to be run on the background executor and never
+ * on the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+class DatabaseMaintenance {
+
+    private static final String PREFS_NAME       = "db_maintenance" ;
+    private static final String KEY_LAST_RUN     = "last_run" ;
+    private static final String KEY_LAST_ANALYZE = "last_analyze" ;
+
+    private static final long DAY_MILLIS = 24*60*60*1000L ;
+
+    private static final long RUN_INTERVAL_MILLIS     = DAY_MILLIS ;
+    private static final long ANALYZE_INTERVAL_MILLIS = 7*DAY_MILLIS ;
+
+    // The file is vacuumed only if at least this fraction of its pages and
+    // this many bytes are free. Small files are not worth the rewrite.
+    private static final float VACUUM_FREE_FRACTION = 0.25f ;
+    private static final long  VACUUM_FREE_BYTES    = 256*1024L ;
+
+    /** The size of the database file as seen by SQLite. */
+    static class FileStats {
+
+        final long pageSize ;
+        final long pageCount ;
+        final long freePageCount ;
+
+        FileStats( long pageSize, long pageCount, long freePageCount ) {
+            this.pageSize      = pageSize ;
+            this.pageCount     = pageCount ;
+            this.freePageCount = freePageCount ;
+        }
+
+        long getSize() {
+            return pageSize * pageCount ;
+        }
+
+        long getFreeSize() {
+            return pageSize * freePageCount ;
+        }
+
+        float getFreeFraction() {
+            return pageCount == 0 ? 0 : ( float )freePageCount / pageCount ;
+        }
+
+        @Override
+        public String toString() {
+            return getSize() + " bytes, " + freePageCount + " of " +
+                   pageCount + " pages free" ;
+        }
+    }
+
+    private Context        context = null ;
+    private SQLiteDatabase db      = null ;
+
+    DatabaseMaintenance( Context context, SQLiteDatabase db ) {
+        this.context = context ;
+        this.db      = db ;
+    }
+
+    /**
+     * Runs the maintenance if it is due and the device is either idle or
+     * charging.
+     *
+     * @param idle true if the user interface is known to be hidden.
+     */
+    void runIfDue( boolean idle ) {
+
+        SharedPreferences prefs = context.getSharedPreferences( PREFS_NAME,
+                                                     Context.MODE_PRIVATE ) ;
+        long now = System.currentTimeMillis() ;
+
+        if( now - prefs.getLong( KEY_LAST_RUN, 0 ) < RUN_INTERVAL_MILLIS ) {
+            return ;
+        }
+        if( !idle && !isCharging() ) {
+            return ;
+        }
+
+        boolean analyze = now - prefs.getLong( KEY_LAST_ANALYZE, 0 ) >=
+                          ANALYZE_INTERVAL_MILLIS ;
+        try {
+            run( analyze ) ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.DB_MAINTENANCE, "Exception during database " +
+                                          "maintenance", e ) ;
+            return ;
+        }
+
+        SharedPreferences.Editor editor = prefs.edit() ;
+        editor.putLong( KEY_LAST_RUN, now ) ;
+        if( analyze ) {
+            editor.putLong( KEY_LAST_ANALYZE, now ) ;
+        }
+        editor.commit() ;
+    }
+
+    /** Returns the current size and free pages of the database file. */
+    FileStats getFileStats() {
+        return new FileStats(
+                DatabaseUtils.longForQuery( db, "PRAGMA page_size", null ),
+                DatabaseUtils.longForQuery( db, "PRAGMA page_count", null ),
+                DatabaseUtils.longForQuery( db, "PRAGMA freelist_count", null ) ) ;
+    }
+
+    private void run( boolean analyze ) throws SQLException {
+
+        FileStats before = getFileStats() ;
+        boolean   vacuum = before.getFreeFraction() >= VACUUM_FREE_FRACTION &&
+                           before.getFreeSize() >= VACUUM_FREE_BYTES ;
+
+        if( analyze ) {
+            db.execSQL( "ANALYZE" ) ;
+        }
+        if( vacuum ) {
+            db.execSQL( "VACUUM" ) ;
+        }
+
+        if( analyze || vacuum ) {
+            Log.i( LogTag.DB_MAINTENANCE, "Maintenance done" +
+                   ( analyze ? ", analyzed" : "" ) +
+                   ( vacuum  ? ", vacuumed" : "" ) +
+                   ". Before - " + before + ". After - " + getFileStats() ) ;
+        }
+        else if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.DB_MAINTENANCE, "No maintenance needed. " + before ) ;
+        }
+    }
+
+    /** Returns true if the device is plugged in or fully charged. */
+    private boolean isCharging() {
+
+        // The battery status is a sticky broadcast - registering a null
+        // receiver just returns the last status.
+        Intent status = context.registerReceiver( null,
+                             new IntentFilter( Intent.ACTION_BATTERY_CHANGED ) ) ;
+        if( status == null ) {
+            return false ;
+        }
+
+        int plugged = status.getIntExtra( BatteryManager.EXTRA_PLUGGED, 0 ) ;
+        int state   = status.getIntExtra( BatteryManager.EXTRA_STATUS, -1 ) ;
+
+        return plugged != 0 ||
+               state == BatteryManager.BATTERY_STATUS_CHARGING ||
+               state == BatteryManager.BATTERY_STATUS_FULL ;
+    }
+}
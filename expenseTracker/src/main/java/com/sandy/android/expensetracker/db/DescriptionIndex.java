@@ -0,0 +1,456 @@
+package com.sandy.android.expensetracker.db;
+
+import java.io.BufferedInputStream ;
+import java.io.BufferedOutputStream ;
+import java.io.Closeable ;
+import java.io.DataInputStream ;
+import java.io.DataOutputStream ;
+import java.io.File ;
+import java.io.FileInputStream ;
+import java.io.FileOutputStream ;
+import java.io.IOException ;
+import java.util.ArrayList ;
+import java.util.Date ;
+import java.util.List ;
+import java.util.Locale ;
+import java.util.concurrent.Executor ;
+
+import android.util.Log ;
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * An autocomplete index of the expense item descriptions. The distinct
+ * descriptions of each sub category are held in a prefix trie. Completions
+ * are scoped to a sub category, since the same prefix usually means
+ * different things under different sub categories.
+ *
+ * Each description has a score which is the sum of the weights of the
+ * expense items which used it. Like {@link ExpenseStatistics}, the weight
+ * of an item grows exponentially with its date, so a description used often
+ * and recently ranks higher. Since the scores only grow, every trie node
+ * keeps the top MAX_COMPLETIONS descriptions below it, which are adjusted
+ * along the path of a description whenever its score grows. A lookup is
+ * hence a walk down the prefix, O(prefix length), and does not visit the
+ * sub tree.
+ *
+ * The index is saved to a file on the background executor after every
+ * change, the changes of a burst of writes being saved together, and once
+ * more when the application goes to the background. The file is written
+ * to a temporary file first and then renamed, so that a process killed
+ * mid way does not leave a truncated index. On start up, the saved index is
+ * loaded and only the expense items created after it was saved are
+ * indexed. The descriptions with which the older items were counted are
+ * taken from the items themselves, so that an update which does not change
+ * a description is not counted again. If the file is missing or unreadable,
+ * the index is rebuilt from all the expense items.
+ *
+ * The lookups are done on the filtering thread of the autocomplete view,
+ * hence all the public methods are synchronized.
+ *
+ * @author Sandeep Deb
+ */
+public class DescriptionIndex implements ExpenseItemChangeListener {
+
+    public  static final int    MAX_COMPLETIONS = 5 ;
+
+    private static final int    FILE_VERSION    = 1 ;
+    private static final double HALF_LIFE_DAYS  = 30 ;
+    private static final double MILLIS_PER_DAY  = 24 * 60 * 60 * 1000 ;
+    private static final double DECAY_RATE      = Math.log( 2 ) /
+                                                  ( HALF_LIFE_DAYS * MILLIS_PER_DAY ) ;
+    private static final double MAX_WEIGHT      = 1e100 ;
+
+    /** A distinct description of a sub category and its score. */
+    private static class Entry {
+        String text  = null ;
+        double score = 0 ;
+
+        Entry( String text ) {
+            this.text = text ;
+        }
+    }
+
+    /** A trie node. The children are kept sorted on their characters. */
+    private static class Node {
+        char[]  chars    = new char[0] ;
+        Node[]  children = new Node[0] ;
+        Entry   entry    = null ;
+        Entry[] top      = new Entry[0] ;
+
+        Node getChild( char c ) {
+            int index = indexOf( c ) ;
+            return ( index < 0 ) ? null : children[index] ;
+        }
+
+        Node getOrAddChild( char c ) {
+
+            int index = indexOf( c ) ;
+            if( index >= 0 ) {
+                return children[index] ;
+            }
+
+            index = -index - 1 ;
+            char[] newChars    = new char[chars.length + 1] ;
+            Node[] newChildren = new Node[children.length + 1] ;
+
+            System.arraycopy( chars, 0, newChars, 0, index ) ;
+            System.arraycopy( children, 0, newChildren, 0, index ) ;
+            System.arraycopy( chars, index, newChars, index+1, chars.length-index ) ;
+            System.arraycopy( children, index, newChildren, index+1, children.length-index ) ;
+
+            newChars[index]    = c ;
+            newChildren[index] = new Node() ;
+
+            chars    = newChars ;
+            children = newChildren ;
+            return newChildren[index] ;
+        }
+
+        private int indexOf( char c ) {
+            int low  = 0 ;
+            int high = chars.length - 1 ;
+            while( low <= high ) {
+                int mid = ( low + high ) >>> 1 ;
+                if( chars[mid] < c ) low = mid + 1 ;
+                else if( chars[mid] > c ) high = mid - 1 ;
+                else return mid ;
+            }
+            return -( low + 1 ) ;
+        }
+
+        /**
+         * Adjusts the top entries of this node after the score of the given
+         * entry has grown.
+         */
+        void promote( Entry e ) {
+
+            int pos = -1 ;
+            for( int i=0; i<top.length; i++ ) {
+                if( top[i] == e ) {
+                    pos = i ;
+                    break ;
+                }
+            }
+
+            if( pos == -1 ) {
+                if( top.length < MAX_COMPLETIONS ) {
+                    Entry[] newTop = new Entry[top.length + 1] ;
+                    System.arraycopy( top, 0, newTop, 0, top.length ) ;
+                    top = newTop ;
+                }
+                else if( top[top.length-1].score >= e.score ) {
+                    return ;
+                }
+                pos = top.length - 1 ;
+                top[pos] = e ;
+            }
+
+            // Bubble the entry up to its place
+            while( pos > 0 && top[pos-1].score < e.score ) {
+                top[pos] = top[pos-1] ;
+                top[pos-1] = e ;
+                pos-- ;
+            }
+        }
+    }
+
+    private File              file        = null ;
+    private Executor          executor    = null ;
+    private boolean           savePending = false ;
+    private SparseArray<Node> tries       = new SparseArray<Node>() ;
+    private List<Entry>       entries     = new ArrayList<Entry>() ;
+    private List<Integer>     entrySubCat = new ArrayList<Integer>() ;
+    private long              baseTime    = 0 ;
+    private int               maxItemId   = -1 ;
+
+    // The normalized description last indexed for each item, so that an
+    // update which does not change the description is not counted again.
+    private SparseArray<String> indexedDescs = new SparseArray<String>() ;
+
+    /**
+     * Loads the index from the given file and brings it up to date with the
+     * given expense items (sorted with the most recent first). The changes
+     * are saved on the given executor.
+     */
+    DescriptionIndex( File file, Executor executor, List<ExpenseItem> history ) {
+
+        this.file     = file ;
+        this.executor = executor ;
+
+        if( !load() ) {
+            clear() ;
+            if( !history.isEmpty() ) {
+                baseTime = history.get( history.size()-1 ).getDate().getTime() ;
+            }
+        }
+
+        // Index the items created after the index was saved. The history is
+        // sorted on dates, not identifiers, hence the threshold is captured
+        // before the indexing moves it.
+        int indexedUpTo = maxItemId ;
+        for( int i=history.size()-1; i>=0; i-- ) {
+            ExpenseItem item = history.get( i ) ;
+            if( item.getId() > indexedUpTo ) {
+                record( item ) ;
+            }
+            else {
+                indexedDescs.put( item.getId(), normalize( item.getDescription() ) ) ;
+            }
+        }
+        if( maxItemId != indexedUpTo ) {
+            scheduleSave() ;
+        }
+    }
+
+    /**
+     * Returns up to MAX_COMPLETIONS descriptions of the given sub category
+     * which start with the given prefix (ignoring case), the best first.
+     */
+    public synchronized List<String> getCompletions( int subCatId, String prefix ) {
+
+        List<String> completions = new ArrayList<String>( MAX_COMPLETIONS ) ;
+
+        Node node = tries.get( subCatId ) ;
+        String key = normalize( prefix ) ;
+
+        for( int i=0; node != null && i<key.length(); i++ ) {
+            node = node.getChild( key.charAt( i ) ) ;
+        }
+
+        if( node != null ) {
+            for( int i=0; i<node.top.length; i++ ) {
+                completions.add( node.top[i].text ) ;
+            }
+        }
+        return completions ;
+    }
+
+    /** 
+     * Saves the index to its file. The index is written to a temporary file
+     * which then replaces the file.
+     */
+    public synchronized void save() {
+
+        savePending = false ;
+
+        File tmpFile = new File( file.getPath() + ".tmp" ) ;
+        DataOutputStream out = null ;
+        try {
+            out = new DataOutputStream( new BufferedOutputStream(
+                                               new FileOutputStream( tmpFile ) ) ) ;
+            out.writeInt ( FILE_VERSION ) ;
+            out.writeLong( baseTime ) ;
+            out.writeInt ( maxItemId ) ;
+            out.writeInt ( entries.size() ) ;
+
+            for( int i=0; i<entries.size(); i++ ) {
+                out.writeInt   ( entrySubCat.get( i ) ) ;
+                out.writeUTF   ( entries.get( i ).text ) ;
+                out.writeDouble( entries.get( i ).score ) ;
+            }
+            out.close() ;
+            out = null ;
+
+            if( !tmpFile.renameTo( file ) ) {
+                throw new IOException( "Could not rename " + tmpFile ) ;
+            }
+        }
+        catch( IOException e ) {
+            Log.e( LogTag.EXPENSE_ITEM_DAO, "Could not save description index", e ) ;
+        }
+        finally {
+            closeQuietly( out ) ;
+        }
+    }
+
+    /**
+     * Queues a save of the index on the executor, unless one is already
+     * queued, in which case it will pick up the latest change.
+     */
+    private synchronized void scheduleSave() {
+
+        if( savePending ) {
+            return ;
+        }
+        savePending = true ;
+        executor.execute( new Runnable() {
+            public void run() {
+                save() ;
+            }
+        } ) ;
+    }
+
+    /** Adds the description of the given item to the index. */
+    synchronized void record( ExpenseItem item ) {
+
+        if( item.getId() > maxItemId ) {
+            maxItemId = item.getId() ;
+        }
+
+        String text = item.getDescription().trim() ;
+        String key  = normalize( text ) ;
+
+        if( key.length() == 0 || key.equals( indexedDescs.get( item.getId() ) ) ) {
+            return ;
+        }
+        indexedDescs.put( item.getId(), key ) ;
+
+        double weight = getWeight( item.getDate().getTime() ) ;
+        if( weight > MAX_WEIGHT ) {
+            rebase( item.getDate().getTime() ) ;
+            weight = getWeight( item.getDate().getTime() ) ;
+        }
+        addScore( item.getSubCatId(), text, key, weight ) ;
+    }
+
+    /**
+     * Adds the given score to the description in the trie of the given sub
+     * category and promotes the description at all the nodes on its path.
+     */
+    private void addScore( int subCatId, String text, String key, double score ) {
+
+        Node root = tries.get( subCatId ) ;
+        if( root == null ) {
+            root = new Node() ;
+            tries.put( subCatId, root ) ;
+        }
+
+        Node node = root ;
+        for( int i=0; i<key.length(); i++ ) {
+            node = node.getOrAddChild( key.charAt( i ) ) ;
+        }
+
+        if( node.entry == null ) {
+            node.entry = new Entry( text ) ;
+            entries.add( node.entry ) ;
+            entrySubCat.add( subCatId ) ;
+        }
+        else {
+            // The most recent casing of the description is shown
+            node.entry.text = text ;
+        }
+
+        Entry e = node.entry ;
+        e.score += score ;
+
+        node = root ;
+        node.promote( e ) ;
+        for( int i=0; i<key.length(); i++ ) {
+            node = node.getChild( key.charAt( i ) ) ;
+            node.promote( e ) ;
+        }
+    }
+
+    private void rebase( long newBaseTime ) {
+
+        double factor = 1 / getWeight( newBaseTime ) ;
+        for( int i=0; i<entries.size(); i++ ) {
+            entries.get( i ).score *= factor ;
+        }
+        baseTime = newBaseTime ;
+    }
+
+    private double getWeight( long time ) {
+        return Math.exp( DECAY_RATE * ( time - baseTime ) ) ;
+    }
+
+    private static String normalize( String text ) {
+        return ( text == null ) ? "" : text.trim().toLowerCase( Locale.US ) ;
+    }
+
+    private synchronized void clear() {
+
+        tries.clear() ;
+        entries.clear() ;
+        entrySubCat.clear() ;
+        indexedDescs.clear() ;
+        baseTime  = 0 ;
+        maxItemId = -1 ;
+    }
+
+    /**
+     * Loads the index from its file. Returns false if the file does not
+     * exist or could not be read.
+     */
+    private synchronized boolean load() {
+
+        if( !file.exists() ) {
+            return false ;
+        }
+
+        DataInputStream in = null ;
+        try {
+            in = new DataInputStream( new BufferedInputStream(
+                                               new FileInputStream( file ) ) ) ;
+            if( in.readInt() != FILE_VERSION ) {
+                return false ;
+            }
+
+            baseTime  = in.readLong() ;
+            maxItemId = in.readInt() ;
+
+            int numEntries = in.readInt() ;
+            for( int i=0; i<numEntries; i++ ) {
+                int    subCatId = in.readInt() ;
+                String text     = in.readUTF() ;
+                double score    = in.readDouble() ;
+
+                addScore( subCatId, text, normalize( text ), score ) ;
+            }
+
+            if( BuildConfig.DEBUG ) {
+                Log.d( LogTag.EXPENSE_ITEM_DAO, "Loaded " + numEntries +
+                       " descriptions into the description index" ) ;
+            }
+            return true ;
+        }
+        catch( IOException e ) {
+            Log.e( LogTag.EXPENSE_ITEM_DAO, "Could not load description index", e ) ;
+            return false ;
+        }
+        finally {
+            closeQuietly( in ) ;
+        }
+    }
+
+    private static void closeQuietly( Closeable c ) {
+        if( c != null ) {
+            try {
+                c.close() ;
+            }
+            catch( IOException e ) {
+                // Nothing can be done
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Expense item change listener methods
+    // -------------------------------------------------------------------------
+    @Override
+    public void expenseItemInserted( ExpenseItem item ) {
+        record( item ) ;
+        scheduleSave() ;
+    }
+
+    @Override
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) {
+        record( item ) ;
+        scheduleSave() ;
+    }
+
+    @Override
+    public void expenseItemDeleted( ExpenseItem item ) {
+        // The description remains a valid suggestion
+    }
+
+    @Override
+    public void allExpenseItemsDeleted() {
+        clear() ;
+        scheduleSave() ;
+    }
+}
@@ -0,0 +1,41 @@
+package com.sandy.android.expensetracker.db;
+
+import java.io.IOException ;
+import java.io.Reader ;
+
+/**
+ * This interface defines the contract for the exchange rate data access
+ * object. To facilitate unit testing and mocking, this has been designed as
+ * an interface.
+ *
+ * @author Sandeep Deb
+ */
+public interface ExchangeRateDAO {
+
+    /**
+     * Imports the exchange rates from the given source. Each line of the 
+     * source is of the form
+     *
+     *     currency,yyyy-mm-dd,rate
+     *
+     * where currency is an ISO 4217 code and rate is the value of one unit
+     * of the currency in the home currency on that day. Blank lines and lines
+     * starting with # are ignored. An imported rate replaces an existing rate
+     * of the same currency and day.
+     *
+     * The rates are imported in a single transaction - if any line is not
+     * valid, none of the rates are imported.
+     *
+     * @return The number of rates imported.
+     *
+     * @throws IOException If the source could not be read or has an invalid
+     *         line, in which case the message has the line number.
+     */
+    public int importRates( Reader source ) throws IOException ;
+
+    /**
+     * Returns the cache of all the exchange rates. The cache is loaded from
+     * the database on the first call and replaced on every import.
+     */
+    public ExchangeRates getExchangeRates() ;
+}
@@ -0,0 +1,195 @@
+package com.sandy.android.expensetracker.db;
+
+import java.io.BufferedReader ;
+import java.io.IOException ;
+import java.io.Reader ;
+import java.util.ArrayList ;
+import java.util.Calendar ;
+import java.util.List ;
+import java.util.Locale ;
+
+import android.content.Context ;
+import android.database.Cursor ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+import android.database.sqlite.SQLiteStatement ;
+import android.util.Log ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.R ;
+import com.sandy.android.expensetracker.util.LogTag ;
+
+/**
+ * A concrete implementation of ExchangeRateDAO backed up the SQLite database.
+ *
+ *           CREATE TABLE exchange_rate ( 
+ *               currency    TEXT    NOT NULL,
+ *               day         INTEGER NOT NULL,
+ *               rate        REAL    NOT NULL,
+ *               PRIMARY KEY ( currency, day )
+ *           )
+ *
+ * The day is stored as an integer of the form yyyymmdd, which is independent
+ * of the time zone.
+ *
+ * @author Sandeep Deb
+ */
+class ExchangeRateDAOImpl implements ExchangeRateDAO {
+
+    private SQLiteDatabase db      = null ;
+    private Context        context = null ;
+
+    // The cache of the rates. Loaded lazily.
+    private ExchangeRates rates = null ;
+
+    public ExchangeRateDAOImpl( Context context, SQLiteDatabase db ) {
+        this.db      = db ;
+        this.context = context ;
+    }
+
+    @Override
+    public int importRates( Reader source ) throws IOException {
+
+        BufferedReader  reader     = new BufferedReader( source ) ;
+        SQLiteStatement insertStmt = db.compileStatement(
+                         context.getString( R.string.query_insert_exchange_rate ) ) ;
+        int numImported = 0 ;
+        int lineNo      = 0 ;
+
+        db.beginTransaction() ;
+        try {
+            String line = null ;
+            while( ( line = reader.readLine() ) != null ) {
+
+                lineNo++ ;
+                line = line.trim() ;
+                if( line.length() == 0 || line.startsWith( "#" ) ) {
+                    continue ;
+                }
+
+                String[] fields = line.split( "," ) ;
+                if( fields.length != 3 ) {
+                    throw new IOException( "Line " + lineNo + " does not have " +
+                                           "three fields" ) ;
+                }
+
+                insertStmt.bindString( 1, parseCurrency( fields[0], lineNo ) ) ;
+                insertStmt.bindLong  ( 2, parseDay( fields[1], lineNo ) ) ;
+                insertStmt.bindDouble( 3, parseRate( fields[2], lineNo ) ) ;
+                insertStmt.executeInsert() ;
+
+                numImported++ ;
+            }
+            db.setTransactionSuccessful() ;
+        }
+        catch( SQLException e ) {
+            throw new IOException( "Could not save the rate at line " + lineNo, e ) ;
+        }
+        finally {
+            db.endTransaction() ;
+            insertStmt.close() ;
+        }
+
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.EXCHANGE_RATE_DAO, "Imported " + numImported + 
+                                             " exchange rates" ) ;
+        }
+
+        // The cache is rebuilt on the next access
+        synchronized( this ) {
+            rates = null ;
+        }
+        return numImported ;
+    }
+
+    @Override
+    public synchronized ExchangeRates getExchangeRates() {
+
+        if( rates == null ) {
+            rates = loadRates() ;
+        }
+        return rates ;
+    }
+
+    private ExchangeRates loadRates() {
+
+        List<String> currencies = new ArrayList<String>() ;
+        List<Integer> days      = new ArrayList<Integer>() ;
+        List<Double>  values    = new ArrayList<Double>() ;
+
+        Cursor c = db.rawQuery( context.getString( 
+                                R.string.query_select_all_exchange_rates ), null ) ;
+        while( c.moveToNext() ) {
+            currencies.add( c.getString( 0 ) ) ;
+            days.add( c.getInt( 1 ) ) ;
+            values.add( c.getDouble( 2 ) ) ;
+        }
+        c.close() ;
+
+        int[]    dayArray  = new int[days.size()] ;
+        double[] rateArray = new double[values.size()] ;
+        for( int i=0; i<dayArray.length; i++ ) {
+            dayArray[i]  = days.get( i ) ;
+            rateArray[i] = values.get( i ) ;
+        }
+
+        return new ExchangeRates( HomeCurrency.get( context ),
+                                  currencies.toArray( new String[currencies.size()] ),
+                                  dayArray, rateArray ) ;
+    }
+
+    /** Validates and returns the upper cased currency code. */
+    private static String parseCurrency( String field, int lineNo )
+        throws IOException {
+
+        String code = field.trim().toUpperCase( Locale.US ) ;
+        if( !code.matches( "[A-Z]{3}" ) ) {
+            throw new IOException( "Line " + lineNo + " has an invalid " +
+                                   "currency code " + field ) ;
+        }
+        return code ;
+    }
+
+    /** Parses a yyyy-mm-dd date into an integer of the form yyyymmdd. */
+    private static int parseDay( String field, int lineNo ) throws IOException {
+
+        String[] parts = field.trim().split( "-" ) ;
+        try {
+            if( parts.length == 3 ) {
+                int year  = Integer.parseInt( parts[0] ) ;
+                int month = Integer.parseInt( parts[1] ) ;
+                int day   = Integer.parseInt( parts[2] ) ;
+
+                // A non lenient calendar rejects the days which are not in
+                // the month, such as 02-31
+                Calendar cal = Calendar.getInstance( Locale.US ) ;
+                cal.setLenient( false ) ;
+                cal.clear() ;
+                cal.set( year, month - 1, day ) ;
+                cal.getTimeInMillis() ;
+
+                if( year >= 1900 ) {
+                    return year * 10000 + month * 100 + day ;
+                }
+            }
+        }
+        catch( IllegalArgumentException e ) {
+            // Not a number or not a day of the calendar. Reported below.
+        }
+        throw new IOException( "Line " + lineNo + " has an invalid date " + field ) ;
+    }
+
+    private static double parseRate( String field, int lineNo ) throws IOException {
+
+        try {
+            double rate = Double.parseDouble( field.trim() ) ;
+            if( rate > 0 && !Double.isInfinite( rate ) ) {
+                return rate ;
+            }
+        }
+        catch( NumberFormatException e ) {
+            // Reported below
+        }
+        throw new IOException( "Line " + lineNo + " has an invalid rate " + field ) ;
+    }
+}
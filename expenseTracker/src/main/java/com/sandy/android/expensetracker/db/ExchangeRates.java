@@ -0,0 +1,143 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.Arrays ;
+import java.util.Calendar ;
+import java.util.HashMap ;
+import java.util.Map ;
+import java.util.TimeZone ;
+
+import com.sandy.android.expensetracker.util.DayLabelCache ;
+
+/**
+ * An in-memory cache of the exchange rates, keyed by currency and day. The
+ * rate of a currency on a day is the value of one unit of the currency in
+ * the home currency, which is saved once by {@link HomeCurrency}.
+ *
+ * The rates of each currency are held as parallel arrays of days and rates,
+ * sorted by day. Rates are not published for every day (weekends, for one),
+ * hence the rate applicable on a day is the latest one on or before it. The
+ * expense items are converted in date order by the reports, hence the last
+ * lookup of each currency is remembered and consecutive items of the same
+ * day do not search again. Converting an item is thus a hash lookup of the
+ * currency and, mostly, no search at all - no database access and no
+ * allocation.
+ *
+ * Instances are immutable as far as the rates go but are not thread safe,
+ * since the lookups update the remembered positions. They are expected to be
+ * used from the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+public class ExchangeRates {
+
+    /** The rates of one currency, sorted by day. */
+    private static class Series {
+
+        final int[]    days ;
+        final double[] rates ;
+
+        // The day and index of the last lookup
+        int lastDay   = Integer.MIN_VALUE ;
+        int lastIndex = -1 ;
+
+        Series( int[] days, double[] rates ) {
+            this.days  = days ;
+            this.rates = rates ;
+        }
+
+        /** Returns the rate on or before the given day, NaN if there is none. */
+        double getRate( int day ) {
+
+            if( day != lastDay ) {
+                int index = Arrays.binarySearch( days, day ) ;
+                lastIndex = ( index >= 0 ) ? index : -index - 2 ;
+                lastDay   = day ;
+            }
+            return ( lastIndex < 0 ) ? Double.NaN : rates[lastIndex] ;
+        }
+    }
+
+    private String              homeCurrency = null ;
+    private TimeZone            tz           = TimeZone.getDefault() ;
+    private Map<String, Series> seriesMap    = new HashMap<String, Series>() ;
+
+    // The time and day key of the last lookup. Items of a day usually share
+    // the same time, hence this saves the time zone arithmetic.
+    private long lastTime   = Long.MIN_VALUE ;
+    private int  lastDayKey = 0 ;
+
+    /**
+     * Creates the cache from the given rates, which are ordered by currency
+     * and then by day. The days are dates in the yyyymmdd format.
+     */
+    ExchangeRates( String homeCurrency, String[] currencies, int[] yyyymmdds, 
+                   double[] rates ) {
+
+        this.homeCurrency = homeCurrency ;
+
+        Calendar cal   = Calendar.getInstance( tz ) ;
+        int      start = 0 ;
+
+        while( start < currencies.length ) {
+
+            int end = start ;
+            while( end < currencies.length && currencies[end].equals( currencies[start] ) ) {
+                end++ ;
+            }
+
+            int[]    seriesDays  = new int[end - start] ;
+            double[] seriesRates = new double[end - start] ;
+
+            for( int i=start; i<end; i++ ) {
+                int date = yyyymmdds[i] ;
+                cal.clear() ;
+                cal.set( date / 10000, ( date / 100 ) % 100 - 1, date % 100, 12, 0 ) ;
+
+                seriesDays [i - start] = DayLabelCache.getDayKey( cal.getTimeInMillis(), tz ) ;
+                seriesRates[i - start] = rates[i] ;
+            }
+
+            seriesMap.put( currencies[start], new Series( seriesDays, seriesRates ) ) ;
+            start = end ;
+        }
+    }
+
+    /** Returns the code of the home currency. */
+    public String getHomeCurrency() {
+        return homeCurrency ;
+    }
+
+    /** Returns true if the given currency code is the home currency. */
+    public boolean isHomeCurrency( String currency ) {
+        return homeCurrency.equals( currency ) ;
+    }
+
+    /** Returns the number of currencies for which there are rates. */
+    public int getNumCurrencies() {
+        return seriesMap.size() ;
+    }
+
+    /**
+     * Returns the value of one unit of the given currency in the home
+     * currency on the given time, or NaN if there is no rate known for the
+     * currency on or before the day of the time. The rate of the home
+     * currency is always 1.
+     */
+    public double getRate( String currency, long time ) {
+
+        if( isHomeCurrency( currency ) ) {
+            return 1 ;
+        }
+
+        Series series = seriesMap.get( currency ) ;
+        if( series == null ) {
+            return Double.NaN ;
+        }
+
+        if( time != lastTime ) {
+            lastDayKey = DayLabelCache.getDayKey( time, tz ) ;
+            lastTime   = time ;
+        }
+        return series.getRate( lastDayKey ) ;
+    }
+}
@@ -0,0 +1,44 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.Date ;
+
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * The interface to be implemented by classes which want to be notified of
+ * the changes made to the expense items through the {@link ExpenseItemDAO}.
+ *
+ * The expense items are displayed sorted on their date (most recent first)
+ * followed by their identifier (biggest first). The notifications carry
+ * enough information for a listener to locate the item in its sorted
+ * collection and apply the change incrementally, instead of reloading or
+ * resorting the complete collection.
+ *
+ * The notifications are delivered synchronously on the thread which made
+ * the change, after the change has been successfully applied to the
+ * database.
+ *
+ * @author Sandeep Deb
+ */
+public interface ExpenseItemChangeListener {
+
+    /** Called after a new expense item has been inserted in the database. */
+    public void expenseItemInserted( ExpenseItem item ) ;
+
+    /**
+     * Called after an expense item has been updated in the database.
+     *
+     * @param item The updated expense item.
+     * @param oldDate The date of the expense item before the update. The
+     *        date along with the item identifier is the sort key of the
+     *        item before the update. If the date has not been changed, this
+     *        is equal to the current date of the item.
+     */
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) ;
+
+    /** Called after an expense item has been deleted from the database. */
+    public void expenseItemDeleted( ExpenseItem item ) ;
+
+    /** Called after all the expense items have been deleted. */
+    public void allExpenseItemsDeleted() ;
+}
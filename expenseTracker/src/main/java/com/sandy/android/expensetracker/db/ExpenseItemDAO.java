@@ -36,8 +36,12 @@ public interface ExpenseItemDAO {
      */
     public boolean update( ExpenseItem item ) throws IllegalArgumentException ;
     
+    /** The time after a delete within which it can be undone. */
+    public static final long UNDO_WINDOW_MILLIS = 5*60*1000L ;
+    
     /**
-     * Delete from database the expense item referred to by the input.
+     * Delete from database the expense item referred to by the input. The
+     * delete can be undone within {@link #UNDO_WINDOW_MILLIS}.
      * 
      * @param The expense item instance to delete from the database. If the 
      *        expense item does not have a valid identifier, an 
@@ -48,10 +52,23 @@ public interface ExpenseItemDAO {
     public boolean delete( ExpenseItem item ) ;
     
     /**
-     * Deletes all the data in the database.
+     * Deletes all the data in the database. Returns right away, the database
+     * is updated in the background. The delete can be undone within
+     * {@link #UNDO_WINDOW_MILLIS}.
      */
     public void deleteAll() ;
     
+    /** Returns true if the last delete can still be undone. */
+    public boolean canUndoDelete() ;
+    
+    /**
+     * Brings back the expense items removed by the last delete, if it is 
+     * still within the undo window.
+     * 
+     * @return The number of expense items brought back.
+     */
+    public int undoDelete() ;
+    
     /**
      * Returns a collection of all expense items in the database which have 
      * not been exported.
@@ -59,16 +76,50 @@ public interface ExpenseItemDAO {
      * @return A collection of {@link ExpenseItem} instances.
      */
     public List<ExpenseItem> getAllExpenseItems() ;
+    
+    /**
+     * Returns the in-memory store of all the expense items, sorted in their
+     * display order. The store is loaded from the database on the first call
+     * and kept in sync with all the changes made through this DAO there 
+     * after. Readers should prefer the store over {@link #getAllExpenseItems()}
+     * since it does not hit the database.
+     */
+    public ExpenseItemStore getExpenseItemStore() ;
 
     /**
      * This method returns a true if and only if there are one or more expense
-     * items which refer to the supplied category id.
+     * items which refer to the supplied category id. This is a constant time
+     * lookup of the maintained usage counts and does not hit the database.
+     * The items of the last delete count as long as the delete can be 
+     * undone, since undoing it brings them back.
      */
     public boolean isCategoryUsed( int catId ) ;
 
     /**
      * This method returns a true if and only if there are one or more expense
-     * items which refer to the supplied sub category id.
+     * items which refer to the supplied sub category id. This is a constant 
+     * time lookup of the maintained usage counts and does not hit the database.
+     * The items of the last delete count as long as the delete can be undone.
      */
     public boolean isSubCategoryUsed( int subCatId ) ;
-}
\ No newline at end of file
+    
+    /**
+     * Checks the usage counts of the categories and sub categories against
+     * counts rebuilt from scratch from all the expense items in the database.
+     * The counts are replaced by the rebuilt ones, hence this also repairs 
+     * them if they have drifted.
+     * 
+     * @return true if the maintained counts were correct, false otherwise.
+     */
+    public boolean verifyUsageCounts() ;
+    
+    /**
+     * Registers a listener which will be notified of all the successful 
+     * inserts, updates and deletes made through this data access object.
+     * Registering the same listener twice has no effect.
+     */
+    public void addChangeListener( ExpenseItemChangeListener listener ) ;
+    
+    /** Unregisters a previously registered change listener. */
+    public void removeChangeListener( ExpenseItemChangeListener listener ) ;
+}
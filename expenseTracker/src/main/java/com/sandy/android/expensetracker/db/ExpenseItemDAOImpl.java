@@ -3,17 +3,22 @@ package com.sandy.android.expensetracker.db;
 import java.util.ArrayList ;
 import java.util.Date ;
 import java.util.List ;
+import java.util.concurrent.Executor ;
 
 import android.content.ContentValues ;
 import android.content.Context ;
 import android.database.Cursor ;
+import android.database.SQLException ;
 import android.database.sqlite.SQLiteDatabase ;
+import android.database.sqlite.SQLiteStatement ;
 import android.util.Log ;
+import android.util.SparseArray ;
 
 import com.sandy.android.expensetracker.BuildConfig ;
 import com.sandy.android.expensetracker.R ;
 import com.sandy.android.expensetracker.util.LogTag ;
 import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
 
 /**
  * A concrete implementation of ExpenseItemDAO backed up the SQLite database.
@@ -23,11 +28,41 @@ import com.sandy.android.expensetracker.vo.ExpenseItem ;
  *               date         INTEGER NOT NULL,
  *               cat_id       INTEGER REFERENCES category ( _id ),
  *               subcat_id    INTEGER REFERENCES sub_category ( _id ),
- *               paid_by      TEXT    NOT NULL,
- *               amount       INTEGER NOT NULL,
- *               description  TEXT 
+ *               account_id   INTEGER NOT NULL REFERENCES account ( _id ),
+ *               amount       INTEGER NOT NULL,   -- In minor units
+ *               description  TEXT,
+ *               recurring_id INTEGER REFERENCES recurring_expense ( _id ),
+ *               deleted_at   INTEGER,
+ *               currency     TEXT
  *           )
  * 
+ *           CREATE TABLE expense_split ( 
+ *               _id             INTEGER PRIMARY KEY AUTOINCREMENT,
+ *               expense_item_id INTEGER NOT NULL REFERENCES expense_item ( _id ),
+ *               cat_id          INTEGER REFERENCES category ( _id ),
+ *               subcat_id       INTEGER REFERENCES sub_category ( _id ),
+ *               amount          INTEGER NOT NULL
+ *           )
+ * 
+ * The paid by of an item is stored as the id of its account, which is
+ * translated to and from the name through the account DAO. 
+ * 
+ * The splits and the tags of an item are written in the same transaction as
+ * the item, replacing the previous ones. They are read for all the items at
+ * once by a single join each when the items are loaded, never per item. The
+ * tags are stored as ids in expense_item_tag and translated to and from the
+ * names through the tag DAO.
+ * 
+ * Deletes are soft. A deleted row is marked with a tombstone in the 
+ * deleted_at column, which is the time of the deletion in millis and is 
+ * unique to every delete call, and is physically removed by 
+ * {@link #purgeDeletedItems()} once it is older than a day. The last delete
+ * can hence be undone by clearing its tombstone.
+ * 
+ * The bulk updates of delete all, undo and purge are run on the background 
+ * executor, which runs its jobs one at a time in submission order. The 
+ * store and the listeners are updated on the calling thread right away.
+ * 
  * @author Sandeep Deb
  */
 class ExpenseItemDAOImpl implements ExpenseItemDAO {
@@ -38,16 +73,51 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
     public static final String COL_NAME_DATE     = "date" ;
     public static final String COL_NAME_CAT_ID   = "cat_id" ;
     public static final String COL_NAME_SUBCAT_ID= "subcat_id" ;
-    public static final String COL_NAME_PAID_BY  = "paid_by" ;
+    public static final String COL_NAME_ACCOUNT_ID = "account_id" ;
     public static final String COL_NAME_AMT      = "amount" ;
     public static final String COL_NAME_DESC     = "description" ;
+    public static final String COL_NAME_RECURRING_ID = "recurring_id" ;
+    public static final String COL_NAME_CURRENCY = "currency" ;
+    
+    // Deleted items are kept for this long before being purged
+    private static final long PURGE_AFTER_MILLIS = 24*60*60*1000L ;
     
     private SQLiteDatabase db = null ;
     private Context context = null ;
+    private Executor backgroundExecutor = null ;
+    private AccountDAOImpl accountDAO = null ;
+    private TagDAOImpl tagDAO = null ;
+    
+    private List<ExpenseItemChangeListener> listeners = 
+                                new ArrayList<ExpenseItemChangeListener>() ;
     
-    public ExpenseItemDAOImpl( Context context, SQLiteDatabase db ) {
+    // The in-memory sorted store of expense items. Loaded lazily.
+    private ExpenseItemStore store = null ;
+    
+    // The number of expense items using each category. Built lazily.
+    private CategoryUsageCounts usageCounts = null ;
+    
+    // Incremented on every change to the store. See getModCount()
+    private int modCount = 0 ;
+    
+    // The undo log - the items removed by the last delete call, the 
+    // tombstone they were marked with and the time of the deletion.
+    private List<ExpenseItem> lastDeletedItems = null ;
+    private long              lastTombstone    = 0 ;
+    private long              lastDeleteTime   = 0 ;
+    
+    // The usage counts of the items in the undo log. Built lazily and 
+    // discarded with the undo log.
+    private CategoryUsageCounts undoUsageCounts = null ;
+    
+    public ExpenseItemDAOImpl( Context context, SQLiteDatabase db, 
+                               Executor backgroundExecutor, 
+                               AccountDAOImpl accountDAO, TagDAOImpl tagDAO ) {
         this.db = db ;
         this.context = context ;
+        this.backgroundExecutor = backgroundExecutor ;
+        this.accountDAO = accountDAO ;
+        this.tagDAO = tagDAO ;
     }
     
     @Override
@@ -63,11 +133,36 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
         cv.put( COL_NAME_DATE,     item.getDate().getTime() ) ;
         cv.put( COL_NAME_CAT_ID,   item.getCatId() ) ;
         cv.put( COL_NAME_SUBCAT_ID,item.getSubCatId() ) ;
-        cv.put( COL_NAME_PAID_BY,  item.getPaidBy() ) ;
         cv.put( COL_NAME_AMT,      item.getAmount() ) ;
         cv.put( COL_NAME_DESC,     item.getDescription() ) ;
+        putRecurringId( cv, item.getRecurringId() ) ;
+        item.setCurrency( HomeCurrency.orHome( context, item.getCurrency() ) ) ;
+        cv.put( COL_NAME_CURRENCY, item.getCurrency() ) ;
         
-        int id = ( int )db.insert( TABLE_NAME_EXPENSE_ITEM, null, cv ) ;
+        int id = -1 ;
+        
+        try {
+            cv.put( COL_NAME_ACCOUNT_ID, accountDAO.getOrCreateAccountId( item.getPaidBy() ) ) ;
+            int[] tagIds = getOrCreateTagIds( item.getTags() ) ;
+            
+            db.beginTransaction() ;
+            try {
+                id = ( int )db.insert( TABLE_NAME_EXPENSE_ITEM, null, cv ) ;
+                if( id != -1 ) {
+                    writeSplits( id, item.getSplits() ) ;
+                    writeTags( id, tagIds ) ;
+                    db.setTransactionSuccessful() ;
+                }
+            }
+            finally {
+                db.endTransaction() ;
+            }
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.EXPENSE_ITEM_DAO, "Exception while inserting expense " +
+                                            "item", e ) ;
+            id = -1 ;
+        }
         
         if( id == -1 ) {
             Log.e( LogTag.EXPENSE_ITEM_DAO, 
@@ -80,6 +175,15 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
                 Log.d( LogTag.EXPENSE_ITEM_DAO, "Id of new expense item is " + id ) ;
             }
             item.setId( id ) ;
+            modCount++ ;
+            
+            if( store != null ) {
+                store.add( item ) ;
+            }
+            
+            for( int i=0; i<listeners.size(); i++ ) {
+                listeners.get( i ).expenseItemInserted( item ) ;
+            }
         }
         
         return item ;
@@ -93,15 +197,51 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
                                             "or is a new item, id == -1" ) ;
         }
 
+        // The listeners need the old sort key to locate the item in their 
+        // sorted collections. The store knows the old key, else the date is 
+        // fetched from the database if somebody is listening.
+        Date oldDate = null ;
+        if( store != null ) {
+            oldDate = store.getSortDate( item.getId() ) ;
+        }
+        else if( !listeners.isEmpty() ) {
+            oldDate = getPersistedDate( item.getId() ) ;
+        }
+        
         ContentValues cv = new ContentValues() ;
         cv.put( COL_NAME_DATE,     item.getDate().getTime() ) ;
         cv.put( COL_NAME_CAT_ID,   item.getCatId() ) ;
         cv.put( COL_NAME_SUBCAT_ID,item.getSubCatId() ) ;
-        cv.put( COL_NAME_PAID_BY,  item.getPaidBy() ) ;
         cv.put( COL_NAME_AMT,      item.getAmount() ) ;
         cv.put( COL_NAME_DESC,     item.getDescription() ) ;
+        putRecurringId( cv, item.getRecurringId() ) ;
+        item.setCurrency( HomeCurrency.orHome( context, item.getCurrency() ) ) ;
+        cv.put( COL_NAME_CURRENCY, item.getCurrency() ) ;
         
-        int id = ( int )db.update( TABLE_NAME_EXPENSE_ITEM, cv, COL_NAME_ID + "=" + item.getId(), null ) ;
+        int id = -1 ;
+        
+        try {
+            cv.put( COL_NAME_ACCOUNT_ID, accountDAO.getOrCreateAccountId( item.getPaidBy() ) ) ;
+            int[] tagIds = getOrCreateTagIds( item.getTags() ) ;
+            
+            db.beginTransaction() ;
+            try {
+                id = ( int )db.update( TABLE_NAME_EXPENSE_ITEM, cv, COL_NAME_ID + "=" + item.getId(), null ) ;
+                if( id > 0 ) {
+                    writeSplits( item.getId(), item.getSplits() ) ;
+                    writeTags( item.getId(), tagIds ) ;
+                    db.setTransactionSuccessful() ;
+                }
+            }
+            finally {
+                db.endTransaction() ;
+            }
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.EXPENSE_ITEM_DAO, "Exception while updating expense " +
+                                            "item", e ) ;
+            id = -1 ;
+        }
         
         if( id == -1 || id == 0 ) {
             Log.e( LogTag.EXPENSE_ITEM_DAO, 
@@ -112,6 +252,18 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
             if( BuildConfig.DEBUG ) {
                 Log.d( LogTag.EXPENSE_ITEM_DAO, "Expense item successfully updated" ) ;
             }
+            
+            modCount++ ;
+            if( store != null ) {
+                store.update( item ) ;
+            }
+            
+            if( oldDate == null ) {
+                oldDate = item.getDate() ;
+            }
+            for( int i=0; i<listeners.size(); i++ ) {
+                listeners.get( i ).expenseItemUpdated( item, oldDate ) ;
+            }
         }
         
         return true ;
@@ -127,6 +279,7 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
         String selectAllSQL = context.getString( R.string.query_select_all_expense_items ) ;
         
         ArrayList<ExpenseItem> expenseItems = new ArrayList<ExpenseItem>() ;
+        SparseArray<ExpenseItem> itemsById  = new SparseArray<ExpenseItem>() ;
         Cursor c = db.rawQuery( selectAllSQL, null ) ;
         c.moveToFirst() ;
         
@@ -138,11 +291,14 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
             item.setDate        ( new Date( c.getLong( 1 ) ) ) ;
             item.setCatId       ( c.getInt    ( 2 ) ) ;
             item.setSubCatId    ( c.getInt    ( 3 ) ) ;
-            item.setPaidBy      ( c.getString ( 4 ) ) ;
-            item.setAmount      ( c.getInt    ( 5 ) ) ;
+            item.setPaidBy      ( accountDAO.getAccountName( c.getInt( 4 ) ) ) ;
+            item.setAmount      ( c.getLong   ( 5 ) ) ;
             item.setDescription ( c.getString ( 6 ) ) ;
+            item.setRecurringId ( c.isNull( 7 ) ? -1 : c.getInt( 7 ) ) ;
+            item.setCurrency    ( c.getString ( 8 ) ) ;
             
             expenseItems.add( item ) ;
+            itemsById.append( item.getId(), item ) ;
             
             // Gawd! I had forgotten this and it was a vision into infinity 
             // and a hot air blowing CPU.
@@ -151,8 +307,158 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
         
         c.close() ;
         
+        readSplits( itemsById ) ;
+        readTags( itemsById ) ;
+        
         return expenseItems ;
     }
+    
+    /**
+     * Reads the splits of all the live expense items with a single query and
+     * attaches them to the given items. The splits come grouped by item, 
+     * hence each item is looked up once and not once per split.
+     */
+    private void readSplits( SparseArray<ExpenseItem> itemsById ) {
+        
+        Cursor c = db.rawQuery( context.getString( 
+                            R.string.query_select_all_expense_splits ), null ) ;
+        
+        List<ExpenseSplit> splits = null ;
+        int lastItemId = -1 ;
+        
+        while( c.moveToNext() ) {
+            
+            int itemId = c.getInt( 0 ) ;
+            if( itemId != lastItemId || splits == null ) {
+                
+                ExpenseItem item = itemsById.get( itemId ) ;
+                splits     = new ArrayList<ExpenseSplit>( 4 ) ;
+                lastItemId = itemId ;
+                
+                // An item deleted between the two queries has no entry
+                if( item != null ) {
+                    item.setSplits( splits ) ;
+                }
+            }
+            splits.add( new ExpenseSplit( c.getInt( 1 ), c.getInt( 2 ), c.getLong( 3 ) ) ) ;
+        }
+        c.close() ;
+    }
+    
+    /**
+     * Replaces the splits of the given expense item in the database with the
+     * given ones. Called within the transaction writing the item.
+     */
+    private void writeSplits( int itemId, List<ExpenseSplit> splits ) 
+        throws SQLException {
+        
+        db.execSQL( context.getString( R.string.query_delete_expense_splits ), 
+                    new Object[]{ itemId } ) ;
+        if( splits == null ) {
+            return ;
+        }
+        
+        SQLiteStatement stmt = db.compileStatement( 
+                        context.getString( R.string.query_insert_expense_split ) ) ;
+        try {
+            for( int i=0; i<splits.size(); i++ ) {
+                ExpenseSplit split = splits.get( i ) ;
+                stmt.bindLong( 1, itemId ) ;
+                stmt.bindLong( 2, split.getCatId() ) ;
+                stmt.bindLong( 3, split.getSubCatId() ) ;
+                stmt.bindLong( 4, split.getAmount() ) ;
+                stmt.executeInsert() ;
+            }
+        }
+        finally {
+            stmt.close() ;
+        }
+    }
+
+    /**
+     * Reads the tags of all the live expense items with a single query and
+     * attaches their names to the given items, the same way as the splits.
+     */
+    private void readTags( SparseArray<ExpenseItem> itemsById ) {
+        
+        Cursor c = db.rawQuery( context.getString( 
+                            R.string.query_select_all_expense_item_tags ), null ) ;
+        
+        List<String> tags = null ;
+        int lastItemId = -1 ;
+        
+        while( c.moveToNext() ) {
+            
+            int itemId = c.getInt( 0 ) ;
+            if( itemId != lastItemId || tags == null ) {
+                
+                ExpenseItem item = itemsById.get( itemId ) ;
+                tags       = new ArrayList<String>( 4 ) ;
+                lastItemId = itemId ;
+                
+                if( item != null ) {
+                    item.setTags( tags ) ;
+                }
+            }
+            tags.add( tagDAO.getTagName( c.getInt( 1 ) ) ) ;
+        }
+        c.close() ;
+    }
+    
+    /**
+     * Returns the ids of the given tags, creating the tags which do not 
+     * exist yet. Called before the transaction writing the item, see 
+     * {@link TagDAOImpl#getOrCreateTagId(String)}.
+     */
+    private int[] getOrCreateTagIds( List<String> tags ) throws SQLException {
+        
+        int[] tagIds = new int[ tags == null ? 0 : tags.size() ] ;
+        for( int i=0; i<tagIds.length; i++ ) {
+            tagIds[i] = tagDAO.getOrCreateTagId( tags.get( i ) ) ;
+        }
+        return tagIds ;
+    }
+    
+    /**
+     * Replaces the tags of the given expense item in the database with the
+     * given ones. Called within the transaction writing the item.
+     */
+    private void writeTags( int itemId, int[] tagIds ) throws SQLException {
+        
+        db.execSQL( context.getString( R.string.query_delete_expense_item_tags ), 
+                    new Object[]{ itemId } ) ;
+        if( tagIds.length == 0 ) {
+            return ;
+        }
+        
+        SQLiteStatement stmt = db.compileStatement( 
+                    context.getString( R.string.query_insert_expense_item_tag ) ) ;
+        try {
+            for( int i=0; i<tagIds.length; i++ ) {
+                stmt.bindLong( 1, itemId ) ;
+                stmt.bindLong( 2, tagIds[i] ) ;
+                stmt.executeInsert() ;
+            }
+        }
+        finally {
+            stmt.close() ;
+        }
+    }
+
+    /**
+     * Synchronized since the store may be loaded on a background thread 
+     * while a screen opened in the mean time asks for it.
+     */
+    @Override
+    public synchronized ExpenseItemStore getExpenseItemStore() {
+        
+        if( store == null ) {
+            ExpenseItemStore newStore = new ExpenseItemStore() ;
+            newStore.addAll( getAllExpenseItems() ) ;
+            store = newStore ;
+        }
+        return store ;
+    }
 
     @Override
     public boolean delete( ExpenseItem item ) {
@@ -162,12 +468,43 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
                    "Delete expense item with id = " + item.getId() ) ;
         }
         
-        int flag = db.delete( TABLE_NAME_EXPENSE_ITEM, 
-                              COL_NAME_ID + "=" + item.getId(), null ) ;
+        long tombstone = nextTombstone() ;
+        int  flag      = 0 ;
+        
+        SQLiteStatement stmt = db.compileStatement( 
+                    context.getString( R.string.query_soft_delete_expense_item ) ) ;
+        try {
+            stmt.bindLong( 1, tombstone ) ;
+            stmt.bindLong( 2, item.getId() ) ;
+            flag = stmt.executeUpdateDelete() ;
+        }
+        finally {
+            stmt.close() ;
+        }
+        
+        if( flag > 0 ) {
+            modCount++ ;
+            if( store != null ) {
+                store.remove( item.getId() ) ;
+            }
+            for( int i=0; i<listeners.size(); i++ ) {
+                listeners.get( i ).expenseItemDeleted( item ) ;
+            }
+            
+            List<ExpenseItem> deletedItems = new ArrayList<ExpenseItem>( 1 ) ;
+            deletedItems.add( item ) ;
+            recordDelete( deletedItems, tombstone ) ;
+        }
         
         return flag > 0 ? true : false ;
     }
     
+    /**
+     * Empties the store and notifies the listeners right away. The items are 
+     * marked deleted in the database by a background job. Only the items 
+     * which exist now are marked, hence items created before the job runs 
+     * are not affected.
+     */
     @Override
     public void deleteAll() {
         
@@ -175,56 +512,360 @@ class ExpenseItemDAOImpl implements ExpenseItemDAO {
             Log.d( LogTag.EXPENSE_ITEM_DAO, "Deleting all data in the database" ) ;
         }
         
-        db.delete( TABLE_NAME_EXPENSE_ITEM, null, null ) ;
+        final long tombstone = nextTombstone() ;
+        final long maxId     = getMaxExpenseItemId() ;
+        
+        ExpenseItemStore  itemStore    = getExpenseItemStore() ;
+        List<ExpenseItem> deletedItems = new ArrayList<ExpenseItem>( itemStore.getItems() ) ;
+        
+        itemStore.clear() ;
+        modCount++ ;
+        for( int i=0; i<listeners.size(); i++ ) {
+            listeners.get( i ).allExpenseItemsDeleted() ;
+        }
+        recordDelete( deletedItems, tombstone ) ;
+        
+        backgroundExecutor.execute( new Runnable() {
+            public void run() {
+                execInBackground( R.string.query_soft_delete_all_expense_items, 
+                                  new Object[]{ tombstone, maxId } ) ;
+            }
+        } ) ;
+    }
+    
+    @Override
+    public boolean canUndoDelete() {
+        return lastDeletedItems != null && 
+               System.currentTimeMillis() - lastDeleteTime < UNDO_WINDOW_MILLIS ;
+    }
+    
+    @Override
+    public int undoDelete() {
+        
+        if( !canUndoDelete() ) {
+            return 0 ;
+        }
+        
+        final long        tombstone = lastTombstone ;
+        List<ExpenseItem> items     = lastDeletedItems ;
+        
+        lastDeletedItems = null ;
+        undoUsageCounts  = null ;
+        modCount++ ;
+        
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.EXPENSE_ITEM_DAO, "Undoing delete of " + items.size() + 
+                                            " expense items" ) ;
+        }
+        
+        // Queued behind the job marking the items deleted, if that is still
+        // pending, since the executor runs the jobs in submission order.
+        backgroundExecutor.execute( new Runnable() {
+            public void run() {
+                execInBackground( R.string.query_undelete_expense_items, 
+                                  new Object[]{ tombstone } ) ;
+            }
+        } ) ;
+        
+        for( int i=0; i<items.size(); i++ ) {
+            ExpenseItem item = items.get( i ) ;
+            if( store != null ) {
+                store.add( item ) ;
+            }
+            for( int j=0; j<listeners.size(); j++ ) {
+                listeners.get( j ).expenseItemInserted( item ) ;
+            }
+        }
+        return items.size() ;
+    }
+    
+    @Override
+    public void addChangeListener( ExpenseItemChangeListener listener ) {
+        if( !listeners.contains( listener ) ) {
+            listeners.add( listener ) ;
+        }
+    }
+    
+    @Override
+    public void removeChangeListener( ExpenseItemChangeListener listener ) {
+        listeners.remove( listener ) ;
     }
     
     /**
-     * This method returns a true if and only if there are one or more expense
-     * items which refer to the supplied category id.
+     * Physically removes the expense items which were deleted more than a 
+     * day ago, along with their splits and tags, on the background executor.
+     * The freed pages are given back to the file system later by the 
+     * database maintenance.
      */
-    public boolean isCategoryUsed( int catId ) {
+    void purgeDeletedItems() {
         
-        if( BuildConfig.DEBUG ) {
-            Log.d( LogTag.EXPENSE_ITEM_DAO, "Checking for category association" ) ;
+        final long purgeBefore = System.currentTimeMillis() - PURGE_AFTER_MILLIS ;
+        
+        backgroundExecutor.execute( new Runnable() {
+            public void run() {
+                
+                SQLiteStatement stmt = null ;
+                try {
+                    db.execSQL( context.getString( 
+                                    R.string.query_purge_deleted_expense_splits ),
+                                new Object[]{ purgeBefore } ) ;
+                    db.execSQL( context.getString( 
+                                    R.string.query_purge_deleted_expense_item_tags ),
+                                new Object[]{ purgeBefore } ) ;
+                    
+                    stmt = db.compileStatement( context.getString( 
+                                    R.string.query_purge_deleted_expense_items ) ) ;
+                    stmt.bindLong( 1, purgeBefore ) ;
+                    int numPurged = stmt.executeUpdateDelete() ;
+                    
+                    if( BuildConfig.DEBUG ) {
+                        Log.d( LogTag.EXPENSE_ITEM_DAO, "Purged " + numPurged + 
+                                                        " deleted expense items" ) ;
+                    }
+                }
+                catch( SQLException e ) {
+                    Log.e( LogTag.EXPENSE_ITEM_DAO, "Exception while purging " + 
+                                                    "deleted expense items", e ) ;
+                }
+                finally {
+                    if( stmt != null ) {
+                        stmt.close() ;
+                    }
+                }
+            }
+        } ) ;
+    }
+    
+    /**
+     * Returns a counter which is incremented on every change made to the 
+     * expense items through this DAO. Two equal readings mean that the store
+     * has not changed in between.
+     */
+    int getModCount() {
+        return modCount ;
+    }
+    
+    /**
+     * Replaces the contents of the store with the given expense items, which
+     * should be all the live expense items in the database. The listeners 
+     * are told that all the items have been deleted and then that each of
+     * the given items has been inserted, so that their state is rebuilt too.
+     * Used to repair the store when it is found to disagree with the 
+     * database.
+     */
+    void reloadStore( List<ExpenseItem> items ) {
+        
+        ExpenseItemStore itemStore = getExpenseItemStore() ;
+        itemStore.clear() ;
+        itemStore.addAll( items ) ;
+        
+        modCount++ ;
+        for( int i=0; i<listeners.size(); i++ ) {
+            listeners.get( i ).allExpenseItemsDeleted() ;
+        }
+        for( int i=0; i<items.size(); i++ ) {
+            for( int j=0; j<listeners.size(); j++ ) {
+                listeners.get( j ).expenseItemInserted( items.get( i ) ) ;
+            }
         }
+    }
+    
+    /** Returns true if the expense item store has been loaded. */
+    synchronized boolean isStoreLoaded() {
+        return store != null ;
+    }
+    
+    /**
+     * Adds the given expense items, which have been inserted into the 
+     * database by the recurring expense DAO, to the store and notifies the
+     * listeners.
+     */
+    void expenseItemsMaterialized( List<ExpenseItem> items ) {
         
-        boolean retVal = false ;
+        modCount++ ;
+        for( int i=0; i<items.size(); i++ ) {
+            ExpenseItem item = items.get( i ) ;
+            if( store != null ) {
+                store.add( item ) ;
+            }
+            for( int j=0; j<listeners.size(); j++ ) {
+                listeners.get( j ).expenseItemInserted( item ) ;
+            }
+        }
+    }
+    
+    /**
+     * Reflects the linking of an expense item to a recurring expense, done
+     * by the recurring expense DAO, in the store.
+     */
+    void recurringExpenseLinked( int itemId, int recurringId ) {
         
-        String sql = context.getString( R.string.query_is_cat_used ) ;
-        sql = sql.replace( "?", "" + catId ) ;
+        modCount++ ;
+        ExpenseItem item = ( store == null ) ? null : store.getById( itemId ) ;
+        if( item != null ) {
+            item.setRecurringId( recurringId ) ;
+        }
+    }
+    
+    /**
+     * Reflects the unlinking of all the expense items from a deleted 
+     * recurring expense in the store.
+     */
+    void recurringExpenseUnlinked( int recurringId ) {
+        
+        modCount++ ;
+        if( store != null ) {
+            List<ExpenseItem> items = store.getItems() ;
+            for( int i=0; i<items.size(); i++ ) {
+                if( items.get( i ).getRecurringId() == recurringId ) {
+                    items.get( i ).setRecurringId( -1 ) ;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns a tombstone for a new delete call. Tombstones are the time of 
+     * deletion, bumped if need be to be unique across delete calls, so that
+     * undoing a delete does not bring back the items of another.
+     */
+    private long nextTombstone() {
+        return Math.max( System.currentTimeMillis(), lastTombstone + 1 ) ;
+    }
+    
+    private void recordDelete( List<ExpenseItem> items, long tombstone ) {
+        lastDeletedItems = items ;
+        undoUsageCounts  = null ;
+        lastTombstone    = tombstone ;
+        lastDeleteTime   = System.currentTimeMillis() ;
+    }
+    
+    private long getMaxExpenseItemId() {
+        
+        long   maxId = -1 ;
+        String sql   = context.getString( R.string.query_select_max_expense_item_id ) ;
         
         Cursor c = db.rawQuery( sql, null ) ;
-        c.moveToFirst() ;
-        if( c.getInt( 0 ) > 0 ) {
-            retVal = true ;
+        if( c.moveToFirst() ) {
+            maxId = c.getLong( 0 ) ;
         }
         c.close() ;
         
-        return retVal ;
+        return maxId ;
+    }
+    
+    /** Runs the given update, logging instead of raising a failure. */
+    private void execInBackground( int queryResId, Object[] args ) {
+        try {
+            db.execSQL( context.getString( queryResId ), args ) ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.EXPENSE_ITEM_DAO, "Exception while updating expense " + 
+                                            "items in the background", e ) ;
+        }
+    }
+    
+    private static void putRecurringId( ContentValues cv, int recurringId ) {
+        if( recurringId == -1 ) {
+            cv.putNull( COL_NAME_RECURRING_ID ) ;
+        }
+        else {
+            cv.put( COL_NAME_RECURRING_ID, recurringId ) ;
+        }
+    }
+    
+    /**
+     * Returns the date of the expense item as currently persisted in the 
+     * database, or null if the item does not exist.
+     */
+    private Date getPersistedDate( int id ) {
+        
+        Date   date = null ;
+        String sql  = context.getString( R.string.query_select_expense_item_date ) ;
+        
+        Cursor c = db.rawQuery( sql, new String[]{ String.valueOf( id ) } ) ;
+        if( c.moveToFirst() ) {
+            date = new Date( c.getLong( 0 ) ) ;
+        }
+        c.close() ;
+        
+        return date ;
+    }
+    
+    /**
+     * This method returns a true if and only if there are one or more expense
+     * items which refer to the supplied category id. Answered from the 
+     * in-memory usage counts, without querying the database. The items 
+     * which can still be undeleted are counted too, else the category could
+     * be removed and the undo would bring back items referring to nothing.
+     */
+    public boolean isCategoryUsed( int catId ) {
+        
+        CategoryUsageCounts undoCounts = getUndoUsageCounts() ;
+        return getUsageCounts().getCategoryCount( catId ) > 0 ||
+               ( undoCounts != null && undoCounts.getCategoryCount( catId ) > 0 ) ;
     }
 
     /**
      * This method returns a true if and only if there are one or more expense
-     * items which refer to the supplied sub category id.
+     * items which refer to the supplied sub category id. Answered from the 
+     * in-memory usage counts, without querying the database. The items 
+     * which can still be undeleted are counted too.
      */
     public boolean isSubCategoryUsed( int subCatId ) {
         
+        CategoryUsageCounts undoCounts = getUndoUsageCounts() ;
+        return getUsageCounts().getSubCategoryCount( subCatId ) > 0 ||
+               ( undoCounts != null && undoCounts.getSubCategoryCount( subCatId ) > 0 ) ;
+    }
+    
+    @Override
+    public boolean verifyUsageCounts() {
+        
         if( BuildConfig.DEBUG ) {
-            Log.d( LogTag.EXPENSE_ITEM_DAO, "Checking for sub-category association" ) ;
+            Log.d( LogTag.EXPENSE_ITEM_DAO, "Verifying category usage counts" ) ;
         }
+        return getUsageCounts().verify( getAllExpenseItems() ) ;
+    }
+    
+    /**
+     * Verifies the category usage counts, if they have been built, against 
+     * the given expense items, which should be all the expense items in the
+     * database. Lets a caller which has already read the items from the 
+     * database avoid reading them again.
+     */
+    boolean verifyUsageCounts( List<ExpenseItem> items ) {
+        return usageCounts == null || usageCounts.verify( items ) ;
+    }
+    
+    /**
+     * Returns the category usage counts. The counts are built from the 
+     * expense item store on the first call and kept up to date there after
+     * by listening to the changes made through this DAO.
+     */
+    private CategoryUsageCounts getUsageCounts() {
         
-        boolean retVal = false ;
-        
-        String sql = context.getString( R.string.query_is_subcat_used ) ;
-        sql = sql.replace( "?", "" + subCatId ) ;
-        
-        Cursor c = db.rawQuery( sql, null ) ;
-        c.moveToFirst() ;
-        if( c.getInt( 0 ) > 0 ) {
-            retVal = true ;
+        if( usageCounts == null ) {
+            usageCounts = new CategoryUsageCounts( getExpenseItemStore().getItems() ) ;
+            addChangeListener( usageCounts ) ;
         }
-        c.close() ;
+        return usageCounts ;
+    }
+    
+    /**
+     * Returns the usage counts of the items of the last delete, or null if
+     * the delete can no longer be undone. Built on the first call after a 
+     * delete, since most deletes are never followed by a category removal.
+     */
+    private CategoryUsageCounts getUndoUsageCounts() {
         
-        return retVal ;
+        if( !canUndoDelete() ) {
+            undoUsageCounts = null ;
+            return null ;
+        }
+        if( undoUsageCounts == null ) {
+            undoUsageCounts = new CategoryUsageCounts( lastDeletedItems ) ;
+        }
+        return undoUsageCounts ;
     }
 }
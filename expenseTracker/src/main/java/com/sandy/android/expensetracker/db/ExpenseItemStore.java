@@ -0,0 +1,354 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.ArrayList ;
+import java.util.Date ;
+import java.util.List ;
+import java.util.Random ;
+
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * An in-memory store of all the expense items, kept sorted in the order in
+ * which they are displayed - the most recent date first and for the same
+ * date, the biggest identifier first. This is the same order as defined by
+ * {@link ExpenseItem.ExpenseItemComparator}.
+ *
+ * The items are held in a treap (a randomized balanced binary search tree)
+ * where each node also keeps the size of its sub tree. This gives expected
+ * O(log n) insertion, removal, lookup by position and position of an item.
+ * An additional index maps the item identifiers to their tree nodes, so
+ * that an item can be located without knowing its position.
+ *
+ * The sort key of each item is captured in its node at the time of
+ * insertion. Hence an item instance can be modified in place (for example
+ * by an edit screen) before it is updated in the store, and the store can
+ * still locate the item by its old key.
+ *
+ * The store is modified only by the expense item DAO, which keeps it in
+ * sync with the database. The store is not thread safe and is expected to
+ * be accessed only from the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+public class ExpenseItemStore {
+
+    private static class Node {
+
+        ExpenseItem item     = null ;
+        long        date     = 0 ;
+        int         id       = 0 ;
+        int         priority = 0 ;
+        int         size     = 1 ;
+        Node        left     = null ;
+        Node        right    = null ;
+
+        Node( ExpenseItem item, int priority ) {
+            this.item     = item ;
+            this.date     = item.getDate().getTime() ;
+            this.id       = item.getId() ;
+            this.priority = priority ;
+        }
+    }
+
+    private Node              root      = null ;
+    private SparseArray<Node> nodeIndex = new SparseArray<Node>() ;
+    private Random            random    = new Random() ;
+
+    // Scratch space to return the two halves of a split
+    private Node[] splitResult = new Node[2] ;
+
+    ExpenseItemStore() {
+    }
+
+    /** Returns the number of expense items in the store. */
+    public int size() {
+        return size( root ) ;
+    }
+
+    /**
+     * Returns the expense item at the given position in the sorted order.
+     *
+     * @throws IndexOutOfBoundsException If the position is not valid.
+     */
+    public ExpenseItem get( int position ) {
+
+        if( position < 0 || position >= size() ) {
+            throw new IndexOutOfBoundsException( "Position " + position +
+                                     " is out of bounds, size " + size() ) ;
+        }
+
+        Node node = root ;
+        while( true ) {
+            int leftSize = size( node.left ) ;
+            if( position < leftSize ) {
+                node = node.left ;
+            }
+            else if( position == leftSize ) {
+                return node.item ;
+            }
+            else {
+                position -= leftSize + 1 ;
+                node = node.right ;
+            }
+        }
+    }
+
+    /** Returns the expense item with the given identifier, or null. */
+    public ExpenseItem getById( int id ) {
+
+        Node node = nodeIndex.get( id ) ;
+        return ( node == null ) ? null : node.item ;
+    }
+
+    /**
+     * Returns the position of the expense item with the given identifier in
+     * the sorted order, or -1 if the item is not in the store.
+     */
+    public int indexOf( int id ) {
+
+        Node target = nodeIndex.get( id ) ;
+        if( target == null ) {
+            return -1 ;
+        }
+
+        int  position = 0 ;
+        Node node     = root ;
+
+        while( node != null ) {
+            int cmp = compare( target.date, target.id, node.date, node.id ) ;
+            if( cmp < 0 ) {
+                node = node.left ;
+            }
+            else if( cmp > 0 ) {
+                position += size( node.left ) + 1 ;
+                node = node.right ;
+            }
+            else {
+                return position + size( node.left ) ;
+            }
+        }
+        return -1 ;
+    }
+
+    /**
+     * Returns the date with which the item is currently sorted in the store,
+     * or null if the item is not in the store. This can differ from the date
+     * of the item instance if the instance has been modified and the store
+     * has not yet been updated.
+     */
+    public Date getSortDate( int id ) {
+
+        Node node = nodeIndex.get( id ) ;
+        return ( node == null ) ? null : new Date( node.date ) ;
+    }
+
+    /** Returns a list of all the expense items in the sorted order. */
+    public List<ExpenseItem> getItems() {
+
+        List<ExpenseItem> items = new ArrayList<ExpenseItem>( size() ) ;
+        collectItems( root, items ) ;
+        return items ;
+    }
+
+    /** Adds the given expense item to the store. */
+    void add( ExpenseItem item ) {
+
+        if( nodeIndex.get( item.getId() ) != null ) {
+            remove( item.getId() ) ;
+        }
+
+        Node node = new Node( item, random.nextInt() ) ;
+        nodeIndex.put( node.id, node ) ;
+        root = insert( root, node ) ;
+    }
+
+    /** Adds all the given expense items to the store. */
+    void addAll( List<ExpenseItem> items ) {
+        for( int i=0; i<items.size(); i++ ) {
+            add( items.get( i ) ) ;
+        }
+    }
+
+    /**
+     * Updates the item in the store with the data of the given item. If the
+     * given instance is not the one held by the store, the data is copied
+     * into the stored instance. The item is moved to its new position if
+     * its date has changed.
+     *
+     * @return false if the item is not present in the store.
+     */
+    boolean update( ExpenseItem item ) {
+
+        Node node = nodeIndex.get( item.getId() ) ;
+        if( node == null ) {
+            return false ;
+        }
+
+        if( node.item != item ) {
+            node.item.copyDataFrom( item ) ;
+        }
+
+        long newDate = node.item.getDate().getTime() ;
+        if( newDate != node.date ) {
+            root = remove( root, node.date, node.id ) ;
+
+            node.date  = newDate ;
+            node.left  = null ;
+            node.right = null ;
+            node.size  = 1 ;
+
+            root = insert( root, node ) ;
+        }
+        return true ;
+    }
+
+    /**
+     * Removes the item with the given identifier from the store and returns
+     * the stored instance, or null if the item was not present.
+     */
+    ExpenseItem remove( int id ) {
+
+        Node node = nodeIndex.get( id ) ;
+        if( node == null ) {
+            return null ;
+        }
+
+        nodeIndex.delete( id ) ;
+        root = remove( root, node.date, node.id ) ;
+        return node.item ;
+    }
+
+    /** Removes all the items from the store. */
+    void clear() {
+        root = null ;
+        nodeIndex.clear() ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Treap operations
+    // -------------------------------------------------------------------------
+    /**
+     * Compares two sort keys. A negative value implies that the first key
+     * comes before the second in the sorted order.
+     */
+    private static int compare( long date1, int id1, long date2, int id2 ) {
+
+        if( date1 != date2 ) {
+            return ( date1 > date2 ) ? -1 : 1 ;
+        }
+        if( id1 != id2 ) {
+            return ( id1 > id2 ) ? -1 : 1 ;
+        }
+        return 0 ;
+    }
+
+    private static int size( Node node ) {
+        return ( node == null ) ? 0 : node.size ;
+    }
+
+    private static void updateSize( Node node ) {
+        node.size = size( node.left ) + size( node.right ) + 1 ;
+    }
+
+    private Node insert( Node tree, Node node ) {
+
+        if( tree == null ) {
+            return node ;
+        }
+
+        if( node.priority > tree.priority ) {
+            split( tree, node.date, node.id ) ;
+            node.left  = splitResult[0] ;
+            node.right = splitResult[1] ;
+            updateSize( node ) ;
+            return node ;
+        }
+
+        if( compare( node.date, node.id, tree.date, tree.id ) < 0 ) {
+            tree.left = insert( tree.left, node ) ;
+        }
+        else {
+            tree.right = insert( tree.right, node ) ;
+        }
+        updateSize( tree ) ;
+        return tree ;
+    }
+
+    private Node remove( Node tree, long date, int id ) {
+
+        if( tree == null ) {
+            return null ;
+        }
+
+        int cmp = compare( date, id, tree.date, tree.id ) ;
+        if( cmp == 0 ) {
+            return merge( tree.left, tree.right ) ;
+        }
+        else if( cmp < 0 ) {
+            tree.left = remove( tree.left, date, id ) ;
+        }
+        else {
+            tree.right = remove( tree.right, date, id ) ;
+        }
+        updateSize( tree ) ;
+        return tree ;
+    }
+
+    /**
+     * Splits the tree into the nodes which come before the given key and
+     * the rest. The two halves are returned in splitResult.
+     */
+    private void split( Node tree, long date, int id ) {
+
+        if( tree == null ) {
+            splitResult[0] = null ;
+            splitResult[1] = null ;
+            return ;
+        }
+
+        if( compare( tree.date, tree.id, date, id ) < 0 ) {
+            split( tree.right, date, id ) ;
+            tree.right = splitResult[0] ;
+            updateSize( tree ) ;
+            splitResult[0] = tree ;
+        }
+        else {
+            split( tree.left, date, id ) ;
+            tree.left = splitResult[1] ;
+            updateSize( tree ) ;
+            splitResult[1] = tree ;
+        }
+    }
+
+    /**
+     * Merges two trees, where all the nodes of the first tree come before
+     * all the nodes of the second tree.
+     */
+    private Node merge( Node first, Node second ) {
+
+        if( first == null ) return second ;
+        if( second == null ) return first ;
+
+        if( first.priority > second.priority ) {
+            first.right = merge( first.right, second ) ;
+            updateSize( first ) ;
+            return first ;
+        }
+        else {
+            second.left = merge( first, second.left ) ;
+            updateSize( second ) ;
+            return second ;
+        }
+    }
+
+    private static void collectItems( Node node, List<ExpenseItem> items ) {
+
+        while( node != null ) {
+            collectItems( node.left, items ) ;
+            items.add( node.item ) ;
+            node = node.right ;
+        }
+    }
+}
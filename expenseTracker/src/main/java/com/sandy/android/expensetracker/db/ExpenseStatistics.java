@@ -0,0 +1,286 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.Date ;
+import java.util.HashMap ;
+import java.util.List ;
+import java.util.Map ;
+
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.util.IdBitmap ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * Incrementally maintained usage statistics of the expense items, used to
+ * predict the most likely values of a new expense item.
+ *
+ * Every (category, sub category, paid by) combination gets a score, which is
+ * the sum of the weights of the expense items created with the combination.
+ * The weight of an item grows exponentially with its date, doubling every
+ * HALF_LIFE_DAYS. Hence a combination used often and recently scores higher
+ * than one used often long ago. Since the weights of older items are never
+ * reduced (the newer ones are made heavier instead), the scores grow on 
+ * every insert and the best combination - overall and per category - can be
+ * maintained in O(1) there. The predictions are hence O(1) lookups. A delete
+ * takes the weight of the item off its combination, after which the best
+ * combinations are looked up afresh if the combination was among them. An
+ * update is a delete followed by an insert. Since an updated item does not
+ * carry its old values, the combination and the time with which each item 
+ * is counted are remembered.
+ *
+ * The typical amount of each sub category is maintained as an exponentially
+ * weighted moving average of the amounts captured against it. A moving 
+ * average can not take an amount back out, hence deletes are not reflected
+ * in it. The ids of the items whose amounts have been taken in are kept, so
+ * that an item which comes back, as on undoing a delete, is not taken in a
+ * second time.
+ *
+ * The statistics are seeded once from the expense item store and there after
+ * updated on every insert, update and delete of an expense item.
+ *
+ * @author Sandeep Deb
+ */
+public class ExpenseStatistics implements ExpenseItemChangeListener {
+
+    private static final double HALF_LIFE_DAYS = 30 ;
+    private static final double MILLIS_PER_DAY = 24 * 60 * 60 * 1000 ;
+    private static final double DECAY_RATE     = Math.log( 2 ) /
+                                                 ( HALF_LIFE_DAYS * MILLIS_PER_DAY ) ;
+
+    // If the weights grow beyond this, all the scores are rescaled
+    private static final double MAX_WEIGHT     = 1e100 ;
+
+    // The smoothing factor for the typical amounts
+    private static final double AMOUNT_ALPHA   = 0.3 ;
+
+    /** Returned by getTypicalAmount if there is no typical amount. */
+    public static final long NO_AMOUNT = Long.MIN_VALUE ;
+
+    /** The score of a (category, sub category, paid by) combination. */
+    public static class Combination {
+
+        private int    catId    = -1 ;
+        private int    subCatId = -1 ;
+        private String paidBy   = null ;
+        private double score    = 0 ;
+
+        Combination( int catId, int subCatId, String paidBy ) {
+            this.catId    = catId ;
+            this.subCatId = subCatId ;
+            this.paidBy   = paidBy ;
+        }
+
+        public int getCatId() {
+            return catId ;
+        }
+
+        public int getSubCatId() {
+            return subCatId ;
+        }
+
+        public String getPaidBy() {
+            return paidBy ;
+        }
+    }
+
+    /** The values with which an item is counted. */
+    private static class Entry {
+        Combination combination ;
+        long        time ;
+    }
+
+    private Map<String, Combination> combinations = new HashMap<String, Combination>() ;
+    private SparseArray<Entry>       entries      = new SparseArray<Entry>() ;
+    private SparseArray<Combination> bestByCat    = new SparseArray<Combination>() ;
+    private Combination              best         = null ;
+
+    // Typical amount per sub category, and the items taken into them
+    private SparseArray<double[]>    typicalAmts  = new SparseArray<double[]>() ;
+    private IdBitmap                 amtItemIds   = new IdBitmap() ;
+
+    // The time relative to which the weights are computed. Moved forward
+    // when the weights become too big.
+    private long                     baseTime     = 0 ;
+
+    ExpenseStatistics( List<ExpenseItem> history ) {
+
+        // The history is sorted with the most recent first. Anchoring the
+        // base time at the oldest item keeps the initial weights small.
+        if( !history.isEmpty() ) {
+            baseTime = getTime( history.get( history.size()-1 ) ) ;
+        }
+
+        for( int i=history.size()-1; i>=0; i-- ) {
+            record( history.get( i ) ) ;
+        }
+    }
+
+    /**
+     * Returns the most likely combination for a new expense item, or null if
+     * no expense items have been captured yet.
+     */
+    public Combination getMostLikely() {
+        return best ;
+    }
+
+    /**
+     * Returns the most likely combination within the given category, or null
+     * if no expense items have been captured against the category.
+     */
+    public Combination getMostLikely( int catId ) {
+        return bestByCat.get( catId ) ;
+    }
+
+    /**
+     * Returns the typical amount, in minor units, for the given sub category
+     * or NO_AMOUNT if no expense items have been captured against the sub 
+     * category.
+     */
+    public long getTypicalAmount( int subCatId ) {
+
+        double[] amt = typicalAmts.get( subCatId ) ;
+        return ( amt == null ) ? NO_AMOUNT : Math.round( amt[0] ) ;
+    }
+
+    /** Adds the given expense item to the statistics. */
+    void record( ExpenseItem item ) {
+
+        String key = getKey( item ) ;
+
+        Combination combination = combinations.get( key ) ;
+        if( combination == null ) {
+            combination = new Combination( item.getCatId(), item.getSubCatId(),
+                                           item.getPaidBy() ) ;
+            combinations.put( key, combination ) ;
+        }
+
+        double weight = getWeight( getTime( item ) ) ;
+        if( weight > MAX_WEIGHT ) {
+            rebase( getTime( item ) ) ;
+            weight = getWeight( getTime( item ) ) ;
+        }
+        combination.score += weight ;
+
+        if( best == null || combination.score > best.score ) {
+            best = combination ;
+        }
+
+        Combination catBest = bestByCat.get( item.getCatId() ) ;
+        if( catBest == null || combination.score > catBest.score ) {
+            bestByCat.put( item.getCatId(), combination ) ;
+        }
+
+        Entry entry = new Entry() ;
+        entry.combination = combination ;
+        entry.time        = getTime( item ) ;
+        entries.put( item.getId(), entry ) ;
+
+        if( amtItemIds.contains( item.getId() ) ) {
+            return ;
+        }
+        amtItemIds.add( item.getId() ) ;
+
+        double[] amt = typicalAmts.get( item.getSubCatId() ) ;
+        if( amt == null ) {
+            typicalAmts.put( item.getSubCatId(), new double[]{ item.getAmount() } ) ;
+        }
+        else {
+            amt[0] += AMOUNT_ALPHA * ( item.getAmount() - amt[0] ) ;
+        }
+    }
+
+    /**
+     * Takes the weight of the given expense item off the combination it is
+     * counted against. If the combination was the best, overall or of its 
+     * category, the best is looked up afresh among all the combinations.
+     */
+    void forget( int itemId ) {
+
+        int index = entries.indexOfKey( itemId ) ;
+        if( index < 0 ) {
+            return ;
+        }
+        Entry       entry       = entries.valueAt( index ) ;
+        Combination combination = entry.combination ;
+        entries.removeAt( index ) ;
+
+        // The weights of the earlier items have been rescaled along with
+        // the scores, hence the weight at the current base time is the 
+        // share of the item in the score.
+        combination.score = Math.max( 0, combination.score - 
+                                         getWeight( entry.time ) ) ;
+
+        if( combination == best || combination == bestByCat.get( combination.catId ) ) {
+            best = null ;
+            bestByCat.clear() ;
+            for( Combination c : combinations.values() ) {
+                if( c.score <= 0 ) {
+                    continue ;
+                }
+                if( best == null || c.score > best.score ) {
+                    best = c ;
+                }
+                Combination catBest = bestByCat.get( c.catId ) ;
+                if( catBest == null || c.score > catBest.score ) {
+                    bestByCat.put( c.catId, c ) ;
+                }
+            }
+        }
+    }
+
+    private static String getKey( ExpenseItem item ) {
+        return item.getCatId() + ":" + item.getSubCatId() + ":" + item.getPaidBy() ;
+    }
+
+    /**
+     * Moves the base time forward to the given time and scales down all the
+     * scores accordingly. The relative order of the scores is unchanged.
+     */
+    private void rebase( long newBaseTime ) {
+
+        double factor = 1 / getWeight( newBaseTime ) ;
+        for( Combination combination : combinations.values() ) {
+            combination.score *= factor ;
+        }
+        baseTime = newBaseTime ;
+    }
+
+    private double getWeight( long time ) {
+        return Math.exp( DECAY_RATE * ( time - baseTime ) ) ;
+    }
+
+    private static long getTime( ExpenseItem item ) {
+        Date date = item.getDate() ;
+        return ( date == null ) ? System.currentTimeMillis() : date.getTime() ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Expense item change listener methods
+    // -------------------------------------------------------------------------
+    @Override
+    public void expenseItemInserted( ExpenseItem item ) {
+        record( item ) ;
+    }
+
+    @Override
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) {
+        forget( item.getId() ) ;
+        record( item ) ;
+    }
+
+    @Override
+    public void expenseItemDeleted( ExpenseItem item ) {
+        forget( item.getId() ) ;
+    }
+
+    @Override
+    public void allExpenseItemsDeleted() {
+
+        combinations.clear() ;
+        entries.clear() ;
+        bestByCat.clear() ;
+        typicalAmts.clear() ;
+        amtItemIds = new IdBitmap() ;
+        best = null ;
+    }
+}
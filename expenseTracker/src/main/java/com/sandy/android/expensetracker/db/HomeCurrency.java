@@ -0,0 +1,76 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.Currency ;
+import java.util.Locale ;
+
+import android.content.Context ;
+import android.content.SharedPreferences ;
+
+/**
+ * The home currency, in which the reports are totalled and the exchange
+ * rates are quoted. It is taken from the default locale on the first run
+ * and saved in the preferences, hence a later change of the locale does not
+ * change the currency of the expense items already captured. Every expense
+ * item and recurring expense carries an explicit currency code.
+ *
+ * @author Sandeep Deb
+ */
+public class HomeCurrency {
+
+    private static final String PREFS_NAME = "home_currency" ;
+    private static final String KEY_CODE   = "code" ;
+
+    // The home currency used if the default locale does not have one
+    private static final String DEFAULT_CODE = "INR" ;
+
+    // The saved code, read once
+    private static String code = null ;
+
+    private HomeCurrency() {
+    }
+
+    /**
+     * Returns the code of the home currency. On the first call ever the code
+     * of the currency of the default locale is saved as the home currency.
+     */
+    public static synchronized String get( Context context ) {
+
+        if( code == null ) {
+            SharedPreferences prefs = context.getSharedPreferences( PREFS_NAME,
+                                                         Context.MODE_PRIVATE ) ;
+            code = prefs.getString( KEY_CODE, null ) ;
+            if( code == null ) {
+                code = getLocaleCurrency() ;
+
+                SharedPreferences.Editor editor = prefs.edit() ;
+                editor.putString( KEY_CODE, code ) ;
+                editor.commit() ;
+            }
+        }
+        return code ;
+    }
+
+    /**
+     * Returns the given currency code, or the home currency if it is null.
+     * Used by the DAOs so that a currency is always saved explicitly.
+     */
+    static String orHome( Context context, String currency ) {
+        return ( currency == null ) ? get( context ) : currency ;
+    }
+
+    /** Returns true if the given string is of the form of a currency code. */
+    public static boolean isValidCode( String code ) {
+        return code != null && code.matches( "[A-Z]{3}" ) ;
+    }
+
+    /** Returns the code of the currency of the default locale. */
+    private static String getLocaleCurrency() {
+        try {
+            return Currency.getInstance( Locale.getDefault() ).getCurrencyCode() ;
+        }
+        catch( IllegalArgumentException e ) {
+            // The default locale has no country and hence no currency
+            return DEFAULT_CODE ;
+        }
+    }
+}
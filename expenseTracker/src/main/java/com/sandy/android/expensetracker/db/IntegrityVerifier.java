@@ -0,0 +1,389 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.ArrayList ;
+import java.util.HashSet ;
+import java.util.List ;
+import java.util.concurrent.Executor ;
+
+import android.content.Context ;
+import android.database.Cursor ;
+import android.database.DatabaseUtils ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+import android.os.Handler ;
+import android.os.Looper ;
+import android.util.Log ;
+import android.util.SparseArray ;
+import android.widget.Toast ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.R ;
+import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * Verifies that the database is consistent in itself and that the in-memory
+ * caches agree with it. The following are checked:
+ *
+ *   a) Foreign keys - every sub category belongs to an existing category,
+ *      every live expense item and recurring expense refers to an existing
+ *      sub category of its category and every recurring link refers to an
+ *      existing recurring expense. Every split belongs to an existing
+ *      expense item and sub category, and the splits of an item add up to
+ *      its amount. Every tag link joins an existing item and tag.
+ *   b) The sequence numbers are unique amongst the categories and amongst
+ *      the sub categories of a category.
+ *   c) The category cache has the same categories and sub categories, with
+ *      the same names and in the same order, as the database.
+ *   d) The expense item store has the same items, in the same order, as the
+ *      database and the category usage counts agree with them.
+ *
+ * The verification is incremental. The database is read on the background
+ * executor, and the comparison with the caches, which are not thread safe,
+ * is done on the UI thread in chunks so that no single message keeps the UI
+ * thread busy for long. If the caches change while the verification is in
+ * progress, the comparison is abandoned since the snapshot read from the
+ * database may then legitimately differ from them.
+ *
+ * The problems are logged and the caches which disagree with the database
+ * are rebuilt from it - the category cache, the expense item store along 
+ * with the listeners of the expense item DAO, and the category usage 
+ * counts. The problems within the database itself can not be repaired 
+ * safely and are only logged. On debug builds the problems are also shown 
+ * in a toast, so that they do not go unnoticed, without crashing the app 
+ * over data which has been repaired or predates the checks.
+ *
+ * @author Sandeep Deb
+ */
+class IntegrityVerifier {
+
+    // The number of expense items compared with the store in one message
+    private static final int CHUNK_SIZE = 256 ;
+
+    // The database checks - the query and a description of the violation
+    private static final int[] CHECK_QUERIES = {
+        R.string.query_check_orphan_sub_categories,
+        R.string.query_check_invalid_sub_category_paths,
+        R.string.query_check_orphan_expense_items,
+        R.string.query_check_orphan_expense_splits,
+        R.string.query_check_unbalanced_expense_splits,
+        R.string.query_check_orphan_accounts,
+        R.string.query_check_orphan_expense_item_tags,
+        R.string.query_check_orphan_recurring_expenses,
+        R.string.query_check_orphan_recurring_links,
+        R.string.query_check_duplicate_category_seq_nos,
+        R.string.query_check_duplicate_sub_category_seq_nos
+    } ;
+    private static final String[] CHECK_DESCRIPTIONS = {
+        "sub categories without a category",
+        "sub categories with an invalid parent or path",
+        "expense items without a valid category and sub category",
+        "expense splits without a valid item, category and sub category",
+        "expense items whose splits do not add up to the amount",
+        "expense items and recurring expenses without a valid account",
+        "expense item tags without a valid item and tag",
+        "recurring expenses without a valid category and sub category",
+        "expense items linked to a missing recurring expense",
+        "duplicate category sequence numbers",
+        "duplicate sub category sequence numbers"
+    } ;
+
+    /** The categories and expense items as read from the database. */
+    private static class Snapshot {
+        List<Integer>       catIds       = new ArrayList<Integer>() ;
+        List<String>        catNames     = new ArrayList<String>() ;
+        List<List<Integer>> subCatIds    = new ArrayList<List<Integer>>() ;
+        List<List<String>>  subCatNames  = new ArrayList<List<String>>() ;
+        List<ExpenseItem>   expenseItems = null ;
+    }
+
+    private Context            context        = null ;
+    private SQLiteDatabase     db             = null ;
+    private CategoryDAOImpl    categoryDAO    = null ;
+    private ExpenseItemDAOImpl expenseItemDAO = null ;
+    private Executor           executor       = null ;
+    private Handler            uiHandler      = null ;
+
+    // The problems found by the verification in progress
+    private List<String> problems = new ArrayList<String>() ;
+    
+    // Set if the expense item store disagrees with the database
+    private boolean storeValid = true ;
+
+    // The versions of the caches when the snapshot was requested
+    private int catVersion   = 0 ;
+    private int itemModCount = 0 ;
+
+    IntegrityVerifier( Context context, SQLiteDatabase db,
+                       CategoryDAOImpl categoryDAO,
+                       ExpenseItemDAOImpl expenseItemDAO,
+                       Executor executor ) {
+        this.context        = context ;
+        this.db             = db ;
+        this.categoryDAO    = categoryDAO ;
+        this.expenseItemDAO = expenseItemDAO ;
+        this.executor       = executor ;
+        this.uiHandler      = new Handler( Looper.getMainLooper() ) ;
+    }
+
+    /**
+     * Starts the verification. Must be called on the UI thread, after the
+     * category cache and the expense item store have been loaded. Returns
+     * right away.
+     */
+    void start() {
+
+        problems.clear() ;
+        storeValid   = true ;
+        catVersion   = categoryDAO.getVersion() ;
+        itemModCount = expenseItemDAO.getModCount() ;
+
+        executor.execute( new Runnable() {
+            public void run() {
+
+                final Snapshot snapshot = new Snapshot() ;
+                try {
+                    checkDatabase() ;
+                    readSnapshot( snapshot ) ;
+                }
+                catch( SQLException e ) {
+                    Log.e( LogTag.INTEGRITY, "Exception while reading the " +
+                                             "database for verification", e ) ;
+                    return ;
+                }
+
+                uiHandler.post( new Runnable() {
+                    public void run() {
+                        compareCategories( snapshot ) ;
+                    }
+                } ) ;
+            }
+        } ) ;
+    }
+
+    /** Runs the database checks. Called on the background thread. */
+    private void checkDatabase() throws SQLException {
+
+        for( int i=0; i<CHECK_QUERIES.length; i++ ) {
+            long numViolations = DatabaseUtils.longForQuery( db,
+                                    context.getString( CHECK_QUERIES[i] ), null ) ;
+            if( numViolations > 0 ) {
+                problems.add( numViolations + " " + CHECK_DESCRIPTIONS[i] ) ;
+            }
+        }
+    }
+
+    /** Reads the categories and expense items. Called on the background thread. */
+    private void readSnapshot( Snapshot snapshot ) throws SQLException {
+
+        Cursor c = db.rawQuery( context.getString(
+                                R.string.query_select_all_categories ), null ) ;
+        while( c.moveToNext() ) {
+            snapshot.catIds.add( c.getInt( 0 ) ) ;
+            snapshot.catNames.add( c.getString( 1 ) ) ;
+        }
+        c.close() ;
+
+        String subCatSQL = context.getString( R.string.query_select_all_sub_categories ) ;
+        for( int i=0; i<snapshot.catIds.size(); i++ ) {
+
+            List<Integer>              topIds     = new ArrayList<Integer>() ;
+            SparseArray<List<Integer>> childLists = new SparseArray<List<Integer>>() ;
+            SparseArray<String>        namesById  = new SparseArray<String>() ;
+
+            c = db.rawQuery( subCatSQL, new String[]{
+                                 String.valueOf( snapshot.catIds.get( i ) ) } ) ;
+            while( c.moveToNext() ) {
+                int id = c.getInt( 0 ) ;
+                namesById.put( id, c.getString( 1 ) ) ;
+                if( c.isNull( 3 ) ) {
+                    topIds.add( id ) ;
+                }
+                else {
+                    List<Integer> children = childLists.get( c.getInt( 3 ) ) ;
+                    if( children == null ) {
+                        children = new ArrayList<Integer>() ;
+                        childLists.put( c.getInt( 3 ), children ) ;
+                    }
+                    children.add( id ) ;
+                }
+            }
+            c.close() ;
+
+            // The cache holds the sub category tree flattened depth first
+            List<Integer> ids   = new ArrayList<Integer>() ;
+            List<String>  names = new ArrayList<String>() ;
+            CategoryDAOImpl.appendSubTree( topIds, childLists, ids ) ;
+            for( int j=0; j<ids.size(); j++ ) {
+                names.add( namesById.get( ids.get( j ) ) ) ;
+            }
+
+            snapshot.subCatIds.add( ids ) ;
+            snapshot.subCatNames.add( names ) ;
+        }
+
+        snapshot.expenseItems = expenseItemDAO.getAllExpenseItems() ;
+    }
+
+    /** Compares the snapshot with the category cache. Called on the UI thread. */
+    private void compareCategories( Snapshot snapshot ) {
+
+        if( categoryDAO.getVersion() != catVersion ) {
+            abandon( "categories" ) ;
+            return ;
+        }
+
+        boolean       cacheValid = true ;
+        List<Integer> catIds     = categoryDAO.getCategoryIds() ;
+
+        if( !catIds.equals( snapshot.catIds ) ) {
+            problems.add( "category cache has ids " + catIds +
+                          ", database has " + snapshot.catIds ) ;
+            cacheValid = false ;
+        }
+        else {
+            for( int i=0; i<catIds.size(); i++ ) {
+
+                int           catId     = catIds.get( i ) ;
+                List<Integer> subCatIds = categoryDAO.getSubCategoryIds( catId ) ;
+
+                if( !equal( categoryDAO.getCategoryName( catId ),
+                            snapshot.catNames.get( i ) ) ) {
+                    problems.add( "category " + catId + " has a stale name" ) ;
+                    cacheValid = false ;
+                }
+                if( !snapshot.subCatIds.get( i ).equals( subCatIds ) ) {
+                    problems.add( "category " + catId + " has sub category ids " +
+                           subCatIds + ", database has " + snapshot.subCatIds.get( i ) ) ;
+                    cacheValid = false ;
+                    continue ;
+                }
+                for( int j=0; j<subCatIds.size(); j++ ) {
+                    if( !equal( categoryDAO.getSubCategoryName( subCatIds.get( j ) ),
+                                snapshot.subCatNames.get( i ).get( j ) ) ) {
+                        problems.add( "sub category " + subCatIds.get( j ) +
+                                      " has a stale name" ) ;
+                        cacheValid = false ;
+                    }
+                }
+            }
+        }
+
+        if( !cacheValid ) {
+            categoryDAO.reloadCache() ;
+        }
+        compareExpenseItems( snapshot, 0 ) ;
+    }
+
+    /**
+     * Compares a chunk of the snapshot, starting at the given position, with
+     * the expense item store and posts the comparison of the next chunk.
+     * Called on the UI thread.
+     */
+    private void compareExpenseItems( final Snapshot snapshot, final int start ) {
+
+        if( expenseItemDAO.getModCount() != itemModCount ) {
+            abandon( "expense items" ) ;
+            return ;
+        }
+
+        ExpenseItemStore  store    = expenseItemDAO.getExpenseItemStore() ;
+        List<ExpenseItem> dbItems  = snapshot.expenseItems ;
+
+        if( start == 0 && store.size() != dbItems.size() ) {
+            problems.add( "expense item store has " + store.size() +
+                          " items, database has " + dbItems.size() ) ;
+            storeValid = false ;
+            finish( snapshot ) ;
+            return ;
+        }
+
+        int end = Math.min( start + CHUNK_SIZE, dbItems.size() ) ;
+        for( int i=start; i<end; i++ ) {
+            if( !sameItem( store.get( i ), dbItems.get( i ) ) ) {
+                problems.add( "expense item " + dbItems.get( i ).getId() +
+                              " differs from the store at position " + i ) ;
+                storeValid = false ;
+                finish( snapshot ) ;
+                return ;
+            }
+        }
+
+        if( end < dbItems.size() ) {
+            uiHandler.post( new Runnable() {
+                public void run() {
+                    compareExpenseItems( snapshot, start + CHUNK_SIZE ) ;
+                }
+            } ) ;
+        }
+        else {
+            finish( snapshot ) ;
+        }
+    }
+
+    /**
+     * Rebuilds the expense item store if it disagrees with the database, 
+     * verifies the usage counts, which rebuilds them, and reports the 
+     * outcome.
+     */
+    private void finish( Snapshot snapshot ) {
+
+        if( !storeValid ) {
+            expenseItemDAO.reloadStore( snapshot.expenseItems ) ;
+        }
+        if( !expenseItemDAO.verifyUsageCounts( snapshot.expenseItems ) ) {
+            problems.add( "category usage counts were out of sync" ) ;
+        }
+
+        if( problems.isEmpty() ) {
+            if( BuildConfig.DEBUG ) {
+                Log.d( LogTag.INTEGRITY, "Database and caches verified" ) ;
+            }
+            return ;
+        }
+
+        for( int i=0; i<problems.size(); i++ ) {
+            Log.e( LogTag.INTEGRITY, "Integrity problem - " + problems.get( i ) ) ;
+        }
+        if( BuildConfig.DEBUG ) {
+            Toast.makeText( context, "Integrity verification found " + 
+                            problems.size() + " problems. See the log.", 
+                            Toast.LENGTH_LONG ).show() ;
+        }
+    }
+
+    private void abandon( String cache ) {
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.INTEGRITY, "Verification abandoned, " + cache +
+                                     " changed while verifying" ) ;
+        }
+    }
+
+    private static boolean sameItem( ExpenseItem a, ExpenseItem b ) {
+        return a.getId()          == b.getId()       &&
+               a.getCatId()       == b.getCatId()    &&
+               a.getSubCatId()    == b.getSubCatId() &&
+               a.getAmount()      == b.getAmount()   &&
+               a.getRecurringId() == b.getRecurringId() &&
+               a.getDate().getTime() == b.getDate().getTime() &&
+               equal( a.getPaidBy(), b.getPaidBy() ) &&
+               equal( a.getDescription(), b.getDescription() ) &&
+               equal( a.getCurrency(), b.getCurrency() ) &&
+               ( a.getSplits() == null ? b.getSplits() == null : 
+                                         a.getSplits().equals( b.getSplits() ) ) &&
+               sameTags( a.getTags(), b.getTags() ) ;
+    }
+
+    /** Tags are read back in the order of their ids, hence compared as sets. */
+    private static boolean sameTags( List<String> a, List<String> b ) {
+        if( a == null || b == null ) {
+            return a == b ;
+        }
+        return a.size() == b.size() && 
+               new HashSet<String>( a ).equals( new HashSet<String>( b ) ) ;
+    }
+
+    private static boolean equal( String a, String b ) {
+        return a == null ? b == null : a.equals( b ) ;
+    }
+}
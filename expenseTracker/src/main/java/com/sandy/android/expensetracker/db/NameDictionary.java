@@ -0,0 +1,119 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.ArrayList ;
+import java.util.Collections ;
+import java.util.HashMap ;
+import java.util.List ;
+import java.util.Map ;
+
+import android.database.Cursor ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+import android.database.sqlite.SQLiteStatement ;
+import android.util.Log ;
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+
+/**
+ * An in-memory copy of a dictionary table, which maps unique names to
+ * integer ids. The account and the tag tables are such dictionaries. The
+ * dictionaries are small, hence both directions are hash lookups and all
+ * the users of a name share the same instance.
+ *
+ * The entries are loaded when the dictionary is created, and an entry is
+ * created on the fly for a name which is not yet known.
+ *
+ * @author Sandeep Deb
+ */
+class NameDictionary {
+
+    private SQLiteDatabase db        = null ;
+    private String         insertSQL = null ;
+    private String         kind      = null ;
+    private String         logTag    = null ;
+
+    private List<String>         names     = new ArrayList<String>() ;
+    private SparseArray<String>  namesById = new SparseArray<String>() ;
+    private Map<String, Integer> idsByName = new HashMap<String, Integer>() ;
+
+    /**
+     * Creates the dictionary and loads it.
+     *
+     * @param selectAllSQL The query returning the id and the name of all the
+     *        entries, in the order of creation.
+     * @param insertSQL The statement inserting an entry, given its name.
+     * @param kind The kind of the entries, such as "account", for the logs.
+     */
+    NameDictionary( SQLiteDatabase db, String selectAllSQL, String insertSQL,
+                    String kind, String logTag ) {
+
+        this.db        = db ;
+        this.insertSQL = insertSQL ;
+        this.kind      = kind ;
+        this.logTag    = logTag ;
+
+        Cursor c = db.rawQuery( selectAllSQL, null ) ;
+        while( c.moveToNext() ) {
+            addToCache( c.getInt( 0 ), c.getString( 1 ) ) ;
+        }
+        c.close() ;
+    }
+
+    /** Returns all the names, in the order of creation. */
+    synchronized List<String> getNames() {
+        return Collections.unmodifiableList( new ArrayList<String>( names ) ) ;
+    }
+
+    /** Returns the identifier of the given name, or -1 if there is none. */
+    synchronized int getId( String name ) {
+        Integer id = idsByName.get( name ) ;
+        return ( id == null ) ? -1 : id ;
+    }
+
+    /** Returns the name with the given identifier, or null if there is none. */
+    synchronized String getName( int id ) {
+        return namesById.get( id ) ;
+    }
+
+    /**
+     * Returns the identifier of the given name, creating the entry if it
+     * does not exist. A new entry is added to the cache right away, hence
+     * this should not be called within a transaction which could be rolled
+     * back.
+     *
+     * @throws SQLException If the entry could not be created.
+     */
+    synchronized int getOrCreateId( String name ) throws SQLException {
+
+        Integer id = idsByName.get( name ) ;
+        if( id != null ) {
+            return id ;
+        }
+
+        SQLiteStatement stmt = db.compileStatement( insertSQL ) ;
+        long newId = -1 ;
+        try {
+            stmt.bindString( 1, name ) ;
+            newId = stmt.executeInsert() ;
+        }
+        finally {
+            stmt.close() ;
+        }
+        if( newId == -1 ) {
+            throw new SQLException( "Could not create " + kind + " " + name ) ;
+        }
+
+        if( BuildConfig.DEBUG ) {
+            Log.d( logTag, "Created " + kind + " " + name + " with id " + newId ) ;
+        }
+        addToCache( ( int )newId, name ) ;
+        return ( int )newId ;
+    }
+
+    private void addToCache( int id, String name ) {
+        names.add( name ) ;
+        namesById.put( id, name ) ;
+        idsByName.put( name, id ) ;
+    }
+}
@@ -0,0 +1,67 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.Date ;
+import java.util.List ;
+
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.RecurringExpense ;
+
+/**
+ * This interface defines the contract for the RecurringExpense data access
+ * object. To facilitate unit testing and mocking, this has been designed as
+ * an interface.
+ *
+ * @author Sandeep Deb
+ */
+public interface RecurringExpenseDAO {
+
+    /**
+     * Creates a recurring expense which repeats the given expense item and
+     * links the item to it as its first occurrence. The rule is created and
+     * the item is linked in a single transaction.
+     *
+     * @param item An existing expense item, with a valid identifier, which is
+     *        not split. A recurring expense does not carry splits or tags.
+     * @param periodUnit One of the RecurringExpense.PERIOD_XXX constants.
+     * @param periodCount The number of period units between occurrences.
+     *
+     * @return The new recurring expense with its identifier populated, or
+     *         null if it could not be created.
+     */
+    public RecurringExpense create( ExpenseItem item, int periodUnit,
+                                    int periodCount )
+        throws IllegalArgumentException ;
+
+    /**
+     * Deletes the recurring expense with the given identifier. The expense
+     * items already materialized from it are retained, but are no longer
+     * linked to it.
+     *
+     * @return true if the recurring expense was deleted, false otherwise.
+     */
+    public boolean delete( int recurringId ) ;
+
+    /**
+     * Creates the expense items for all the occurrences of all the recurring
+     * expenses which are due on or before the given time. All the items are
+     * inserted in a single transaction, along with advancing the schedule of
+     * their recurring expenses. Hence calling this method any number of
+     * times, or being interrupted mid way, never creates an occurrence twice.
+     *
+     * Only the database is touched, hence this can be called on a background
+     * thread. The returned items must then be passed to
+     * {@link #addMaterializedExpenses(List)} on the UI thread.
+     *
+     * @return The expense items created, empty if none were due or they
+     *         could not be saved.
+     */
+    public List<ExpenseItem> materializeDueExpenses( Date now ) ;
+
+    /**
+     * Adds the expense items returned by {@link #materializeDueExpenses(Date)}
+     * to the expense item store and notifies the expense item change
+     * listeners, as if they were created through the expense item DAO. Must
+     * be called on the UI thread.
+     */
+    public void addMaterializedExpenses( List<ExpenseItem> items ) ;
+}
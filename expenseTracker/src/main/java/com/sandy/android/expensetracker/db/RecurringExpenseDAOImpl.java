@@ -0,0 +1,309 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.ArrayList ;
+import java.util.Date ;
+import java.util.List ;
+
+import android.content.Context ;
+import android.database.Cursor ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+import android.database.sqlite.SQLiteStatement ;
+import android.util.Log ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.R ;
+import com.sandy.android.expensetracker.util.LogTag ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.RecurringExpense ;
+
+/**
+ * A concrete implementation of RecurringExpenseDAO backed up the SQLite
+ * database.
+ *
+ *           CREATE TABLE recurring_expense (
+ *               _id           INTEGER PRIMARY KEY AUTOINCREMENT,
+ *               cat_id        INTEGER REFERENCES category ( _id ),
+ *               subcat_id     INTEGER REFERENCES sub_category ( _id ),
+ *               account_id    INTEGER NOT NULL REFERENCES account ( _id ),
+ *               amount        INTEGER NOT NULL,  -- In minor units
+ *               description   TEXT,
+ *               period_unit   INTEGER NOT NULL,
+ *               period_count  INTEGER NOT NULL,
+ *               start_date    INTEGER NOT NULL,
+ *               occurrence_no INTEGER NOT NULL,
+ *               next_due      INTEGER NOT NULL,
+ *               currency      TEXT
+ *           )
+ *
+ * The next_due column is the date of the occurrence numbered occurrence_no
+ * and is stored only to let the due rules be selected through an index.
+ *
+ * @author Sandeep Deb
+ */
+class RecurringExpenseDAOImpl implements RecurringExpenseDAO {
+    
+    public static final String TABLE_NAME_RECURRING_EXPENSE = "recurring_expense" ;
+    public static final String COL_NAME_ID                  = "_id" ;
+
+    // The maximum number of occurrences of a single rule materialized in one
+    // run. A daily rule left alone for years is caught up over a few runs
+    // instead of holding the database in one huge transaction.
+    private static final int MAX_OCCURRENCES_PER_RUN = 400 ;
+
+    private SQLiteDatabase     db             = null ;
+    private Context            context        = null ;
+    private ExpenseItemDAOImpl expenseItemDAO = null ;
+    private AccountDAOImpl     accountDAO     = null ;
+
+    public RecurringExpenseDAOImpl( Context context, SQLiteDatabase db,
+                                    ExpenseItemDAOImpl expenseItemDAO,
+                                    AccountDAOImpl accountDAO ) {
+        this.db             = db ;
+        this.context        = context ;
+        this.expenseItemDAO = expenseItemDAO ;
+        this.accountDAO     = accountDAO ;
+    }
+
+    @Override
+    public RecurringExpense create( ExpenseItem item, int periodUnit,
+                                    int periodCount )
+        throws IllegalArgumentException {
+
+        if( item == null || item.getId() == -1 || item.isSplit() || periodCount < 1 ) {
+            throw new IllegalArgumentException( "Expense item is either null, " +
+                         "a new item or a split item, or the period is invalid" ) ;
+        }
+
+        RecurringExpense rule = new RecurringExpense( item, periodUnit, periodCount ) ;
+        boolean committed = false ;
+        
+        // The item has been saved, hence its account exists and this is a
+        // lookup of the cache
+        int accountId = accountDAO.getAccountId( rule.getPaidBy() ) ;
+
+        SQLiteStatement insertStmt = db.compileStatement(
+                     context.getString( R.string.query_insert_recurring_expense ) ) ;
+
+        db.beginTransaction() ;
+        try {
+            insertStmt.bindLong  ( 1,  rule.getCatId() ) ;
+            insertStmt.bindLong  ( 2,  rule.getSubCatId() ) ;
+            insertStmt.bindLong  ( 3,  accountId ) ;
+            insertStmt.bindLong  ( 4,  rule.getAmount() ) ;
+            bindNullableString( insertStmt, 5, rule.getDescription() ) ;
+            insertStmt.bindLong  ( 6,  rule.getPeriodUnit() ) ;
+            insertStmt.bindLong  ( 7,  rule.getPeriodCount() ) ;
+            insertStmt.bindLong  ( 8,  rule.getStartDate().getTime() ) ;
+            insertStmt.bindLong  ( 9,  rule.getOccurrenceNo() ) ;
+            insertStmt.bindLong  ( 10, rule.getNextDueDate().getTime() ) ;
+            insertStmt.bindString( 11, HomeCurrency.orHome( context, rule.getCurrency() ) ) ;
+
+            rule.setId( ( int )insertStmt.executeInsert() ) ;
+
+            db.execSQL( context.getString( R.string.query_link_recurring_expense ),
+                        new Object[]{ rule.getId(), item.getId() } ) ;
+
+            db.setTransactionSuccessful() ;
+            committed = true ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.RECURRING_EXPENSE_DAO, "Exception while creating " +
+                                                 "recurring expense", e ) ;
+        }
+        finally {
+            db.endTransaction() ;
+            insertStmt.close() ;
+        }
+
+        if( !committed ) {
+            return null ;
+        }
+
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.RECURRING_EXPENSE_DAO, "Id of new recurring expense is " +
+                                                 rule.getId() ) ;
+        }
+        item.setRecurringId( rule.getId() ) ;
+        expenseItemDAO.recurringExpenseLinked( item.getId(), rule.getId() ) ;
+
+        return rule ;
+    }
+
+    @Override
+    public boolean delete( int recurringId ) {
+
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.RECURRING_EXPENSE_DAO,
+                   "Delete recurring expense with id = " + recurringId ) ;
+        }
+
+        boolean deleted = false ;
+
+        db.beginTransaction() ;
+        try {
+            db.execSQL( context.getString( R.string.query_unlink_recurring_expense ),
+                        new Object[]{ recurringId } ) ;
+            deleted = db.delete( TABLE_NAME_RECURRING_EXPENSE, 
+                                 COL_NAME_ID + "=" + recurringId, null ) > 0 ;
+
+            db.setTransactionSuccessful() ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.RECURRING_EXPENSE_DAO, "Exception while deleting " +
+                                                 "recurring expense", e ) ;
+            deleted = false ;
+        }
+        finally {
+            db.endTransaction() ;
+        }
+
+        if( deleted ) {
+            expenseItemDAO.recurringExpenseUnlinked( recurringId ) ;
+        }
+        return deleted ;
+    }
+
+    @Override
+    public List<ExpenseItem> materializeDueExpenses( Date now ) {
+
+        List<ExpenseItem>      newItems = new ArrayList<ExpenseItem>() ;
+        List<RecurringExpense> dueRules = getDueRecurringExpenses( now ) ;
+        if( dueRules.isEmpty() ) {
+            return newItems ;
+        }
+
+
+        boolean           committed = false ;
+
+        SQLiteStatement insertStmt = db.compileStatement(
+                     context.getString( R.string.query_insert_expense_item ) ) ;
+        SQLiteStatement advanceStmt = db.compileStatement(
+                     context.getString( R.string.query_update_recurring_expense_schedule ) ) ;
+
+        // The occurrences are inserted and the schedules advanced in the same
+        // transaction. Either all of them make it to the database or none.
+        db.beginTransaction() ;
+        try {
+            for( int i=0; i<dueRules.size(); i++ ) {
+
+                RecurringExpense rule         = dueRules.get( i ) ;
+                int              occurrenceNo = rule.getOccurrenceNo() ;
+                Date             dueDate      = rule.getOccurrenceDate( occurrenceNo ) ;
+                int              numCreated   = 0 ;
+
+                while( !dueDate.after( now ) && numCreated < MAX_OCCURRENCES_PER_RUN ) {
+
+                    ExpenseItem item = rule.createOccurrence( dueDate ) ;
+                    item.setId( insertExpenseItem( insertStmt, item ) ) ;
+                    newItems.add( item ) ;
+
+                    numCreated++ ;
+                    occurrenceNo++ ;
+                    dueDate = rule.getOccurrenceDate( occurrenceNo ) ;
+                }
+
+                advanceStmt.bindLong( 1, occurrenceNo ) ;
+                advanceStmt.bindLong( 2, dueDate.getTime() ) ;
+                advanceStmt.bindLong( 3, rule.getId() ) ;
+                advanceStmt.executeUpdateDelete() ;
+            }
+
+            db.setTransactionSuccessful() ;
+            committed = true ;
+        }
+        catch( SQLException e ) {
+            Log.e( LogTag.RECURRING_EXPENSE_DAO, "Exception while materializing " +
+                                                 "recurring expenses", e ) ;
+        }
+        finally {
+            db.endTransaction() ;
+            insertStmt.close() ;
+            advanceStmt.close() ;
+        }
+
+        if( !committed ) {
+            return new ArrayList<ExpenseItem>() ;
+        }
+
+        if( BuildConfig.DEBUG ) {
+            Log.d( LogTag.RECURRING_EXPENSE_DAO, "Materialized " + newItems.size() +
+                   " expense items from " + dueRules.size() + " recurring expenses" ) ;
+        }
+        return newItems ;
+    }
+
+    @Override
+    public void addMaterializedExpenses( List<ExpenseItem> items ) {
+        if( !items.isEmpty() ) {
+            expenseItemDAO.expenseItemsMaterialized( items ) ;
+        }
+    }
+
+    /** Returns the recurring expenses due on or before the given time. */
+    private List<RecurringExpense> getDueRecurringExpenses( Date now ) {
+
+        List<RecurringExpense> rules = new ArrayList<RecurringExpense>() ;
+        String sql = context.getString( R.string.query_select_due_recurring_expenses ) ;
+
+        Cursor c = db.rawQuery( sql, new String[]{ String.valueOf( now.getTime() ) } ) ;
+        while( c.moveToNext() ) {
+
+            RecurringExpense rule = new RecurringExpense() ;
+
+            rule.setId          ( c.getInt   ( 0 ) ) ;
+            rule.setCatId       ( c.getInt   ( 1 ) ) ;
+            rule.setSubCatId    ( c.getInt   ( 2 ) ) ;
+            rule.setPaidBy      ( accountDAO.getAccountName( c.getInt( 3 ) ) ) ;
+            rule.setAmount      ( c.getLong  ( 4 ) ) ;
+            rule.setDescription ( c.getString( 5 ) ) ;
+            rule.setPeriodUnit  ( c.getInt   ( 6 ) ) ;
+            rule.setPeriodCount ( c.getInt   ( 7 ) ) ;
+            rule.setStartDate   ( new Date( c.getLong( 8 ) ) ) ;
+            rule.setOccurrenceNo( c.getInt   ( 9 ) ) ;
+            rule.setCurrency    ( c.getString( 11 ) ) ;
+
+            rules.add( rule ) ;
+        }
+        c.close() ;
+
+        return rules ;
+    }
+
+    /**
+     * Inserts the given expense item using the compiled insert statement and
+     * returns the new identifier. The statement is not closed and can be
+     * reused for further inserts.
+     */
+    private int insertExpenseItem( SQLiteStatement stmt, ExpenseItem item )
+        throws SQLException {
+
+        stmt.clearBindings() ;
+        stmt.bindLong  ( 1, item.getDate().getTime() ) ;
+        stmt.bindLong  ( 2, item.getCatId() ) ;
+        stmt.bindLong  ( 3, item.getSubCatId() ) ;
+        // The paid by of an occurrence comes from its rule, which was read
+        // through the account cache
+        stmt.bindLong  ( 4, accountDAO.getAccountId( item.getPaidBy() ) ) ;
+        stmt.bindLong  ( 5, item.getAmount() ) ;
+        bindNullableString( stmt, 6, item.getDescription() ) ;
+        stmt.bindLong  ( 7, item.getRecurringId() ) ;
+        stmt.bindString( 8, HomeCurrency.orHome( context, item.getCurrency() ) ) ;
+
+        long id = stmt.executeInsert() ;
+        if( id == -1 ) {
+            throw new SQLException( "Could not insert expense item" ) ;
+        }
+        return ( int )id ;
+    }
+
+    private static void bindNullableString( SQLiteStatement stmt, int index,
+                                            String value ) {
+        if( value == null ) {
+            stmt.bindNull( index ) ;
+        }
+        else {
+            stmt.bindString( index, value ) ;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.sandy.android.expensetracker.db;
+
+/**
+ * This interface defines the contract for the tag data access object. A tag
+ * is a free form label attached to any number of expense items, for example
+ * the name of a trip. To facilitate unit testing and mocking, this has been
+ * designed as an interface.
+ *
+ * @author Sandeep Deb
+ */
+public interface TagDAO {
+
+    /** Returns the identifier of the named tag, or -1 if there is none. */
+    public int getTagId( String name ) ;
+
+    /** Returns the name of the tag, or null if there is no such tag. */
+    public String getTagName( int tagId ) ;
+}
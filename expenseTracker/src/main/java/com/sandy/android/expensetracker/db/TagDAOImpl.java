@@ -0,0 +1,61 @@
+package com.sandy.android.expensetracker.db;
+
+import android.content.Context ;
+import android.database.SQLException ;
+import android.database.sqlite.SQLiteDatabase ;
+
+import com.sandy.android.expensetracker.R ;
+import com.sandy.android.expensetracker.util.LogTag ;
+
+/**
+ * A concrete implementation of TagDAO backed up the SQLite database.
+ *
+ *           CREATE TABLE tag (
+ *               _id             INTEGER PRIMARY KEY AUTOINCREMENT,
+ *               name            TEXT    NOT NULL UNIQUE
+ *           )
+ *
+ *           CREATE TABLE expense_item_tag (
+ *               expense_item_id INTEGER NOT NULL REFERENCES expense_item ( _id ),
+ *               tag_id          INTEGER NOT NULL REFERENCES tag ( _id ),
+ *               PRIMARY KEY ( expense_item_id, tag_id )
+ *           )
+ *
+ * The tag table is the dictionary of the tag names. The tags of the expense
+ * items are written and read by the expense item DAO, which translates
+ * between the ids and the names through this DAO. Like the accounts, the
+ * dictionary is kept in memory by a {@link NameDictionary}.
+ *
+ * @author Sandeep Deb
+ */
+class TagDAOImpl implements TagDAO {
+
+    private NameDictionary dictionary = null ;
+
+    public TagDAOImpl( Context context, SQLiteDatabase db ) {
+        dictionary = new NameDictionary( db,
+                         context.getString( R.string.query_select_all_tags ),
+                         context.getString( R.string.query_insert_tag ),
+                         "tag", LogTag.TAG_DAO ) ;
+    }
+
+    @Override
+    public int getTagId( String name ) {
+        return dictionary.getId( name ) ;
+    }
+
+    @Override
+    public String getTagName( int tagId ) {
+        return dictionary.getName( tagId ) ;
+    }
+
+    /**
+     * Returns the identifier of the named tag, creating the tag if it does
+     * not exist. See {@link NameDictionary#getOrCreateId}.
+     *
+     * @throws SQLException If the tag could not be created.
+     */
+    int getOrCreateTagId( String name ) throws SQLException {
+        return dictionary.getOrCreateId( name ) ;
+    }
+}
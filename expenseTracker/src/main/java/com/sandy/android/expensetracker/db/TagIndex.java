@@ -0,0 +1,218 @@
+package com.sandy.android.expensetracker.db;
+
+import java.util.ArrayList ;
+import java.util.Calendar ;
+import java.util.Collection ;
+import java.util.Collections ;
+import java.util.Comparator ;
+import java.util.Date ;
+import java.util.Iterator ;
+import java.util.List ;
+
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.util.IdBitmap ;
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * An in-memory index of the live expense items by tag and by month, which
+ * answers the tag filters - all of some tags and none of others, optionally
+ * within a month - without going to the database.
+ *
+ * The items of each tag and of each month are held as an {@link IdBitmap} of
+ * their ids. A filter is the intersection of the bitmaps of the wanted tags
+ * and the month, smallest first, less the bitmaps of the unwanted tags.
+ * Hence the cost of a filter depends on the sizes of the bitmaps and not on
+ * the number of joins it would take in SQL.
+ *
+ * The index is built once from all the expense items and there after kept
+ * up to date on every insert, update and delete of an expense item. Since
+ * an updated item does not carry its old tags and month, the index also
+ * remembers the tags and the month with which each item is indexed.
+ *
+ * The index is accessed only from the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+public class TagIndex implements ExpenseItemChangeListener {
+
+    /** The values with which an item has been indexed. */
+    private static class Entry {
+        int[] tagIds ;
+        int   month ;
+    }
+
+    private static final int[] NO_TAGS = new int[0] ;
+
+    private static final Comparator<IdBitmap> BY_CARDINALITY =
+                                                  new Comparator<IdBitmap>() {
+        public int compare( IdBitmap lhs, IdBitmap rhs ) {
+            int lhsCount = lhs.getCardinality() ;
+            int rhsCount = rhs.getCardinality() ;
+            return ( lhsCount < rhsCount ) ? -1 : ( lhsCount == rhsCount ? 0 : 1 ) ;
+        }
+    } ;
+
+    private TagDAO tagDAO = null ;
+
+    private IdBitmap              allItems     = new IdBitmap() ;
+    private SparseArray<IdBitmap> itemsByTag   = new SparseArray<IdBitmap>() ;
+    private SparseArray<IdBitmap> itemsByMonth = new SparseArray<IdBitmap>() ;
+    private SparseArray<Entry>    entries      = new SparseArray<Entry>() ;
+
+    private Calendar calendar = Calendar.getInstance() ;
+
+    TagIndex( TagDAO tagDAO, List<ExpenseItem> items ) {
+
+        this.tagDAO = tagDAO ;
+        for( int i=0; i<items.size(); i++ ) {
+            add( items.get( i ) ) ;
+        }
+    }
+
+    /**
+     * Returns the ids of the live expense items which have all the given
+     * tags and none of the excluded ones. If a month is given, only the items
+     * dated in the month of the given date are returned.
+     *
+     * @param allOf  The tags which the items must have, may be empty.
+     * @param noneOf The tags which the items must not have, may be empty.
+     * @param month  Any date in the month to filter on, or null for all time.
+     *
+     * @return A new bitmap, which the caller is free to modify.
+     */
+    public IdBitmap getItemIds( Collection<String> allOf,
+                                Collection<String> noneOf, Date month ) {
+
+        List<IdBitmap> wanted = new ArrayList<IdBitmap>( allOf.size() + 1 ) ;
+
+        for( Iterator<String> it = allOf.iterator(); it.hasNext(); ) {
+            IdBitmap items = itemsByTag.get( tagDAO.getTagId( it.next() ) ) ;
+            if( items == null ) {
+                return new IdBitmap() ;
+            }
+            wanted.add( items ) ;
+        }
+
+        if( month != null ) {
+            IdBitmap items = itemsByMonth.get( getMonthKey( month ) ) ;
+            if( items == null ) {
+                return new IdBitmap() ;
+            }
+            wanted.add( items ) ;
+        }
+
+        IdBitmap result = null ;
+        if( wanted.isEmpty() ) {
+            result = new IdBitmap( allItems ) ;
+        }
+        else {
+            Collections.sort( wanted, BY_CARDINALITY ) ;
+            result = new IdBitmap( wanted.get( 0 ) ) ;
+            for( int i=1; i<wanted.size() && !result.isEmpty(); i++ ) {
+                result = IdBitmap.and( result, wanted.get( i ) ) ;
+            }
+        }
+
+        for( Iterator<String> it = noneOf.iterator(); it.hasNext() && !result.isEmpty(); ) {
+            IdBitmap items = itemsByTag.get( tagDAO.getTagId( it.next() ) ) ;
+            if( items != null ) {
+                result = IdBitmap.andNot( result, items ) ;
+            }
+        }
+        return result ;
+    }
+
+    private void add( ExpenseItem item ) {
+
+        List<String> tags  = item.getTags() ;
+        Entry        entry = new Entry() ;
+
+        entry.month  = getMonthKey( item.getDate() ) ;
+        entry.tagIds = NO_TAGS ;
+        if( tags != null ) {
+            entry.tagIds = new int[tags.size()] ;
+            for( int i=0; i<tags.size(); i++ ) {
+                entry.tagIds[i] = tagDAO.getTagId( tags.get( i ) ) ;
+            }
+        }
+
+        int id = item.getId() ;
+        allItems.add( id ) ;
+        addToBitmap( itemsByMonth, entry.month, id ) ;
+        for( int i=0; i<entry.tagIds.length; i++ ) {
+            addToBitmap( itemsByTag, entry.tagIds[i], id ) ;
+        }
+        entries.put( id, entry ) ;
+    }
+
+    private void remove( int itemId ) {
+
+        int index = entries.indexOfKey( itemId ) ;
+        if( index < 0 ) {
+            return ;
+        }
+
+        Entry entry = entries.valueAt( index ) ;
+        allItems.remove( itemId ) ;
+        removeFromBitmap( itemsByMonth, entry.month, itemId ) ;
+        for( int i=0; i<entry.tagIds.length; i++ ) {
+            removeFromBitmap( itemsByTag, entry.tagIds[i], itemId ) ;
+        }
+        entries.removeAt( index ) ;
+    }
+
+    private static void addToBitmap( SparseArray<IdBitmap> bitmaps, int key, int id ) {
+
+        IdBitmap bitmap = bitmaps.get( key ) ;
+        if( bitmap == null ) {
+            bitmap = new IdBitmap() ;
+            bitmaps.put( key, bitmap ) ;
+        }
+        bitmap.add( id ) ;
+    }
+
+    private static void removeFromBitmap( SparseArray<IdBitmap> bitmaps, int key, int id ) {
+
+        IdBitmap bitmap = bitmaps.get( key ) ;
+        if( bitmap != null ) {
+            bitmap.remove( id ) ;
+            if( bitmap.isEmpty() ) {
+                bitmaps.remove( key ) ;
+            }
+        }
+    }
+
+    /** Returns the months since the year 0 up to the month of the date. */
+    private int getMonthKey( Date date ) {
+        calendar.setTime( date ) ;
+        return calendar.get( Calendar.YEAR ) * 12 + calendar.get( Calendar.MONTH ) ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Expense item change listener methods
+    // -------------------------------------------------------------------------
+    @Override
+    public void expenseItemInserted( ExpenseItem item ) {
+        add( item ) ;
+    }
+
+    @Override
+    public void expenseItemUpdated( ExpenseItem item, Date oldDate ) {
+        remove( item.getId() ) ;
+        add( item ) ;
+    }
+
+    @Override
+    public void expenseItemDeleted( ExpenseItem item ) {
+        remove( item.getId() ) ;
+    }
+
+    @Override
+    public void allExpenseItemsDeleted() {
+        allItems = new IdBitmap() ;
+        itemsByTag.clear() ;
+        itemsByMonth.clear() ;
+        entries.clear() ;
+    }
+}
@@ -0,0 +1,158 @@
+package com.sandy.android.expensetracker.util;
+
+/**
+ * Utility methods for the fixed point amounts. An amount is a long holding
+ * the number of minor units (paise, cents) of the currency, with a fixed
+ * scale of two decimal places irrespective of the currency. Hence 12.50 is
+ * held as 1250.
+ *
+ * The arithmetic on amounts is checked for overflow - an overflow raises an
+ * ArithmeticException instead of silently wrapping around. Math.addExact is
+ * not available on the older platforms and hence the checks are done here.
+ *
+ * Parsing and formatting are done on the digits directly, without going
+ * through BigDecimal or a locale sensitive NumberFormat. The decimal
+ * separator is always a period, which keeps the CSV exports portable.
+ *
+ * @author Sandeep Deb
+ */
+public class Amounts {
+
+    /** The number of minor units in a major unit. */
+    public static final int SCALE = 100 ;
+
+    private static final int NUM_DECIMALS = 2 ;
+
+    private Amounts() {
+    }
+
+    /**
+     * Returns the sum of the given amounts.
+     *
+     * @throws ArithmeticException If the sum overflows a long.
+     */
+    public static long add( long a, long b ) {
+
+        long sum = a + b ;
+
+        // The sum overflows if and only if both the operands have the same
+        // sign and the sum has a different one.
+        if( ( ( a ^ sum ) & ( b ^ sum ) ) < 0 ) {
+            throw new ArithmeticException( "Amount overflow adding " + a +
+                                           " and " + b ) ;
+        }
+        return sum ;
+    }
+
+    /**
+     * Returns the given amount multiplied by the given exchange rate, rounded
+     * to the nearest minor unit.
+     *
+     * @throws ArithmeticException If the result does not fit a long.
+     */
+    public static long convert( long amount, double rate ) {
+
+        double result = amount * rate ;
+        if( Double.isNaN( result ) ||
+            result >= Long.MAX_VALUE || result <= Long.MIN_VALUE ) {
+            throw new ArithmeticException( "Amount overflow converting " +
+                                           amount + " at " + rate ) ;
+        }
+        return Math.round( result ) ;
+    }
+
+    /** Returns the amount for the given number of major units. */
+    public static long fromMajorUnits( long units ) {
+
+        if( units > Long.MAX_VALUE / SCALE || units < Long.MIN_VALUE / SCALE ) {
+            throw new ArithmeticException( "Amount overflow for " + units ) ;
+        }
+        return units * SCALE ;
+    }
+
+    /**
+     * Parses a decimal amount with an optional sign and at most two decimal
+     * places, for example "12", "-3.5" or ".75".
+     *
+     * @throws NumberFormatException If the text is not a valid amount or is
+     *         too large to be held.
+     */
+    public static long parse( String text ) throws NumberFormatException {
+
+        String s = ( text == null ) ? "" : text.trim() ;
+        int    i = 0 ;
+
+        boolean negative = false ;
+        if( s.length() > 0 && ( s.charAt( 0 ) == '-' || s.charAt( 0 ) == '+' ) ) {
+            negative = s.charAt( 0 ) == '-' ;
+            i++ ;
+        }
+
+        long minor     = 0 ;
+        int  numDigits = 0 ;
+        int  decimals  = -1 ;
+
+        for( ; i<s.length(); i++ ) {
+
+            char ch = s.charAt( i ) ;
+            if( ch == '.' && decimals == -1 ) {
+                decimals = 0 ;
+                continue ;
+            }
+            if( ch < '0' || ch > '9' || decimals == NUM_DECIMALS ) {
+                throw new NumberFormatException( "Invalid amount " + text ) ;
+            }
+            if( minor > ( Long.MAX_VALUE - 9 ) / 10 ) {
+                throw new NumberFormatException( "Amount too large " + text ) ;
+            }
+
+            minor = minor * 10 + ( ch - '0' ) ;
+            numDigits++ ;
+            if( decimals != -1 ) {
+                decimals++ ;
+            }
+        }
+
+        if( numDigits == 0 ) {
+            throw new NumberFormatException( "Invalid amount " + text ) ;
+        }
+
+        for( int d=Math.max( decimals, 0 ); d<NUM_DECIMALS; d++ ) {
+            if( minor > Long.MAX_VALUE / 10 ) {
+                throw new NumberFormatException( "Amount too large " + text ) ;
+            }
+            minor *= 10 ;
+        }
+        return negative ? -minor : minor ;
+    }
+
+    /**
+     * Formats the given amount as a decimal. The decimal places are shown
+     * only if the amount has minor units, hence 1250 is formatted as "12.50"
+     * and 1200 as "12".
+     */
+    public static String format( long amount ) {
+
+        StringBuilder buffer = new StringBuilder( 24 ) ;
+
+        // Long.MIN_VALUE has no positive counterpart, hence the major and
+        // minor parts are computed on the negative side.
+        long negated = ( amount > 0 ) ? -amount : amount ;
+        long major   = -( negated / SCALE ) ;
+        int  minor   = ( int )-( negated % SCALE ) ;
+
+        if( amount < 0 ) {
+            buffer.append( '-' ) ;
+        }
+        buffer.append( major ) ;
+
+        if( minor != 0 ) {
+            buffer.append( '.' ) ;
+            if( minor < 10 ) {
+                buffer.append( '0' ) ;
+            }
+            buffer.append( minor ) ;
+        }
+        return buffer.toString() ;
+    }
+}
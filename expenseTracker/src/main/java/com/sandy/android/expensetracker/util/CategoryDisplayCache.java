@@ -0,0 +1,162 @@
+package com.sandy.android.expensetracker.util;
+
+import java.util.ArrayList ;
+import java.util.Collections ;
+import java.util.List ;
+
+import android.util.Log ;
+import android.util.SparseArray ;
+import android.util.SparseIntArray ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+import com.sandy.android.expensetracker.db.CategoryDAO ;
+import com.sandy.android.expensetracker.db.DAOManager ;
+
+/**
+ * An application wide cache of the display models of categories and sub
+ * categories. A display model is an immutable snapshot of the identifiers
+ * of a list (in their sequence order) along with their resolved names.
+ *
+ * The expense entry screen is opened for every expense captured. Instead of
+ * resolving the category and sub category names on every launch, the screen
+ * builds its spinner adapters from these cached models. The cache is
+ * validated against {@link CategoryDAO#getVersion()} on every access and is
+ * discarded only when the categories or sub categories have been modified.
+ *
+ * Note that the cache does not hold any view or activity references and
+ * hence can safely outlive the activities using it. The cache is expected
+ * to be accessed only from the UI thread.
+ *
+ * @author Sandeep Deb
+ */
+public class CategoryDisplayCache {
+
+    /** An immutable list of identifiers and their display names. */
+    public static class DisplayList {
+
+        private List<Integer>  ids       = null ;
+        private String[]       names     = null ;
+        private SparseIntArray positions = new SparseIntArray() ;
+
+        DisplayList( List<Integer> idList, String[] names ) {
+
+            this.ids   = Collections.unmodifiableList( new ArrayList<Integer>( idList ) ) ;
+            this.names = names ;
+
+            for( int i=0; i<names.length; i++ ) {
+                positions.put( idList.get( i ), i ) ;
+            }
+        }
+
+        /** Returns the identifiers in their display order. */
+        public List<Integer> getIds() {
+            return ids ;
+        }
+
+        public int size() {
+            return names.length ;
+        }
+
+        /** Returns the display name of the item at the given position. */
+        public String getName( int position ) {
+            return names[position] ;
+        }
+
+        /** Returns the position of the given identifier, or -1. */
+        public int getPosition( int id ) {
+            return positions.get( id, -1 ) ;
+        }
+    }
+
+    private static CategoryDisplayCache instance = new CategoryDisplayCache() ;
+
+    private CategoryDAO              catDAO        = null ;
+    private int                      version       = 0 ;
+    private DisplayList              categories    = null ;
+    private SparseArray<DisplayList> subCategories = new SparseArray<DisplayList>() ;
+
+    private CategoryDisplayCache() {
+    }
+
+    public static CategoryDisplayCache getInstance() {
+        return instance ;
+    }
+
+    /** Returns the display model of all the categories. */
+    public DisplayList getCategories() {
+
+        validate() ;
+        if( categories == null ) {
+
+            List<Integer> catIds = catDAO.getCategoryIds() ;
+            String[]      names  = new String[catIds.size()] ;
+
+            for( int i=0; i<names.length; i++ ) {
+                names[i] = catDAO.getCategoryName( catIds.get( i ) ) ;
+                if( names[i] == null ) names[i] = "<Unknown Category>" ;
+            }
+            categories = new DisplayList( catIds, names ) ;
+        }
+        return categories ;
+    }
+
+    /**
+     * Returns the display model of the sub categories of the given category.
+     * The sub category tree is listed depth first and the names of the 
+     * nested sub categories are indented by their depth.
+     */
+    public DisplayList getSubCategories( int catId ) {
+
+        validate() ;
+        DisplayList subCats = subCategories.get( catId ) ;
+        if( subCats == null ) {
+
+            List<Integer> subCatIds = catDAO.getSubCategoryIds( catId ) ;
+            if( subCatIds == null ) {
+                subCatIds = Collections.emptyList() ;
+            }
+
+            String[] names = new String[subCatIds.size()] ;
+            for( int i=0; i<names.length; i++ ) {
+                names[i] = catDAO.getSubCategoryName( subCatIds.get( i ) ) ;
+                if( names[i] == null ) names[i] = "<Unknown Sub-Category>" ;
+                names[i] = indent( names[i], catDAO.getSubCategoryDepth( subCatIds.get( i ) ) ) ;
+            }
+            subCats = new DisplayList( subCatIds, names ) ;
+            subCategories.put( catId, subCats ) ;
+        }
+        return subCats ;
+    }
+
+    /** Returns the given name indented for the given depth in a tree. */
+    public static String indent( String name, int depth ) {
+
+        if( depth <= 0 || name == null ) {
+            return name ;
+        }
+        StringBuilder buffer = new StringBuilder( name.length() + depth * 4 ) ;
+        for( int i=0; i<depth; i++ ) {
+            buffer.append( "    " ) ;
+        }
+        return buffer.append( name ).toString() ;
+    }
+
+    /**
+     * Discards the cached models if the category data has changed since they
+     * were built, or if the DAO itself has been recreated.
+     */
+    private void validate() {
+
+        CategoryDAO dao = DAOManager.getInstance().getCategoryDAO() ;
+        if( dao != catDAO || dao.getVersion() != version ) {
+
+            if( BuildConfig.DEBUG ) {
+                Log.d( LogTag.CATEGORY_DAO, "Category display models invalidated" ) ;
+            }
+            catDAO     = dao ;
+            version    = dao.getVersion() ;
+            categories = null ;
+            subCategories.clear() ;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.sandy.android.expensetracker.util;
+
+import java.text.SimpleDateFormat ;
+import java.util.Date ;
+import java.util.Locale ;
+import java.util.TimeZone ;
+
+import android.util.SparseArray ;
+
+/**
+ * A cache of formatted date labels, keyed by the local calendar day of the
+ * date being formatted. Expense items are captured at a day granularity and
+ * hundreds of them share the same day, so formatting each one through a
+ * SimpleDateFormat is wasteful. The label for a day is formatted once and
+ * served from the cache there after.
+ *
+ * Note that SimpleDateFormat is not thread safe and hence instances of this
+ * class are expected to be confined to the thread which uses them (usually
+ * the UI thread). Each user of this class should own its own instance.
+ *
+ * @author Sandeep Deb
+ */
+public class DayLabelCache {
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000 ;
+
+    private SimpleDateFormat    sdf    = null ;
+    private TimeZone            tz     = TimeZone.getDefault() ;
+    private SparseArray<String> labels = new SparseArray<String>() ;
+
+    /**
+     * Constructor.
+     *
+     * @param pattern The SimpleDateFormat pattern for the labels. The pattern
+     *        should not have a granularity finer than a day.
+     */
+    public DayLabelCache( String pattern ) {
+        this.sdf = new SimpleDateFormat( pattern, Locale.US ) ;
+    }
+
+    /** Returns the formatted label for the day on which the given date falls. */
+    public String getLabel( Date date ) {
+
+        int    dayKey = getDayKey( date.getTime() ) ;
+        String label  = labels.get( dayKey ) ;
+
+        if( label == null ) {
+            label = sdf.format( date ) ;
+            labels.put( dayKey, label ) ;
+        }
+        return label ;
+    }
+
+    /** Discards all the cached labels. */
+    public void clear() {
+        labels.clear() ;
+    }
+
+    private int getDayKey( long time ) {
+        return getDayKey( time, tz ) ;
+    }
+
+    /**
+     * Returns the number of days since epoch, in the given time zone, for
+     * the given time. Two times on the same calendar day of the time zone
+     * will always return the same key.
+     */
+    public static int getDayKey( long time, TimeZone tz ) {
+
+        long localTime = time + tz.getOffset( time ) ;
+        long day = localTime / MILLIS_PER_DAY ;
+        if( localTime < 0 && ( localTime % MILLIS_PER_DAY ) != 0 ) {
+            day-- ;
+        }
+        return ( int )day ;
+    }
+}
@@ -16,6 +16,7 @@ import android.util.Log ;
 import com.sandy.android.expensetracker.db.CategoryDAO ;
 import com.sandy.android.expensetracker.db.DAOManager ;
 import com.sandy.android.expensetracker.vo.ExpenseItem ;
+import com.sandy.android.expensetracker.vo.ExpenseSplit ;
 
 /**
  * This utility class is used to export the expense data to a CSV file in the
@@ -65,7 +66,6 @@ public class ExpenseCSVExporter {
             
             for( ExpenseItem item : expenseItems ) {
                 writeExpenseItem( item, writer ) ;
-                writer.append( EOL ) ;
             }
             
             writer.flush() ;
@@ -89,26 +89,49 @@ public class ExpenseCSVExporter {
     }
     
     /**
-     * Writes an expense item by converting into a CSV encoded item row. The
-     * columns that would be exported are
+     * Writes an expense item by converting into CSV encoded item rows. An
+     * item which is not split is written as one row. A split item is written
+     * as one row per split, with the category, sub category and amount of 
+     * the split, so that every part of the bill is booked where it belongs.
+     * The columns that would be exported are
      * 
      * 1. date in mm/dd/yyyy format
      * 2. category
      * 3. paid by
      * 4. sub category
-     * 5. amount
+     * 5. amount, of the split for a split item
      * 6. description
+     * 7. currency of the amount
      */
     private void writeExpenseItem( ExpenseItem item, BufferedWriter writer ) 
         throws Exception {
 
+        List<ExpenseSplit> splits = item.getSplits() ;
+        if( splits == null ) {
+            writeRow( item, item.getCatId(), item.getSubCatId(), 
+                      item.getAmount(), writer ) ;
+            return ;
+        }
+        
+        for( int i=0; i<splits.size(); i++ ) {
+            ExpenseSplit split = splits.get( i ) ;
+            writeRow( item, split.getCatId(), split.getSubCatId(), 
+                      split.getAmount(), writer ) ;
+        }
+    }
+    
+    /** Writes a row of the given item with the given attribution. */
+    private void writeRow( ExpenseItem item, int catId, int subCatId, 
+                           long amount, BufferedWriter writer ) 
+        throws Exception {
+
         String catName = null ;
         String subCatName = null ;
         
-        catName = catDAO.getCategoryName( item.getCatId() ) ;
+        catName = catDAO.getCategoryName( catId ) ;
         if( catName == null ) catName = "<Unknown Category>" ;
         
-        subCatName = catDAO.getSubCategoryName( item.getSubCatId() ) ;
+        subCatName = catDAO.getSubCategoryName( subCatId ) ;
         if( subCatName == null ) subCatName = "<Unknown Sub-Category>" ;
         
         StringBuffer buffer = new StringBuffer() ;
@@ -121,10 +144,12 @@ public class ExpenseCSVExporter {
         buffer.append( "," ) ;
         buffer.append( quoter.doQuoting( subCatName ) ) ;
         buffer.append( "," ) ;
-        buffer.append( quoter.doQuoting( "" + item.getAmount() ) ) ;
+        buffer.append( quoter.doQuoting( Amounts.format( amount ) ) ) ;
         buffer.append( "," ) ;
         buffer.append( quoter.doQuoting( item.getDescription() ) ) ;
-        
+        buffer.append( "," ) ;
+        buffer.append( quoter.doQuoting( item.getCurrency() ) ) ;
+        buffer.append( EOL ) ;
         
         writer.write( buffer.toString() ) ;
     }
@@ -0,0 +1,531 @@
+package com.sandy.android.expensetracker.util;
+
+import java.util.Arrays ;
+
+/**
+ * A compressed set of non negative integer identifiers, laid out the way a
+ * roaring bitmap is. The identifiers are partitioned by their high 16 bits
+ * into containers. A container holding few identifiers is a sorted array of
+ * their low 16 bits, and one holding more than {@link #ARRAY_MAX} is a plain
+ * bitmap of 65536 bits. Hence a sparse set costs two bytes an identifier and
+ * a dense one an eighth of a byte, and the set operations work a container
+ * at a time on either arrays or machine words.
+ *
+ * The set operations return new bitmaps and leave their operands alone.
+ * Instances are not thread safe.
+ *
+ * @author Sandeep Deb
+ */
+public class IdBitmap {
+
+    /** The largest number of identifiers held in an array container. */
+    static final int ARRAY_MAX = 4096 ;
+
+    private static final int BITMAP_WORDS = 1024 ;
+
+    // The high 16 bits of the identifiers in each container, sorted, and
+    // the containers - a char[] or a long[BITMAP_WORDS] - with the number of
+    // identifiers in them.
+    private int      numContainers = 0 ;
+    private char[]   keys          = new char[4] ;
+    private Object[] containers    = new Object[4] ;
+    private int[]    cardinalities = new int[4] ;
+
+    public IdBitmap() {
+    }
+
+    /** Creates a copy of the given bitmap. */
+    public IdBitmap( IdBitmap other ) {
+
+        int capacity = Math.max( other.numContainers, 4 ) ;
+        keys          = Arrays.copyOf( other.keys, capacity ) ;
+        containers    = new Object[capacity] ;
+        cardinalities = Arrays.copyOf( other.cardinalities, capacity ) ;
+        numContainers = other.numContainers ;
+
+        for( int i=0; i<numContainers; i++ ) {
+            containers[i] = copy( other.containers[i] ) ;
+        }
+    }
+
+    /** Returns the union of the given bitmaps. */
+    public static IdBitmap or( IdBitmap a, IdBitmap b ) {
+
+        IdBitmap result = new IdBitmap() ;
+        int i = 0, j = 0 ;
+
+        while( i < a.numContainers || j < b.numContainers ) {
+
+            int keyA = ( i < a.numContainers ) ? a.keys[i] : Integer.MAX_VALUE ;
+            int keyB = ( j < b.numContainers ) ? b.keys[j] : Integer.MAX_VALUE ;
+
+            if( keyA < keyB ) {
+                result.append( a.keys[i], copy( a.containers[i] ), a.cardinalities[i] ) ;
+                i++ ;
+            }
+            else if( keyB < keyA ) {
+                result.append( b.keys[j], copy( b.containers[j] ), b.cardinalities[j] ) ;
+                j++ ;
+            }
+            else {
+                result.appendUnion( a.keys[i], a.containers[i], a.cardinalities[i],
+                                    b.containers[j], b.cardinalities[j] ) ;
+                i++ ;
+                j++ ;
+            }
+        }
+        return result ;
+    }
+
+    /** Returns the intersection of the given bitmaps. */
+    public static IdBitmap and( IdBitmap a, IdBitmap b ) {
+
+        IdBitmap result = new IdBitmap() ;
+        int i = 0, j = 0 ;
+
+        while( i < a.numContainers && j < b.numContainers ) {
+            if( a.keys[i] < b.keys[j] ) {
+                i++ ;
+            }
+            else if( b.keys[j] < a.keys[i] ) {
+                j++ ;
+            }
+            else {
+                result.appendIntersection( a.keys[i], a.containers[i], a.cardinalities[i],
+                                           b.containers[j], b.cardinalities[j] ) ;
+                i++ ;
+                j++ ;
+            }
+        }
+        return result ;
+    }
+
+    /** Returns the identifiers in the first bitmap and not in the second. */
+    public static IdBitmap andNot( IdBitmap a, IdBitmap b ) {
+
+        IdBitmap result = new IdBitmap() ;
+        int j = 0 ;
+
+        for( int i=0; i<a.numContainers; i++ ) {
+
+            while( j < b.numContainers && b.keys[j] < a.keys[i] ) {
+                j++ ;
+            }
+            if( j < b.numContainers && b.keys[j] == a.keys[i] ) {
+                result.appendDifference( a.keys[i], a.containers[i], a.cardinalities[i],
+                                         b.containers[j], b.cardinalities[j] ) ;
+            }
+            else {
+                result.append( a.keys[i], copy( a.containers[i] ), a.cardinalities[i] ) ;
+            }
+        }
+        return result ;
+    }
+
+    /** Adds the given identifier, which must not be negative. */
+    public void add( int id ) {
+
+        char key   = ( char )( id >>> 16 ) ;
+        char low   = ( char )id ;
+        int  index = indexOf( key ) ;
+
+        if( index < 0 ) {
+            index = -index - 1 ;
+            insertContainer( index, key, new char[4], 0 ) ;
+        }
+
+        Object container = containers[index] ;
+        int    count     = cardinalities[index] ;
+
+        if( container instanceof long[] ) {
+            long[] words = ( long[] )container ;
+            long   mask  = 1L << low ;
+            if( ( words[low >>> 6] & mask ) == 0 ) {
+                words[low >>> 6] |= mask ;
+                cardinalities[index]++ ;
+            }
+            return ;
+        }
+
+        char[] values = ( char[] )container ;
+        int    pos    = Arrays.binarySearch( values, 0, count, low ) ;
+        if( pos >= 0 ) {
+            return ;
+        }
+        pos = -pos - 1 ;
+
+        if( count == ARRAY_MAX ) {
+            long[] words = toWords( values, count ) ;
+            words[low >>> 6] |= 1L << low ;
+            containers[index]    = words ;
+            cardinalities[index] = count + 1 ;
+            return ;
+        }
+
+        if( count == values.length ) {
+            values = Arrays.copyOf( values, Math.min( ARRAY_MAX, count * 2 ) ) ;
+            containers[index] = values ;
+        }
+        System.arraycopy( values, pos, values, pos + 1, count - pos ) ;
+        values[pos] = low ;
+        cardinalities[index] = count + 1 ;
+    }
+
+    /** Removes the given identifier, if present. */
+    public void remove( int id ) {
+
+        int index = indexOf( ( char )( id >>> 16 ) ) ;
+        if( index < 0 ) {
+            return ;
+        }
+
+        char   low       = ( char )id ;
+        Object container = containers[index] ;
+        int    count     = cardinalities[index] ;
+
+        if( container instanceof long[] ) {
+            long[] words = ( long[] )container ;
+            long   mask  = 1L << low ;
+            if( ( words[low >>> 6] & mask ) == 0 ) {
+                return ;
+            }
+            words[low >>> 6] &= ~mask ;
+            count-- ;
+            if( count <= ARRAY_MAX ) {
+                containers[index] = toValues( words, count ) ;
+            }
+        }
+        else {
+            char[] values = ( char[] )container ;
+            int    pos    = Arrays.binarySearch( values, 0, count, low ) ;
+            if( pos < 0 ) {
+                return ;
+            }
+            System.arraycopy( values, pos + 1, values, pos, count - pos - 1 ) ;
+            count-- ;
+        }
+
+        if( count == 0 ) {
+            removeContainer( index ) ;
+        }
+        else {
+            cardinalities[index] = count ;
+        }
+    }
+
+    /** Returns true if the given identifier is present. */
+    public boolean contains( int id ) {
+
+        int index = indexOf( ( char )( id >>> 16 ) ) ;
+        if( index < 0 || id < 0 ) {
+            return false ;
+        }
+
+        char   low       = ( char )id ;
+        Object container = containers[index] ;
+
+        if( container instanceof long[] ) {
+            return ( ( ( long[] )container )[low >>> 6] & ( 1L << low ) ) != 0 ;
+        }
+        return Arrays.binarySearch( ( char[] )container, 0,
+                                    cardinalities[index], low ) >= 0 ;
+    }
+
+    /** Returns the number of identifiers. */
+    public int getCardinality() {
+
+        int cardinality = 0 ;
+        for( int i=0; i<numContainers; i++ ) {
+            cardinality += cardinalities[i] ;
+        }
+        return cardinality ;
+    }
+
+    public boolean isEmpty() {
+        return numContainers == 0 ;
+    }
+
+    /** Returns the identifiers in ascending order. */
+    public int[] toArray() {
+
+        int[] ids = new int[getCardinality()] ;
+        int   pos = 0 ;
+
+        for( int i=0; i<numContainers; i++ ) {
+
+            int    high      = keys[i] << 16 ;
+            Object container = containers[i] ;
+
+            if( container instanceof long[] ) {
+                long[] words = ( long[] )container ;
+                for( int w=0; w<BITMAP_WORDS; w++ ) {
+                    long word = words[w] ;
+                    while( word != 0 ) {
+                        ids[pos++] = high | ( w << 6 ) | Long.numberOfTrailingZeros( word ) ;
+                        word &= word - 1 ;
+                    }
+                }
+            }
+            else {
+                char[] values = ( char[] )container ;
+                for( int v=0; v<cardinalities[i]; v++ ) {
+                    ids[pos++] = high | values[v] ;
+                }
+            }
+        }
+        return ids ;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString( toArray() ) ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Container operations
+    // -------------------------------------------------------------------------
+    private void appendUnion( char key, Object a, int countA, Object b, int countB ) {
+
+        if( a instanceof long[] || b instanceof long[] ) {
+
+            long[] words = ( a instanceof long[] ) ? ( ( long[] )a ).clone() :
+                                                      toWords( ( char[] )a, countA ) ;
+            if( b instanceof long[] ) {
+                long[] otherWords = ( long[] )b ;
+                for( int w=0; w<BITMAP_WORDS; w++ ) {
+                    words[w] |= otherWords[w] ;
+                }
+            }
+            else {
+                char[] values = ( char[] )b ;
+                for( int v=0; v<countB; v++ ) {
+                    words[values[v] >>> 6] |= 1L << values[v] ;
+                }
+            }
+            append( key, words, bitCount( words ) ) ;
+            return ;
+        }
+
+        char[] x = ( char[] )a ;
+        char[] y = ( char[] )b ;
+        char[] values = new char[countA + countB] ;
+        int i = 0, j = 0, n = 0 ;
+
+        while( i < countA && j < countB ) {
+            if( x[i] < y[j] ) {
+                values[n++] = x[i++] ;
+            }
+            else if( y[j] < x[i] ) {
+                values[n++] = y[j++] ;
+            }
+            else {
+                values[n++] = x[i++] ;
+                j++ ;
+            }
+        }
+        while( i < countA ) {
+            values[n++] = x[i++] ;
+        }
+        while( j < countB ) {
+            values[n++] = y[j++] ;
+        }
+
+        if( n > ARRAY_MAX ) {
+            append( key, toWords( values, n ), n ) ;
+        }
+        else {
+            append( key, values, n ) ;
+        }
+    }
+
+    private void appendIntersection( char key, Object a, int countA,
+                                     Object b, int countB ) {
+
+        if( a instanceof long[] && b instanceof long[] ) {
+            long[] x     = ( long[] )a ;
+            long[] y     = ( long[] )b ;
+            long[] words = new long[BITMAP_WORDS] ;
+            for( int w=0; w<BITMAP_WORDS; w++ ) {
+                words[w] = x[w] & y[w] ;
+            }
+            appendWords( key, words ) ;
+            return ;
+        }
+
+        if( a instanceof long[] || b instanceof long[] ) {
+            // Probe the bitmap with the array
+            long[] words  = ( long[] )( ( a instanceof long[] ) ? a : b ) ;
+            char[] values = ( char[] )( ( a instanceof long[] ) ? b : a ) ;
+            int    count  = ( a instanceof long[] ) ? countB : countA ;
+            char[] result = new char[count] ;
+            int    n      = 0 ;
+
+            for( int v=0; v<count; v++ ) {
+                if( ( words[values[v] >>> 6] & ( 1L << values[v] ) ) != 0 ) {
+                    result[n++] = values[v] ;
+                }
+            }
+            append( key, result, n ) ;
+            return ;
+        }
+
+        char[] x = ( char[] )a ;
+        char[] y = ( char[] )b ;
+        char[] result = new char[Math.min( countA, countB )] ;
+        int i = 0, j = 0, n = 0 ;
+
+        while( i < countA && j < countB ) {
+            if( x[i] < y[j] ) {
+                i++ ;
+            }
+            else if( y[j] < x[i] ) {
+                j++ ;
+            }
+            else {
+                result[n++] = x[i++] ;
+                j++ ;
+            }
+        }
+        append( key, result, n ) ;
+    }
+
+    private void appendDifference( char key, Object a, int countA,
+                                   Object b, int countB ) {
+
+        if( a instanceof long[] ) {
+            long[] words = ( ( long[] )a ).clone() ;
+            if( b instanceof long[] ) {
+                long[] y = ( long[] )b ;
+                for( int w=0; w<BITMAP_WORDS; w++ ) {
+                    words[w] &= ~y[w] ;
+                }
+            }
+            else {
+                char[] values = ( char[] )b ;
+                for( int v=0; v<countB; v++ ) {
+                    words[values[v] >>> 6] &= ~( 1L << values[v] ) ;
+                }
+            }
+            appendWords( key, words ) ;
+            return ;
+        }
+
+        char[] x      = ( char[] )a ;
+        char[] result = new char[countA] ;
+        int    n      = 0 ;
+
+        if( b instanceof long[] ) {
+            long[] words = ( long[] )b ;
+            for( int i=0; i<countA; i++ ) {
+                if( ( words[x[i] >>> 6] & ( 1L << x[i] ) ) == 0 ) {
+                    result[n++] = x[i] ;
+                }
+            }
+        }
+        else {
+            char[] y = ( char[] )b ;
+            int    j = 0 ;
+            for( int i=0; i<countA; i++ ) {
+                while( j < countB && y[j] < x[i] ) {
+                    j++ ;
+                }
+                if( j == countB || y[j] != x[i] ) {
+                    result[n++] = x[i] ;
+                }
+            }
+        }
+        append( key, result, n ) ;
+    }
+
+    /** Appends a bitmap container, as an array if it has become sparse. */
+    private void appendWords( char key, long[] words ) {
+
+        int count = bitCount( words ) ;
+        if( count <= ARRAY_MAX ) {
+            append( key, toValues( words, count ), count ) ;
+        }
+        else {
+            append( key, words, count ) ;
+        }
+    }
+
+    /** Appends a container with a key larger than the existing ones. */
+    private void append( char key, Object container, int count ) {
+        if( count > 0 ) {
+            insertContainer( numContainers, key, container, count ) ;
+        }
+    }
+
+    private void insertContainer( int index, char key, Object container, int count ) {
+
+        if( numContainers == keys.length ) {
+            int capacity  = numContainers * 2 ;
+            keys          = Arrays.copyOf( keys, capacity ) ;
+            containers    = Arrays.copyOf( containers, capacity ) ;
+            cardinalities = Arrays.copyOf( cardinalities, capacity ) ;
+        }
+
+        int numMoved = numContainers - index ;
+        System.arraycopy( keys, index, keys, index + 1, numMoved ) ;
+        System.arraycopy( containers, index, containers, index + 1, numMoved ) ;
+        System.arraycopy( cardinalities, index, cardinalities, index + 1, numMoved ) ;
+
+        keys[index]          = key ;
+        containers[index]    = container ;
+        cardinalities[index] = count ;
+        numContainers++ ;
+    }
+
+    private void removeContainer( int index ) {
+
+        int numMoved = numContainers - index - 1 ;
+        System.arraycopy( keys, index + 1, keys, index, numMoved ) ;
+        System.arraycopy( containers, index + 1, containers, index, numMoved ) ;
+        System.arraycopy( cardinalities, index + 1, cardinalities, index, numMoved ) ;
+
+        numContainers-- ;
+        containers[numContainers] = null ;
+    }
+
+    private int indexOf( char key ) {
+        return Arrays.binarySearch( keys, 0, numContainers, key ) ;
+    }
+
+    private static Object copy( Object container ) {
+        return ( container instanceof long[] ) ? ( ( long[] )container ).clone() :
+                                                 ( ( char[] )container ).clone() ;
+    }
+
+    private static long[] toWords( char[] values, int count ) {
+
+        long[] words = new long[BITMAP_WORDS] ;
+        for( int v=0; v<count; v++ ) {
+            words[values[v] >>> 6] |= 1L << values[v] ;
+        }
+        return words ;
+    }
+
+    private static char[] toValues( long[] words, int count ) {
+
+        char[] values = new char[Math.max( count, 4 )] ;
+        int    n      = 0 ;
+
+        for( int w=0; w<BITMAP_WORDS; w++ ) {
+            long word = words[w] ;
+            while( word != 0 ) {
+                values[n++] = ( char )( ( w << 6 ) | Long.numberOfTrailingZeros( word ) ) ;
+                word &= word - 1 ;
+            }
+        }
+        return values ;
+    }
+
+    private static int bitCount( long[] words ) {
+
+        int count = 0 ;
+        for( int w=0; w<BITMAP_WORDS; w++ ) {
+            count += Long.bitCount( words[w] ) ;
+        }
+        return count ;
+    }
+}
@@ -13,6 +13,15 @@ public interface LogTag {
     public final String DB_HELPER             = "DBHelper" ;
     public final String EXPENSE_ITEM_DAO      = "ExpenseItem DAO" ;
     public final String CATEGORY_DAO          = "Category DAO" ;
+    public final String RECURRING_EXPENSE_DAO = "RecurringExpense DAO" ;
+    public final String EXCHANGE_RATE_DAO     = "ExchangeRate DAO" ;
+    public final String ACCOUNT_DAO           = "Account DAO" ;
+    public final String TAG_DAO               = "Tag DAO" ;
+    public final String DB_MAINTENANCE        = "DB Maintenance" ;
+    public final String INTEGRITY             = "Integrity" ;
 
     public final String CSV_EXPORTER          = "CSV Exporter" ;
+    
+    public final String BENCHMARK             = "Benchmark" ;
+    public final String STARTUP               = "Startup" ;
 }
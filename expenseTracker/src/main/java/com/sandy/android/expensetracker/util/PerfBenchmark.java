@@ -0,0 +1,292 @@
+package com.sandy.android.expensetracker.util;
+
+import java.io.ByteArrayInputStream ;
+import java.io.ByteArrayOutputStream ;
+import java.io.IOException ;
+import java.io.ObjectInputStream ;
+import java.io.ObjectOutputStream ;
+import java.io.Serializable ;
+import java.util.Date ;
+import java.util.HashMap ;
+import java.util.Map ;
+
+import android.os.Parcel ;
+import android.os.SystemClock ;
+import android.util.Log ;
+import android.util.SparseArray ;
+
+import com.sandy.android.expensetracker.vo.ExpenseItem ;
+
+/**
+ * A collection of micro benchmarks which compare the data structures used
+ * by the application against their alternatives. The benchmarks are meant
+ * to be run on a device in a debug build and their results are written to
+ * the log under the {@link LogTag#BENCHMARK} tag.
+ *
+ * The benchmarks are run only if the log tag is enabled, for example:
+ *
+ *     adb shell setprop log.tag.Benchmark DEBUG
+ *
+ * Note that the numbers are indicative. They are influenced by the JIT,
+ * garbage collection and whatever else the device is doing at that point in
+ * time. Compare numbers only from the same run.
+ *
+ * @author Sandeep Deb
+ */
+public class PerfBenchmark {
+
+    private static final int WARMUP_ROUNDS  = 3 ;
+    private static final int MEASURE_ROUNDS = 10 ;
+    private static final int LOOKUPS        = 100000 ;
+    private static final int ROUND_TRIPS    = 1000 ;
+
+    // Keep the results of the lookups reachable so that the lookups are not
+    // optimized away.
+    private static int sink = 0 ;
+
+    /** Returns true if the benchmarks have been enabled on this device. */
+    public static boolean isEnabled() {
+        return Log.isLoggable( LogTag.BENCHMARK, Log.DEBUG ) ;
+    }
+
+    /** Runs all the benchmarks on a low priority background thread. */
+    public static void runInBackground() {
+
+        Thread t = new Thread( "PerfBenchmark" ) {
+            public void run() {
+                try {
+                    runAll() ;
+                }
+                catch( Exception e ) {
+                    Log.e( LogTag.BENCHMARK, "Benchmark failed", e ) ;
+                }
+            }
+        } ;
+        t.setPriority( Thread.MIN_PRIORITY ) ;
+        t.start() ;
+    }
+
+    /** Runs all the benchmarks in the calling thread. */
+    public static void runAll() {
+
+        // A typical installation has about 15 categories and 150 sub
+        // categories. The bigger sizes show how the structures scale.
+        benchmarkNameLookup( 150 ) ;
+        benchmarkNameLookup( 2000 ) ;
+        
+        benchmarkItemHandoff() ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Category cache - boxed HashMap versus SparseArray
+    // -------------------------------------------------------------------------
+    /**
+     * Compares the lookup throughput and retained heap of an id to name
+     * map implemented as HashMap<Integer, String> and SparseArray<String>.
+     *
+     * The identifiers are generated with holes, similar to auto increment
+     * identifiers after a few removals.
+     */
+    private static void benchmarkNameLookup( int numEntries ) {
+
+        int[]    ids   = new int[numEntries] ;
+        String[] names = new String[numEntries] ;
+
+        for( int i=0; i<numEntries; i++ ) {
+            ids[i]   = i*3 + 1 ;
+            names[i] = "Name " + i ;
+        }
+
+        // Lookup keys spread over the whole id range, including misses
+        int[] keys = new int[LOOKUPS] ;
+        for( int i=0; i<LOOKUPS; i++ ) {
+            keys[i] = ( int )( ( i * 2654435761L ) % ( numEntries*3 ) ) ;
+        }
+
+        long hashMapHeap = usedHeap() ;
+        Map<Integer, String> hashMap = new HashMap<Integer, String>() ;
+        for( int i=0; i<numEntries; i++ ) {
+            hashMap.put( ids[i], names[i] ) ;
+        }
+        hashMapHeap = usedHeap() - hashMapHeap ;
+
+        long sparseHeap = usedHeap() ;
+        SparseArray<String> sparseArray = new SparseArray<String>() ;
+        for( int i=0; i<numEntries; i++ ) {
+            sparseArray.put( ids[i], names[i] ) ;
+        }
+        sparseHeap = usedHeap() - sparseHeap ;
+
+        for( int i=0; i<WARMUP_ROUNDS; i++ ) {
+            lookupHashMap( hashMap, keys ) ;
+            lookupSparseArray( sparseArray, keys ) ;
+        }
+
+        long hashMapNanos = 0 ;
+        long sparseNanos  = 0 ;
+        for( int i=0; i<MEASURE_ROUNDS; i++ ) {
+            hashMapNanos += lookupHashMap( hashMap, keys ) ;
+            sparseNanos  += lookupSparseArray( sparseArray, keys ) ;
+        }
+
+        long totalLookups = ( long )LOOKUPS * MEASURE_ROUNDS ;
+
+        Log.d( LogTag.BENCHMARK, "Name lookup, " + numEntries + " entries" ) ;
+        Log.d( LogTag.BENCHMARK, "  HashMap<Integer,String> : " +
+               ( hashMapNanos / totalLookups ) + " ns/lookup, ~" +
+               hashMapHeap + " bytes" ) ;
+        Log.d( LogTag.BENCHMARK, "  SparseArray<String>     : " +
+               ( sparseNanos / totalLookups ) + " ns/lookup, ~" +
+               sparseHeap + " bytes" ) ;
+    }
+
+    private static long lookupHashMap( Map<Integer, String> map, int[] keys ) {
+
+        long start = SystemClock.elapsedRealtimeNanos() ;
+        for( int i=0; i<keys.length; i++ ) {
+            String name = map.get( keys[i] ) ;
+            if( name != null ) sink++ ;
+        }
+        return SystemClock.elapsedRealtimeNanos() - start ;
+    }
+
+    private static long lookupSparseArray( SparseArray<String> map, int[] keys ) {
+
+        long start = SystemClock.elapsedRealtimeNanos() ;
+        for( int i=0; i<keys.length; i++ ) {
+            String name = map.get( keys[i] ) ;
+            if( name != null ) sink++ ;
+        }
+        return SystemClock.elapsedRealtimeNanos() - start ;
+    }
+
+    // -------------------------------------------------------------------------
+    // Expense item handoff - Parcelable versus Serializable
+    // -------------------------------------------------------------------------
+    /**
+     * The serializable equivalent of an expense item, as it was passed 
+     * between activities before the expense item became parcelable.
+     */
+    private static class SerializableExpenseItem implements Serializable {
+        
+        private static final long serialVersionUID = 1L ;
+        
+        int    id          = 0 ;
+        Date   date        = null ;
+        int    catId       = 0 ;
+        int    subCatId    = 0 ;
+        String paidBy      = null ;
+        long   amount      = 0 ;
+        String description = null ;
+    }
+    
+    /**
+     * Compares the cost of a round trip of an expense item through an 
+     * intent, that is marshalling the item to bytes and back, using the 
+     * Parcelable and the Serializable encodings.
+     */
+    private static void benchmarkItemHandoff() {
+        
+        ExpenseItem item = new ExpenseItem() ;
+        item.setId( 1234 ) ;
+        item.setCatId( 12 ) ;
+        item.setSubCatId( 120 ) ;
+        item.setPaidBy( "Sandeep" ) ;
+        item.setAmount( 45000 ) ;
+        item.setDescription( "Groceries from the corner store" ) ;
+        
+        SerializableExpenseItem serItem = new SerializableExpenseItem() ;
+        serItem.id          = item.getId() ;
+        serItem.date        = item.getDate() ;
+        serItem.catId       = item.getCatId() ;
+        serItem.subCatId    = item.getSubCatId() ;
+        serItem.paidBy      = item.getPaidBy() ;
+        serItem.amount      = item.getAmount() ;
+        serItem.description = item.getDescription() ;
+        
+        try {
+            int parcelBytes = 0 ;
+            int serBytes    = 0 ;
+            
+            for( int i=0; i<WARMUP_ROUNDS; i++ ) {
+                parcelBytes = parcelRoundTrip( item ) ;
+                serBytes    = serializableRoundTrip( serItem ) ;
+            }
+            
+            long parcelNanos = SystemClock.elapsedRealtimeNanos() ;
+            for( int i=0; i<ROUND_TRIPS; i++ ) {
+                parcelRoundTrip( item ) ;
+            }
+            parcelNanos = SystemClock.elapsedRealtimeNanos() - parcelNanos ;
+            
+            long serNanos = SystemClock.elapsedRealtimeNanos() ;
+            for( int i=0; i<ROUND_TRIPS; i++ ) {
+                serializableRoundTrip( serItem ) ;
+            }
+            serNanos = SystemClock.elapsedRealtimeNanos() - serNanos ;
+            
+            Log.d( LogTag.BENCHMARK, "Expense item round trip" ) ;
+            Log.d( LogTag.BENCHMARK, "  Parcelable   : " + 
+                   ( parcelNanos / ROUND_TRIPS ) + " ns/trip, " + 
+                   parcelBytes + " bytes" ) ;
+            Log.d( LogTag.BENCHMARK, "  Serializable : " + 
+                   ( serNanos / ROUND_TRIPS ) + " ns/trip, " + 
+                   serBytes + " bytes" ) ;
+        }
+        catch( Exception e ) {
+            Log.e( LogTag.BENCHMARK, "Item handoff benchmark failed", e ) ;
+        }
+    }
+    
+    /** Marshalls and unmarshalls the item through a parcel. Returns the size. */
+    private static int parcelRoundTrip( ExpenseItem item ) {
+        
+        Parcel out = Parcel.obtain() ;
+        out.writeParcelable( item, 0 ) ;
+        byte[] bytes = out.marshall() ;
+        out.recycle() ;
+        
+        Parcel in = Parcel.obtain() ;
+        in.unmarshall( bytes, 0, bytes.length ) ;
+        in.setDataPosition( 0 ) ;
+        ExpenseItem copy = in.readParcelable( ExpenseItem.class.getClassLoader() ) ;
+        in.recycle() ;
+        
+        if( copy != null ) sink++ ;
+        return bytes.length ;
+    }
+    
+    /** Serializes and deserializes the item. Returns the serialized size. */
+    private static int serializableRoundTrip( SerializableExpenseItem item ) 
+        throws IOException, ClassNotFoundException {
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream() ;
+        ObjectOutputStream    oos = new ObjectOutputStream( bos ) ;
+        oos.writeObject( item ) ;
+        oos.close() ;
+        byte[] bytes = bos.toByteArray() ;
+        
+        ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) ;
+        Object copy = ois.readObject() ;
+        ois.close() ;
+        
+        if( copy != null ) sink++ ;
+        return bytes.length ;
+    }
+    
+    // -------------------------------------------------------------------------
+    // Helper methods
+    // -------------------------------------------------------------------------
+    /**
+     * Returns the approximate number of bytes in use on the heap, after
+     * requesting a garbage collection.
+     */
+    private static long usedHeap() {
+
+        Runtime rt = Runtime.getRuntime() ;
+        for( int i=0; i<3; i++ ) {
+            rt.gc() ;
+        }
+        return rt.totalMemory() - rt.freeMemory() ;
+    }
+}
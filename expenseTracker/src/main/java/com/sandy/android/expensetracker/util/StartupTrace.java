@@ -0,0 +1,70 @@
+package com.sandy.android.expensetracker.util;
+
+import android.os.SystemClock ;
+import android.os.Trace ;
+import android.util.Log ;
+import android.view.View ;
+import android.view.ViewTreeObserver ;
+
+import com.sandy.android.expensetracker.BuildConfig ;
+
+/**
+ * Instrumentation of the application start up. The start up phases are
+ * marked as trace sections, which show up in systrace, and the time taken
+ * to reach the start up milestones (for example the first frame) is logged
+ * on debug builds against the {@link LogTag#STARTUP} tag.
+ *
+ * Note that the trace sections are per thread - a section must be ended on
+ * the thread which began it.
+ *
+ * @author Sandeep Deb
+ */
+public class StartupTrace {
+
+    private static long startTime = -1 ;
+
+    private StartupTrace() {
+    }
+
+    /** Marks the start of the application start up. */
+    public static void markStart() {
+        startTime = SystemClock.uptimeMillis() ;
+    }
+
+    /** Begins a trace section with the given name on the calling thread. */
+    public static void beginSection( String name ) {
+        Trace.beginSection( name ) ;
+    }
+
+    /** Ends the last trace section begun on the calling thread. */
+    public static void endSection() {
+        Trace.endSection() ;
+    }
+
+    /** Logs the time elapsed since the start up began. */
+    public static void mark( String milestone ) {
+
+        if( BuildConfig.DEBUG && startTime != -1 ) {
+            Log.d( LogTag.STARTUP, milestone + " at " +
+                   ( SystemClock.uptimeMillis() - startTime ) + " ms" ) ;
+        }
+    }
+
+    /**
+     * Logs the time to the first frame, which is taken as the first time the
+     * given view is about to be drawn.
+     */
+    public static void markFirstFrame( View view ) {
+
+        final ViewTreeObserver observer = view.getViewTreeObserver() ;
+        observer.addOnPreDrawListener( new ViewTreeObserver.OnPreDrawListener() {
+            public boolean onPreDraw() {
+                if( observer.isAlive() ) {
+                    observer.removeOnPreDrawListener( this ) ;
+                }
+                mark( "First frame" ) ;
+                return true ;
+            }
+        } ) ;
+    }
+}
@@ -0,0 +1,60 @@
+package com.sandy.android.expensetracker.util;
+
+import java.util.ArrayList ;
+import java.util.LinkedHashSet ;
+import java.util.List ;
+import java.util.Locale ;
+import java.util.Set ;
+
+/**
+ * Utility methods for the free form tags of the expense items. Tags are
+ * entered as comma separated text. A tag name is trimmed and lower cased,
+ * so that "Goa trip" and "goa Trip " are the same tag.
+ *
+ * @author Sandeep Deb
+ */
+public class Tags {
+
+    private Tags() {
+    }
+
+    /**
+     * Returns the distinct tag names in the given comma separated text, in
+     * the order of their first appearance. Returns an empty list if the text
+     * is null or has no tags.
+     */
+    public static List<String> parse( String text ) {
+
+        Set<String> names = new LinkedHashSet<String>() ;
+        if( text != null ) {
+            String[] parts = text.split( "," ) ;
+            for( int i=0; i<parts.length; i++ ) {
+                String name = normalize( parts[i] ) ;
+                if( name.length() > 0 ) {
+                    names.add( name ) ;
+                }
+            }
+        }
+        return new ArrayList<String>( names ) ;
+    }
+
+    /** Returns the given tag name trimmed and in lower case. */
+    public static String normalize( String name ) {
+        return name.trim().toLowerCase( Locale.US ) ;
+    }
+
+    /** Returns the given tag names as comma separated text. */
+    public static String format( List<String> names ) {
+
+        StringBuilder buffer = new StringBuilder() ;
+        if( names != null ) {
+            for( int i=0; i<names.size(); i++ ) {
+                if( i > 0 ) {
+                    buffer.append( ", " ) ;
+                }
+                buffer.append( names.get( i ) ) ;
+            }
+        }
+        return buffer.toString() ;
+    }
+}
@@ -9,32 +9,98 @@
 
 package com.sandy.android.expensetracker.vo ;
 
-import java.io.Serializable ;
+import java.util.ArrayList ;
 import java.util.Comparator ;
 import java.util.Date ;
+import java.util.List ;
+
+import android.os.Parcel ;
+import android.os.Parcelable ;
 
 /**
  * This class represents an expense item. Instances of this class will be
  * persisted in a relational database.
  * 
+ * Expense items are passed between activities as {@link Parcelable}s. The
+ * parcel encoding is a flat sequence of the fields and avoids the reflection
+ * and the allocations of Java serialization.
+ * 
+ * An expense item can be split across categories by {@link ExpenseSplit}s.
+ * The splits of a split item account for its whole amount, and the category
+ * and sub category of the item are those of its first split.
+ * 
+ * An expense item can carry any number of free form tags, which are held as
+ * their names.
+ * 
  * @author Sandeep Deb
  */
-public class ExpenseItem implements Serializable {
+public class ExpenseItem implements Parcelable {
 
-    private static final long serialVersionUID = 1L ;
+    // Marker written in place of the date, if the date is null
+    private static final long NULL_DATE = Long.MIN_VALUE ;
+    
+    public static final Parcelable.Creator<ExpenseItem> CREATOR = 
+                                       new Parcelable.Creator<ExpenseItem>() {
+        
+        public ExpenseItem createFromParcel( Parcel in ) {
+            return new ExpenseItem( in ) ;
+        }
+
+        public ExpenseItem[] newArray( int size ) {
+            return new ExpenseItem[size] ;
+        }
+    } ;
 
     private int     id               = -1 ;
     private Date    date             = null ;
     private int     catId            = -1 ;
     private int     subCatId         = -1 ;
     private String  paidBy           = null ;
-    private int     amount           = 0 ;
+    private long    amount           = 0 ;
     private String  description      = null ;
+    private int     recurringId      = -1 ;
+    private String  currency         = null ;
+    private List<ExpenseSplit> splits = null ;
+    private List<String>       tags   = null ;
     
     public ExpenseItem() {
         date = new Date() ;
     }
     
+    /** Creates an expense item from the data written by writeToParcel. */
+    private ExpenseItem( Parcel in ) {
+        
+        long time = 0 ;
+        
+        id          = in.readInt() ;
+        time        = in.readLong() ;
+        date        = ( time == NULL_DATE ) ? null : new Date( time ) ;
+        catId       = in.readInt() ;
+        subCatId    = in.readInt() ;
+        paidBy      = in.readString() ;
+        amount      = in.readLong() ;
+        description = in.readString() ;
+        recurringId = in.readInt() ;
+        currency    = in.readString() ;
+        
+        int numSplits = in.readInt() ;
+        if( numSplits >= 0 ) {
+            splits = new ArrayList<ExpenseSplit>( numSplits ) ;
+            for( int i=0; i<numSplits; i++ ) {
+                splits.add( new ExpenseSplit( in.readInt(), in.readInt(), 
+                                              in.readLong() ) ) ;
+            }
+        }
+        
+        int numTags = in.readInt() ;
+        if( numTags >= 0 ) {
+            tags = new ArrayList<String>( numTags ) ;
+            for( int i=0; i<numTags; i++ ) {
+                tags.add( in.readString() ) ;
+            }
+        }
+    }
+    
     public void setId( int id ) {
         this.id = id ;
     }
@@ -75,11 +141,15 @@ public class ExpenseItem implements Serializable {
         this.paidBy = paidBy ;
     }
     
-    public int getAmount() {
+    /**
+     * Returns the amount in minor units of the currency, see 
+     * {@link com.sandy.android.expensetracker.util.Amounts}.
+     */
+    public long getAmount() {
         return amount ;
     }
     
-    public void setAmount(int amount) {
+    public void setAmount( long amount ) {
         this.amount = amount ;
     }
     
@@ -91,6 +161,66 @@ public class ExpenseItem implements Serializable {
         this.description = description ;
     }
     
+    /**
+     * Returns the identifier of the recurring expense from which this item 
+     * was created, or -1 if this is not a recurring expense.
+     */
+    public int getRecurringId() {
+        return recurringId ;
+    }
+    
+    public void setRecurringId( int recurringId ) {
+        this.recurringId = recurringId ;
+    }
+    
+    /**
+     * Returns the ISO 4217 code of the currency of the amount. The code is 
+     * always set for an item read from or saved to the database, the DAO 
+     * filling in the home currency if none was given. It is null only for 
+     * an item which has not been saved yet.
+     */
+    public String getCurrency() {
+        return currency ;
+    }
+    
+    public void setCurrency( String currency ) {
+        this.currency = currency ;
+    }
+    
+    /** Returns true if the item is split across categories. */
+    public boolean isSplit() {
+        return splits != null ;
+    }
+    
+    /**
+     * Returns the splits of the item, or null if the item is not split. The
+     * returned list is the one held by the item.
+     */
+    public List<ExpenseSplit> getSplits() {
+        return splits ;
+    }
+    
+    /** 
+     * Sets the splits of the item. A null or empty list makes the item 
+     * unsplit.
+     */
+    public void setSplits( List<ExpenseSplit> splits ) {
+        this.splits = ( splits == null || splits.isEmpty() ) ? null : splits ;
+    }
+    
+    /**
+     * Returns the names of the tags of the item, or null if the item has no
+     * tags. The returned list is the one held by the item.
+     */
+    public List<String> getTags() {
+        return tags ;
+    }
+    
+    /** Sets the tags of the item. A null or empty list clears the tags. */
+    public void setTags( List<String> tags ) {
+        this.tags = ( tags == null || tags.isEmpty() ) ? null : tags ;
+    }
+    
     public String toString() {
         return getDescription() ;
     }
@@ -104,6 +234,60 @@ public class ExpenseItem implements Serializable {
         setPaidBy     ( srcItem.getPaidBy()      ) ;
         setAmount     ( srcItem.getAmount()      ) ;
         setDescription( srcItem.getDescription() ) ;
+        setRecurringId( srcItem.getRecurringId() ) ;
+        setCurrency   ( srcItem.getCurrency()    ) ;
+        
+        List<ExpenseSplit> srcSplits = srcItem.getSplits() ;
+        List<ExpenseSplit> newSplits = null ;
+        if( srcSplits != null ) {
+            newSplits = new ArrayList<ExpenseSplit>( srcSplits.size() ) ;
+            for( int i=0; i<srcSplits.size(); i++ ) {
+                newSplits.add( new ExpenseSplit( srcSplits.get( i ) ) ) ;
+            }
+        }
+        setSplits( newSplits ) ;
+        
+        List<String> srcTags = srcItem.getTags() ;
+        setTags( srcTags == null ? null : new ArrayList<String>( srcTags ) ) ;
+    }
+    
+    // =========================================================================
+    // Parcelable methods
+    // =========================================================================
+    @Override
+    public int describeContents() {
+        return 0 ;
+    }
+
+    @Override
+    public void writeToParcel( Parcel dest, int flags ) {
+        
+        dest.writeInt   ( id ) ;
+        dest.writeLong  ( date == null ? NULL_DATE : date.getTime() ) ;
+        dest.writeInt   ( catId ) ;
+        dest.writeInt   ( subCatId ) ;
+        dest.writeString( paidBy ) ;
+        dest.writeLong  ( amount ) ;
+        dest.writeString( description ) ;
+        dest.writeInt   ( recurringId ) ;
+        dest.writeString( currency ) ;
+        
+        dest.writeInt   ( splits == null ? -1 : splits.size() ) ;
+        if( splits != null ) {
+            for( int i=0; i<splits.size(); i++ ) {
+                ExpenseSplit split = splits.get( i ) ;
+                dest.writeInt ( split.getCatId() ) ;
+                dest.writeInt ( split.getSubCatId() ) ;
+                dest.writeLong( split.getAmount() ) ;
+            }
+        }
+        
+        dest.writeInt   ( tags == null ? -1 : tags.size() ) ;
+        if( tags != null ) {
+            for( int i=0; i<tags.size(); i++ ) {
+                dest.writeString( tags.get( i ) ) ;
+            }
+        }
     }
     
     // =========================================================================
@@ -0,0 +1,68 @@
+package com.sandy.android.expensetracker.vo ;
+
+/**
+ * A line item of a split expense item, attributing a part of the amount of
+ * the item to a category and sub category. For example, a supermarket bill
+ * can be split into groceries, household and medicines.
+ *
+ * The splits of an item together account for its whole amount and are in
+ * the currency of the item.
+ *
+ * @author Sandeep Deb
+ */
+public class ExpenseSplit {
+
+    private int  catId    = -1 ;
+    private int  subCatId = -1 ;
+    private long amount   = 0 ;
+
+    public ExpenseSplit( int catId, int subCatId, long amount ) {
+        this.catId    = catId ;
+        this.subCatId = subCatId ;
+        this.amount   = amount ;
+    }
+
+    public ExpenseSplit( ExpenseSplit split ) {
+        this( split.catId, split.subCatId, split.amount ) ;
+    }
+
+    public int getCatId() {
+        return catId ;
+    }
+
+    public void setCatId( int id ) {
+        this.catId = id ;
+    }
+
+    public int getSubCatId() {
+        return subCatId ;
+    }
+
+    public void setSubCatId( int id ) {
+        this.subCatId = id ;
+    }
+
+    /** Returns the amount in minor units of the currency of the item. */
+    public long getAmount() {
+        return amount ;
+    }
+
+    public void setAmount( long amount ) {
+        this.amount = amount ;
+    }
+
+    public boolean equals( Object o ) {
+
+        if( !( o instanceof ExpenseSplit ) ) {
+            return false ;
+        }
+        ExpenseSplit split = ( ExpenseSplit )o ;
+        return catId    == split.catId    &&
+               subCatId == split.subCatId &&
+               amount   == split.amount ;
+    }
+
+    public int hashCode() {
+        return 31 * ( 31 * catId + subCatId ) + ( int )( amount ^ ( amount >>> 32 ) ) ;
+    }
+}
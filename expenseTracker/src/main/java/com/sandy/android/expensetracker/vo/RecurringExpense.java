@@ -0,0 +1,198 @@
+package com.sandy.android.expensetracker.vo ;
+
+import java.util.Calendar ;
+import java.util.Date ;
+
+/**
+ * This class represents a recurring expense rule. A rule is a template of an
+ * expense item along with a period, for example every month or every two
+ * weeks. Each occurrence of the rule materializes as an expense item.
+ *
+ * The occurrences are numbered from zero, the zeroth occurrence falling on
+ * the start date. The date of an occurrence is always computed from the start
+ * date and not from the previous occurrence. Hence a monthly rule starting on
+ * the 31st falls on the last day of the shorter months and is back on the
+ * 31st there after, instead of drifting to the 28th.
+ *
+ * @author Sandeep Deb
+ */
+public class RecurringExpense {
+
+    public static final int PERIOD_DAY   = 0 ;
+    public static final int PERIOD_WEEK  = 1 ;
+    public static final int PERIOD_MONTH = 2 ;
+
+    private int     id               = -1 ;
+    private int     catId            = -1 ;
+    private int     subCatId         = -1 ;
+    private String  paidBy           = null ;
+    private long    amount           = 0 ;
+    private String  description      = null ;
+    private int     periodUnit       = PERIOD_MONTH ;
+    private int     periodCount      = 1 ;
+    private Date    startDate        = null ;
+    private int     occurrenceNo     = 0 ;
+    private String  currency         = null ;
+
+    public RecurringExpense() {
+    }
+
+    /**
+     * Creates a rule which repeats the given expense item every periodCount
+     * period units. The given item is considered the zeroth occurrence and
+     * hence the rule is due next on its first occurrence. The item must not
+     * be split, since a rule has a single sub category. Its tags are not 
+     * carried over.
+     */
+    public RecurringExpense( ExpenseItem item, int periodUnit, int periodCount ) {
+
+        this.catId        = item.getCatId() ;
+        this.subCatId     = item.getSubCatId() ;
+        this.paidBy       = item.getPaidBy() ;
+        this.amount       = item.getAmount() ;
+        this.description  = item.getDescription() ;
+        this.periodUnit   = periodUnit ;
+        this.periodCount  = periodCount ;
+        this.startDate    = item.getDate() ;
+        this.occurrenceNo = 1 ;
+        this.currency     = item.getCurrency() ;
+    }
+
+    public int getId() {
+        return id ;
+    }
+
+    public void setId( int id ) {
+        this.id = id ;
+    }
+
+    public int getCatId() {
+        return catId ;
+    }
+
+    public void setCatId( int catId ) {
+        this.catId = catId ;
+    }
+
+    public int getSubCatId() {
+        return subCatId ;
+    }
+
+    public void setSubCatId( int subCatId ) {
+        this.subCatId = subCatId ;
+    }
+
+    public String getPaidBy() {
+        return paidBy ;
+    }
+
+    public void setPaidBy( String paidBy ) {
+        this.paidBy = paidBy ;
+    }
+
+    /** Returns the amount in minor units of the currency. */
+    public long getAmount() {
+        return amount ;
+    }
+
+    public void setAmount( long amount ) {
+        this.amount = amount ;
+    }
+
+    public String getDescription() {
+        return description == null ? "" : description ;
+    }
+
+    public void setDescription( String description ) {
+        this.description = description ;
+    }
+
+    /** Returns one of PERIOD_DAY, PERIOD_WEEK or PERIOD_MONTH. */
+    public int getPeriodUnit() {
+        return periodUnit ;
+    }
+
+    public void setPeriodUnit( int periodUnit ) {
+        this.periodUnit = periodUnit ;
+    }
+
+    /** Returns the number of period units between two occurrences. */
+    public int getPeriodCount() {
+        return periodCount ;
+    }
+
+    public void setPeriodCount( int periodCount ) {
+        this.periodCount = periodCount ;
+    }
+
+    public Date getStartDate() {
+        return startDate ;
+    }
+
+    public void setStartDate( Date startDate ) {
+        this.startDate = startDate ;
+    }
+
+    /** Returns the number of the next occurrence to be materialized. */
+    public int getOccurrenceNo() {
+        return occurrenceNo ;
+    }
+
+    public void setOccurrenceNo( int occurrenceNo ) {
+        this.occurrenceNo = occurrenceNo ;
+    }
+
+    /** 
+     * Returns the currency code of the amount. Always set for a recurring 
+     * expense read from the database.
+     */
+    public String getCurrency() {
+        return currency ;
+    }
+
+    public void setCurrency( String currency ) {
+        this.currency = currency ;
+    }
+
+    /** Returns the date on which the next occurrence is due. */
+    public Date getNextDueDate() {
+        return getOccurrenceDate( occurrenceNo ) ;
+    }
+
+    /** Returns the date of the given occurrence of this rule. */
+    public Date getOccurrenceDate( int occurrence ) {
+
+        Calendar cal = Calendar.getInstance() ;
+        cal.setTime( startDate ) ;
+
+        switch( periodUnit ) {
+            case PERIOD_DAY :
+                cal.add( Calendar.DAY_OF_MONTH, occurrence * periodCount ) ;
+                break ;
+            case PERIOD_WEEK :
+                cal.add( Calendar.WEEK_OF_YEAR, occurrence * periodCount ) ;
+                break ;
+            case PERIOD_MONTH :
+                cal.add( Calendar.MONTH, occurrence * periodCount ) ;
+                break ;
+            default :
+                throw new IllegalStateException( "Unknown period unit " + periodUnit ) ;
+        }
+        return cal.getTime() ;
+    }
+
+    /** Creates a new expense item for the occurrence on the given date. */
+    public ExpenseItem createOccurrence( Date date ) {
+
+        ExpenseItem item = new ExpenseItem() ;
+        item.setDate       ( date ) ;
+        item.setCatId      ( catId ) ;
+        item.setSubCatId   ( subCatId ) ;
+        item.setPaidBy     ( paidBy ) ;
+        item.setAmount     ( amount ) ;
+        item.setDescription( description ) ;
+        item.setRecurringId( id ) ;
+        item.setCurrency   ( currency ) ;
+        return item ;
+    }
+}